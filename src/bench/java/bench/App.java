@@ -0,0 +1,265 @@
+package bench;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.security.KeyPair;
+import java.security.PrivateKey;
+import java.security.PublicKey;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Bridge to the web application classes.
+ * The application lives in the default package, which cannot be imported from a named package
+ * (and JMH refuses to generate benchmarks in the default package), so every entry point the
+ * benchmarks need is bound once as a static final method handle. The JIT treats those handles
+ * as constants, so the indirection does not show up in the measurements.
+ */
+final class App
+{
+    private static final MethodHandles.Lookup LOOKUP = MethodHandles.publicLookup();
+
+    private static final MethodHandle ENCRYPT_DATA =
+            staticMethod("CryptoUtils", "encryptData", String.class, String.class, PublicKey.class);
+    private static final MethodHandle DECRYPT_DATA =
+            staticMethod("CryptoUtils", "decryptData", String.class, String.class, PrivateKey.class);
+    private static final MethodHandle SIGN_DATA =
+            staticMethod("CryptoUtils", "signData", String.class, String.class, PrivateKey.class);
+    private static final MethodHandle VERIFY_SIGNATURE =
+            staticMethod("CryptoUtils", "verifySignature", boolean.class, String.class, String.class, PublicKey.class);
+    private static final MethodHandle CALCULATE_BLOCK_HASH =
+            staticMethod("CryptoUtils", "calculateBlockHash", String.class, String.class, String.class, long.class);
+    private static final MethodHandle IMPORT_PRIVATE_KEY =
+            staticMethod("CryptoUtils", "importPrivateKey", PrivateKey.class, String.class);
+    private static final MethodHandle IMPORT_PUBLIC_KEY =
+            staticMethod("CryptoUtils", "importPublicKey", PublicKey.class, String.class);
+    private static final MethodHandle CREATE_PUBLIC_KEY =
+            staticMethod("CryptoUtils", "createPublicKey", PublicKey.class, String.class);
+    private static final Class<?> CANDIDATE_DICTIONARY = type("CandidateDictionary");
+    private static final Class<?> VOTER_REGISTRY = type("VoterRegistry");
+    private static final MethodHandle TALLY_BALLOTS =
+            staticMethod("DatabaseUtils", "tallyBallots", Map.class, Iterable.class, PrivateKey.class,
+                    CANDIDATE_DICTIONARY, VOTER_REGISTRY).asType(
+                    MethodType.methodType(Map.class, Iterable.class, PrivateKey.class, Object.class, Object.class));
+    private static final MethodHandle VOTERS =
+            staticMethod("VoterRegistry", "of", VOTER_REGISTRY, List.class)
+                    .asType(MethodType.methodType(Object.class, List.class));
+    private static final MethodHandle CANDIDATES =
+            staticMethod("CandidateDictionary", "of", CANDIDATE_DICTIONARY, Collection.class)
+                    .asType(MethodType.methodType(Object.class, Collection.class));
+    private static final MethodHandle DECRYPTED_BALLOT =
+            constructor("BallotServlet$DecryptedBallot", String.class, PrivateKey.class);
+    private static final Class<?> ELECTION_STORE = type("ElectionStore");
+    private static final MethodHandle MEMORY_STORE = constructor("MemoryStore");
+    private static final MethodHandle CREATE_ELECTION =
+            storeMethod("createElection", Boolean.class, String.class, KeyPair.class, List.class, int.class);
+    private static final MethodHandle REGISTER_VOTER =
+            storeMethod("registerVoter", Boolean.class, String.class, String.class, String.class, String.class);
+    private static final MethodHandle RETRIEVE_PUBLIC_KEY =
+            storeMethod("retrievePublicKey", String.class, String.class);
+    private static final MethodHandle INITIALIZE_BLOCKCHAIN =
+            storeMethod("initializeElectionBlockchain", Boolean.class, String.class);
+    private static final MethodHandle ADD_TO_BLOCKCHAIN =
+            storeMethod("addToBlockchain", long.class, List.class, List.class, String.class);
+    private static final MethodHandle IS_REGISTERED =
+            storeMethod("isRegistered", boolean.class, String.class, String.class);
+
+    private App() {}
+
+    static String encryptData(String data, PublicKey key)
+    {
+        try { return (String) ENCRYPT_DATA.invokeExact(data, key); }
+        catch (Throwable t) { throw rethrow(t); }
+    }
+
+    static String decryptData(String data, PrivateKey key)
+    {
+        try { return (String) DECRYPT_DATA.invokeExact(data, key); }
+        catch (Throwable t) { throw rethrow(t); }
+    }
+
+    static String signData(String data, PrivateKey key)
+    {
+        try { return (String) SIGN_DATA.invokeExact(data, key); }
+        catch (Throwable t) { throw rethrow(t); }
+    }
+
+    static boolean verifySignature(String data, String signature, PublicKey key)
+    {
+        try { return (boolean) VERIFY_SIGNATURE.invokeExact(data, signature, key); }
+        catch (Throwable t) { throw rethrow(t); }
+    }
+
+    static String calculateBlockHash(String content, String prevHash, long timestamp)
+    {
+        try { return (String) CALCULATE_BLOCK_HASH.invokeExact(content, prevHash, timestamp); }
+        catch (Throwable t) { throw rethrow(t); }
+    }
+
+    static PrivateKey importPrivateKey(String b64)
+    {
+        try { return (PrivateKey) IMPORT_PRIVATE_KEY.invokeExact(b64); }
+        catch (Throwable t) { throw rethrow(t); }
+    }
+
+    static PublicKey importPublicKey(String b64)
+    {
+        try { return (PublicKey) IMPORT_PUBLIC_KEY.invokeExact(b64); }
+        catch (Throwable t) { throw rethrow(t); }
+    }
+
+    static PublicKey createPublicKey(String modulus)
+    {
+        try { return (PublicKey) CREATE_PUBLIC_KEY.invokeExact(modulus); }
+        catch (Throwable t) { throw rethrow(t); }
+    }
+
+    /**
+     * @param candidates dictionary created with candidates()
+     * @param voters registry created with voters()
+     */
+    @SuppressWarnings("unchecked")
+    static Map<String, Long> tallyBallots(Iterable<String> ballots, PrivateKey key, Object candidates, Object voters)
+    {
+        try { return (Map<String, Long>) TALLY_BALLOTS.invokeExact(ballots, key, candidates, voters); }
+        catch (Throwable t) { throw rethrow(t); }
+    }
+
+    /**
+     * @param moduli registered voter moduli (base64)
+     * @return an in-memory VoterRegistry (opaque to the benchmarks)
+     */
+    static Object voters(List<String> moduli)
+    {
+        try { return VOTERS.invokeExact(moduli); }
+        catch (Throwable t) { throw rethrow(t); }
+    }
+
+    /**
+     * @return a CandidateDictionary (opaque to the benchmarks)
+     */
+    static Object candidates(Collection<String> names)
+    {
+        try { return CANDIDATES.invokeExact(names); }
+        catch (Throwable t) { throw rethrow(t); }
+    }
+
+    /**
+     * @return a BallotServlet.DecryptedBallot (opaque to the benchmarks)
+     */
+    static Object decryptedBallot(String ballot, PrivateKey key)
+    {
+        try { return DECRYPTED_BALLOT.invokeExact(ballot, key); }
+        catch (Throwable t) { throw rethrow(t); }
+    }
+
+    /**
+     * @return an empty MemoryStore (opaque to the benchmarks)
+     */
+    static Object memoryStore()
+    {
+        try { return MEMORY_STORE.invokeExact(); }
+        catch (Throwable t) { throw rethrow(t); }
+    }
+
+    /**
+     * @param store an ElectionStore created with memoryStore()
+     */
+    static boolean createElection(Object store, String name, KeyPair keys, List<String> candidates)
+    {
+        try { return (Boolean) CREATE_ELECTION.invokeExact(store, name, keys, candidates, 1); }
+        catch (Throwable t) { throw rethrow(t); }
+    }
+
+    static boolean registerVoter(Object store, String voterKey, String fname, String lname, String election)
+    {
+        try { return (Boolean) REGISTER_VOTER.invokeExact(store, voterKey, fname, lname, election); }
+        catch (Throwable t) { throw rethrow(t); }
+    }
+
+    static String retrievePublicKey(Object store, String election)
+    {
+        try { return (String) RETRIEVE_PUBLIC_KEY.invokeExact(store, election); }
+        catch (Throwable t) { throw rethrow(t); }
+    }
+
+    static boolean initializeElectionBlockchain(Object store, String electionKey)
+    {
+        try { return (Boolean) INITIALIZE_BLOCKCHAIN.invokeExact(store, electionKey); }
+        catch (Throwable t) { throw rethrow(t); }
+    }
+
+    static boolean addToBlockchain(Object store, List<String> ballots, List<String> voters, String electionKey)
+    {
+        try { return (long) ADD_TO_BLOCKCHAIN.invokeExact(store, ballots, voters, electionKey) >= 0; }
+        catch (Throwable t) { throw rethrow(t); }
+    }
+
+    static boolean isRegistered(Object store, String election, String voterKey)
+    {
+        try { return (boolean) IS_REGISTERED.invokeExact(store, election, voterKey); }
+        catch (Throwable t) { throw rethrow(t); }
+    }
+
+    private static Class<?> type(String name)
+    {
+        try
+        {
+            return Class.forName(name);
+        }
+        catch (ClassNotFoundException e)
+        {
+            throw new IllegalStateException("Missing application class " + name, e);
+        }
+    }
+
+    private static MethodHandle staticMethod(String owner, String name, Class<?> ret, Class<?>... params)
+    {
+        try
+        {
+            return LOOKUP.findStatic(Class.forName(owner), name, MethodType.methodType(ret, params));
+        }
+        catch (ReflectiveOperationException e)
+        {
+            throw new IllegalStateException("Missing application method " + owner + "." + name, e);
+        }
+    }
+
+    /**
+     * @return handle of an ElectionStore method, taking the store as an Object
+     */
+    private static MethodHandle storeMethod(String name, Class<?> ret, Class<?>... params)
+    {
+        try
+        {
+            MethodHandle handle = LOOKUP.findVirtual(ELECTION_STORE, name, MethodType.methodType(ret, params));
+            return handle.asType(handle.type().changeParameterType(0, Object.class));
+        }
+        catch (ReflectiveOperationException e)
+        {
+            throw new IllegalStateException("Missing application method ElectionStore." + name, e);
+        }
+    }
+
+    private static MethodHandle constructor(String owner, Class<?>... params)
+    {
+        try
+        {
+            return LOOKUP.findConstructor(Class.forName(owner), MethodType.methodType(void.class, params))
+                    .asType(MethodType.methodType(Object.class, params));
+        }
+        catch (ReflectiveOperationException e)
+        {
+            throw new IllegalStateException("Missing application constructor " + owner, e);
+        }
+    }
+
+    private static RuntimeException rethrow(Throwable t)
+    {
+        if (t instanceof RuntimeException) return (RuntimeException) t;
+        if (t instanceof Error) throw (Error) t;
+        return new IllegalStateException(t);
+    }
+}
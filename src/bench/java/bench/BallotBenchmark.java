@@ -0,0 +1,38 @@
+package bench;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.security.KeyPair;
+import java.security.PrivateKey;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Construction of a DecryptedBallot: base64 decode, RSA(4096) decrypt, parse and RSA(2048) verify.
+ * This is the per-ballot cost paid by BallotServlet on ingest and by every ballot in a tally.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class BallotBenchmark
+{
+    PrivateKey electionPrivate;
+    String ballot;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception
+    {
+        KeyPair election = SyntheticBallots.electionKeys();
+        electionPrivate = election.getPrivate();
+        ballot = SyntheticBallots.ballot(SyntheticBallots.voterKeys(), election.getPublic(),
+                "Candidate A", SyntheticBallots.now());
+    }
+
+    @Benchmark
+    public Object decryptedBallot()
+    {
+        return App.decryptedBallot(ballot, electionPrivate);
+    }
+}
@@ -0,0 +1,41 @@
+package bench;
+
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.File;
+
+/**
+ * Runs the selected benchmarks once per requested thread count and writes one JSON result file per run
+ * (target/jmh/jmh-threads-N.json by default) so results can be compared between builds.
+ *
+ * usage: BenchmarkRunner [include regex] [thread counts, comma separated] [result directory]
+ */
+public class BenchmarkRunner
+{
+    public static void main(String[] args) throws RunnerException
+    {
+        String include = args.length > 0 ? args[0] : ".*";
+        String threads = args.length > 1 ? args[1] : "1";
+        File results = new File(args.length > 2 ? args[2] : "target/jmh");
+        if (!results.isDirectory() && !results.mkdirs())
+        {
+            throw new IllegalArgumentException("Cannot create result directory " + results);
+        }
+
+        for (String t : threads.split(","))
+        {
+            int count = Integer.parseInt(t.trim());
+            Options options = new OptionsBuilder()
+                    .include(include)
+                    .threads(count)
+                    .resultFormat(ResultFormatType.JSON)
+                    .result(new File(results, "jmh-threads-" + count + ".json").getPath())
+                    .build();
+            new Runner(options).run();
+        }
+    }
+}
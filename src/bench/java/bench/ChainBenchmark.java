@@ -0,0 +1,101 @@
+package bench;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.security.KeyPair;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Ballot ingest against the in-memory election store (no database involved): the registration lookup of a ballot's
+ * voter and the hash linked append of blocks, one at a time or in journal sized batches. With several threads the
+ * appends contend for the election's lock like the servlet threads and the journal drainer do.
+ * Every iteration starts over with an empty store, so the chain does not grow without bound.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ChainBenchmark
+{
+    private static final String ELECTION = "bench";
+    private static final int BATCH = 128; // blocks per append of the journal drainer (see BallotJournal)
+
+    @Param({ "32" })
+    int voters;
+
+    KeyPair election;
+    List<String> moduli;
+    List<String> ballots;       // one ballot per voter
+    List<String> ballotBatch;   // BATCH ballots, as the journal drainer appends them
+    List<String> voterBatch;    // their voters
+
+    Object store;               // MemoryStore
+    String electionKey;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception
+    {
+        election = SyntheticBallots.electionKeys();
+        moduli = new ArrayList<String>(voters);
+        ballots = new ArrayList<String>(voters);
+        for (int i = 0; i < voters; i++)
+        {
+            KeyPair voter = SyntheticBallots.voterKeys();
+            moduli.add(SyntheticBallots.encodedModulus(voter));
+            ballots.add(SyntheticBallots.ballot(voter, election.getPublic(), "Candidate A", SyntheticBallots.now()));
+        }
+        ballotBatch = new ArrayList<String>(BATCH);
+        voterBatch = new ArrayList<String>(BATCH);
+        for (int i = 0; i < BATCH; i++)
+        {
+            ballotBatch.add(ballots.get(i % voters));
+            voterBatch.add(moduli.get(i % voters));
+        }
+    }
+
+    @Setup(Level.Iteration)
+    public void openElection()
+    {
+        store = App.memoryStore();
+        App.createElection(store, ELECTION, election, Arrays.asList("Candidate A", "Candidate B"));
+        for (int i = 0; i < voters; i++)
+        {
+            App.registerVoter(store, moduli.get(i), "Bench", "Voter" + i, ELECTION);
+        }
+        electionKey = App.retrievePublicKey(store, ELECTION);
+        App.initializeElectionBlockchain(store, electionKey);
+    }
+
+    @State(Scope.Thread)
+    public static class Cursor
+    {
+        int next;
+    }
+
+    @Benchmark
+    public boolean isRegistered(Cursor cursor)
+    {
+        return App.isRegistered(store, ELECTION, moduli.get(cursor.next++ % voters));
+    }
+
+    @Benchmark
+    public boolean append(Cursor cursor)
+    {
+        int i = cursor.next++ % voters;
+        return App.addToBlockchain(store, Collections.singletonList(ballots.get(i)),
+                Collections.singletonList(moduli.get(i)), electionKey);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public boolean appendBatch()
+    {
+        return App.addToBlockchain(store, ballotBatch, voterBatch, electionKey);
+    }
+}
@@ -0,0 +1,102 @@
+package bench;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.security.KeyPair;
+import java.security.PrivateKey;
+import java.security.PublicKey;
+import java.util.Base64;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * CryptoUtils primitives used on the ballot ingest and tally paths.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class CryptoBenchmark
+{
+    PublicKey electionPublic;
+    PrivateKey electionPrivate;
+    String exportedPublic;      // X509 SPKI, base64
+    String exportedPrivate;     // PKCS#8, base64
+
+    KeyPair voter;
+    String voterModulus;        // base64, as registered
+
+    String plaintext;           // a ballot sized payload (modulus||time||candidate)
+    String ciphertext;
+    String signature;
+    String prevHash;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception
+    {
+        KeyPair election = SyntheticBallots.electionKeys();
+        electionPublic = election.getPublic();
+        electionPrivate = election.getPrivate();
+        exportedPublic = Base64.getEncoder().encodeToString(electionPublic.getEncoded());
+        exportedPrivate = Base64.getEncoder().encodeToString(electionPrivate.getEncoded());
+
+        voter = SyntheticBallots.voterKeys();
+        voterModulus = SyntheticBallots.encodedModulus(voter);
+
+        byte[] payload = new byte[256 + 8 + 16];
+        System.arraycopy(SyntheticBallots.modulus(voter), 0, payload, 0, 256);
+        plaintext = Base64.getEncoder().encodeToString(payload);
+        ciphertext = App.encryptData(plaintext, electionPublic);
+        signature = App.signData(ciphertext, voter.getPrivate());
+        prevHash = App.calculateBlockHash(ciphertext, "genesis", 0L);
+    }
+
+    @Benchmark
+    public String encryptData()
+    {
+        return App.encryptData(plaintext, electionPublic);
+    }
+
+    @Benchmark
+    public String decryptData()
+    {
+        return App.decryptData(ciphertext, electionPrivate);
+    }
+
+    @Benchmark
+    public String signData()
+    {
+        return App.signData(ciphertext, voter.getPrivate());
+    }
+
+    @Benchmark
+    public boolean verifySignature()
+    {
+        return App.verifySignature(ciphertext, signature, voter.getPublic());
+    }
+
+    @Benchmark
+    public String calculateBlockHash()
+    {
+        return App.calculateBlockHash(ciphertext, prevHash, 1234567890123L);
+    }
+
+    @Benchmark
+    public PrivateKey importPrivateKey()
+    {
+        return App.importPrivateKey(exportedPrivate);
+    }
+
+    @Benchmark
+    public PublicKey importPublicKey()
+    {
+        return App.importPublicKey(exportedPublic);
+    }
+
+    @Benchmark
+    public PublicKey createVoterKey()
+    {
+        return App.createPublicKey(voterModulus);
+    }
+}
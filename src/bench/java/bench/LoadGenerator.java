@@ -0,0 +1,310 @@
+package bench;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.security.KeyFactory;
+import java.security.KeyPair;
+import java.security.PublicKey;
+import java.security.spec.InvalidKeySpecException;
+import java.security.spec.X509EncodedKeySpec;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * End-to-end load generator for a running instance of the web app.
+ * Registers synthetic voters through /register and then submits valid, signed and encrypted ballots
+ * to /ballot at a fixed target rate (open loop, so a slow server does not slow down the offered load).
+ * Latency is measured from the time a ballot was scheduled to be sent, so queueing shows up in the numbers.
+ *
+ * usage: LoadGenerator --url http://localhost:8080 --election NAME [--create] [--voters 100]
+ *        [--ballots 1000] [--rate 20] [--concurrency 64] [--candidates A,B,C] [--electionKey BASE64]
+ */
+public class LoadGenerator
+{
+    private static final String REGISTERED = "Success: Your information has been successfully registered.";
+    private static final String SUBMITTED  = "Success: Your ballot has been submitted.";
+    private static final Pattern FAILURE   = Pattern.compile("Failure: ([^<]*)<");
+
+    private final String url;
+    private final String election;
+    private final Random random = new Random();
+
+    LoadGenerator(String url, String election)
+    {
+        this.url = url.endsWith("/") ? url.substring(0, url.length() - 1) : url;
+        this.election = election;
+    }
+
+    public static void main(String[] args) throws Exception
+    {
+        Map<String, String> opts = parse(args);
+        if (!opts.containsKey("election"))
+        {
+            System.err.println("usage: LoadGenerator --url http://localhost:8080 --election NAME [--create] "
+                    + "[--voters 100] [--ballots 1000] [--rate 20] [--concurrency 64] [--candidates A,B,C] "
+                    + "[--electionKey BASE64]");
+            System.exit(2);
+        }
+        String url      = opts.getOrDefault("url", "http://localhost:8080");
+        int voters      = Integer.parseInt(opts.getOrDefault("voters", "100"));
+        int ballots     = Integer.parseInt(opts.getOrDefault("ballots", "1000"));
+        double rate     = Double.parseDouble(opts.getOrDefault("rate", "20"));
+        int concurrency = Integer.parseInt(opts.getOrDefault("concurrency", "64"));
+        String[] candidates = opts.getOrDefault("candidates", "Alice,Bob,Carol").split(",");
+
+        LoadGenerator gen = new LoadGenerator(url, opts.get("election"));
+        if (opts.containsKey("create"))
+        {
+            gen.createAndActivate(candidates);
+        }
+        PublicKey electionKey = gen.electionKey(opts.get("electionKey"));
+
+        List<KeyPair> registered = gen.register(voters, concurrency);
+        if (registered.isEmpty())
+        {
+            System.err.println("No voter could be registered, aborting.");
+            System.exit(1);
+        }
+        gen.vote(registered, electionKey, candidates, ballots, rate, concurrency);
+    }
+
+    /**
+     * creates the election with the given candidates and activates it through the election manager forms
+     */
+    void createAndActivate(String[] candidates) throws IOException
+    {
+        post("/create-election", form("electionName", election, "candidates", String.join("\n", candidates)));
+        post("/electionmanager", form("buttonPressed", "Activate " + election));
+    }
+
+    /**
+     * @param override base64 X509 key given on the command line (may be null)
+     * @return the election's RSA(4096) public key, fetched from the election key endpoint unless overridden
+     *         (elections taking v2 or v3 ballots serve their P-256 ballot key there, which this generator cannot use)
+     */
+    PublicKey electionKey(String override) throws Exception
+    {
+        String b64 = override;
+        if (b64 == null)
+        {   // redirected to the key's fingerprint URL
+            try
+            {
+                b64 = get("/election-key?election=" + URLEncoder.encode(election, "UTF-8")).trim();
+            }
+            catch (IOException e)
+            {
+                throw new IllegalStateException("Election " + election + " has no election key: " + e.getMessage());
+            }
+        }
+        try
+        {
+            return KeyFactory.getInstance("RSA").generatePublic(new X509EncodedKeySpec(Base64.getDecoder().decode(b64)));
+        }
+        catch (InvalidKeySpecException | IllegalArgumentException e)
+        {
+            throw new IllegalStateException("Election " + election + " does not take RSA (v1) ballots");
+        }
+    }
+
+    /**
+     * @return the election's block count as listed on the voter dashboard (-1 if not listed)
+     */
+    long chainLength() throws IOException
+    {
+        Matcher m = Pattern.compile("<h4>" + Pattern.quote(election) + " \\| (\\d+)").matcher(get("/dashboard"));
+        return m.find() ? Long.parseLong(m.group(1)) : -1;
+    }
+
+    /**
+     * generates voter keys and registers them in parallel
+     * @return the key pairs that were accepted by the server
+     */
+    List<KeyPair> register(int voters, int concurrency) throws InterruptedException
+    {
+        ExecutorService pool = Executors.newFixedThreadPool(Math.min(concurrency, Math.max(1, voters)));
+        final List<KeyPair> registered = Collections.synchronizedList(new ArrayList<KeyPair>());
+        final Map<String, AtomicInteger> failures = new ConcurrentHashMap<String, AtomicInteger>();
+        long start = System.nanoTime();
+        for (int i = 0; i < voters; i++)
+        {
+            final int id = i;
+            pool.execute(() -> {
+                try
+                {
+                    KeyPair keys = SyntheticBallots.voterKeys();
+                    String page = post("/register", form(
+                            "firstName", "Load" + id,
+                            "lastName", "Voter" + id,
+                            "electionName", election,
+                            "publicKey", SyntheticBallots.encodedModulus(keys),
+                            "signature", SyntheticBallots.registrationSignature(keys)));
+                    if (page.contains(REGISTERED))
+                        registered.add(keys);
+                    else
+                        count(failures, reason(page));
+                }
+                catch (Exception e)
+                {
+                    count(failures, e.toString());
+                }
+            });
+        }
+        pool.shutdown();
+        pool.awaitTermination(1, TimeUnit.DAYS);
+        System.out.printf("registered %d/%d voters in %.1f s%n", registered.size(), voters,
+                (System.nanoTime() - start) / 1e9);
+        printCounts("registration failures", failures);
+        return registered;
+    }
+
+    /**
+     * submits ballots at the target rate and prints the run summary
+     */
+    void vote(final List<KeyPair> voters, final PublicKey electionKey, final String[] candidates,
+              int ballots, double rate, int concurrency) throws Exception
+    {
+        ExecutorService pool = Executors.newFixedThreadPool(concurrency);
+        final long[] latencies = new long[ballots];
+        final AtomicInteger accepted = new AtomicInteger();
+        final Map<String, AtomicInteger> rejections = new ConcurrentHashMap<String, AtomicInteger>();
+        long interval = (long) (1e9 / rate);
+        long start = System.nanoTime();
+
+        for (int i = 0; i < ballots; i++)
+        {
+            final int n = i;
+            final long scheduled = start + n * interval;
+            long wait = scheduled - System.nanoTime();
+            if (wait > 0) LockSupport.parkNanos(wait);
+
+            pool.execute(() -> {
+                try
+                {
+                    KeyPair voter = voters.get(n % voters.size());
+                    String candidate = candidates[random.nextInt(candidates.length)];
+                    String ballot = SyntheticBallots.ballot(voter, electionKey, candidate, SyntheticBallots.now());
+                    String page = post("/ballot", form("electionName", election, "ballot", ballot));
+                    if (page.contains(SUBMITTED))
+                        accepted.incrementAndGet();
+                    else
+                        count(rejections, reason(page));
+                }
+                catch (Exception e)
+                {
+                    count(rejections, e.toString());
+                }
+                latencies[n] = System.nanoTime() - scheduled;
+            });
+        }
+        pool.shutdown();
+        pool.awaitTermination(1, TimeUnit.DAYS);
+        double seconds = (System.nanoTime() - start) / 1e9;
+
+        Arrays.sort(latencies);
+        System.out.printf("submitted %d ballots in %.1f s (target %.1f/s)%n", ballots, seconds, rate);
+        System.out.printf("throughput: %.1f ballots/s, %.1f accepted/s%n", ballots / seconds, accepted.get() / seconds);
+        System.out.printf("latency ms: p50=%.1f p90=%.1f p99=%.1f p99.9=%.1f max=%.1f%n",
+                percentile(latencies, 50), percentile(latencies, 90), percentile(latencies, 99),
+                percentile(latencies, 99.9), latencies[latencies.length - 1] / 1e6);
+        System.out.printf("accepted: %d, rejected: %d%n", accepted.get(), ballots - accepted.get());
+        printCounts("rejections", rejections);
+        System.out.println("final chain length: " + chainLength());
+    }
+
+    private static double percentile(long[] sorted, double p)
+    {
+        int idx = (int) Math.ceil(p / 100.0 * sorted.length) - 1;
+        return sorted[Math.max(0, Math.min(idx, sorted.length - 1))] / 1e6;
+    }
+
+    private static String reason(String page)
+    {
+        Matcher m = FAILURE.matcher(page);
+        return m.find() ? m.group(1).trim() : "unrecognized response";
+    }
+
+    private static void count(Map<String, AtomicInteger> counts, String key)
+    {
+        counts.computeIfAbsent(key, k -> new AtomicInteger()).incrementAndGet();
+    }
+
+    private static void printCounts(String title, Map<String, AtomicInteger> counts)
+    {
+        if (counts.isEmpty()) return;
+        System.out.println(title + ":");
+        for (Map.Entry<String, AtomicInteger> e : counts.entrySet())
+        {
+            System.out.printf("  %6d  %s%n", e.getValue().get(), e.getKey());
+        }
+    }
+
+    private String get(String path) throws IOException
+    {
+        HttpURLConnection conn = (HttpURLConnection) new URL(url + path).openConnection();
+        return read(conn);
+    }
+
+    private String post(String path, String body) throws IOException
+    {
+        HttpURLConnection conn = (HttpURLConnection) new URL(url + path).openConnection();
+        conn.setRequestMethod("POST");
+        conn.setDoOutput(true);
+        conn.setRequestProperty("Content-Type", "application/x-www-form-urlencoded");
+        try (OutputStream out = conn.getOutputStream())
+        {
+            out.write(body.getBytes(StandardCharsets.UTF_8));
+        }
+        return read(conn);
+    }
+
+    private static String read(HttpURLConnection conn) throws IOException
+    {
+        int status = conn.getResponseCode();
+        InputStream in = status >= 400 ? conn.getErrorStream() : conn.getInputStream();
+        if (in == null) throw new IOException("HTTP " + status);
+        ByteArrayOutputStream buf = new ByteArrayOutputStream();
+        try (InputStream is = in)
+        {
+            byte[] b = new byte[8192];
+            for (int r; (r = is.read(b)) > 0; ) buf.write(b, 0, r);
+        }
+        if (status >= 400) throw new IOException("HTTP " + status);
+        return new String(buf.toByteArray(), StandardCharsets.UTF_8);
+    }
+
+    private static String form(String... pairs) throws IOException
+    {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < pairs.length; i += 2)
+        {
+            if (sb.length() > 0) sb.append('&');
+            sb.append(pairs[i]).append('=').append(URLEncoder.encode(pairs[i + 1], "UTF-8"));
+        }
+        return sb.toString();
+    }
+
+    private static Map<String, String> parse(String[] args)
+    {
+        Map<String, String> opts = new HashMap<String, String>();
+        for (int i = 0; i < args.length; i++)
+        {
+            if (!args[i].startsWith("--")) continue;
+            String key = args[i].substring(2);
+            if (i + 1 < args.length && !args[i + 1].startsWith("--"))
+                opts.put(key, args[++i]);
+            else
+                opts.put(key, "true");
+        }
+        return opts;
+    }
+}
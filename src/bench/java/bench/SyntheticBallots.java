@@ -0,0 +1,121 @@
+package bench;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.OAEPParameterSpec;
+import javax.crypto.spec.PSource;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.PublicKey;
+import java.security.Signature;
+import java.security.interfaces.RSAPublicKey;
+import java.security.spec.MGF1ParameterSpec;
+import java.util.Arrays;
+import java.util.Base64;
+
+/**
+ * Builds ballots exactly the way _scriptBallot.jsp does in the browser:
+ * RSA-OAEP(SHA-256) over (voter modulus || little-endian epoch seconds || candidate),
+ * followed by an RSASSA-PKCS1-v1_5(SHA-256) signature over the ciphertext.
+ */
+final class SyntheticBallots
+{
+    private static final OAEPParameterSpec OAEP_SHA256 = new OAEPParameterSpec(
+            "SHA-256", "MGF1", MGF1ParameterSpec.SHA256, PSource.PSpecified.DEFAULT);
+
+    private SyntheticBallots() {}
+
+    /**
+     * @return a new RSA(4096) election key pair
+     */
+    static KeyPair electionKeys() throws GeneralSecurityException
+    {
+        KeyPairGenerator gen = KeyPairGenerator.getInstance("RSA");
+        gen.initialize(4096);
+        return gen.generateKeyPair();
+    }
+
+    /**
+     * @return a new RSA(2048) voter key pair, as generated by _scriptRegister.jsp
+     */
+    static KeyPair voterKeys() throws GeneralSecurityException
+    {
+        KeyPairGenerator gen = KeyPairGenerator.getInstance("RSA");
+        gen.initialize(2048);
+        return gen.generateKeyPair();
+    }
+
+    /**
+     * @return the voter's public modulus as 256 unsigned big-endian bytes (the JWK "n" value, zero padded)
+     */
+    static byte[] modulus(KeyPair voter)
+    {
+        byte[] n = ((RSAPublicKey) voter.getPublic()).getModulus().toByteArray();
+        byte[] out = new byte[256];
+        int len = Math.min(n.length, 256);
+        System.arraycopy(n, n.length - len, out, 256 - len, len); // drop the sign byte, left pad with zeros
+        return out;
+    }
+
+    /**
+     * @return base64 encoded modulus, the "publicKey" value sent to /register
+     */
+    static String encodedModulus(KeyPair voter)
+    {
+        return Base64.getEncoder().encodeToString(modulus(voter));
+    }
+
+    /**
+     * @return base64 encoded signature over the modulus, the "signature" value sent to /register
+     */
+    static String registrationSignature(KeyPair voter) throws GeneralSecurityException
+    {
+        return Base64.getEncoder().encodeToString(sign(modulus(voter), voter));
+    }
+
+    /**
+     * @param voter the voter's signing keys
+     * @param electionKey the election's RSA(4096) public key
+     * @param candidate candidate name (each char is truncated to a byte, like the browser code)
+     * @param epochSeconds ballot timestamp
+     * @return base64 encoded ballot, the "ballot" value sent to /ballot
+     */
+    static String ballot(KeyPair voter, PublicKey electionKey, String candidate, long epochSeconds)
+            throws GeneralSecurityException
+    {
+        byte[] modulus = modulus(voter);
+        byte[] name = candidate.getBytes(StandardCharsets.ISO_8859_1);
+        byte[] data = Arrays.copyOf(modulus, modulus.length + 8 + name.length);
+        for (int i = 0; i < 8; i++)
+        {
+            data[modulus.length + i] = (byte) (epochSeconds >>> (8 * i));
+        }
+        System.arraycopy(name, 0, data, modulus.length + 8, name.length);
+
+        Cipher cipher = Cipher.getInstance("RSA/ECB/OAEPPadding");
+        cipher.init(Cipher.ENCRYPT_MODE, electionKey, OAEP_SHA256);
+        byte[] encrypted = cipher.doFinal(data);
+        byte[] signature = sign(encrypted, voter);
+
+        byte[] ballot = Arrays.copyOf(encrypted, encrypted.length + signature.length);
+        System.arraycopy(signature, 0, ballot, encrypted.length, signature.length);
+        return Base64.getEncoder().encodeToString(ballot);
+    }
+
+    private static byte[] sign(byte[] data, KeyPair voter) throws GeneralSecurityException
+    {
+        Signature sig = Signature.getInstance("SHA256withRSA");
+        sig.initSign(voter.getPrivate());
+        sig.update(data);
+        return sig.sign();
+    }
+
+    /**
+     * @return epoch seconds for "now", the ballot timestamp the server expects
+     */
+    static long now()
+    {
+        return System.currentTimeMillis() / 1000;
+    }
+}
@@ -0,0 +1,68 @@
+package bench;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.security.KeyPair;
+import java.security.PrivateKey;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tally of a synthetic, in-memory chain of ballots (no database involved).
+ * The chain holds several ballots per voter so re-vote de-duplication is exercised as well.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 3, time = 5)
+@Fork(1)
+@State(Scope.Benchmark)
+public class TallyBenchmark
+{
+    private static final String[] CANDIDATES = { "Alice", "Bob", "Carol", "Dave" };
+
+    @Param({ "32" })
+    int voters;
+
+    @Param({ "256" })
+    int ballots;
+
+    PrivateKey electionPrivate;
+    Object candidates;      // CandidateDictionary
+    Object registry;        // VoterRegistry
+    List<String> chain;     // ballots, newest first
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception
+    {
+        KeyPair election = SyntheticBallots.electionKeys();
+        electionPrivate = election.getPrivate();
+        candidates = App.candidates(Arrays.asList(CANDIDATES));
+
+        KeyPair[] keys = new KeyPair[voters];
+        List<String> moduli = new ArrayList<String>(voters);
+        for (int i = 0; i < voters; i++)
+        {
+            keys[i] = SyntheticBallots.voterKeys();
+            moduli.add(SyntheticBallots.encodedModulus(keys[i]));
+        }
+        registry = App.voters(moduli);
+
+        long time = SyntheticBallots.now();
+        chain = new ArrayList<String>(ballots);
+        for (int i = 0; i < ballots; i++)
+        {
+            chain.add(SyntheticBallots.ballot(keys[i % voters], election.getPublic(),
+                    CANDIDATES[i % CANDIDATES.length], time - i));
+        }
+    }
+
+    @Benchmark
+    public Map<String, Long> tallyBallots()
+    {
+        return App.tallyBallots(chain, electionPrivate, candidates, registry);
+    }
+}
@@ -0,0 +1,35 @@
+import javax.servlet.ServletContextEvent;
+import javax.servlet.ServletContextListener;
+import javax.servlet.annotation.WebListener;
+
+/**
+ * Starts and stops the application's background services with the web app.
+ */
+@WebListener
+public class AppContextListener implements ServletContextListener
+{
+    @Override
+    public void contextInitialized(ServletContextEvent sce)
+    {
+        // begin filling the election key pool so elections can be created without waiting on key generation
+        ElectionKeyPool.start();
+        // replay and keep draining the ballot journal
+        BallotJournal.start();
+        // start the decryption worker processes, if configured
+        DecryptionService.instance();
+        // connect, load the active elections and exercise the ballot path before reporting ready (/ready)
+        Warmup.start();
+        // drop cached election state when another instance changes an election
+        ElectionEvents.start();
+    }
+
+    @Override
+    public void contextDestroyed(ServletContextEvent sce)
+    {
+        ElectionEvents.shutdown();
+        ElectionKeyPool.shutdown();
+        BallotJournal.shutdown();
+        DecryptionService.instance().shutdown();
+        DecryptionPool.shutdown();
+    }
+}
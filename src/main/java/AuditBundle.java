@@ -0,0 +1,424 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Compact, self-contained export of a closed election for offline auditing.
+ *
+ * The bundle is the magic "VOTEAUD1" followed by length-prefixed records, each (type byte, int length, payload):
+ *   'H' election name (UTF-8)
+ *   'C' candidate name (UTF-8), one record per candidate in candidate id order
+ *   'V' voter index (int) + voter public modulus, one record per registered voter in index order
+ *   'B' block number (long) + timestamp (long) + content length (int) + content + hash,
+ *       one record per block in block order (genesis, ballots, terminus holding the revealed key or the
+ *       homomorphic tally)
+ *   'E' number of blocks written (long), always the last record
+ * Base64 columns (contents, hashes, moduli) are stored decoded. All numbers are big-endian.
+ */
+public class AuditBundle
+{
+    static final byte[] MAGIC = "VOTEAUD1".getBytes(StandardCharsets.US_ASCII);
+    static final byte[] INDEX_MAGIC = "VOTEIDX1".getBytes(StandardCharsets.US_ASCII);
+    static final byte HEADER = 'H', CANDIDATE = 'C', VOTER = 'V', BLOCK = 'B', END = 'E';
+
+    private static final int PAGE = 10000;  // blocks (or voters) read from the database at a time
+
+    /**
+     * Writes the bundle of a closed election. The stream is flushed but not closed.
+     * @param electionName the election to export
+     * @param out destination of the bundle
+     * @return false if the election does not exist or is not closed
+     * @throws IOException if writing fails or the chain could not be read
+     */
+    public static boolean export(String electionName, OutputStream out) throws IOException
+    {
+        if (!"N".equalsIgnoreCase(DatabaseUtils.getElectionStatus(electionName))) return false;
+        String electionKey = DatabaseUtils.retrievePublicKey(electionName);
+        Base64.Decoder b64 = Base64.getDecoder();
+
+        DataOutputStream data = new DataOutputStream(new BufferedOutputStream(out, 1 << 16));
+        data.write(MAGIC);
+        record(data, HEADER, electionName.getBytes(StandardCharsets.UTF_8));
+        CandidateDictionary candidates = DatabaseUtils.getCandidates(electionName);
+        if (candidates == null) throw new IOException("Failed to read the candidates of " + electionName);
+        for (String name : candidates.names())
+        {
+            record(data, CANDIDATE, name.getBytes(StandardCharsets.UTF_8));
+        }
+
+        int lastIndex = -1;
+        while (true)
+        {
+            Map<Integer, String> voters = DatabaseUtils.scanVoterKeys(electionName, lastIndex, PAGE);
+            if (voters == null) throw new IOException("Failed to read the voters of " + electionName);
+            if (voters.isEmpty()) break;
+            for (Map.Entry<Integer, String> voter : voters.entrySet())
+            {
+                byte[] modulus = b64.decode(voter.getValue());
+                data.writeByte(VOTER);
+                data.writeInt(4 + modulus.length);
+                data.writeInt(voter.getKey());
+                data.write(modulus);
+                lastIndex = voter.getKey();
+            }
+        }
+
+        long lastBlock = -1, count = 0;
+        while (true)
+        {
+            List<DatabaseUtils.ElectionBlock> blocks = DatabaseUtils.scanBlockchain(electionKey, lastBlock, PAGE);
+            if (blocks == null) throw new IOException("Failed to read the blockchain of " + electionName);
+            if (blocks.isEmpty()) break;
+            for (DatabaseUtils.ElectionBlock block : blocks)
+            {
+                byte[] content = b64.decode(block.content);
+                byte[] hash = b64.decode(block.hash);
+                data.writeByte(BLOCK);
+                data.writeInt(8 + 8 + 4 + content.length + hash.length);
+                data.writeLong(block.no);
+                data.writeLong(block.epoch);
+                data.writeInt(content.length);
+                data.write(content);
+                data.write(hash);
+                lastBlock = block.no;
+                count++;
+            }
+        }
+
+        data.writeByte(END);
+        data.writeInt(8);
+        data.writeLong(count);
+        data.flush();
+        return true;
+    }
+
+    private static void record(DataOutputStream data, byte type, byte[] payload) throws IOException
+    {
+        data.writeByte(type);
+        data.writeInt(payload.length);
+        data.write(payload);
+    }
+
+    /**
+     * Memory-mapped, random access view of a bundle file. Files larger than 2GB are mapped in
+     * overlapping segments so that every record can be read from a single mapping.
+     * Reads are thread safe.
+     */
+    public static class Reader implements Closeable
+    {
+        private static final long SEGMENT = 1L << 30;   // bytes addressed by each mapping
+        private static final int OVERLAP = 1 << 20;     // extra bytes mapped so records never straddle mappings
+
+        private final FileChannel channel;
+        private final MappedByteBuffer[] segments;
+
+        private String electionName;
+        private final List<String> candidates = new ArrayList<String>();
+        private long[] voters = new long[1024];                          // file offset of each voter payload
+        private int voterCount = 0;                                      // one more than the largest voter index
+        private long[] voterKeys = new long[1024];                       // SHA-256 prefix << 32 | voter index
+        private int voterKeyCount = 0;
+        private long[] blocks = new long[1024];                          // file offset of each block payload
+        private int blockCount = 0;
+
+        /**
+         * maps and indexes a bundle file
+         * @throws IOException if the file cannot be read or is not a complete bundle
+         */
+        public Reader(Path file) throws IOException
+        {
+            this(file, null);
+        }
+
+        /**
+         * maps a bundle file using a block-offset index written by writeIndex, so the blocks need not be walked
+         * @param index the bundle's index file (null to walk the blocks)
+         * @throws IOException if the file cannot be read or is not a complete bundle
+         */
+        public Reader(Path file, Path index) throws IOException
+        {
+            channel = FileChannel.open(file, StandardOpenOption.READ);
+            long size = channel.size();
+            segments = new MappedByteBuffer[(int) Math.max(1, (size + SEGMENT - 1) / SEGMENT)];
+            for (int i = 0; i < segments.length; i++)
+            {
+                long start = i * SEGMENT;
+                segments[i] = channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(size - start, SEGMENT + OVERLAP));
+            }
+            index(size, index == null ? null : readIndex(index));
+        }
+
+        /**
+         * @return the block offsets stored in an index file
+         */
+        private static long[] readIndex(Path index) throws IOException
+        {
+            try (FileChannel ch = FileChannel.open(index, StandardOpenOption.READ))
+            {
+                ByteBuffer buf = ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size());
+                byte[] magic = new byte[INDEX_MAGIC.length];
+                buf.get(magic);
+                if (!Arrays.equals(magic, INDEX_MAGIC)) throw new IOException("Not an audit bundle index");
+                long[] offsets = new long[buf.getInt()];
+                buf.asLongBuffer().get(offsets);
+                return offsets;
+            }
+        }
+
+        /**
+         * writes the block offsets of this bundle so it can later be opened without walking the blocks
+         */
+        public void writeIndex(Path index) throws IOException
+        {
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(index.toFile()))))
+            {
+                out.write(INDEX_MAGIC);
+                out.writeInt(blockCount);
+                for (int i = 0; i < blockCount; i++)
+                {
+                    out.writeLong(blocks[i]);
+                }
+            }
+        }
+
+        /**
+         * walks the records once, keeping the offsets of the blocks (or taking them from a known index)
+         */
+        private void index(long size, long[] known) throws IOException
+        {
+            byte[] magic = new byte[MAGIC.length];
+            at(0).get(magic);
+            if (!Arrays.equals(magic, MAGIC)) throw new IOException("Not an audit bundle");
+
+            long pos = MAGIC.length;
+            MessageDigest sha = sha256();
+            while (true)
+            {
+                if (pos + 5 > size) throw new IOException("Bundle is truncated");
+                ByteBuffer buf = at(pos);
+                byte type = buf.get();
+                int length = buf.getInt();
+                if (length < 0 || length > OVERLAP - 5 || pos + 5 + length > size)
+                    throw new IOException("Corrupt record at offset " + pos);
+
+                byte[] bytes;
+                switch (type)
+                {
+                    case HEADER:
+                        bytes = new byte[length];
+                        buf.get(bytes);
+                        electionName = new String(bytes, StandardCharsets.UTF_8);
+                        break;
+                    case CANDIDATE:
+                        bytes = new byte[length];
+                        buf.get(bytes);
+                        candidates.add(new String(bytes, StandardCharsets.UTF_8));
+                        break;
+                    case VOTER:
+                        int index = buf.getInt();
+                        if (length < 4 || index < 0) throw new IOException("Corrupt voter record at offset " + pos);
+                        if (index >= voters.length) voters = Arrays.copyOf(voters, Math.max(index + 1, voters.length * 2));
+                        voters[index] = pos + 5;
+                        voterCount = Math.max(voterCount, index + 1);
+                        buf.limit(buf.position() + length - 4);
+                        sha.update(buf);
+                        if (voterKeyCount == voterKeys.length) voterKeys = Arrays.copyOf(voterKeys, voterKeyCount * 2);
+                        voterKeys[voterKeyCount++] = voterKey(sha.digest(), index);
+                        break;
+                    case BLOCK:
+                        if (known != null && known.length > 0)
+                        {   // skip straight past the last block
+                            if (known[0] != pos + 5) throw new IOException("Bundle index does not match");
+                            blocks = known;
+                            blockCount = known.length;
+                            length = at(known[known.length - 1] - 4).getInt();
+                            pos = known[known.length - 1] - 5;
+                            known = null;
+                            break;
+                        }
+                        if (blockCount == blocks.length) blocks = Arrays.copyOf(blocks, blockCount * 2);
+                        blocks[blockCount++] = pos + 5;
+                        break;
+                    case END:
+                        if (buf.getLong() != blockCount) throw new IOException("Bundle block count does not match");
+                        voterKeys = Arrays.copyOf(voterKeys, voterKeyCount);
+                        Arrays.parallelSort(voterKeys);
+                        return;
+                    default:
+                        throw new IOException("Unknown record type at offset " + pos);
+                }
+                pos += 5 + length;
+            }
+        }
+
+        /**
+         * @return a private buffer positioned at the file offset
+         */
+        private ByteBuffer at(long offset)
+        {
+            int seg = (int) (offset / SEGMENT);
+            ByteBuffer buf = segments[seg].duplicate();
+            buf.position((int) (offset - seg * SEGMENT));
+            return buf;
+        }
+
+        public String electionName()
+        {
+            return electionName;
+        }
+
+        public List<String> candidates()
+        {
+            return candidates;
+        }
+
+        /**
+         * @return number of registered voters (one more than the largest voter index)
+         */
+        public int voterCount()
+        {
+            return voterCount;
+        }
+
+        /**
+         * Resolves voters by the SHA-256 of their modulus: a sorted array of digest prefixes and indices is
+         * binary searched and each candidate is confirmed against the modulus in the mapped bundle, so the
+         * moduli themselves are never held in memory. Safe to use from several threads.
+         */
+        public VoterRegistry voterRegistry()
+        {
+            return new VoterRegistry()
+            {
+                @Override
+                public int size()
+                {
+                    return voterCount;
+                }
+
+                @Override
+                public void indexOf(String[] moduli, int[] indices)
+                {
+                    MessageDigest sha = sha256();
+                    Base64.Decoder b64 = Base64.getDecoder();
+                    for (int i = 0; i < moduli.length; i++)
+                    {
+                        indices[i] = -1;
+                        if (moduli[i] == null) continue;
+                        byte[] modulus;
+                        try
+                        {
+                            modulus = b64.decode(moduli[i]);
+                        }
+                        catch (IllegalArgumentException e)
+                        {
+                            continue;
+                        }
+                        indices[i] = find(modulus, sha.digest(modulus));
+                    }
+                }
+            };
+        }
+
+        /**
+         * @return the index of the voter with the modulus, or -1 if not registered
+         */
+        private int find(byte[] modulus, byte[] digest)
+        {
+            long key = voterKey(digest, 0);
+            int lo = 0, hi = voterKeys.length;
+            while (lo < hi)
+            {
+                int mid = (lo + hi) >>> 1;
+                if (voterKeys[mid] < key) lo = mid + 1;
+                else hi = mid;
+            }
+            for (int i = lo; i < voterKeys.length && (voterKeys[i] >> 32) == (key >> 32); i++)
+            {
+                int index = (int) voterKeys[i];
+                ByteBuffer buf = at(voters[index] - 4);
+                int length = buf.getInt() - 4;
+                buf.getInt();
+                buf.limit(buf.position() + length);
+                if (buf.equals(ByteBuffer.wrap(modulus))) return index;
+            }
+            return -1;
+        }
+
+        /**
+         * @return the first 4 bytes of the digest in the high half, the voter index in the low half
+         */
+        private static long voterKey(byte[] digest, int index)
+        {
+            return (long) ByteBuffer.wrap(digest).getInt() << 32 | (index & 0xFFFFFFFFL);
+        }
+
+        private static MessageDigest sha256()
+        {
+            try
+            {
+                return MessageDigest.getInstance("SHA-256");
+            }
+            catch (NoSuchAlgorithmException e)
+            {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        public int blockCount()
+        {
+            return blockCount;
+        }
+
+        public long blockNo(int i)
+        {
+            return at(blocks[i]).getLong();
+        }
+
+        public long timestamp(int i)
+        {
+            return at(blocks[i] + 8).getLong();
+        }
+
+        /**
+         * @return the block content, base64 encoded as it is stored in the database
+         */
+        public String content(int i)
+        {
+            ByteBuffer buf = at(blocks[i] + 16);
+            byte[] content = new byte[buf.getInt()];
+            buf.get(content);
+            return Base64.getEncoder().encodeToString(content);
+        }
+
+        /**
+         * @return the block hash (or signature), base64 encoded as it is stored in the database
+         */
+        public String hash(int i)
+        {
+            ByteBuffer buf = at(blocks[i] + 16);
+            int contentLength = buf.getInt();
+            int recordLength = at(blocks[i] - 4).getInt();
+            byte[] hash = new byte[recordLength - 20 - contentLength];
+            buf.position(buf.position() + contentLength);
+            buf.get(hash);
+            return Base64.getEncoder().encodeToString(hash);
+        }
+
+        @Override
+        public void close() throws IOException
+        {
+            channel.close();
+        }
+    }
+}
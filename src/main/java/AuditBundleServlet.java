@@ -0,0 +1,43 @@
+import javax.servlet.ServletException;
+import javax.servlet.annotation.WebServlet;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.nio.file.Files;
+
+@WebServlet(urlPatterns = { "/audit-bundle"})
+public class AuditBundleServlet extends HttpServlet
+{
+    public AuditBundleServlet()
+    {
+        super();
+    }
+
+    /**
+     * streams the audit bundle of a closed election as a file download
+     */
+    @Override
+    protected void doGet(HttpServletRequest request, HttpServletResponse response)
+            throws ServletException, IOException
+    {
+        String election = request.getParameter("election");
+        if (election == null || !"N".equalsIgnoreCase(DatabaseUtils.getElectionStatus(election)))
+        {
+            response.sendError(HttpServletResponse.SC_NOT_FOUND, "There is no closed election named " + election + "!");
+            return;
+        }
+
+        response.setContentType("application/octet-stream");
+        response.setHeader("Content-Disposition",
+                "attachment; filename=\"" + election.replaceAll("[^A-Za-z0-9._-]", "_") + ".bundle\"");
+        String electionKey = DatabaseUtils.retrievePublicKey(election);
+        if (DatabaseUtils.isArchived(electionKey))
+        {   // an archived election's segment already is its audit bundle
+            response.setContentLengthLong(ElectionArchive.segment(electionKey).length());
+            Files.copy(ElectionArchive.segment(electionKey).toPath(), response.getOutputStream());
+            return;
+        }
+        AuditBundle.export(election, response.getOutputStream());
+    }
+}
@@ -0,0 +1,207 @@
+import java.math.BigInteger;
+import java.nio.file.Paths;
+import java.security.PrivateKey;
+import java.security.PublicKey;
+import java.security.interfaces.RSAKey;
+import java.util.Base64;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.stream.IntStream;
+
+/**
+ * Standalone command line verifier for audit bundles (see AuditBundle), no database required.
+ * Recomputes every block hash link, checks the genesis and terminus signatures and re-tallies the
+ * election, using all available cores. A homomorphic election's terminus holds its tally instead of the election's
+ * private key; its ballots' proofs are checked, added up again and compared with the tally's decryption proofs.
+ *
+ * usage: java -cp "WEB-INF/classes:WEB-INF/lib/*" AuditVerifier election.bundle
+ */
+public class AuditVerifier
+{
+    public static void main(String[] args) throws Exception
+    {
+        if (args.length != 1)
+        {
+            System.err.println("usage: AuditVerifier <bundle file>");
+            System.exit(2);
+        }
+        long start = System.nanoTime();
+        try (AuditBundle.Reader bundle = new AuditBundle.Reader(Paths.get(args[0])))
+        {
+            boolean ok = verify(bundle);
+            System.out.printf("%s in %.1f s%n", ok ? "VERIFIED" : "FAILED", (System.nanoTime() - start) / 1e9);
+            System.exit(ok ? 0 : 1);
+        }
+    }
+
+    /**
+     * runs every check on the bundle, printing the findings and the election results
+     * @return true if every check passed
+     */
+    static boolean verify(final AuditBundle.Reader bundle)
+    {
+        final int n = bundle.blockCount();
+        System.out.println("election: " + bundle.electionName());
+        System.out.println("blocks: " + n + ", registered voters: " + bundle.voterCount()
+                + ", candidates: " + bundle.candidates().size());
+        if (n < 2)
+        {
+            System.out.println("chain is missing its genesis or terminus block");
+            return false;
+        }
+        boolean ok = true;
+
+        /* block numbering: genesis 0, consecutive ballots, terminus after the last ballot */
+        for (int i = 0; i < n - 1; i++)
+        {
+            if (bundle.blockNo(i) != i)
+            {
+                System.out.println("block " + i + " is numbered " + bundle.blockNo(i));
+                ok = false;
+            }
+        }
+        if (bundle.blockNo(n - 1) < n - 1)
+        {
+            System.out.println("terminus block is numbered " + bundle.blockNo(n - 1));
+            ok = false;
+        }
+
+        /* genesis and terminus are signed by the election key over (public key || timestamp) */
+        String publicKey = bundle.content(0);
+        byte[] tally = homomorphicTally(bundle.content(n - 1));
+        PublicKey verifyingKey = CryptoUtils.importPublicKey(publicKey);
+        PrivateKey decryptionKey = tally == null ? CryptoUtils.importPrivateKey(bundle.content(n - 1)) : null;
+        if (verifyingKey == null || (decryptionKey == null && tally == null))
+        {
+            System.out.println("genesis or terminus does not hold a valid election key");
+            return false;
+        }
+        if (!signed(bundle, 0, publicKey, verifyingKey))
+        {
+            System.out.println("genesis signature is invalid");
+            ok = false;
+        }
+        if (!signed(bundle, n - 1, publicKey, verifyingKey))
+        {
+            System.out.println("terminus signature is invalid");
+            ok = false;
+        }
+        BigInteger modulus = ((RSAKey) verifyingKey).getModulus();
+        if (decryptionKey != null && !modulus.equals(((RSAKey) decryptionKey).getModulus()))
+        {
+            System.out.println("revealed private key does not belong to the election key");
+            ok = false;
+        }
+
+        /* every ballot block links to the hash of the block before it (independent, so checked in parallel) */
+        int[] broken = IntStream.range(1, n - 1).parallel()
+                .filter(i -> !bundle.hash(i).equals(
+                        CryptoUtils.calculateBlockHash(bundle.content(i), bundle.hash(i - 1), bundle.timestamp(i))))
+                .toArray();
+        for (int i = 0; i < Math.min(broken.length, 10); i++)
+        {
+            System.out.println("block " + broken[i] + " does not match its hash link");
+        }
+        if (broken.length > 0)
+        {
+            System.out.println(broken.length + " broken hash links");
+            ok = false;
+        }
+
+        /* re-tally, newest ballot first so a re-vote replaces the voter's older ballot */
+        Iterable<String> ballots = () -> new Iterator<String>()
+        {
+            int next = n - 2;
+
+            @Override
+            public boolean hasNext()
+            {
+                return next >= 1;
+            }
+
+            @Override
+            public String next()
+            {
+                if (next < 1) throw new NoSuchElementException();
+                return bundle.content(next--);
+            }
+        };
+        Map<String, Long> results;
+        if (tally != null)
+        {
+            results = verifyTally(tally, ballots, CandidateDictionary.of(bundle.candidates()),
+                    bundle.voterRegistry());
+            if (results == null)
+            {
+                System.out.println("terminus tally does not match the ballots");
+                return false;
+            }
+        }
+        else
+        {
+            results = DatabaseUtils.tallyBallots(ballots, decryptionKey,
+                    CandidateDictionary.of(bundle.candidates()), bundle.voterRegistry());
+        }
+        System.out.println("results:");
+        for (Map.Entry<String, Long> result : results.entrySet())
+        {
+            System.out.printf("  %10d  %s%n", result.getValue(), result.getKey());
+        }
+        return ok;
+    }
+
+    /**
+     * @param terminus the terminus block's content
+     * @return the decoded tally record if the terminus holds one (homomorphic elections), otherwise null
+     */
+    private static byte[] homomorphicTally(String terminus)
+    {
+        try
+        {
+            byte[] record = Base64.getDecoder().decode(terminus);
+            return record.length > 0 && record[0] == ElGamalTally.V3 ? record : null; // a revealed key starts 0x30
+        }
+        catch (IllegalArgumentException e)
+        {
+            return null;
+        }
+    }
+
+    /**
+     * checks every ballot's signature and proofs, adds up each voter's latest ballot and checks the terminus
+     * tally's decryption proofs against the sums
+     * @return the verified results, or null if the tally does not match
+     */
+    private static Map<String, Long> verifyTally(byte[] tally, Iterable<String> ballots,
+                                                 CandidateDictionary candidates, VoterRegistry voters)
+    {
+        try
+        {
+            ElGamalTally.Totals totals = ElGamalTally.aggregate(ballots, candidates.size(), voters,
+                    ElGamalTally.tallyKey(tally), true);
+            long[] votes = ElGamalTally.verify(tally, totals);
+            if (votes == null) return null;
+            Map<String, Long> results = new LinkedHashMap<String, Long>();
+            for (int id = 0; id < candidates.size(); id++)
+            {
+                results.put(candidates.name(id), votes[id]);
+            }
+            return results;
+        }
+        catch (IllegalArgumentException e)
+        {
+            return null;
+        }
+    }
+
+    /**
+     * @return true if the block's hash is the election's signature over (public key || block timestamp)
+     */
+    private static boolean signed(AuditBundle.Reader bundle, int i, String publicKey, PublicKey verifyingKey)
+    {
+        String timestamp = Base64.getEncoder().encodeToString(Long.toString(bundle.timestamp(i)).getBytes());
+        return CryptoUtils.verifySignature(CryptoUtils.base64Concat(publicKey, timestamp), bundle.hash(i), verifyingKey);
+    }
+}
@@ -0,0 +1,554 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.CRC32;
+
+/**
+ * Write-ahead journal for validated ballots.
+ * BallotServlet appends a ballot to a memory-mapped, checksummed journal file and acknowledges the voter once the
+ * journal is synced to disk. A background drainer applies the journaled ballots to the election blockchains in order,
+ * retrying while the database is unavailable, so a database stall delays ballots instead of rejecting them.
+ *
+ * Journal file layout (all numbers big endian):
+ *   header  -> magic "VOTEJNL1", long offset of the first unapplied record, long its sequence number
+ *   record  -> int payload length, int CRC32 of (sequence, payload), long sequence, payload
+ *   payload -> long journal time (epoch millis), int key length, election key and voter key (UTF-8, separated by a
+ *              space; records journaled before voter keys were carried hold only the election key), ballot (UTF-8)
+ * Sequence numbers never repeat, so the journal can be rewound to the start whenever it has been drained and stale
+ * records behind the write position are never mistaken for new ones.
+ *
+ * On startup the records after the header's offset are replayed. A ballot whose block already made it into the chain
+ * (the drainer stopped between the commit and the journal update) is found among the blocks added since it was
+ * journaled and skipped, so replaying is idempotent.
+ *
+ * Consecutive records of the same election are added to its blockchain in batches of up to BATCH ballots, one
+ * transaction each, which also counts their voters in the election's turnout.
+ *
+ * How many ballots of each election the journal holds is reported to the store (journal_backlog) before a ballot is
+ * acknowledged and whenever the drainer applied some, and an election is only closed once no journal of any instance
+ * holds ballots of it (see awaitDrained). After the report BallotServlet confirms that the election is still active
+ * (see DatabaseUtils.confirmActive), so an acknowledged ballot is never discarded for a closed election.
+ *
+ * Configured with the environment variables
+ *   journalDir  -> directory of the journal file (default: ballot-journal under the Tomcat base directory)
+ *   journalSize -> size of the journal file in MB (default 64), 0 disables the journal
+ *   journalNode -> name the journal reports its backlog under (default: host name and journal file)
+ */
+public class BallotJournal
+{
+    private static final byte[] MAGIC = "VOTEJNL1".getBytes(StandardCharsets.US_ASCII);
+    private static final int HEADER = 24;       // magic, applied offset, applied sequence
+    private static final int RECORD_HEADER = 16; // length, crc, sequence
+    private static final int BATCH = 128;        // most ballots added to a blockchain in one transaction
+
+    private static final File file = new File(System.getenv("journalDir") != null ? System.getenv("journalDir")
+            : System.getProperty("catalina.base", ".") + File.separator + "ballot-journal", "ballots.journal");
+    private static final long size = Env.intValue("journalSize", 64) * 1024L * 1024L;
+    private static final String node = System.getenv("journalNode") != null ? System.getenv("journalNode")
+            : host() + ":" + file.getAbsolutePath();
+
+    private static MappedByteBuffer buffer = null; // null while the journal is not open
+    private static final Object lock = new Object();    // guards the positions and the header
+    private static final Object syncLock = new Object(); // one fsync at a time (group commit)
+    private static final Object reportLock = new Object(); // one backlog report at a time (group commit)
+
+    private static int writePos;     // end of the last journaled record
+    private static long nextSeq;     // sequence number of the next record
+    private static int appliedPos;   // first record not yet applied to a blockchain
+    private static long appliedSeq;
+    private static volatile long writtenSeq; // last record written to the mapping
+    private static volatile long syncedSeq;  // last record known to be on disk
+    private static volatile int pending;     // records waiting for the drainer
+    private static final Map<String, Integer> backlog = new HashMap<String, Integer>(); // the same, per election key
+    private static Map<String, Integer> reported = null; // backlog the store last accepted (guarded by reportLock)
+    private static long reportedSeq = 0;                  // last record counted in the reported backlog
+
+    // records found in the journal on startup may already be in their blockchain (until one of their election is not)
+    private static long replayEndSeq;
+    private static Set<String> replaying = new HashSet<String>();
+
+    private static Thread drainer = null;
+
+    private static final LongAdder appended = Metrics.counter("ballot_journal_appended_total",
+            "Ballots written to the journal");
+    private static final LongAdder applied = Metrics.counter("ballot_journal_applied_total",
+            "Journaled ballots added to their blockchain");
+    private static final LongAdder replayed = Metrics.counter("ballot_journal_replay_skipped_total",
+            "Journaled ballots found already in their blockchain on startup");
+    private static final LongAdder dropped = Metrics.counter("ballot_journal_dropped_total",
+            "Journaled ballots discarded because their election was no longer active");
+    private static final LongAdder full = Metrics.counter("ballot_journal_full_total",
+            "Ballots rejected because the journal was full");
+    private static final LongAdder retries = Metrics.counter("ballot_journal_retries_total",
+            "Failed attempts to add a journaled ballot to its blockchain");
+    private static final LongAdder unreported = Metrics.counter("ballot_journal_unreported_total",
+            "Ballots not acknowledged because the journal backlog could not be recorded");
+
+    static
+    {
+        Metrics.gauge("ballot_journal_pending", "Journaled ballots not yet added to their blockchain", () -> pending);
+    }
+
+    /**
+     * opens (and replays) the journal and starts the drainer thread
+     */
+    public static synchronized void start()
+    {
+        if (drainer != null || size <= 0) return;
+        try
+        {
+            open();
+        }
+        catch (IOException e)
+        {   // ballots go straight to the database without a journal
+            System.err.println("Ballot journal " + file + " could not be opened, journaling is disabled");
+            e.printStackTrace();
+            return;
+        }
+        drainer = new Thread(BallotJournal::drain, "ballot-journal-drainer");
+        drainer.setDaemon(true);
+        drainer.start();
+    }
+
+    /**
+     * stops the drainer thread, journaled ballots are applied after the next start
+     */
+    public static synchronized void shutdown()
+    {
+        if (drainer == null) return;
+        drainer.interrupt();
+        try
+        {
+            drainer.join(TimeUnit.SECONDS.toMillis(10));
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+        drainer = null;
+        synchronized (lock)
+        {
+            buffer.force();
+            buffer = null;
+        }
+    }
+
+    /**
+     * @return true if ballots are journaled (otherwise they have to be added to the blockchain directly)
+     */
+    public static boolean enabled()
+    {
+        return buffer != null;
+    }
+
+    /**
+     * Durably journals a validated ballot. The call returns once the record is synced to disk and counted in the
+     * backlog the store holds of this journal; concurrent callers share a single sync and a single report.
+     * @param electionKey public key of the ballot's election
+     * @param voterKey public key of the ballot's voter, counted in the turnout once the ballot is in the blockchain
+     * @param ballot Base 64 encoded encrypted ballot
+     * @return true if the ballot is journaled and will be added to the blockchain while its election is active, false
+     *         if the journal is full or the backlog could not be reported (the record may then still be added, a
+     *         ballot the voter submits again replaces it)
+     */
+    public static boolean append(String electionKey, String voterKey, String ballot)
+    {
+        byte[] key = (electionKey + " " + voterKey).getBytes(StandardCharsets.UTF_8);
+        byte[] content = ballot.getBytes(StandardCharsets.UTF_8);
+        int length = 12 + key.length + content.length;
+        long seq;
+        synchronized (lock)
+        {
+            if (buffer == null) return false;
+            if ((long) writePos + RECORD_HEADER + length > size)
+            {
+                full.increment();
+                return false;
+            }
+            seq = nextSeq++;
+            ByteBuffer payload = ByteBuffer.allocate(length);
+            payload.putLong(System.currentTimeMillis()).putInt(key.length).put(key).put(content).flip();
+
+            ByteBuffer out = buffer.duplicate();
+            out.position(writePos);
+            out.putInt(length).putInt(checksum(seq, payload)).putLong(seq).put(payload);
+            writePos = out.position();
+            writtenSeq = seq;
+            pending++;
+            backlog.merge(electionKey, 1, Integer::sum);
+            lock.notifyAll();
+        }
+        sync(seq);
+        if (!report(seq))
+        {
+            unreported.increment();
+            return false;
+        }
+        appended.increment();
+        return true;
+    }
+
+    /**
+     * waits until no journal of any instance holds ballots of the election, so that it can be closed
+     * @param electionKey public key of the election
+     * @param timeout maximum time to wait (milliseconds)
+     * @return true if every journal is drained of the election's ballots
+     */
+    public static boolean awaitDrained(String electionKey, long timeout)
+    {
+        long deadline = System.currentTimeMillis() + timeout;
+        if (!awaitDrained(timeout)) return false;
+        while (true)
+        {   // the drainers of all instances (this one included) report what they hold
+            Long left = DatabaseUtils.journalBacklog(electionKey);
+            if (left != null && left == 0) return true;
+            long wait = deadline - System.currentTimeMillis();
+            if (wait <= 0) return false;
+            try
+            {
+                Thread.sleep(Math.min(wait, 250));
+            }
+            catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+        }
+    }
+
+    /**
+     * waits until every ballot in this journal has been applied (or discarded)
+     * @param timeout maximum time to wait (milliseconds)
+     * @return true if the journal is drained
+     */
+    private static boolean awaitDrained(long timeout)
+    {
+        long deadline = System.currentTimeMillis() + timeout;
+        synchronized (lock)
+        {
+            while (buffer != null && pending > 0)
+            {
+                long wait = deadline - System.currentTimeMillis();
+                if (wait <= 0) return false;
+                try
+                {
+                    lock.wait(wait);
+                }
+                catch (InterruptedException e)
+                {
+                    Thread.currentThread().interrupt();
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    /**
+     * group commit: one caller syncs the mapping for every record written so far, the others find their record
+     * already synced
+     */
+    private static void sync(long seq)
+    {
+        if (syncedSeq >= seq) return;
+        synchronized (syncLock)
+        {
+            if (syncedSeq >= seq) return;
+            long target = writtenSeq;
+            MappedByteBuffer b = buffer;
+            if (b != null) b.force();
+            syncedSeq = target;
+        }
+    }
+
+    /**
+     * maps the journal file and recovers the positions from the header and the records after it
+     */
+    private static void open() throws IOException
+    {
+        File dir = file.getParentFile();
+        if (!dir.isDirectory() && !dir.mkdirs()) throw new IOException("Cannot create " + dir);
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw"))
+        {
+            boolean fresh = raf.length() < HEADER;
+            if (raf.length() < size) raf.setLength(size);
+            MappedByteBuffer b = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, Math.max(size, raf.length()));
+
+            byte[] magic = new byte[MAGIC.length];
+            ByteBuffer header = b.duplicate();
+            header.get(magic);
+            if (fresh || !Arrays.equals(magic, MAGIC))
+            {
+                header.position(0);
+                header.put(MAGIC).putLong(HEADER).putLong(1);
+                b.force();
+            }
+            appliedPos = (int) b.getLong(8);
+            appliedSeq = b.getLong(16);
+
+            // scan the unapplied records: consecutive sequence numbers with a valid checksum
+            int pos = appliedPos;
+            long seq = appliedSeq;
+            int count = 0;
+            while (pos + RECORD_HEADER <= b.capacity())
+            {
+                int length = b.getInt(pos);
+                if (length < 12 || (long) pos + RECORD_HEADER + length > b.capacity() || b.getLong(pos + 8) != seq)
+                    break;
+                if (b.getInt(pos + 4) != checksum(seq, slice(b, pos + RECORD_HEADER, length))) break;
+                String electionKey = new Record(b, pos).electionKey;
+                replaying.add(electionKey);
+                backlog.merge(electionKey, 1, Integer::sum);
+                pos += RECORD_HEADER + length;
+                seq++;
+                count++;
+            }
+            writePos = pos;
+            nextSeq = seq;
+            writtenSeq = syncedSeq = seq - 1;
+            replayEndSeq = seq;
+            pending = count;
+            buffer = b;
+            if (count > 0) System.out.println("Ballot journal: replaying " + count + " ballot(s)");
+        }
+    }
+
+    /**
+     * drainer thread: applies the journaled ballots to their blockchains in journal order
+     */
+    private static void drain()
+    {
+        ByteBuffer in;
+        synchronized (lock)
+        {
+            in = buffer.duplicate();
+        }
+        int pos; long seq;
+        synchronized (lock)
+        {
+            pos = appliedPos;
+            seq = appliedSeq;
+        }
+        long backoff = 0;
+        while (!Thread.currentThread().isInterrupted())
+        {
+            try
+            {
+                report(0);
+                synchronized (lock)
+                {
+                    if (pos == writePos)
+                    {
+                        if (writePos > HEADER)
+                        {   // drained: rewind so the journal never fills up under a steady load
+                            pos = writePos = appliedPos = HEADER;
+                            writeHeader();
+                        }
+                        lock.wait(1000);
+                        continue;
+                    }
+                }
+                int limit;
+                synchronized (lock)
+                {
+                    limit = writePos;
+                }
+                // a batch of consecutive records of one election (records that may have been applied go alone)
+                List<Record> batch = new ArrayList<Record>();
+                Record record = new Record(in, pos);
+                batch.add(record);
+                boolean replay = seq < replayEndSeq && replaying.contains(record.electionKey);
+                while (!replay && batch.size() < BATCH && record.next < limit)
+                {
+                    Record following = new Record(in, record.next);
+                    if (!following.electionKey.equals(record.electionKey)) break;
+                    batch.add(record = following);
+                }
+
+                if (apply(batch, replay))
+                {
+                    backoff = 0;
+                }
+                else
+                {   // database unavailable, keep the ballots and try again
+                    retries.increment();
+                    backoff = Math.min(Math.max(2 * backoff, 100), 5000);
+                    Thread.sleep(backoff);
+                    continue;
+                }
+
+                pos = record.next;
+                seq += batch.size();
+                synchronized (lock)
+                {
+                    appliedPos = pos;
+                    appliedSeq = seq;
+                    writeHeader();
+                    pending -= batch.size();
+                    int done = batch.size();
+                    backlog.computeIfPresent(record.electionKey, (key, n) -> n > done ? n - done : null);
+                    lock.notifyAll();
+                }
+            }
+            catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+            }
+            catch (RuntimeException e)
+            {   // never let the drainer die
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * adds a batch of journaled ballots (all of one election) to their blockchain
+     * @param replay true if the (single) ballot was journaled before the restart and may already be in the chain
+     * @return true if the ballots are done with (added, already in the chain, or discarded), false to retry
+     */
+    private static boolean apply(List<Record> batch, boolean replay)
+    {
+        Record first = batch.get(0);
+        if (replay)
+        {   // only blocks added after the ballot was journaled can hold it (allowing a minute of clock skew)
+            Boolean present = DatabaseUtils.chainContainsSince(first.electionKey, first.ballot, first.time - 60000);
+            if (present == null) return false;
+            if (present)
+            {
+                replayed.increment();
+                return true;
+            }
+            // ballots are applied in order, so none of the election's later records made it into the chain either
+            replaying.remove(first.electionKey);
+        }
+        List<String> ballots = new ArrayList<String>(batch.size());
+        List<String> voters = new ArrayList<String>(batch.size());
+        for (Record record : batch)
+        {
+            ballots.add(record.ballot);
+            voters.add(record.voterKey);
+        }
+        if (DatabaseUtils.addToBlockchain(ballots, voters, first.electionKey))
+        {
+            applied.add(batch.size());
+            return true;
+        }
+        Boolean active = DatabaseUtils.confirmActive(first.electionKey);
+        if (active != null && !active)
+        {   // the election was closed before the ballots could be added
+            System.err.println("Ballot journal: discarding " + batch.size() + " ballot(s) of an election that is no longer active");
+            dropped.add(batch.size());
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Reports the journal's backlog to the store whenever it changed (and once after every start, which replaces
+     * whatever a previous run left behind). Reports are taken and sent one at a time, so the store never goes back
+     * to an older backlog; an appender whose record a concurrent report already counted does not report again.
+     * @param seq record that has to be counted in the store, 0 for none
+     * @return true if the store holds the backlog, false if the report failed (it is sent again on the next round)
+     */
+    private static boolean report(long seq)
+    {
+        synchronized (reportLock)
+        {
+            if (seq > 0 && reportedSeq >= seq) return true;
+            Map<String, Integer> current;
+            long upTo;
+            synchronized (lock)
+            {
+                upTo = writtenSeq;
+                if (backlog.equals(reported))
+                {
+                    reportedSeq = upTo;
+                    return true;
+                }
+                current = new HashMap<String, Integer>(backlog);
+            }
+            if (!DatabaseUtils.reportJournal(node, current)) return false;
+            reported = current;
+            reportedSeq = upTo;
+            return true;
+        }
+    }
+
+    private static String host()
+    {
+        try
+        {
+            return InetAddress.getLocalHost().getHostName();
+        }
+        catch (UnknownHostException e)
+        {
+            return "localhost";
+        }
+    }
+
+    private static void writeHeader()
+    {
+        if (buffer == null) return; // shut down
+        buffer.putLong(8, appliedPos);
+        buffer.putLong(16, appliedSeq);
+    }
+
+    private static int checksum(long seq, ByteBuffer payload)
+    {
+        CRC32 crc = new CRC32();
+        crc.update(ByteBuffer.allocate(8).putLong(0, seq));
+        crc.update(payload.duplicate());
+        return (int) crc.getValue();
+    }
+
+    private static ByteBuffer slice(ByteBuffer b, int offset, int length)
+    {
+        ByteBuffer s = b.duplicate();
+        s.position(offset).limit(offset + length);
+        return s.slice();
+    }
+
+    /**
+     * a journal record read back from the mapping
+     */
+    private static class Record
+    {
+        final long time;          // when the ballot was journaled (epoch millis)
+        final String electionKey;
+        final String voterKey;    // null in records journaled before voter keys were
+        final String ballot;
+        final int next;           // offset of the following record
+
+        Record(ByteBuffer journal, int pos)
+        {
+            int length = journal.getInt(pos);
+            ByteBuffer payload = slice(journal, pos + RECORD_HEADER, length);
+            time = payload.getLong();
+            int keyLength = payload.getInt();
+            ByteBuffer key = payload.duplicate();
+            key.limit(payload.position() + keyLength);
+            String keys = StandardCharsets.UTF_8.decode(key).toString();
+            int space = keys.indexOf(' ');
+            electionKey = space < 0 ? keys : keys.substring(0, space);
+            voterKey = space < 0 ? null : keys.substring(space + 1);
+            payload.position(key.limit());
+            ballot = StandardCharsets.UTF_8.decode(payload).toString();
+            next = pos + RECORD_HEADER + length;
+        }
+    }
+}
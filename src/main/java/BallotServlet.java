@@ -5,6 +5,9 @@ import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.security.KeyPair;
 import java.security.PrivateKey;
 import java.security.PublicKey;
 import java.time.Instant;
@@ -13,6 +16,7 @@ import java.time.ZonedDateTime;
 import java.time.format.DateTimeFormatter;
 import java.util.Arrays;
 import java.util.Base64;
+import java.util.concurrent.RejectedExecutionException;
 
 import static java.lang.Math.abs;
 
@@ -28,6 +32,29 @@ public class BallotServlet extends HttpServlet
     protected void doGet(HttpServletRequest request, HttpServletResponse response)
             throws ServletException, IOException
     {
+        String election = request.getParameter("election");
+        if (election != null)
+        {   // the election's ballot format and candidates, read by _scriptBallot.jsp to build the ballot
+            if (DatabaseUtils.retrievePublicKey(election) == null)
+            {
+                response.sendError(HttpServletResponse.SC_NOT_FOUND);
+                return;
+            }
+            CandidateDictionary candidates = DatabaseUtils.getCandidates(election);
+            if (candidates == null)
+            {   // an empty list would offer a write-in ballot
+                response.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+                return;
+            }
+            response.setContentType("text/plain;charset=UTF-8");
+            PrintWriter out = response.getWriter();
+            out.println(DatabaseUtils.getBallotFormat(election));
+            for (String candidate : candidates.names())
+            {
+                out.println(candidate);
+            }
+            return;
+        }
         request.setAttribute("ballotActive", "");
 
         /* forward the request onto the jsp compiler */
@@ -65,24 +92,31 @@ public class BallotServlet extends HttpServlet
         DecryptedBallot ballot = null;
         if (!err)
         {
-            /* pull private key from database using the election name */
-            PrivateKey decryptionKey = CryptoUtils.importPrivateKey(DatabaseUtils.retrievePrivateKey(electionKey));
             try /* DecryptedBallot constructor will through illegal argument errors if ballot is invalid */
             {
-                ballot = new DecryptedBallot(data, decryptionKey);
+                ballot = DecryptionService.instance().decrypt(electionKey, data);
             }
             catch (IllegalArgumentException e)
             {
                 request.setAttribute("error", e.getMessage());
                 err = true;
             }
+            catch (RejectedExecutionException e)
+            {   // every decryption worker is busy and the queue is full: shed the load right away
+                response.setStatus(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+                response.setHeader("Retry-After", Integer.toString(DecryptionService.instance().retryAfter()));
+                request.setAttribute("error", "The server is busy, please submit your ballot again shortly!");
+                err = true;
+            }
         }
 
 
         /* verify that the ballot's modulus (key) is registered */
         if (!err)
         {
-            Boolean registered = DatabaseUtils.getVoterPublicKeys(electionName).contains(ballot.modulus);
+            FlightEvents.BallotStage stage = FlightEvents.stage("registry");
+            boolean registered = DatabaseUtils.isRegistered(electionName, ballot.modulus);
+            FlightEvents.end(stage, electionKey, registered ? "ok" : "unknown voter");
             if (!registered)
             {
                 request.setAttribute("error", "Ballot contained an unknown voter key!");
@@ -90,6 +124,31 @@ public class BallotServlet extends HttpServlet
             }
         }
 
+        /* verify that the ballot names one of the election's candidates (elections without candidates take write-ins),
+         * homomorphic elections only take v3 ballots holding a vote for each candidate */
+        if (!err)
+        {
+            CandidateDictionary candidates = DatabaseUtils.getCandidates(electionName);
+            boolean homomorphic = DatabaseUtils.getBallotFormat(electionName) == 3;
+            if (candidates == null)
+            {   // the database is unavailable, an empty dictionary would let any write-in pass
+                response.setStatus(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+                request.setAttribute("error", "The server is busy, please submit your ballot again shortly!");
+                err = true;
+            }
+            else if (homomorphic != (ballot.version == 3))
+            {
+                request.setAttribute("error", "Ballot is not in the election's ballot format!");
+                err = true;
+            }
+            else if (homomorphic ? ballot.sealed.votes.length != candidates.size()
+                                 : !candidates.isEmpty() && ballot.candidateId(candidates) < 0)
+            {
+                request.setAttribute("error", "Ballot named an unknown candidate!");
+                err = true;
+            }
+        }
+
         /* verify that timestamp is reasonable */
         if (!err)
         {
@@ -104,8 +163,34 @@ public class BallotServlet extends HttpServlet
         /* send the encrypted ballot to be added to the block-chain */
         if (!err)
         {
-            boolean res = DatabaseUtils.addToBlockchain(ballot.encodedBallot, electionKey);
-            if (!res)
+            // journaled ballots are acknowledged once on disk and added to the blockchain in the background
+            boolean res;
+            Boolean active = true;
+            if (BallotJournal.enabled())
+            {
+                FlightEvents.BallotStage stage = FlightEvents.stage("journal");
+                res = BallotJournal.append(electionKey, ballot.modulus, ballot.encodedBallot);
+                FlightEvents.end(stage, electionKey, res ? "ok" : "journal full");
+                /* the journaled ballot is counted in the backlog now, so no instance can close the election until it
+                 * is in the block-chain; if the election was closed before that, the drainer discards it */
+                if (res) active = DatabaseUtils.confirmActive(electionKey);
+            }
+            else
+            {   // the store records the append stage with its block number, and counts the voter with the block
+                res = DatabaseUtils.addToBlockchain(ballot.encodedBallot, ballot.modulus, electionKey);
+            }
+            if (active == null)
+            {
+                response.setStatus(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+                request.setAttribute("error", "The server is busy, please submit your ballot again shortly!");
+                err = true;
+            }
+            else if (!active)
+            {
+                request.setAttribute("error", "The election "+electionName+" is not accepting ballots!");
+                err = true;
+            }
+            else if (!res)
             {
                 request.setAttribute("error", "Your ballot was rejected by the election manager!");
                 err = true;
@@ -117,18 +202,37 @@ public class BallotServlet extends HttpServlet
     }
 
     /**
+     * A ballot, decrypted and with its voter signature verified. Two formats are accepted side by side:
+     *   v1 -> RSA-OAEP(SHA-256) ciphertext (512 bytes) || RSASSA-PKCS1-v1_5 signature (256 bytes),
+     *         plaintext: voter modulus (256) || timestamp (8, little endian) || candidate
+     *   v2 -> 0x02 || ephemeral P-256 point (65) || GCM nonce (12) || AES-GCM ciphertext and tag || ECDSA signature (64),
+     *         the signature (raw r||s, P-256/SHA-256) covers everything before it,
+     *         plaintext: voter P-256 point (65) || timestamp (8, little endian) || candidate
+     *   v3 -> 0x03 || one ElGamal ciphertext per candidate with proofs || ECDSA signature, see ElGamalTally;
+     *         the votes stay encrypted, only the signature and the proofs are checked
+     * A v1 ballot is always exactly 768 bytes long, v2 and v3 ballots never are.
      */
     public static class DecryptedBallot
     {
         String encodedBallot; // full ballot (base64 encoded)
-        byte[] encrypted;     // 512 bytes (4096 bits)
-        byte[] signature;     // 256 bytes (2048 bits)
-        byte[] decrypted;     // variable length, 265-512 bytes
+        byte[] encrypted;     // the signed part: 512 bytes (4096 bits) in v1, version to ciphertext in v2
+        byte[] signature;     // 256 bytes (2048 bits) in v1, 64 bytes in v2
+        byte[] decrypted;     // variable length, 265-512 bytes in v1, at least 74 bytes in v2
 
-        public String modulus;         // voter's public modulus (key)
-        public PublicKey verifyingKey; // key constructed from the recovered modulus
+        public int version;            // ballot format, 1, 2 or 3
+        public String modulus;         // voter's public modulus (v1) or P-256 point (v2, v3), base64 (the voter key)
+        public PublicKey verifyingKey; // key constructed from the recovered voter key
         public long timestamp;         // unix epoch time (seconds)
-        public String candidate;       // candidate name
+        private String candidate;      // candidate name (created on first use, tallies use candidateId)
+        private int candidateOffset;   // candidate name starts after the voter key and timestamp
+        public ElGamalTally.Ballot sealed; // v3: the encrypted votes (null for v1 and v2)
+
+        static final int CANDIDATE_OFFSET = 264;    // v1: after the modulus and timestamp
+        static final int V1_LENGTH = 512 + 256;     // length of (enc||sig)
+        static final byte V2 = 0x02;
+        static final int V2_POINT = 65, V2_IV = 12, V2_TAG = 16, V2_SIGNATURE = 64;
+        static final int V2_CANDIDATE_OFFSET = V2_POINT + 8;
+        static final int V2_MAX_CANDIDATE = 256;
 
         /**
          * A simple Java object to abstract the process of decrypting and interpreting an encrypted ballot
@@ -137,28 +241,93 @@ public class BallotServlet extends HttpServlet
          * @throws IllegalArgumentException
          */
         public DecryptedBallot(String b64, PrivateKey decryptionKey) throws IllegalArgumentException
+        {
+            this(b64, decryptionKey, null);
+        }
+
+        /**
+         * @param b64 the base64 encoded ballot
+         * @param decryptionKey the election's private key
+         * @param ballotKey the election's ballot key pair (null to derive it from the private key)
+         * @throws IllegalArgumentException
+         */
+        public DecryptedBallot(String b64, PrivateKey decryptionKey, KeyPair ballotKey) throws IllegalArgumentException
         {
             encodedBallot = b64;
             byte[] out;
+            FlightEvents.BallotStage stage = FlightEvents.stage("decode");
             try /* decode the base64 encoded data */
             {
                 out = Base64.getDecoder().decode(b64);
             }
             catch(Exception e)
             {
+                FlightEvents.end(stage, "not base64");
                 throw new IllegalArgumentException("Ballot could not be decoded from base64!");
             }
+            FlightEvents.end(stage, "ok");
 
-            /* split the ballot into encrypted bytes and signature bytes*/
-            if (out.length != (512 + 256) /* length of (enc||sig) */)
+            if (out.length == V1_LENGTH)
+            {
+                decryptV1(out, decryptionKey);
+            }
+            else if (out.length > 0 && out[0] == V2)
+            {
+                decryptV2(out, ballotKey != null ? ballotKey : CryptoUtils.ballotKeyPair(decryptionKey));
+            }
+            else if (out.length > 0 && out[0] == ElGamalTally.V3)
+            {
+                verifyV3(out, ballotKey != null ? ballotKey : CryptoUtils.ballotKeyPair(decryptionKey));
+            }
+            else
             {
                 throw new IllegalArgumentException("Ballot is not correct length!");
             }
+        }
+
+        /**
+         * Rebuilds a ballot that was decrypted and verified by a DecryptionWorker
+         * @param b64 the base64 encoded ballot
+         * @param version ballot format
+         * @param voter the voter key recovered from the ballot
+         * @param timestamp unix epoch time (seconds)
+         * @param candidate the candidate name's bytes (empty for v3)
+         */
+        DecryptedBallot(String b64, int version, byte[] voter, long timestamp, byte[] candidate)
+        {
+            encodedBallot = b64;
+            this.version = version;
+            this.timestamp = timestamp;
+            modulus = Base64.getEncoder().encodeToString(voter);
+            if (version == 3)
+            {
+                sealed = ElGamalTally.parse(Base64.getDecoder().decode(b64));
+                verifyingKey = CryptoUtils.createEcPublicKey(voter);
+                return;
+            }
+            candidateOffset = voter.length + 8;
+            decrypted = Arrays.copyOf(voter, candidateOffset + candidate.length);
+            for (int i = 0; i < 8; i++)
+            {
+                decrypted[voter.length + i] = (byte) (timestamp >>> (8 * i));
+            }
+            System.arraycopy(candidate, 0, decrypted, candidateOffset, candidate.length);
+            verifyingKey = version == 1 ? CryptoUtils.createPublicKey(modulus) : CryptoUtils.createEcPublicKey(voter);
+        }
+
+        private void decryptV1(byte[] out, PrivateKey decryptionKey)
+        {
+            version = 1;
+            candidateOffset = CANDIDATE_OFFSET;
+
+            /* split the ballot into encrypted bytes and signature bytes*/
             encrypted = Arrays.copyOfRange(out, 0, 512);
             signature = Arrays.copyOfRange(out, 512, out.length);
 
             /* retrieve the election's private key & decrypt the ballot */
+            FlightEvents.BallotStage stage = FlightEvents.stage("decrypt");
             String plaintext = CryptoUtils.decryptData(Base64.getEncoder().encodeToString(encrypted), decryptionKey);
+            FlightEvents.end(stage, plaintext != null ? "ok" : "failed");
             if (plaintext == null)
             {
                 throw new IllegalArgumentException("Ballot failed to decrypt!");
@@ -166,7 +335,7 @@ public class BallotServlet extends HttpServlet
             else
             {
                 decrypted = Base64.getDecoder().decode(plaintext);
-                if (decrypted.length < 265)
+                if (decrypted.length < CANDIDATE_OFFSET + 1)
                 {
                     throw new IllegalArgumentException("Ballot candidate are not of a correct length!");
                 }
@@ -175,35 +344,145 @@ public class BallotServlet extends HttpServlet
                     modulus = Base64.getEncoder().encodeToString(Arrays.copyOfRange(decrypted, 0, 256));
 
                     // unix epoch timestamp (bytes 256-264)
-                    byte[] bytes = Arrays.copyOfRange(decrypted, 256, 264);
-                    for (int i=7; i>=0; i--)
-                    {
-                        timestamp = (timestamp*256) + ((int)bytes[i] < 0 ? 256+(int)bytes[i] : (int)bytes[i]);
-                    }
-
-                    // voter's candidate choice (bytes 264~512)
-                    candidate = new String(Arrays.copyOfRange(decrypted, 264, decrypted.length)); // everything else
+                    timestamp = littleEndian(decrypted, 256);
+
+                    // voter's candidate choice (bytes 264~512) is everything else, resolved on demand
                 }
             }
 
             /* verify the signature on the ballot */
+            stage = FlightEvents.stage("verify");
             verifyingKey = CryptoUtils.createPublicKey(modulus);
             boolean verified = CryptoUtils.verifySignature(Base64.getEncoder().encodeToString(encrypted),
                     Base64.getEncoder().encodeToString(signature), verifyingKey);
+            FlightEvents.end(stage, verified ? "ok" : "invalid signature");
             if (!verified)
             {
                 throw new IllegalArgumentException("Ballot has an invalid signature!");
             }
         }
 
+        private void decryptV2(byte[] out, KeyPair ballotKey)
+        {
+            version = 2;
+            candidateOffset = V2_CANDIDATE_OFFSET;
+            int header = 1 + V2_POINT + V2_IV;
+            int payload = out.length - header - V2_SIGNATURE;
+            if (payload < V2_TAG + V2_CANDIDATE_OFFSET + 1 || payload > V2_TAG + V2_CANDIDATE_OFFSET + V2_MAX_CANDIDATE)
+            {
+                throw new IllegalArgumentException("Ballot is not correct length!");
+            }
+            encrypted = Arrays.copyOfRange(out, 0, header + payload);
+            signature = Arrays.copyOfRange(out, header + payload, out.length);
+
+            /* decrypt with the election's ballot key (derived from the election key) */
+            FlightEvents.BallotStage stage = FlightEvents.stage("decrypt");
+            decrypted = ballotKey == null ? null : CryptoUtils.decryptBallotPayload(
+                    Arrays.copyOfRange(out, 1, 1 + V2_POINT),
+                    Arrays.copyOfRange(out, 1 + V2_POINT, header),
+                    Arrays.copyOfRange(out, header, header + payload),
+                    ballotKey.getPrivate());
+            FlightEvents.end(stage, decrypted != null ? "ok" : "failed");
+            if (decrypted == null)
+            {
+                throw new IllegalArgumentException("Ballot failed to decrypt!");
+            }
+            modulus = Base64.getEncoder().encodeToString(Arrays.copyOfRange(decrypted, 0, V2_POINT));
+            timestamp = littleEndian(decrypted, V2_POINT);
+
+            /* verify the signature on the ballot */
+            stage = FlightEvents.stage("verify");
+            verifyingKey = CryptoUtils.createEcPublicKey(Arrays.copyOfRange(decrypted, 0, V2_POINT));
+            boolean verified = verifyingKey != null
+                    && CryptoUtils.verifyEcSignature(encrypted, signature, verifyingKey);
+            FlightEvents.end(stage, verified ? "ok" : "invalid signature");
+            if (!verified)
+            {
+                throw new IllegalArgumentException("Ballot has an invalid signature!");
+            }
+        }
+
+        private void verifyV3(byte[] out, KeyPair ballotKey)
+        {
+            version = 3;
+            if (ballotKey == null)
+            {
+                throw new IllegalArgumentException("Ballot failed to decrypt!");
+            }
+            // the votes stay encrypted, verifying the proofs and the signature is the whole stage
+            FlightEvents.BallotStage stage = FlightEvents.stage("verify");
+            try
+            {
+                sealed = ElGamalTally.parse(out);
+                verifyingKey = ElGamalTally.verify(sealed, ElGamalTally.tallyKey(ballotKey));
+            }
+            catch (IllegalArgumentException e)
+            {
+                FlightEvents.end(stage, e.getMessage());
+                throw e;
+            }
+            FlightEvents.end(stage, "ok");
+            encrypted = Arrays.copyOf(out, out.length - ElGamalTally.SIGNATURE);
+            signature = Arrays.copyOfRange(out, encrypted.length, out.length);
+            modulus = Base64.getEncoder().encodeToString(sealed.voter);
+            timestamp = sealed.timestamp;
+        }
+
+        private static long littleEndian(byte[] bytes, int offset)
+        {
+            long value = 0;
+            for (int i=7; i>=0; i--)
+            {
+                value = (value*256) + (bytes[offset + i] & 0xff);
+            }
+            return value;
+        }
+
         public String getModulus()
         {
             return modulus;
         }
         public String getCandidate()
         {
+            if (candidate == null && sealed != null)
+            {   // only the election's tally reveals v3 votes
+                candidate = "(sealed)";
+            }
+            if (candidate == null)
+            {
+                candidate = new String(decrypted, candidateOffset, decrypted.length - candidateOffset,
+                        StandardCharsets.ISO_8859_1);
+            }
             return candidate;
         }
+
+        /**
+         * @param candidates the election's candidate dictionary
+         * @return id of the candidate named by this ballot, or -1 if the candidate is unknown
+         */
+        public int candidateId(CandidateDictionary candidates)
+        {
+            if (sealed != null) return -1;
+            return candidates.lookup(decrypted, candidateOffset, decrypted.length - candidateOffset);
+        }
+
+        /**
+         * resolves the ballot's candidate, adding it to the dictionary if unknown (write-in elections)
+         * @return id of the candidate named by this ballot
+         */
+        public int internCandidate(CandidateDictionary candidates)
+        {
+            if (sealed != null) return -1;
+            return candidates.intern(decrypted, candidateOffset, decrypted.length - candidateOffset);
+        }
+
+        /**
+         * @return the candidate name's bytes as decrypted, null for v3 (sealed) ballots
+         */
+        byte[] candidateBytes()
+        {
+            return sealed != null ? null : Arrays.copyOfRange(decrypted, candidateOffset, decrypted.length);
+        }
         public String getTimestamp()
         {
             return ZonedDateTime.ofInstant(Instant.ofEpochMilli(timestamp*1000), ZoneId.systemDefault())
@@ -213,7 +492,7 @@ public class BallotServlet extends HttpServlet
         @Override
         public String toString()
         {
-            return "("+candidate+") @ [" + Instant.ofEpochSecond(timestamp).toString() + "] by " + modulus;
+            return "("+getCandidate()+") @ [" + Instant.ofEpochSecond(timestamp).toString() + "] by " + modulus;
         }
     }
 }
@@ -0,0 +1,78 @@
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Vote counts indexed by candidate id (see CandidateDictionary).
+ * A tally is not thread safe; parallel counting gives each thread its own tally and merges them at the end.
+ */
+public class BallotTally
+{
+    private final CandidateDictionary candidates;
+    private long[] counts;
+
+    public BallotTally(CandidateDictionary candidates)
+    {
+        this.candidates = candidates;
+        this.counts = new long[Math.max(4, candidates.size())];
+    }
+
+    /**
+     * counts one vote for a candidate
+     * @param candidateId id from the tally's candidate dictionary
+     */
+    public void count(int candidateId)
+    {
+        if (candidateId >= counts.length)
+        {   // write-in elections grow the dictionary while counting
+            counts = Arrays.copyOf(counts, Math.max(candidateId + 1, counts.length * 2));
+        }
+        counts[candidateId]++;
+    }
+
+    /**
+     * adds another tally (over the same dictionary) into this one
+     */
+    public void merge(BallotTally other)
+    {
+        if (other.counts.length > counts.length)
+        {
+            counts = Arrays.copyOf(counts, other.counts.length);
+        }
+        for (int i = 0; i < other.counts.length; i++)
+        {
+            counts[i] += other.counts[i];
+        }
+    }
+
+    /**
+     * @return votes counted for the candidate
+     */
+    public long get(int candidateId)
+    {
+        return candidateId < counts.length ? counts[candidateId] : 0;
+    }
+
+    /**
+     * @return total number of votes counted
+     */
+    public long total()
+    {
+        long total = 0;
+        for (long c : counts) total += c;
+        return total;
+    }
+
+    /**
+     * @return candidate names mapped to their vote counts, in candidate id order
+     */
+    public Map<String, Long> toMap()
+    {
+        Map<String, Long> results = new LinkedHashMap<String, Long>();
+        for (int id = 0; id < candidates.size(); id++)
+        {
+            results.put(candidates.name(id), get(id));
+        }
+        return results;
+    }
+}
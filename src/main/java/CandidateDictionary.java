@@ -0,0 +1,188 @@
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Compact dictionary of an election's candidates.
+ * Each candidate name is assigned a dense integer id (in registration order) so tallies can be kept in
+ * primitive arrays, and a ballot's candidate can be resolved straight from the decrypted bytes without
+ * allocating a String per ballot.
+ *
+ * Candidate names are compared as the bytes the ballot page produces, one byte per character (see encode).
+ * Lookups are safe from any thread once the dictionary is built; adding names is not thread safe.
+ */
+public class CandidateDictionary
+{
+    private final List<String> names = new ArrayList<String>();    // id -> name
+    private byte[][] encoded = new byte[4][];                      // id -> name bytes
+    private int[] slots = new int[8];                              // open addressing table, holds id+1 (0 is empty)
+
+    /**
+     * @param names candidate names, duplicates are ignored
+     * @return a dictionary assigning ids to the names in order
+     */
+    public static CandidateDictionary of(Collection<String> names)
+    {
+        CandidateDictionary dict = new CandidateDictionary();
+        for (String name : names)
+        {
+            dict.add(name);
+        }
+        return dict;
+    }
+
+    /**
+     * @param name candidate name
+     * @return the candidate's id (the existing id if the name is already in the dictionary)
+     */
+    public int add(String name)
+    {
+        byte[] bytes = encode(name);
+        return intern(bytes, 0, bytes.length);
+    }
+
+    /**
+     * adds the candidate named by a range of bytes unless it is already present (used for write-in elections)
+     * @return the candidate's id
+     */
+    public int intern(byte[] buf, int off, int len)
+    {
+        int id = lookup(buf, off, len);
+        if (id >= 0) return id;
+
+        id = names.size();
+        byte[] bytes = Arrays.copyOfRange(buf, off, off + len);
+        names.add(new String(bytes, StandardCharsets.ISO_8859_1));
+        if (id == encoded.length)
+        {
+            encoded = Arrays.copyOf(encoded, id * 2);
+        }
+        encoded[id] = bytes;
+        if (2 * names.size() > slots.length)
+        {
+            rehash(slots.length * 2);
+        }
+        else
+        {
+            insert(id);
+        }
+        return id;
+    }
+
+    /**
+     * @param buf buffer holding the candidate name (ex. a decrypted ballot)
+     * @param off offset of the name in the buffer
+     * @param len length of the name in bytes
+     * @return the candidate's id, or -1 if the candidate is unknown
+     */
+    public int lookup(byte[] buf, int off, int len)
+    {
+        int mask = slots.length - 1;
+        for (int i = hash(buf, off, len) & mask; slots[i] != 0; i = (i + 1) & mask)
+        {
+            byte[] name = encoded[slots[i] - 1];
+            if (name.length == len && rangeEquals(name, buf, off, len))
+                return slots[i] - 1;
+        }
+        return -1;
+    }
+
+    /**
+     * @return the candidate's id, or -1 if the candidate is unknown
+     */
+    public int lookup(String name)
+    {
+        byte[] bytes = encode(name);
+        return lookup(bytes, 0, bytes.length);
+    }
+
+    /**
+     * @return name of the candidate with the given id
+     */
+    public String name(int id)
+    {
+        return names.get(id);
+    }
+
+    /**
+     * @return number of candidates
+     */
+    public int size()
+    {
+        return names.size();
+    }
+
+    /**
+     * @return true if no candidates were registered (a write-in election)
+     */
+    public boolean isEmpty()
+    {
+        return names.isEmpty();
+    }
+
+    /**
+     * @return candidate names in id order
+     */
+    public List<String> names()
+    {
+        return Collections.unmodifiableList(names);
+    }
+
+    /**
+     * The ballot page converts the candidate choice with charCodeAt into a Uint8Array,
+     * which keeps the low byte of each character. Names are encoded the same way here.
+     * @return one byte per character of the name
+     */
+    public static byte[] encode(String name)
+    {
+        byte[] bytes = new byte[name.length()];
+        for (int i = 0; i < bytes.length; i++)
+        {
+            bytes[i] = (byte) name.charAt(i);
+        }
+        return bytes;
+    }
+
+    private void rehash(int capacity)
+    {
+        slots = new int[capacity];
+        for (int id = 0; id < names.size(); id++)
+        {
+            insert(id);
+        }
+    }
+
+    private void insert(int id)
+    {
+        byte[] name = encoded[id];
+        int mask = slots.length - 1;
+        int i = hash(name, 0, name.length) & mask;
+        while (slots[i] != 0)
+        {
+            i = (i + 1) & mask;
+        }
+        slots[i] = id + 1;
+    }
+
+    private static int hash(byte[] buf, int off, int len)
+    {   // FNV-1a
+        int h = 0x811c9dc5;
+        for (int i = off; i < off + len; i++)
+        {
+            h = (h ^ (buf[i] & 0xff)) * 0x01000193;
+        }
+        return h ^ (h >>> 16);
+    }
+
+    private static boolean rangeEquals(byte[] a, byte[] buf, int off, int len)
+    {
+        for (int i = 0; i < len; i++)
+        {
+            if (a[i] != buf[off + i]) return false;
+        }
+        return true;
+    }
+}
@@ -5,6 +5,10 @@ import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
 
 @WebServlet(urlPatterns = { "/create-election"})
 public class CreateElectionServlet extends HttpServlet
@@ -33,15 +37,29 @@ public class CreateElectionServlet extends HttpServlet
     	request.setAttribute("err", "");
     	
     	String electionName = request.getParameter("electionName");
+    	List<String> candidates = parseCandidates(request.getParameter("candidates"));
 
     	if(electionName == null)
     	{
     		err = true;
     		request.setAttribute("err", "Missing election name, cannot create election.");
     	}
+    	if(candidates == null)
+    	{
+    		err = true;
+    		request.setAttribute("err", "Candidate names must be at most 128 characters.");
+    	}
+    	int ballotFormat = "3".equals(request.getParameter("ballotFormat")) ? 3
+    	                 : "2".equals(request.getParameter("ballotFormat")) ? 2 : 1;
+    	if(!err && ballotFormat == 3 && (candidates.isEmpty() || candidates.size() > ElGamalTally.MAX_CANDIDATES))
+    	{	// a homomorphic ballot holds one ciphertext per candidate, write-ins cannot be counted
+    		err = true;
+    		request.setAttribute("err", "Homomorphic elections need between 1 and " + ElGamalTally.MAX_CANDIDATES
+    				+ " candidates.");
+    	}
     	if(!err)
     	{
-    		err = DatabaseUtils.createElection(electionName, null);
+    		err = DatabaseUtils.createElection(electionName, null, candidates, ballotFormat);
     		if(err)
     		{
     			request.setAttribute("err", "Failed to create election.");
@@ -51,4 +69,23 @@ public class CreateElectionServlet extends HttpServlet
         /* refresh the page */
         doGet(request, response);
     }
+
+    /**
+     * @param text candidate names, one per line (may be null)
+     * @return the distinct, non-blank names in order, or null if a name is too long
+     */
+    static List<String> parseCandidates(String text)
+    {
+        Set<String> names = new LinkedHashSet<String>();
+        if (text != null)
+        {
+            for (String line : text.split("\\r?\\n"))
+            {
+                String name = line.trim();
+                if (name.length() > 128) return null;
+                if (!name.isEmpty()) names.add(name);
+            }
+        }
+        return new ArrayList<String>(names);
+    }
 }
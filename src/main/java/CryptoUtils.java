@@ -1,9 +1,20 @@
 import org.apache.commons.codec.binary.Hex;
+import org.bouncycastle.crypto.digests.SHA256Digest;
+import org.bouncycastle.crypto.generators.HKDFBytesGenerator;
+import org.bouncycastle.crypto.params.HKDFParameters;
+import org.bouncycastle.jce.ECNamedCurveTable;
 import org.bouncycastle.jce.provider.BouncyCastleProvider;
+import org.bouncycastle.jce.spec.ECNamedCurveParameterSpec;
+import org.bouncycastle.jce.spec.ECPrivateKeySpec;
+import org.bouncycastle.jce.spec.ECPublicKeySpec;
 
 import javax.crypto.Cipher;
+import javax.crypto.KeyAgreement;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
 
 import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
 import java.security.*;
 import java.security.spec.*;
 import java.security.interfaces.*;
@@ -20,6 +31,10 @@ public class CryptoUtils
         Security.addProvider(new BouncyCastleProvider());
     }
 
+    // v2 ballots: ECDH on P-256, HKDF-SHA256 and AES-256-GCM for the payload, ECDSA P-256 voter signatures
+    private static final ECNamedCurveParameterSpec P256 = ECNamedCurveTable.getParameterSpec("secp256r1");
+    private static final byte[] BALLOT_KDF_INFO = "vote-ballot-v2".getBytes(StandardCharsets.US_ASCII);
+
     /**
      * @param modStr base64 encoded string representing the public key modulus
      * @return a new Java PublicKey instance
@@ -246,6 +261,32 @@ public class CryptoUtils
         }
     }
     
+    /**
+     * @param b64 a base64 encoded key
+     * @return the key's fingerprint: SHA-256 of the decoded key, base64url encoded without padding (43 characters)
+     */
+    public static String fingerprint(String b64)
+    {
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(keyDigest(b64));
+    }
+
+    /**
+     * @param b64 a base64 encoded key (a voter's modulus or P-256 point)
+     * @return SHA-256 of the decoded key (32 bytes), the key voters are indexed by
+     * @throws IllegalArgumentException if the key is not base64
+     */
+    public static byte[] keyDigest(String b64)
+    {
+        try
+        {
+            return MessageDigest.getInstance("SHA-256").digest(Base64.getDecoder().decode(b64));
+        }
+        catch (NoSuchAlgorithmException e)
+        {
+            throw new IllegalStateException(e);
+        }
+    }
+
     /**
      * Computes the hash value for a block in an election's blockchain
      * @param block_content (base 64) encrypted ballot for most blocks, or an election key for genesis/terminus
@@ -282,6 +323,125 @@ public class CryptoUtils
     	}
     }
     
+    /**
+     * Derives the P-256 key pair that v2 ballots of an election are encrypted to from the election's RSA private key.
+     * The ballot key needs no storage of its own and is revealed together with the election key in the terminus
+     * block, so anyone auditing a closed election can decrypt its v2 ballots as well.
+     * Homomorphic elections use it as their ElGamal tally key; their terminus reveals neither key (see ElGamalTally).
+     * Every call derives the pair anew, the ballot keys of running elections are cached by ElectionCache.
+     * @param electionKey the election's RSA(4096) private key
+     * @return the election's ballot key pair (or null)
+     */
+    public static KeyPair ballotKeyPair(PrivateKey electionKey)
+    {
+        if (electionKey == null) return null;
+        try
+        {
+            MessageDigest md = MessageDigest.getInstance("SHA-256");
+            md.update(BALLOT_KDF_INFO);
+            md.update(electionKey.getEncoded());
+            BigInteger d = new BigInteger(1, md.digest()).mod(P256.getN().subtract(BigInteger.ONE)).add(BigInteger.ONE);
+
+            KeyFactory kf = KeyFactory.getInstance("EC", "BC");
+            return new KeyPair(kf.generatePublic(new ECPublicKeySpec(P256.getG().multiply(d).normalize(), P256)),
+                               kf.generatePrivate(new ECPrivateKeySpec(d, P256)));
+        }
+        catch (Exception e)
+        {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    /**
+     * @param point base64 encoded, uncompressed P-256 point (65 bytes, as exported "raw" by the WebCrypto API)
+     * @return a new Java PublicKey instance (null if the point is not on the curve)
+     */
+    public static PublicKey createEcPublicKey(String point)
+    {
+        try
+        {
+            return createEcPublicKey(Base64.getDecoder().decode(point));
+        }
+        catch (IllegalArgumentException e)
+        {
+            return null;
+        }
+    }
+
+    /**
+     * @param point uncompressed P-256 point
+     * @return a new Java PublicKey instance (null if the point is not on the curve)
+     */
+    public static PublicKey createEcPublicKey(byte[] point)
+    {
+        try
+        {
+            return KeyFactory.getInstance("EC", "BC")
+                    .generatePublic(new ECPublicKeySpec(P256.getCurve().decodePoint(point), P256));
+        }
+        catch (Exception e)
+        {
+            return null;
+        }
+    }
+
+    /**
+     * Decrypts a v2 ballot payload: ECDH between the ballot key and the ballot's ephemeral key,
+     * HKDF-SHA256 (salt: the ephemeral point) to an AES-256 key, then AES-GCM.
+     * @param ephemeral the ballot's ephemeral P-256 point (uncompressed)
+     * @param iv the 12 byte GCM nonce
+     * @param ciphertext the encrypted payload including the 16 byte tag
+     * @param ballotKey the election's ballot private key (see ballotKeyPair)
+     * @return the plaintext, or null if the payload does not decrypt
+     */
+    public static byte[] decryptBallotPayload(byte[] ephemeral, byte[] iv, byte[] ciphertext, PrivateKey ballotKey)
+    {
+        try
+        {
+            PublicKey peer = createEcPublicKey(ephemeral);
+            if (peer == null) return null;
+            KeyAgreement ka = KeyAgreement.getInstance("ECDH", "BC");
+            ka.init(ballotKey);
+            ka.doPhase(peer, true);
+            byte[] shared = ka.generateSecret();
+
+            HKDFBytesGenerator hkdf = new HKDFBytesGenerator(new SHA256Digest());
+            hkdf.init(new HKDFParameters(shared, ephemeral, BALLOT_KDF_INFO));
+            byte[] aesKey = new byte[32];
+            hkdf.generateBytes(aesKey, 0, aesKey.length);
+
+            Cipher cipher = Cipher.getInstance("AES/GCM/NoPadding", "BC");
+            cipher.init(DECRYPT_MODE, new SecretKeySpec(aesKey, "AES"), new GCMParameterSpec(128, iv));
+            return cipher.doFinal(ciphertext);
+        }
+        catch (Exception e)
+        {   // tampered or garbled payloads fail the GCM tag check
+            return null;
+        }
+    }
+
+    /**
+     * @param data the signed bytes
+     * @param signature ECDSA P-256/SHA-256 signature as raw r||s (64 bytes, the WebCrypto API format)
+     * @param publicKey the voter's P-256 public key
+     * @return true if the signature verified
+     */
+    public static boolean verifyEcSignature(byte[] data, byte[] signature, PublicKey publicKey)
+    {
+        try
+        {
+            Signature sig = Signature.getInstance("SHA256withPLAIN-ECDSA", "BC");
+            sig.initVerify(publicKey);
+            sig.update(data);
+            return sig.verify(signature);
+        }
+        catch (Exception e)
+        {
+            return false;
+        }
+    }
+
     /**
      * Utility to concatenate two base 64 encoded strings.
      * Terminating padding prevents String concatenation.
@@ -21,13 +21,14 @@ public class DashboardServlet extends HttpServlet
     {
         req.setAttribute("dashboardActive", "true");
 
-        List<String> upcomingElections = DatabaseUtils.getUpcomingElections();
+        // elections are listed by fingerprint, keys are fetched from /election-key when needed
+        List<DatabaseUtils.ElectionSummary> upcomingElections = DatabaseUtils.getElectionSummaries('U');
         req.setAttribute("upcomingElections", upcomingElections);
         // management utilities: view blockchain, close election
-        List<String> activeElections = DatabaseUtils.getElections();
+        List<DatabaseUtils.ElectionSummary> activeElections = DatabaseUtils.getElectionSummaries('Y');
         req.setAttribute("activeElections", activeElections);
 
-        List<String> closedElections = DatabaseUtils.getClosedElections();
+        List<DatabaseUtils.ElectionSummary> closedElections = DatabaseUtils.getElectionSummaries('N');
         req.setAttribute("closedElections", closedElections);
 
         RequestDispatcher dispatcher = this.getServletContext().getRequestDispatcher("/WEB-INF/pages/vDashboard.jsp");
@@ -1,46 +1,25 @@
 import java.security.KeyPair;
+import java.nio.charset.StandardCharsets;
 import java.security.PrivateKey;
-import java.sql.*;
 import java.time.Instant;
-import java.time.LocalDateTime;
 import java.time.ZoneId;
 import java.time.ZonedDateTime;
 import java.time.format.DateTimeFormatter;
 import java.util.*;
-import java.util.Date;
 
+/**
+ * The app's persistence API. Elections, voters, keys and blockchains are kept by the configured ElectionStore
+ * (PostgreSQL unless electionStore is "memory"), the tally and the parsed key cache work the same over either.
+ */
 public class DatabaseUtils
 {
-    // form a database connection every time a function in this class is called
-    // terribly inefficient, however I don't know a technique to establish a persistent connection
-    private static Connection connection = null;
-    static
-    {
-        try
-        {
-            Class.forName("org.postgresql.Driver");
-        }
-        catch (ClassNotFoundException e)
-        {
-            System.out.println("Unable to load PostgreSQL JDBC Driver! "
-                    + "The driver needs to be included in your library path!");
-            e.printStackTrace();
-        }
+    private static final ElectionStore store = ElectionStore.instance();
 
-        try
-        {
-            String uri  = System.getenv("dbURI");
-            String user = System.getenv("dbUser");
-            String pass = System.getenv("dbPassword");
-            if (uri!=null && user!=null && pass!=null)
-                connection = DriverManager.getConnection(uri, user, pass);
-        }
-        catch (SQLException e)
-        {
-            System.out.println("Connection Failed!");
-            e.printStackTrace();
-        }
-    }
+    // number of ballots decrypted together (in parallel) while tallying
+    private static final int TALLY_BATCH = 1024;
+
+    // ballots appended per minute are counted in a ring of TURNOUT_MINUTES slots per election
+    static final int TURNOUT_MINUTES = 60;
 
     /**
      * creates a new voter
@@ -51,228 +30,250 @@ public class DatabaseUtils
      */
     public static Boolean registerVoter(String pubKey, String fname, String lname, String election)
     {
-        if (connection == null) return false;
-        String rst; PreparedStatement pst;
-        try
-        {   // create voter table if not exists
-            rst = "CREATE TABLE IF NOT EXISTS voters (" +
-                    "fname varchar (40) NOT NULL, " +
-                    "lname varchar (40) NOT NULL, " +
-                    "key varchar (344) PRIMARY KEY, " +     // voter public key
-                    "election_name varchar (128) NOT NULL, " +    // public election key
-                    "UNIQUE (key,election_name)" +          // voter pub key and election name must be unique as a pair
-                  ");";
-            connection.prepareStatement(rst).executeUpdate();
+        Boolean registered = store.registerVoter(pubKey, fname, lname, election);
+        if (Boolean.TRUE.equals(registered)) ElectionEvents.registered(election);
+        return registered;
+    }
 
-            // insert new voter record into the table
-            rst = "INSERT INTO voters VALUES(?, ?, ?, ?);";
-            pst = connection.prepareStatement(rst);
-            pst.setString(1, fname);
-            pst.setString(2, lname);
-            pst.setString(3, pubKey);
-            pst.setString(4, election);
-            return 1 == pst.executeUpdate(); // return true if one entry was update
-        }
-        catch (SQLException e)
-        {
-            e.printStackTrace();
-            return false;
-        }
+    /**
+     * @param electionName the election for which to count registered users
+     * @return number of registered voters, read from the election's maintained counter
+     */
+    public static long getVoterCount(String electionName)
+    {
+        return ElectionCache.voterCount(electionName);
     }
 
     /**
-     * retrieves list of currently registered voters
-     * @param electionName the election for which to retrieve registered users
-     * @return sorted list of voter names
+     * Reads an election's turnout from its maintained counters, whatever the size of the roll or the chain.
+     * @param electionName the (unique) name of an election
+     * @return the election's turnout, or null if there is no such election
      */
-    public static List<String> getVoters(String electionName)
+    public static Turnout getTurnout(String electionName)
     {
-        String st; ResultSet res; PreparedStatement pst;
-        List<String> list = new LinkedList<String>();
-        if (connection == null || electionName == null) return list;
-        try
+        return store.getTurnout(electionName);
+    }
+
+    /**
+     * simple bean-like class holding an election's turnout
+     */
+    public static class Turnout
+    {
+        public final long registered; // registered voters
+        public final long ballots;    // ballots in the blockchain, re-votes included
+        public final long voted;      // distinct voters with an accepted ballot
+        public final long minute;     // the current minute (since the epoch), the last entry of perMinute
+        public final long[] perMinute = new long[TURNOUT_MINUTES]; // ballots appended per minute, oldest first
+
+        public Turnout(long registered, long ballots, long voted, long minute)
         {
-            st  = "SELECT fname, lname FROM voters WHERE election_name=?;";
-            pst = connection.prepareStatement(st);
-            pst.setString(1, electionName);
-            res = pst.executeQuery();
-            while(res.next())
-            {
-                String name = res.getString(1) + " " + res.getString(2);
-                list.add(name);
-            }
-            Collections.sort(list);
-            return list;
+            this.registered = registered;
+            this.ballots = ballots;
+            this.voted = voted;
+            this.minute = minute;
         }
-        catch (SQLException e)
+
+        public long getRegistered()
+        {
+            return registered;
+        }
+        public long getBallots()
+        {
+            return ballots;
+        }
+        public long getVoted()
         {
-            e.printStackTrace();
-            return list;
+            return voted;
+        }
+        public long[] getPerMinute()
+        {
+            return perMinute;
         }
     }
 
-    public static List<String> getElections()
+    /**
+     * retrieves one page of the registered voters, sorted by last then first name (case-insensitive)
+     * @param electionName the election for which to retrieve registered users
+     * @param lastPrefix only voters whose last name starts with this (case-insensitive, may be null)
+     * @param firstPrefix only voters whose first name starts with this (case-insensitive, may be null)
+     * @param after cursor of the last entry of the previous page (null for the first page)
+     * @param limit maximum number of voters to return
+     * @return the page of voters, each entry carries the cursor to continue after it
+     */
+    public static List<RosterEntry> getVoterPage(String electionName, String lastPrefix, String firstPrefix,
+                                                 String after, int limit)
     {
-    	String st; ResultSet res;
-    	List<String> list = new LinkedList<String>();
-    	if (connection == null) return list;
-    	try{
-    		st	= "SELECT * FROM elections WHERE active LIKE 'Y'";
-    		res = connection.prepareStatement(st).executeQuery();
-    		while(res.next()){
-    			String election = res.getString("election_name") + " | " + res.getString("block_count") + 
-    					"\n" + res.getString("public_key");
-    			list.add(election);
-    		}
-    		Collections.sort(list);
-    		return list;
-    	}
-    	catch(SQLException e)
-    	{
-    		e.printStackTrace();
-    		return list;
-    	}
+        return store.getVoterPage(electionName, lastPrefix, firstPrefix, after, limit);
     }
 
-    public static List<String> getUpcomingNames()
+    /**
+     * simple bean-like class holding one voter of the roster for display on electionManager.jsp
+     */
+    public static class RosterEntry
     {
-        String st; ResultSet res;
-        List<String> list = new LinkedList<String>();
-        if (connection == null) return list;
-        try{
-            st	= "SELECT election_name FROM elections WHERE active LIKE 'U'";
-            res = connection.prepareStatement(st).executeQuery();
-            while(res.next()){
-                String election = res.getString("election_name");
-                list.add(election);
-            }
-            Collections.sort(list);
-            return list;
+        public String fname;
+        public String lname;
+        public int index;           // the voter's index within the election
+        String sortKey;             // lower cased last and first name, as compared by the query
+
+        public RosterEntry(String fname, String lname, int index)
+        {
+            this.fname = fname;
+            this.lname = lname;
+            this.index = index;
         }
-        catch(SQLException e)
+
+        public String getName()
         {
-            e.printStackTrace();
-            return list;
+            return lname + ", " + fname;
         }
-    }
 
-    public static List<String> getActiveNames()
-    {
-        String st; ResultSet res;
-        List<String> list = new LinkedList<String>();
-        if (connection == null) return list;
-        try{
-            st	= "SELECT election_name FROM elections WHERE active LIKE 'Y'";
-            res = connection.prepareStatement(st).executeQuery();
-            while(res.next()){
-                String election = res.getString("election_name");
-                list.add(election);
-            }
-            Collections.sort(list);
-            return list;
+        /**
+         * @return opaque token to request the roster page following this entry
+         */
+        public String getCursor()
+        {
+            String key = sortKey + "\0" + index;
+            return Base64.getUrlEncoder().encodeToString(key.getBytes(StandardCharsets.UTF_8));
         }
-        catch(SQLException e)
+
+        /**
+         * @return the (lower cased last name, lower cased first name, index) of a cursor, or null
+         */
+        static String[] decodeCursor(String cursor)
         {
-            e.printStackTrace();
-            return list;
+            if (cursor == null || cursor.isEmpty()) return null;
+            try
+            {
+                String[] parts = new String(Base64.getUrlDecoder().decode(cursor), StandardCharsets.UTF_8)
+                        .split("\0", -1);
+                return parts.length == 3 ? parts : null;
+            }
+            catch (IllegalArgumentException e)
+            {
+                return null;
+            }
         }
     }
 
-    public static List<String> getClosedNames()
+    /**
+     * Lists elections for the dashboards without their keys (about 740 characters each), which voters fetch
+     * from the election key endpoint by fingerprint when they need one.
+     * @param status 'U' upcoming, 'Y' active or 'N' closed
+     * @return the elections with that status, sorted by name
+     */
+    public static List<ElectionSummary> getElectionSummaries(char status)
     {
-        String st; ResultSet res;
-        List<String> list = new LinkedList<String>();
-        if (connection == null) return list;
-        try{
-            st	= "SELECT election_name FROM elections WHERE active LIKE 'N'";
-            res = connection.prepareStatement(st).executeQuery();
-            while(res.next()){
-                String election = res.getString("election_name");
-                list.add(election);
-            }
-            Collections.sort(list);
-            return list;
-        }
-        catch(SQLException e)
-        {
-            e.printStackTrace();
-            return list;
-        }
+        return store.getElectionSummaries(status);
     }
 
-    public static List<String> getUpcomingElections()
+    /**
+     * simple bean-like class holding one election for display on the dashboards
+     */
+    public static class ElectionSummary
     {
-        String st; ResultSet res;
-        List<String> list = new LinkedList<String>();
-        if (connection == null) return list;
-        try{
-            st	= "SELECT * FROM elections WHERE active LIKE 'U'";
-            res = connection.prepareStatement(st).executeQuery();
-            while(res.next()){
-                String election = res.getString("election_name") + " | " + res.getString("block_count") +
-                        "\n" + res.getString("public_key");
-                list.add(election);
-            }
-            Collections.sort(list);
-            return list;
-        }
-        catch(SQLException e)
+        public final String name;
+        public final char status;        // 'U' upcoming, 'Y' active, 'N' closed
+        public final long blockCount;
+        public final String fingerprint; // fingerprint of the key voters import (see getElectionKey)
+        public long registered;          // turnout counters, see Turnout
+        public long ballots;
+        public long voted;
+        public boolean archived;         // the blockchain was moved to the archival tier (see ElectionArchive)
+
+        public ElectionSummary(String name, char status, long blockCount, String fingerprint)
         {
-            e.printStackTrace();
-            return list;
+            this.name = name;
+            this.status = status;
+            this.blockCount = blockCount;
+            this.fingerprint = fingerprint;
         }
-    }
 
-    public static List<String> getClosedElections()
-    {
-        String st; ResultSet res;
-        List<String> list = new LinkedList<String>();
-        if (connection == null) return list;
-        try{
-            st	= "SELECT * FROM elections WHERE active LIKE 'N'";
-            res = connection.prepareStatement(st).executeQuery();
-            while(res.next()){
-                String election = res.getString("election_name") + " | " + res.getString("block_count") +
-                        "\n" + res.getString("public_key");
-                list.add(election);
-            }
-            Collections.sort(list);
-            return list;
+        public String getName()
+        {
+            return name;
+        }
+        public String getStatus()
+        {
+            return status == 'U' ? "upcoming" : status == 'Y' ? "active" : "closed";
         }
-        catch(SQLException e)
+        public long getBlockCount()
         {
-            e.printStackTrace();
-            return list;
+            return blockCount;
+        }
+        public String getFingerprint()
+        {
+            return fingerprint;
+        }
+        public long getRegistered()
+        {
+            return registered;
+        }
+        public long getBallots()
+        {
+            return ballots;
+        }
+        public long getVoted()
+        {
+            return voted;
+        }
+        public boolean isArchived()
+        {
+            return archived;
+        }
+
+        @Override
+        public String toString()
+        {
+            return name + " | " + blockCount + " | " + fingerprint;
         }
     }
 
     /**
-     * retrieves the list of all registered public keys
-     * @return sorted list of registered 2048-bit RSA keys (base64url encoded)
+     * @param fingerprint an election key's fingerprint (see CryptoUtils.fingerprint)
+     * @return the base64 encoded key voters import (the ballot key of v2 and v3 elections), or null
      */
-    public static List<String> getVoterPublicKeys(String electionName)
+    public static String getElectionKey(String fingerprint)
     {
-        String st; ResultSet res; PreparedStatement pst;
-        List<String> list = new LinkedList<String>();
-        if (connection == null) return list;
-        try
-        {
-            st  = "SELECT (key) FROM voters WHERE election_name=?;";
-            pst = connection.prepareStatement(st);
-            pst.setString(1, electionName);
-            res = pst.executeQuery();
-            while(res.next())
-            {
-                list.add(res.getString("key"));
-            }
-            Collections.sort(list); // sort list so as to hide ownership
-            return list;
-        }
-        catch (SQLException e)
-        {
-            e.printStackTrace();
-            return list;
-        }
+        return store.getElectionKey(fingerprint);
+    }
+
+    /**
+     * @param electionName the (unique) name of an election
+     * @return the fingerprint of the key voters import, or null if there is no such election
+     */
+    public static String getKeyFingerprint(String electionName)
+    {
+        return store.getKeyFingerprint(electionName);
+    }
+
+    public static List<String> getUpcomingNames()
+    {
+        return store.getElectionNames('U');
+    }
+
+    public static List<String> getActiveNames()
+    {
+        return store.getElectionNames('Y');
+    }
+
+    /**
+     * @param electionName the (unique) name of an election
+     * @param voterKey the voter's public key (modulus or P-256 point, base64)
+     * @return true if the key is registered for the election, one primary key lookup by the key's digest
+     */
+    public static boolean isRegistered(String electionName, String voterKey)
+    {
+        return ElectionCache.isRegistered(electionName, voterKey);
+    }
+
+    /**
+     * @param electionName the election whose voters to look up
+     * @return registry resolving voter moduli to voter indices with one query per batch
+     */
+    public static VoterRegistry voterRegistry(final String electionName)
+    {
+        return store.voterRegistry(electionName);
     }
 
     /**
@@ -294,62 +295,12 @@ public class DatabaseUtils
      * @return success - boolean that if true, blockchain has been terminated.
      */
     public static Boolean terminateElectionBlockchain(String publicKey) {
-        if (connection == null) return false;
-        String rst; PreparedStatement pst; ResultSet res;
-        String relName; long time;int blockCount;
-        try {
-            // derive blockchain relation name from public key's modulus
-            relName = deriveBlockchainName(publicKey);
-            
-            // read block number and status from elections
-            rst = "SELECT block_count, active FROM elections WHERE public_key=?";
-            pst = connection.prepareStatement(rst);
-            pst.setString(1, publicKey);
-            res = pst.executeQuery();
-            if(res.next() && res.getString("active").equals("Y"))
-                blockCount = res.getInt("block_count");
-            else
-                return false;
-
-            // verify next block number from election blockchain
-            rst = "SELECT COUNT(_id) AS count FROM "+relName;
-            pst = connection.prepareStatement(rst);
-            res = pst.executeQuery();
-            if(!res.next() || res.getInt("count") != blockCount)
-                return false;
-
-            // retrieve private key
-            String privateKey = retrievePrivateKey(publicKey);
-            
-            // insert the terminus block into the table
-            rst = "INSERT INTO "+relName+" VALUES(?, ?, ?, ?, ?);";
-            pst = connection.prepareStatement(rst);
-            pst.setInt(1, (int)(Math.random()*10000));
-            pst.setInt(2, blockCount+1);
-            pst.setString(3, privateKey);
-            time = System.currentTimeMillis();
-            pst.setLong(4, time);
-            String timestamp = Base64.getEncoder().encodeToString(Long.toString(time).getBytes());
-            pst.setString(5, CryptoUtils.signData(CryptoUtils.base64Concat(publicKey,timestamp), 
-            		CryptoUtils.importPrivateKey(privateKey)));
-            pst.executeUpdate();
-
-            // update block number in the elections table
-            rst = "UPDATE elections SET block_count=?, active='N' WHERE public_key=?;";
-            pst = connection.prepareStatement(rst);
-            pst.setInt(1, blockCount+1);
-            pst.setString(2, publicKey);
-
-            if(pst.executeUpdate() == 1) {
-                return true;
-            }
-            return false;
-        }
-        catch (SQLException e)
-        {
-            e.printStackTrace();
-            return false;
-        }
+        FlightEvents.ElectionLifecycle event = new FlightEvents.ElectionLifecycle();
+        event.begin();
+        long terminus = store.terminateElectionBlockchain(publicKey);
+        ElectionEvents.lifecycle(publicKey);
+        lifecycle(event, FlightEvents.label(publicKey), "close", terminus, terminus >= 0);
+        return terminus >= 0;
     }
     
     /**
@@ -361,113 +312,82 @@ public class DatabaseUtils
      */
     public static Boolean initializeElectionBlockchain(String publicKey)
     {
-        if (connection == null) return false;
-        String rst; PreparedStatement pst;
-        long time;
-        try
-        {
-        	// derive blockchain relation name from public key's modulus
-        	String relName = deriveBlockchainName(publicKey);
-
-            // create the new election block chain
-            rst = "CREATE TABLE "+relName+" (" +
-                    "_id BIGSERIAL PRIMARY KEY, " +            	// arbitrary, unique ID
-                    "block_no BIGINT NOT NULL, " +             	// block number
-                    "block_content VARCHAR(4096) NOT NULL, " +  // contents of the block OR election key -> urlbase64 encoded
-                    "timestamp BIGINT NOT NULL," +              // epoch time in millis
-                    "current_hash VARCHAR(4096) NOT NULL" +     // hash(content||prev_hash||time) OR election key signature -> urlbase64 encoded
-                    ");";
-            connection.prepareStatement(rst).executeUpdate();
-
-            // retrieve private key for signing
-            // TODO sign using administrative key rather than election?
-            PrivateKey privateKey = CryptoUtils.importPrivateKey(retrievePrivateKey(publicKey));
-            
-            // insert the genesis block into the table
-            rst = "INSERT INTO "+relName+" VALUES(?, 0, ?, ?, ?);";
-            pst = connection.prepareStatement(rst);
-            pst.setInt(1, (int)(Math.random()*10000));
-            pst.setString(2, publicKey);
-            time = System.currentTimeMillis();
-            pst.setLong(3, time);
-            String timestamp = Base64.getEncoder().encodeToString(Long.toString(time).getBytes());
-            pst.setString(4, CryptoUtils.signData(CryptoUtils.base64Concat(publicKey,timestamp), privateKey));
-            pst.executeUpdate();
-
-            // update block number in the elections table
-            rst = "UPDATE elections SET block_count=1, active='Y' WHERE public_key=?;";
-            pst = connection.prepareStatement(rst);
-            pst.setString(1, publicKey);
-
-            return 1 == pst.executeUpdate(); // return true if the entry was created
-        }
-        catch (SQLException e)
-        {
-            e.printStackTrace();
-            return false;
-        }
+        FlightEvents.ElectionLifecycle event = new FlightEvents.ElectionLifecycle();
+        event.begin();
+        Boolean initialized = store.initializeElectionBlockchain(publicKey);
+        ElectionEvents.lifecycle(publicKey);
+        lifecycle(event, FlightEvents.label(publicKey), "start", 0, initialized);
+        return initialized;
     }
     
     /**
-     * Adds records to the Elections and PrivateKeys tables to create a new election.
+     * Creates a write-in election (no registered candidates).
+     * @see #createElection(String, KeyPair, List)
+     */
+    public static Boolean createElection(String electionName, KeyPair electionKeys)
+    {
+        return createElection(electionName, electionKeys, Collections.<String>emptyList());
+    }
+
+    /**
+     * Adds records to the Elections, PrivateKeys and Candidates tables to create a new election.
      * Handles creating the key pair for the election.
      * @param electionName Identifier for the election
      * @param electionKeys (optional) RSA-4096 key pair to utilize for the election
+     * @param candidates names of the candidates on the ballot (empty for a write-in election)
      * @return True if the election is successfully created
      */
-    public static Boolean createElection(String electionName, KeyPair electionKeys)
+    public static Boolean createElection(String electionName, KeyPair electionKeys, List<String> candidates)
+    {
+        return createElection(electionName, electionKeys, candidates, 1);
+    }
+
+    /**
+     * Adds records to the Elections, PrivateKeys and Candidates tables to create a new election.
+     * Handles creating the key pair for the election.
+     * @param electionName Identifier for the election
+     * @param electionKeys (optional) RSA-4096 key pair to utilize for the election
+     * @param candidates names of the candidates on the ballot (empty for a write-in election)
+     * @param ballotFormat 1 for RSA ballots, 2 for ECDH/AES-GCM ballots signed with P-256 voter keys,
+     *                     3 for homomorphically tallied ElGamal ballots signed with P-256 voter keys
+     * @return True if the election is successfully created
+     */
+    public static Boolean createElection(String electionName, KeyPair electionKeys, List<String> candidates,
+                                         int ballotFormat)
     {
-    	if(connection == null) return false;
-    	String rst; PreparedStatement pst;
-    	KeyPair keys; String pk, sk;
-    	try{
-    		// create an elections table to hold meta-information
-            // on existing election block chains
-            rst = "CREATE TABLE IF NOT EXISTS elections (" +
-                    "public_key VARCHAR(4096) PRIMARY KEY," + // public key -> urlbase64 encoded
-                    "block_count BIGINT NOT NULL," +     	  // next block number
-                    "election_name VARCHAR(128) UNIQUE," +	  // readable (unique) identifier
-                    "active CHAR(1)" +                        // Active Flag to identify if election is active.
-                                                            // other useful information to keep handy?
-                    ");";
-            connection.prepareStatement(rst).executeUpdate();
-            
-            // create a separate table to store private keys
-            rst = "CREATE TABLE IF NOT EXISTS private_keys (" +
-            		"public_key VARCHAR(4096) PRIMARY KEY," +	// public key -> urlbase64 encoded
-            		"private_key VARCHAR(4096)" +				// private key -> urlbase64 encoded
-            		");";										// TODO base64 encoding of keys < 4096 bytes, can optimize
-            connection.prepareStatement(rst).executeUpdate();
-            
-            // generate or read a key pair for the election
-            if (electionKeys == null)
-            	keys = CryptoUtils.generateKeys();
-            else
-            	keys = electionKeys;
-            pk = CryptoUtils.exportKey(keys.getPublic());
-            sk = CryptoUtils.exportKey(keys.getPrivate());
-            
-            // store record for the Elections table
-            rst = "INSERT INTO elections VALUES (?, 0, ?, 'U')";
-            pst = connection.prepareStatement(rst);
-            pst.setString(1, pk);
-            pst.setString(2, electionName);
-            pst.executeUpdate();
-            
-            // store record for the PrivateKeys table
-            rst = "INSERT INTO private_keys VALUES (?, ?)";
-            pst = connection.prepareStatement(rst);
-            pst.setString(1, pk);
-            pst.setString(2, sk);
-            pst.executeUpdate();
-            
-            return true;
-    	}
-    	catch(SQLException e)
-    	{
-    		e.printStackTrace();
-    		return false;
-    	}
+        FlightEvents.ElectionLifecycle event = new FlightEvents.ElectionLifecycle();
+        event.begin();
+        Boolean created = store.createElection(electionName, electionKeys, candidates, ballotFormat);
+        lifecycle(event, electionName, "create", -1, created);
+        return created;
+    }
+
+    /**
+     * @param electionName the (unique) name of an election
+     * @return the election's candidates (empty for a write-in election or if the election does not exist), null if
+     *         the database is unavailable
+     */
+    public static CandidateDictionary getCandidates(String electionName)
+    {
+        return store.getCandidates(electionName);
+    }
+
+    /**
+     * @param electionName the (unique) name of an election
+     * @return the ballot format the election takes: 1, 2 or 3 (1 if there is no such election)
+     */
+    public static int getBallotFormat(String electionName)
+    {
+        return store.getBallotFormat(electionName);
+    }
+
+    /**
+     * @param electionName the (unique) name of an election
+     * @return the base64 encoded (spki) P-256 key of an election taking v2 or v3 ballots, null for v1 elections
+     */
+    public static String getBallotKey(String electionName)
+    {
+        return store.getBallotKey(electionName);
     }
 
     /**
@@ -477,28 +397,7 @@ public class DatabaseUtils
      */
     public static String retrievePublicKey(String electionName)
     {
-        if (connection == null) return null;
-
-        String rst;
-        PreparedStatement pst;
-        ResultSet res;
-        try
-        {
-            rst = "SELECT public_Key FROM elections WHERE election_name=?;";
-            pst = connection.prepareStatement(rst);
-            pst.setString(1, electionName);
-            res = pst.executeQuery();
-
-            if(res.next())
-                return res.getString(1);
-            else
-                return null;
-        }
-        catch (Exception e)
-        {
-            e.printStackTrace();
-            return null;
-        }
+        return ElectionCache.publicKey(electionName);
     }
 
     /**
@@ -509,106 +408,115 @@ public class DatabaseUtils
      */
     public static String retrievePrivateKey(String publicKey)
     {
-    	if (connection == null) return null;
-    	String rst; 
-    	PreparedStatement pst;
-    	ResultSet res;
-    	try{
-    		rst = "SELECT private_key FROM private_keys WHERE public_key=?";
-    		pst = connection.prepareStatement(rst);
-    		pst.setString(1, publicKey);
-    		res = pst.executeQuery();
-    		
-    		if(res.next())
-    		{
-    			return res.getString("private_key");
-    		}
-    		else
-    		{
-    			return null;
-    		}
-    	}
-    	catch(SQLException e){
-    		System.err.println("Unable to retrieve private key.");
-    		return null;
-    	}
+        return store.retrievePrivateKey(publicKey);
+    }
+
+    /**
+     * @param publicKey an election's public key
+     * @return the election's private key, ready to decrypt ballots (or null)
+     */
+    public static PrivateKey getDecryptionKey(String publicKey)
+    {
+        return ElectionCache.decryptionKey(publicKey);
+    }
+
+    /**
+     * @param publicKey an election's public key
+     * @return the ballot key pair derived from the election's private key (see CryptoUtils.ballotKeyPair, or null)
+     */
+    public static KeyPair getBallotKeyPair(String publicKey)
+    {
+        return ElectionCache.ballotKeyPair(publicKey);
     }
 
     /**
      * Processes a valid ballot and adds it to an election's blockchain
      * @param ballot Base 64 encoded encrypted ballot
+     * @param voterKey the voter's public key (modulus or P-256 point, base64), counted in the turnout with the block
      * @param electionKey	Primary key to identify the election
      * @return True if the block was successfully added
      */
-    public static boolean addToBlockchain(String ballot, String electionKey)
-    {
-    	if (connection == null) return false;
-    	String rst; PreparedStatement pst; ResultSet res;
-    	int blockCount; String prevHash; long time;
-    	try
-    	{
-    		// derive blockchain relation name from public modulus
-    		String relName = deriveBlockchainName(electionKey);
-//    		System.out.println("Hi hello the relName is " + relName);
-    		
-    		// read block number and status from elections
-    		rst = "SELECT block_count, active FROM elections WHERE public_key=?";
-    		pst = connection.prepareStatement(rst);
-    		pst.setString(1, electionKey);
-    		res = pst.executeQuery();
-    		if(res.next() && res.getString("active").equals("Y"))
-    			blockCount = res.getInt("block_count");
-    		else
-    			return false;
-    		
-    		// verify next block number from election blockchain
-    		rst = "SELECT COUNT(_id) AS count FROM "+relName;
-    		pst = connection.prepareStatement(rst);
-    		res = pst.executeQuery();
-    		if(!res.next() || res.getInt("count") != blockCount)
-    			return false;
-
-//    		// for testing purposes
-//    		System.out.println(viewBlockchain(electionKey));
-    		
-    		// query last block's hash
-    		rst = "SELECT current_hash FROM "+relName+" WHERE block_no=?";
-    		pst = connection.prepareStatement(rst);
-    		pst.setInt(1, blockCount - 1);
-    		res = pst.executeQuery();
-    		if(res.next())
-    			prevHash = res.getString("current_hash");
-    		else
-    			return false;
-    		
-    		// insert new block
-    		rst = "INSERT INTO "+relName+" VALUES (?,?,?,?,?)";
-    		pst = connection.prepareStatement(rst);
-    		pst.setInt(1, (int)(Math.random() * 10000));
-    		pst.setInt(2, blockCount);
-    		pst.setString(3, ballot);
-    		time = System.currentTimeMillis();
-    		pst.setLong(4, time);
-    		pst.setString(5, CryptoUtils.calculateBlockHash(ballot, prevHash, time));
-    		if (pst.executeUpdate() != 1)
-    			return false;
-    		
-    		// update block count for election
-    		rst = "UPDATE elections SET block_count = ? WHERE public_key = ?";
-    		pst = connection.prepareStatement(rst);
-    		pst.setInt(1, blockCount + 1);
-    		pst.setString(2, electionKey);
-    		if (pst.executeUpdate() != 1)
-    			return false;    		
-    		
-    		return true;
-    	}
-    	catch(Exception e){
-    		e.printStackTrace();
-    		return false;
-    	}
+    public static boolean addToBlockchain(String ballot, String voterKey, String electionKey)
+    {
+        return addToBlockchain(Collections.singletonList(ballot), Collections.singletonList(voterKey), electionKey);
+    }
+
+    /**
+     * Adds valid ballots to an election's blockchain as consecutive blocks, all or none of them.
+     * The append is one transaction holding the election's advisory lock, so appends from several app instances
+     * are serialized per election and the chain stays linear; a batch pays for the lock and commit only once.
+     * The ballots' voters are marked as having voted in the same transaction, so only ballots that made it into the
+     * blockchain count in the turnout.
+     * @param ballots Base 64 encoded encrypted ballots, in block order
+     * @param voters the voter key of each ballot (entries may be null where it is not known)
+     * @param electionKey	Primary key to identify the election
+     * @return True if all blocks were added
+     */
+    public static boolean addToBlockchain(List<String> ballots, List<String> voters, String electionKey)
+    {
+        FlightEvents.BallotStage event = FlightEvents.stage("append");
+        long first = store.addToBlockchain(ballots, voters, electionKey);
+        FlightEvents.end(event, electionKey, first, ballots.size(), first >= 0 ? "ok" : "rejected");
+        return first >= 0;
+    }
+
+    /**
+     * @param electionKey Public key to identify an election
+     * @return true if the election is active, false if it is not (or does not exist), null if the database is unavailable
+     */
+    public static Boolean isActive(String electionKey)
+    {
+        return ElectionCache.isActive(electionKey);
+    }
+
+    /**
+     * Reads whether an election is active, bypassing the cache and waiting out a termination in progress. A ballot
+     * journal confirms this after recording a ballot in its backlog, so the election cannot be closed before the
+     * ballot is added.
+     * @param electionKey Public key to identify an election
+     * @return true if the election is active, false if it is not (or does not exist), null if the database is unavailable
+     */
+    public static Boolean confirmActive(String electionKey)
+    {
+        return store.confirmActive(electionKey);
+    }
+
+    /**
+     * Looks for a ballot among the blocks added to an election blockchain since a point in time (used to replay the
+     * ballot journal idempotently). The chain is read backwards from its head on the block_no index, so only the
+     * blocks added since then are read.
+     * @param electionKey Public key to identify an election
+     * @param ballot Base 64 encoded encrypted ballot
+     * @param since epoch millis, older blocks are not searched
+     * @return true if the ballot is one of those blocks, null if the database is unavailable
+     */
+    public static Boolean chainContainsSince(String electionKey, String ballot, long since)
+    {
+        return store.chainContainsSince(electionKey, ballot, since);
+    }
+
+    /**
+     * Records the ballots a ballot journal holds per election, so that no instance closes an election while another
+     * instance's journal still holds some of its ballots.
+     * @param node identifies the journal
+     * @param pending election key mapped to the journal's ballots of the election, for every election it holds
+     *                ballots of
+     * @return true if recorded, false if the database is unavailable
+     */
+    public static boolean reportJournal(String node, Map<String, Integer> pending)
+    {
+        return store.reportJournal(node, pending);
     }
 
+    /**
+     * @param electionKey Public key to identify an election
+     * @return ballots of the election that the ballot journals of all instances have yet to add to its blockchain,
+     *         null if the database is unavailable
+     */
+    public static Long journalBacklog(String electionKey)
+    {
+        return store.journalBacklog(electionKey);
+    }
 
     /**
      * Reads through an election blockchain and returns a formatted list of blocks.
@@ -617,59 +525,113 @@ public class DatabaseUtils
      */
     public static List<ElectionBlock> viewBlockchain(String electionKey)
     {
-    	String rst, relName; ResultSet res; PreparedStatement pst;
-    	List<ElectionBlock> list = new LinkedList<ElectionBlock>();
-        if (connection == null) return list;
-    	try
-    	{
-            // query the elections table to learn the election's last block number and active status
-            rst = "SELECT block_count, active FROM elections WHERE public_key=?;";
-            pst = connection.prepareStatement(rst);
-            pst.setString(1, electionKey);
-            res = pst.executeQuery();
-
-            if (res.next())
-            {
-                Integer lastBlock = res.getInt(1); // terminating block no
-                PrivateKey decryptionKey = null; // used to decrypt the ballot for user display
-                boolean active = !res.getString(2).equalsIgnoreCase("n");
-                if (!active)
-                {   // get the election's decryption key if election is not active
-                    decryptionKey = CryptoUtils.importPrivateKey(retrievePrivateKey(electionKey));
-                }
-
-                // query for list of all blocks
-                relName = deriveBlockchainName(electionKey);
-                rst = "SELECT _id,block_no,block_content,timestamp,current_hash FROM "+relName+" ORDER BY block_no ASC;";
-                res = connection.prepareStatement(rst).executeQuery();
-                while(res.next())
-                {   // create election block object for JSTL usage in viewBlockchain.jsp
-                    ElectionBlock block = new ElectionBlock(
-                                                res.getInt(2),
-                                                res.getLong(4),
-                                                res.getString(3),
-                                                res.getString(5));
-                    if (!active && block.no > 0 && block.no < lastBlock)
-                    {   // create decrypted ballot if election is not active and is valid block number
-                        try
-                        {
-                            block.ballot = new BallotServlet.DecryptedBallot(block.content, decryptionKey);
-                        }
-                        catch (IllegalArgumentException e)
-                        {   // print error and do not add the ballot
-                            e.printStackTrace();
-                        }
-                    }
-                    list.add(block);
-                }
-            }
-    		return list;
-    	}
-    	catch(Exception e)
+        return store.viewBlockchain(electionKey);
+    }
+
+    /**
+     * decrypts the ballots of blocks for display, leaving invalid ballots empty
+     * @param electionKey Public key to identify an election
+     * @param blocks ballot blocks of the (closed) election
+     */
+    static void decryptBallots(String electionKey, List<ElectionBlock> blocks)
+    {
+        if (blocks.isEmpty()) return;
+        List<String> ballots = new ArrayList<String>(blocks.size());
+        for (ElectionBlock block : blocks)
+        {
+            ballots.add(block.content);
+        }
+        String[] errors = new String[ballots.size()];
+        BallotServlet.DecryptedBallot[] decrypted = DecryptionService.instance().decrypt(electionKey, ballots, errors);
+        for (int i = 0; i < decrypted.length; i++)
+        {
+            blocks.get(i).ballot = decrypted[i];
+            if (errors[i] != null) System.err.println("Block " + blocks.get(i).no + ": " + errors[i]);
+        }
+    }
+
+    /**
+     * @param electionName the (unique) name of an election
+     * @return the election's status flag: 'U' upcoming, 'Y' active, 'N' closed (or null if there is no such election)
+     */
+    public static String getElectionStatus(String electionName)
+    {
+        return ElectionCache.status(electionName);
+    }
+
+    /**
+     * @param electionKey Public key to identify an election
+     * @return true if the election's blockchain was moved to the archival tier
+     */
+    public static boolean isArchived(String electionKey)
+    {
+        return ElectionCache.isArchived(electionKey);
+    }
+
+    /**
+     * Marks a closed election as archived and drops its blockchain table.
+     * Only to be called by ElectionArchive once the archived segment has been verified.
+     * @param electionKey Public key to identify an election
+     * @return true if the election is now served from its archive segment
+     */
+    static boolean archiveBlockchain(String electionKey)
+    {
+        FlightEvents.ElectionLifecycle event = new FlightEvents.ElectionLifecycle();
+        event.begin();
+        boolean archived = store.archiveBlockchain(electionKey);
+        ElectionEvents.lifecycle(electionKey);
+        lifecycle(event, FlightEvents.label(electionKey), "archive", -1, archived);
+        return archived;
+    }
+
+    /**
+     * commits an election lifecycle event, if it is recorded
+     */
+    private static void lifecycle(FlightEvents.ElectionLifecycle event, String election, String operation,
+                                  long blockNumber, Boolean done)
+    {
+        if (!event.shouldCommit()) return;
+        event.election = election;
+        event.operation = operation;
+        event.blockNumber = Boolean.TRUE.equals(done) ? blockNumber : -1;
+        event.outcome = done == null ? "error" : done ? "ok" : "refused";
+        event.commit();
+    }
+
+    /**
+     * Reads a range of an election blockchain in block order, without decrypting anything.
+     * Large chains are read page by page: pass the last block number of one page as the start of the next.
+     * @param electionKey Public key to identify an election
+     * @param afterBlockNo only blocks with a larger block number are returned (-1 to start at the genesis block)
+     * @param limit maximum number of blocks to return
+     * @return the blocks, an empty list once the end of the chain is reached (or null on error)
+     */
+    public static List<ElectionBlock> scanBlockchain(String electionKey, long afterBlockNo, int limit)
+    {
+        FlightEvents.ChainScan event = new FlightEvents.ChainScan();
+        event.begin();
+        List<ElectionBlock> blocks = store.scanBlockchain(electionKey, afterBlockNo, limit);
+        if (event.shouldCommit())
         {
-    		e.printStackTrace();
-    		return null;
-    	}
+            event.election = FlightEvents.label(electionKey);
+            event.blockNumber = afterBlockNo;
+            event.blocks = blocks == null ? 0 : blocks.size();
+            event.outcome = blocks == null ? "error" : blocks.isEmpty() ? "end of chain" : "ok";
+            event.commit();
+        }
+        return blocks;
+    }
+
+    /**
+     * Reads a range of an election's registered voter keys in voter index order (page by page like scanBlockchain).
+     * @param electionName the election whose voters to read
+     * @param afterIndex only voters with a larger index are returned (-1 to start at the first voter)
+     * @param limit maximum number of voters to return
+     * @return voter index mapped to the voter's base64 encoded modulus, in index order (or null on error)
+     */
+    public static Map<Integer, String> scanVoterKeys(String electionName, int afterIndex, int limit)
+    {
+        return store.scanVoterKeys(electionName, afterIndex, limit);
     }
 
     /**
@@ -677,12 +639,12 @@ public class DatabaseUtils
      */
     public static class ElectionBlock
     {
-        public Integer no;          // block num
+        public Long no;             // block num
         public Long epoch;          // unix epoch timestamp (milli)
         public String content;      // block contents (election pub key, or ballot, or election priv key)
         public String hash;         // hash of current block||previous hash
         public BallotServlet.DecryptedBallot ballot;    // parsed ballot (may be null)
-        public ElectionBlock(Integer no, Long time, String content, String hash)
+        public ElectionBlock(Long no, Long time, String content, String hash)
         {
             this.no = no;
             this.epoch = time;
@@ -718,70 +680,129 @@ public class DatabaseUtils
     /**
      * Reads through a terminated election to determine its results.
      * @param electionKey Public key to identify an election
-     * @return Map of each candidate to their tallied vote count.
+     * @return Map of each candidate to their tallied vote count, or null if the results could not be evaluated.
+     */
+    public static Map<String, Long> evaluateBlockchain(String electionKey)
+    {
+        return store.evaluateBlockchain(electionKey);
+    }
+
+    /**
+     * Counts a sequence of encrypted ballots. Only the first ballot seen for each voter is counted,
+     * so the ballots must be ordered newest first for a re-vote to replace an older one.
+     * Ballots are decrypted in parallel batches; voters already counted are tracked in a bitmap
+     * over their registration indices (one bit per registered voter).
+     * Kept separate from the database scan so the tally can be run (and benchmarked) over any chain.
+     * @param ballots base64 encoded ballots, newest first
+     * @param decryptionKey the election's private key
+     * @param candidates the election's candidates (an empty dictionary counts write-ins)
+     * @param voters the election's registered voters
+     * @return Map of each candidate to their tallied vote count, in candidate id order.
+     */
+    public static Map<String, Long> tallyBallots(Iterable<String> ballots, PrivateKey decryptionKey,
+                                                 CandidateDictionary candidates, VoterRegistry voters)
+    {
+        return tallyBallots(ballots, null, new LocalDecryption(decryptionKey), candidates, voters);
+    }
+
+    /**
+     * Counts a sequence of encrypted ballots as above, decrypting them with a DecryptionService.
+     * @param ballots base64 encoded ballots, newest first
+     * @param electionKey the election's public key
+     * @param decryption service that decrypts the election's ballots
+     * @param candidates the election's candidates (an empty dictionary counts write-ins)
+     * @param voters the election's registered voters
+     * @return Map of each candidate to their tallied vote count, in candidate id order.
+     */
+    public static Map<String, Long> tallyBallots(Iterable<String> ballots, String electionKey,
+                                                 DecryptionService decryption, CandidateDictionary candidates,
+                                                 VoterRegistry voters)
+    {
+        boolean writeIns = candidates.isEmpty();
+        CandidateDictionary dict = writeIns ? new CandidateDictionary() : candidates; // don't grow the shared copy
+        BallotTally tally = new BallotTally(dict);
+        VoterBitmap voted = new VoterBitmap(voters.size());  // voters whose ballot was already counted
+
+        List<String> batch = new ArrayList<String>(TALLY_BATCH);
+        for (String block : ballots)
+        {
+            batch.add(block);
+            if (batch.size() == TALLY_BATCH)
+            {
+                tallyBatch(batch, electionKey, decryption, dict, writeIns, voters, voted, tally);
+                batch.clear();
+            }
+        }
+        tallyBatch(batch, electionKey, decryption, dict, writeIns, voters, voted, tally);
+        return tally.toMap();
+    }
+
+    /**
+     * decrypts a batch of ballots in parallel, then counts them in chain order (newest first)
      */
-    public static Map<String, Integer> evaluateBlockchain(String electionKey)
+    private static void tallyBatch(List<String> batch, String electionKey, DecryptionService decryption,
+                                   CandidateDictionary dict, boolean writeIns, VoterRegistry voters,
+                                   VoterBitmap voted, BallotTally tally)
     {
-        Map<String, Integer> results = new HashMap<String, Integer>();  // dict of candidate to vote count
-        Set<String> voted = new HashSet<String>();  // set containing all modulus which were used to vote
-    	if (connection == null) return results;
+        if (batch.isEmpty()) return;
+        FlightEvents.TallyBatch event = new FlightEvents.TallyBatch();
+        event.begin();
+        int counted = 0, ignored = 0;
+
+        // decrypting and verifying is nearly all of the work, spread over all cores (or worker processes)
+        String[] errors = new String[batch.size()];
+        BallotServlet.DecryptedBallot[] decrypted = decryption.decrypt(electionKey, batch, errors);
+        for (String error : errors)
+        {
+            if (error == null) continue;
+            System.err.println("Ignoring invalid ballot: " + error);
+            ignored++;
+        }
+
+        // resolve all voters of the batch at once
+        String[] moduli = new String[decrypted.length];
+        for (int i = 0; i < decrypted.length; i++)
+        {
+            moduli[i] = decrypted[i] == null ? null : decrypted[i].modulus;
+        }
+        int[] indices = new int[decrypted.length];
+        voters.indexOf(moduli, indices);
 
-        String rst, relName; PreparedStatement pst; ResultSet res;
-    	try
-    	{
-    	    // query the elections table to learn the election's last block number and active status
-    	    rst = "SELECT block_count, active FROM elections WHERE public_key=?;";
-    	    pst = connection.prepareStatement(rst);
-    	    pst.setString(1, electionKey);
-    	    res = pst.executeQuery();
+        for (int i = 0; i < decrypted.length; i++)
+        {
+            BallotServlet.DecryptedBallot ballot = decrypted[i];
+            if (ballot == null) continue;
+            if (indices[i] < 0)
+            {
+                System.err.println("Ignoring ballot from an unregistered voter: " + ballot);
+                ignored++;
+                continue;
+            }
 
-    	    // if the query was successful and the election is no longer active, generate the election results
-    	    if (res.next() && res.getString(2).equalsIgnoreCase("n"))
+            // resolve the candidate id, ballots for unknown candidates are rejected on ingest
+            int candidateId = writeIns ? ballot.internCandidate(dict) : ballot.candidateId(dict);
+            if (candidateId < 0)
             {
-                int lastBlockNo = res.getInt(1) - 1; // last block number (terminus block)
-
-    	        // get the election's decryption key
-                PrivateKey decryptionKey = CryptoUtils.importPrivateKey(retrievePrivateKey(electionKey));
-
-    	        // query for all blocks in the block chain, sorted in descending order
-                relName = deriveBlockchainName(electionKey);
-                rst = "SELECT block_no, block_content FROM " + relName + " ORDER BY block_no DESC;";
-                res = connection.prepareStatement(rst).executeQuery();
-
-                /* for each block */
-                while(res.next())
-                {
-                    Integer blockNo   = res.getInt(1);
-                    String block = res.getString(2);
-                    if (blockNo < lastBlockNo && blockNo > 0) // ignore the genesis and terminus block
-                    {
-                        try // attempt to decrypt the ballot and increment the candidate count
-                        {
-                            BallotServlet.DecryptedBallot ballot =
-                                    new BallotServlet.DecryptedBallot(block, decryptionKey);
-
-                            // count the vote only if the voter's ballot has not already been counted
-                            if (!voted.contains(ballot.modulus))
-                            {
-                                voted.add(ballot.modulus);
-                                int count = (results.containsKey(ballot.candidate) ?
-                                        results.get(ballot.candidate) : 0);
-                                results.put(ballot.candidate, count+1); // increment the candidate count
-                            }
-                        }
-                        catch(IllegalArgumentException e)
-                        {
-                            e.printStackTrace();
-                        }
-                    }
-                }
+                System.err.println("Ignoring ballot for an unknown candidate: " + ballot);
+                ignored++;
+                continue;
             }
-            return results;
-    	}
-    	catch(Exception e)
+
+            // count the vote only if the voter's ballot has not already been counted
+            if (voted.testAndSet(indices[i]))
+            {
+                tally.count(candidateId); // increment the candidate count
+                counted++;
+            }
+        }
+
+        if (event.shouldCommit())
         {
-    		e.printStackTrace();
-    		return results;
-    	}
+            event.election = FlightEvents.label(electionKey);
+            event.ballots = batch.size();
+            event.counted = counted;
+            event.outcome = ignored == 0 ? "ok" : ignored + " ignored";
+            event.commit();
+        }
     }
 }
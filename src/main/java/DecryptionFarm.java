@@ -0,0 +1,520 @@
+import java.io.*;
+import java.net.URISyntaxException;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Decrypts ballots on a farm of local worker processes (DecryptionWorker). Ballots wait in one bounded queue; a
+ * dispatcher thread per worker takes whatever has queued up, to a batch size, sends it over the worker's Unix
+ * domain socket and hands each result back to the request that is waiting for it. Under load every round trip
+ * carries a full batch, when idle a lone ballot goes out at once.
+ * The election keys are only read by the workers, the web app never holds them. A worker that dies or stops
+ * answering is restarted; the ballots it held are refused (ingest answers 503) or, for a tally, sent again. A worker
+ * that takes longer than decryptTimeoutSeconds for a batch is considered hung: a watchdog kills it, which fails the
+ * dispatcher's read, and the dispatcher starts a new one.
+ *
+ * Configured with the environment variables
+ *   decryptWorkers    -> number of worker processes (default 0: no farm, see DecryptionService)
+ *   decryptBatch      -> most ballots sent to a worker at once (default 64)
+ *   decryptQueue      -> number of ballots that may wait for a worker (default 16 per core)
+ *   decryptTimeoutSeconds -> longest a worker may take for a batch, and a ballot may wait for its result (default 30)
+ *   decryptSocketDir  -> directory of the workers' sockets (default: a private directory under java.io.tmpdir)
+ *   decryptClasspath  -> class path of the worker processes (default: the web app's classes and libraries)
+ */
+public class DecryptionFarm implements DecryptionService
+{
+    static final int WORKERS = Env.intValue("decryptWorkers", 0);
+    private static final int batchSize = Math.max(1, Env.intValue("decryptBatch", 64));
+    private static final int capacity = Env.intValue("decryptQueue", 16 * Runtime.getRuntime().availableProcessors());
+    private static final int startSeconds = 60;   // allowed for a worker to open its socket
+    private static final int attempts = 3;        // tries per ballot of a batch before the batch fails
+    private static final long timeout = TimeUnit.SECONDS.toNanos(Math.max(1, Env.intValue("decryptTimeoutSeconds", 30)));
+
+    private final BlockingQueue<Pending> queue = new ArrayBlockingQueue<Pending>(capacity);
+    private final List<Worker> workers = new ArrayList<Worker>();
+    private final Path directory;
+    private volatile boolean stopped = false;
+    private final AtomicInteger connected = new AtomicInteger();
+    private final ScheduledExecutorService watchdog = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "decrypt-farm-watchdog");
+        t.setDaemon(true);
+        return t;
+    });
+
+    private final LongAdder batches = Metrics.counter("decrypt_farm_batches_total",
+            "Batches of ballots sent to decryption workers");
+    private final LongAdder ballots = Metrics.counter("decrypt_farm_ballots_total",
+            "Ballots decrypted by decryption workers");
+    private final LongAdder rejected = Metrics.counter("decrypt_farm_rejected_total",
+            "Ballots refused because the decryption queue was full or a worker failed");
+    private final LongAdder restarts = Metrics.counter("decrypt_farm_worker_failures_total",
+            "Decryption workers that failed and were reconnected or restarted");
+    private final LongAdder hung = Metrics.counter("decrypt_farm_worker_timeouts_total",
+            "Decryption workers killed because they did not answer a batch in time");
+    private final LongAdder serviceNanos = Metrics.counter("decrypt_farm_service_nanos_total",
+            "Time spent waiting on decryption workers for batches (nanoseconds)");
+
+    /**
+     * a ballot waiting for a worker, completed by the dispatcher
+     */
+    private static class Pending
+    {
+        final String electionKey;
+        final String ballot;
+        final CompletableFuture<BallotServlet.DecryptedBallot> result = new CompletableFuture<>();
+
+        Pending(String electionKey, String ballot)
+        {
+            this.electionKey = electionKey;
+            this.ballot = ballot;
+        }
+    }
+
+    /**
+     * starts the dispatchers, each spawns its worker process
+     * @param processes number of worker processes
+     */
+    public DecryptionFarm(int processes)
+    {
+        directory = System.getenv("decryptSocketDir") != null ? Paths.get(System.getenv("decryptSocketDir"))
+                : Paths.get(System.getProperty("java.io.tmpdir"), "vote-decrypt-" + ProcessHandle.current().pid());
+        try
+        {
+            Files.createDirectories(directory);
+            Files.setPosixFilePermissions(directory, PosixFilePermissions.fromString("rwx------"));
+        }
+        catch (IOException e)
+        {
+            throw new IllegalStateException("Could not create the decryption socket directory " + directory, e);
+        }
+
+        Metrics.gauge("decrypt_farm_queue_depth", "Ballots waiting for a decryption worker", queue::size);
+        Metrics.gauge("decrypt_farm_queue_capacity", "Ballots that may wait for a decryption worker", () -> capacity);
+        Metrics.gauge("decrypt_farm_workers_connected", "Decryption workers connected", connected::get);
+
+        for (int i = 0; i < processes; i++)
+        {
+            Worker worker = new Worker(i);
+            workers.add(worker);
+            worker.thread.start();
+        }
+    }
+
+    @Override
+    public BallotServlet.DecryptedBallot decrypt(String electionKey, String ballot)
+            throws RejectedExecutionException, IllegalArgumentException
+    {
+        Pending pending = new Pending(electionKey, ballot);
+        if (stopped || !queue.offer(pending))
+        {
+            rejected.increment();
+            throw new RejectedExecutionException("Decryption queue is full");
+        }
+
+        try
+        {
+            return pending.result.get(timeout, TimeUnit.NANOSECONDS);
+        }
+        catch (TimeoutException e)
+        {   // the ballot is dropped if a worker still takes it, the client submits it again
+            pending.result.completeExceptionally(e);
+            rejected.increment();
+            throw new RejectedExecutionException("Decryption timed out", e);
+        }
+        catch (ExecutionException e)
+        {
+            if (e.getCause() instanceof IllegalArgumentException) throw (IllegalArgumentException) e.getCause();
+            if (e.getCause() instanceof RejectedExecutionException)
+            {
+                rejected.increment();
+                throw (RejectedExecutionException) e.getCause();
+            }
+            throw new IllegalArgumentException("Ballot could not be decrypted!", e.getCause());
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new RejectedExecutionException("Interrupted while waiting for decryption", e);
+        }
+    }
+
+    @Override
+    public BallotServlet.DecryptedBallot[] decrypt(String electionKey, List<String> ballots, String[] errors)
+    {
+        BallotServlet.DecryptedBallot[] results = new BallotServlet.DecryptedBallot[ballots.size()];
+        List<Integer> remaining = new ArrayList<Integer>(ballots.size());
+        for (int i = 0; i < ballots.size(); i++)
+        {
+            remaining.add(i);
+        }
+
+        for (int attempt = 1; !remaining.isEmpty(); attempt++)
+        {
+            try
+            {   // waits for room in the queue rather than refusing: the whole batch has to be counted
+                List<Pending> pending = new ArrayList<Pending>(remaining.size());
+                for (int i : remaining)
+                {
+                    if (stopped) throw new IllegalStateException("Decryption farm is stopped");
+                    Pending p = new Pending(electionKey, ballots.get(i));
+                    queue.put(p);
+                    pending.add(p);
+                }
+
+                List<Integer> failed = new ArrayList<Integer>();
+                for (int j = 0; j < pending.size(); j++)
+                {
+                    int i = remaining.get(j);
+                    try
+                    {   // earlier ballots are done, so this one waits for about a batch at most
+                        results[i] = pending.get(j).result.get(timeout, TimeUnit.NANOSECONDS);
+                    }
+                    catch (TimeoutException e)
+                    {
+                        pending.get(j).result.completeExceptionally(e);
+                        if (attempt >= attempts)
+                            throw new IllegalStateException("Ballots could not be decrypted by the workers", e);
+                        failed.add(i);
+                    }
+                    catch (ExecutionException e)
+                    {
+                        if (e.getCause() instanceof IllegalArgumentException)
+                        {
+                            if (errors != null) errors[i] = e.getCause().getMessage();
+                        }
+                        else if (attempt < attempts)
+                        {   // the worker failed, not the ballot
+                            failed.add(i);
+                        }
+                        else
+                        {
+                            throw new IllegalStateException("Ballots could not be decrypted by the workers",
+                                    e.getCause());
+                        }
+                    }
+                }
+                remaining = failed;
+            }
+            catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Interrupted while waiting for decryption", e);
+            }
+        }
+        return results;
+    }
+
+    @Override
+    public int retryAfter()
+    {
+        long done = batches.sum();
+        long avg = done == 0 ? 500_000_000L : serviceNanos.sum() / done;
+        long queuedBatches = queue.size() / batchSize + workers.size();
+        return (int) Math.max(1, TimeUnit.NANOSECONDS.toSeconds(avg * queuedBatches / workers.size()) + 1);
+    }
+
+    @Override
+    public void shutdown()
+    {
+        stopped = true;
+        watchdog.shutdownNow();
+        for (Worker worker : workers)
+        {
+            worker.thread.interrupt();
+        }
+        for (Worker worker : workers)
+        {
+            try
+            {
+                worker.thread.join(5000);
+            }
+            catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+            }
+            worker.stop();
+        }
+        for (Pending pending; (pending = queue.poll()) != null; )
+        {
+            pending.result.completeExceptionally(new RejectedExecutionException("Decryption farm is stopped"));
+        }
+        try
+        {
+            Files.deleteIfExists(directory);
+        }
+        catch (IOException e)
+        {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * a worker process, its connection and the thread that dispatches batches to it
+     */
+    private class Worker implements Runnable
+    {
+        private final int id;
+        private final Path socket;
+        private final Thread thread;
+        private Process process;
+        private volatile boolean killed = false; // by the watchdog, the dispatcher waits for the process to exit
+        private SocketChannel channel;
+        private DataInputStream in;
+        private DataOutputStream out;
+
+        Worker(int id)
+        {
+            this.id = id;
+            socket = directory.resolve("worker-" + id + ".sock");
+            thread = new Thread(this, "decrypt-farm-" + id);
+            thread.setDaemon(true);
+        }
+
+        @Override
+        public void run()
+        {
+            List<Pending> batch = new ArrayList<Pending>(batchSize);
+            long backoff = 100;
+            while (!stopped)
+            {
+                try
+                {
+                    if (channel == null)
+                    {   // only take ballots while a worker is there to decrypt them
+                        connect();
+                    }
+                    batch.add(queue.take());
+                    queue.drainTo(batch, batchSize - 1);
+                    exchange(batch);
+                    backoff = 100;
+                }
+                catch (InterruptedException e)
+                {
+                    break;
+                }
+                catch (IOException e)
+                {
+                    for (Pending pending : batch)
+                    {
+                        pending.result.completeExceptionally(
+                                new RejectedExecutionException("Decryption worker failed", e));
+                    }
+                    if (stopped) break;
+                    System.err.println("Decryption worker " + id + " failed: " + e);
+                    restarts.increment();
+                    disconnect();
+                    try
+                    {
+                        Thread.sleep(backoff);
+                    }
+                    catch (InterruptedException ie)
+                    {
+                        break;
+                    }
+                    backoff = Math.min(backoff * 2, 10_000);
+                }
+                finally
+                {
+                    batch.clear();
+                }
+            }
+        }
+
+        /**
+         * connects to the worker process, starting it if it is not running
+         */
+        private void connect() throws IOException, InterruptedException
+        {
+            if (killed)
+            {
+                process.waitFor();
+                killed = false;
+            }
+            if (process == null || !process.isAlive())
+            {
+                Files.deleteIfExists(socket);
+                process = spawn(socket);
+            }
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(startSeconds);
+            while (channel == null)
+            {
+                try
+                {
+                    channel = SocketChannel.open(UnixDomainSocketAddress.of(socket));
+                }
+                catch (IOException e)
+                {
+                    if (!process.isAlive())
+                    {
+                        throw new IOException("worker exited with status " + process.exitValue(), e);
+                    }
+                    if (System.nanoTime() > deadline)
+                    {
+                        process.destroyForcibly();
+                        throw new IOException("worker did not open its socket", e);
+                    }
+                    Thread.sleep(50);
+                }
+            }
+            in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(channel)));
+            out = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel)));
+            connected.incrementAndGet();
+        }
+
+        /**
+         * sends a batch to the worker and completes each ballot with its result; the watchdog kills the worker if the
+         * batch takes longer than the timeout, so the blocked read fails
+         */
+        private void exchange(List<Pending> batch) throws IOException
+        {
+            long start = System.nanoTime();
+            ScheduledFuture<?> timer = watchdog.schedule(() -> kill(process, channel), timeout, TimeUnit.NANOSECONDS);
+            try
+            {
+                send(batch);
+            }
+            finally
+            {
+                timer.cancel(false);
+            }
+            batches.increment();
+            ballots.add(batch.size());
+            serviceNanos.add(System.nanoTime() - start);
+        }
+
+        /**
+         * watchdog: ends a worker that did not answer its batch in time
+         */
+        private void kill(Process hungProcess, SocketChannel hungChannel)
+        {
+            System.err.println("Decryption worker " + id + " did not answer within "
+                    + TimeUnit.NANOSECONDS.toSeconds(timeout) + "s, restarting it");
+            hung.increment();
+            killed = true;
+            hungProcess.destroyForcibly();
+            try
+            {
+                hungChannel.close();
+            }
+            catch (IOException e)
+            {   // already broken
+            }
+        }
+
+        private void send(List<Pending> batch) throws IOException
+        {
+            Map<String, Integer> elections = new LinkedHashMap<String, Integer>();
+            for (Pending pending : batch)
+            {
+                elections.putIfAbsent(pending.electionKey, elections.size());
+            }
+            out.writeInt(elections.size());
+            for (String electionKey : elections.keySet())
+            {
+                out.writeUTF(electionKey);
+            }
+            out.writeInt(batch.size());
+            for (Pending pending : batch)
+            {
+                out.writeInt(elections.get(pending.electionKey));
+                out.writeUTF(pending.ballot);
+            }
+            out.flush();
+
+            for (Pending pending : batch)
+            {
+                if (in.readByte() == DecryptionWorker.OK)
+                {
+                    int version = in.readByte();
+                    byte[] voter = new byte[in.readUnsignedShort()];
+                    in.readFully(voter);
+                    long timestamp = in.readLong();
+                    byte[] candidate = new byte[in.readUnsignedShort()];
+                    in.readFully(candidate);
+                    try
+                    {
+                        pending.result.complete(new BallotServlet.DecryptedBallot(pending.ballot, version, voter,
+                                timestamp, candidate));
+                    }
+                    catch (RuntimeException e)
+                    {
+                        pending.result.completeExceptionally(new IllegalArgumentException(e.getMessage(), e));
+                    }
+                }
+                else
+                {
+                    pending.result.completeExceptionally(new IllegalArgumentException(in.readUTF()));
+                }
+            }
+        }
+
+        private void disconnect()
+        {
+            if (channel == null) return;
+            try
+            {
+                channel.close();
+            }
+            catch (IOException e)
+            {   // already broken
+            }
+            channel = null;
+            connected.decrementAndGet();
+        }
+
+        /**
+         * closes the connection and ends the worker process
+         */
+        private void stop()
+        {
+            disconnect();
+            if (process != null)
+            {
+                process.destroy();
+            }
+            try
+            {
+                Files.deleteIfExists(socket);
+            }
+            catch (IOException e)
+            {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * starts a worker process listening on the socket, it inherits the web app's environment (database settings)
+     */
+    private static Process spawn(Path socket) throws IOException
+    {
+        String java = Paths.get(System.getProperty("java.home"), "bin", "java").toString();
+        ProcessBuilder builder = new ProcessBuilder(java, "-cp", classpath(), "DecryptionWorker", socket.toString());
+        builder.redirectOutput(ProcessBuilder.Redirect.INHERIT);
+        builder.redirectError(ProcessBuilder.Redirect.INHERIT);
+        return builder.start(); // standard input stays a pipe, the worker exits when it closes
+    }
+
+    private static String classpath()
+    {
+        if (System.getenv("decryptClasspath") != null) return System.getenv("decryptClasspath");
+        try
+        {   // WEB-INF/classes and WEB-INF/lib/*
+            File classes = new File(DecryptionWorker.class.getProtectionDomain().getCodeSource().getLocation().toURI());
+            return classes + File.pathSeparator + new File(classes.getParentFile(), "lib") + File.separator + "*";
+        }
+        catch (URISyntaxException e)
+        {
+            throw new IllegalStateException("Could not locate the web app's classes", e);
+        }
+    }
+}
@@ -0,0 +1,120 @@
+import java.security.KeyPair;
+import java.security.PrivateKey;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Fixed, core-sized pool of threads that decrypt and verify ballots.
+ * RSA-4096 decryption is the most expensive step of accepting a ballot; run on the request threads, a surge has
+ * hundreds of them competing for the cores and every request slows down. Request threads instead hand the ballot
+ * to this pool and wait. The queue in front of the pool is bounded, when it is full the ballot is refused at once
+ * (BallotServlet answers 503 with Retry-After) rather than queued behind work that cannot finish in time.
+ *
+ * Configured with the environment variables
+ *   decryptThreads -> number of worker threads (default: the available cores)
+ *   decryptQueue   -> number of ballots that may wait for a worker (default 16 per worker)
+ */
+public class DecryptionPool
+{
+    private static final int threads = Env.intValue("decryptThreads", Runtime.getRuntime().availableProcessors());
+    private static final int capacity = Env.intValue("decryptQueue", 16 * threads);
+
+    private static final BlockingQueue<Runnable> queue = new ArrayBlockingQueue<Runnable>(capacity);
+    private static final ThreadPoolExecutor workers = new ThreadPoolExecutor(threads, threads, 0L,
+            TimeUnit.MILLISECONDS, queue, r -> {
+                Thread t = new Thread(r, "ballot-decrypt");
+                t.setDaemon(true);
+                return t;
+            }, new ThreadPoolExecutor.AbortPolicy());
+
+    private static final LongAdder decrypted = Metrics.counter("decrypt_pool_tasks_total",
+            "Ballots decrypted and verified by the pool");
+    private static final LongAdder rejected = Metrics.counter("decrypt_pool_rejected_total",
+            "Ballots refused because the decryption queue was full");
+    private static final LongAdder waitNanos = Metrics.counter("decrypt_pool_wait_nanos_total",
+            "Time ballots spent queued for a decryption worker (nanoseconds)");
+    private static final LongAdder serviceNanos = Metrics.counter("decrypt_pool_service_nanos_total",
+            "Time spent decrypting and verifying ballots (nanoseconds)");
+
+    static
+    {
+        Metrics.gauge("decrypt_pool_queue_depth", "Ballots waiting for a decryption worker", queue::size);
+        Metrics.gauge("decrypt_pool_queue_capacity", "Ballots that may wait for a decryption worker", () -> capacity);
+        Metrics.gauge("decrypt_pool_active", "Decryption workers busy", workers::getActiveCount);
+    }
+
+    /**
+     * Decrypts and verifies a ballot on the pool, waiting for the result.
+     * @param b64 base64 encoded ballot
+     * @param decryptionKey the election's private key
+     * @param ballotKey the election's ballot key pair (null to derive it from the private key)
+     * @param electionKey the election's public key (names the election in flight recordings)
+     * @return the decrypted, signature-checked ballot
+     * @throws RejectedExecutionException if the queue is full (the client should retry later)
+     * @throws IllegalArgumentException if the ballot is invalid (as thrown by DecryptedBallot)
+     */
+    public static BallotServlet.DecryptedBallot decrypt(String b64, PrivateKey decryptionKey, KeyPair ballotKey,
+                                                        String electionKey)
+            throws RejectedExecutionException, IllegalArgumentException
+    {
+        final long queued = System.nanoTime();
+        Future<BallotServlet.DecryptedBallot> result;
+        try
+        {
+            result = workers.submit(() -> {
+                long start = System.nanoTime();
+                waitNanos.add(start - queued);
+                FlightEvents.working(electionKey);
+                try
+                {
+                    return new BallotServlet.DecryptedBallot(b64, decryptionKey, ballotKey);
+                }
+                finally
+                {
+                    FlightEvents.working(null);
+                    serviceNanos.add(System.nanoTime() - start);
+                    decrypted.increment();
+                }
+            });
+        }
+        catch (RejectedExecutionException e)
+        {
+            rejected.increment();
+            throw e;
+        }
+
+        try
+        {
+            return result.get();
+        }
+        catch (ExecutionException e)
+        {
+            if (e.getCause() instanceof IllegalArgumentException) throw (IllegalArgumentException) e.getCause();
+            throw new IllegalArgumentException("Ballot could not be decrypted!", e.getCause());
+        }
+        catch (InterruptedException e)
+        {
+            result.cancel(true);
+            Thread.currentThread().interrupt();
+            throw new RejectedExecutionException("Interrupted while waiting for decryption", e);
+        }
+    }
+
+    /**
+     * @return a suggested client back-off in seconds: the time the current queue takes to drain, at least 1
+     */
+    public static int retryAfter()
+    {
+        long done = decrypted.sum();
+        long avg = done == 0 ? 50_000_000L : serviceNanos.sum() / done;
+        return (int) Math.max(1, TimeUnit.NANOSECONDS.toSeconds(avg * (queue.size() + threads) / threads) + 1);
+    }
+
+    /**
+     * stops the worker threads
+     */
+    public static void shutdown()
+    {
+        workers.shutdownNow();
+    }
+}
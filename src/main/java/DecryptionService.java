@@ -0,0 +1,62 @@
+import java.util.List;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Decrypts and verifies ballots for the web app, both while they are cast and while a closed election is tallied or
+ * viewed. Two implementations exist:
+ *   LocalDecryption -> decrypts in this JVM with the election keys read from the database
+ *   DecryptionFarm  -> hands batches of ballots over local sockets to worker processes that hold the keys, so
+ *                      decryption capacity grows with the number of workers and the keys stay out of the servlet heap
+ *
+ * Configured with the environment variable
+ *   decryptWorkers -> number of worker processes (default 0: decrypt in this JVM)
+ */
+public interface DecryptionService
+{
+    /**
+     * Decrypts and verifies a single ballot as it is cast, waiting for the result.
+     * @param electionKey the election's public key
+     * @param ballot base64 encoded ballot
+     * @return the decrypted, signature-checked ballot
+     * @throws RejectedExecutionException if the service is saturated (the client should retry later)
+     * @throws IllegalArgumentException if the ballot is invalid (as thrown by DecryptedBallot)
+     */
+    BallotServlet.DecryptedBallot decrypt(String electionKey, String ballot)
+            throws RejectedExecutionException, IllegalArgumentException;
+
+    /**
+     * Decrypts and verifies a batch of ballots of one election, waiting for all of them.
+     * @param electionKey the election's public key
+     * @param ballots base64 encoded ballots
+     * @param errors filled with the reason each invalid ballot was refused (null for valid ballots)
+     * @return the decrypted, signature-checked ballots, null where a ballot is invalid
+     * @throws IllegalStateException if the ballots could not be decrypted at all
+     */
+    BallotServlet.DecryptedBallot[] decrypt(String electionKey, List<String> ballots, String[] errors);
+
+    /**
+     * @return a suggested client back-off in seconds after a RejectedExecutionException, at least 1
+     */
+    int retryAfter();
+
+    /**
+     * stops the service's threads (and processes)
+     */
+    default void shutdown()
+    {
+    }
+
+    /**
+     * @return the configured service (created on first use)
+     */
+    static DecryptionService instance()
+    {
+        return Configured.SERVICE;
+    }
+
+    class Configured
+    {
+        private static final DecryptionService SERVICE = DecryptionFarm.WORKERS > 0
+                ? new DecryptionFarm(DecryptionFarm.WORKERS) : new LocalDecryption();
+    }
+}
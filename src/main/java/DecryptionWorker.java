@@ -0,0 +1,150 @@
+import java.io.*;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+
+/**
+ * A worker process of the DecryptionFarm. Reads the election keys from the database (same dbURI, dbUser and
+ * dbPassword environment as the web app) and decrypts batches of ballots sent over a Unix domain socket that only
+ * its owner may connect to. Exits when the web app that started it goes away (its standard input closes).
+ *
+ * usage: java -cp "WEB-INF/classes:WEB-INF/lib/*" DecryptionWorker {socket path}
+ *
+ * Request, repeated:  int elections, UTF election key x elections,
+ *                     int ballots, (int election index, UTF ballot) x ballots
+ * Response per ballot: byte OK, byte version, short length + voter key, long timestamp, short length + candidate
+ *                      byte INVALID, UTF reason
+ */
+public class DecryptionWorker
+{
+    static final byte OK = 0, INVALID = 1;
+
+    public static void main(String[] args) throws IOException
+    {
+        if (args.length != 1)
+        {
+            System.err.println("usage: java DecryptionWorker <socket path>");
+            System.exit(2);
+        }
+        Path path = Paths.get(args[0]);
+        Files.deleteIfExists(path);
+        ServerSocketChannel server = ServerSocketChannel.open(StandardProtocolFamily.UNIX);
+        server.bind(UnixDomainSocketAddress.of(path));
+        Files.setPosixFilePermissions(path, PosixFilePermissions.fromString("rw-------"));
+
+        Thread parent = new Thread(() -> {
+            try
+            {
+                while (System.in.read() >= 0);
+            }
+            catch (IOException e)
+            {   // treated as closed
+            }
+            System.exit(0);
+        }, "decrypt-worker-parent");
+        parent.setDaemon(true);
+        parent.start();
+
+        LocalDecryption local = new LocalDecryption();
+        while (true)
+        {
+            SocketChannel channel = server.accept();
+            Thread t = new Thread(() -> serve(channel, local), "decrypt-worker");
+            t.setDaemon(true);
+            t.start();
+        }
+    }
+
+    /**
+     * answers the requests of one connection until it is closed
+     */
+    private static void serve(SocketChannel channel, LocalDecryption local)
+    {
+        try (SocketChannel c = channel)
+        {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(c)));
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(c)));
+            while (true)
+            {
+                String[] keys = new String[in.readInt()];
+                for (int e = 0; e < keys.length; e++)
+                {
+                    keys[e] = in.readUTF();
+                }
+                int n = in.readInt();
+                int[] election = new int[n];
+                String[] ballots = new String[n];
+                for (int i = 0; i < n; i++)
+                {
+                    election[i] = in.readInt();
+                    ballots[i] = in.readUTF();
+                }
+
+                BallotServlet.DecryptedBallot[] results = new BallotServlet.DecryptedBallot[n];
+                String[] errors = new String[n];
+                for (int e = 0; e < keys.length; e++)
+                {   // decrypt each election's ballots together
+                    List<Integer> indices = new ArrayList<Integer>();
+                    List<String> batch = new ArrayList<String>();
+                    for (int i = 0; i < n; i++)
+                    {
+                        if (election[i] == e)
+                        {
+                            indices.add(i);
+                            batch.add(ballots[i]);
+                        }
+                    }
+                    String[] batchErrors = new String[batch.size()];
+                    BallotServlet.DecryptedBallot[] decrypted = local.decrypt(keys[e], batch, batchErrors);
+                    for (int j = 0; j < decrypted.length; j++)
+                    {
+                        results[indices.get(j)] = decrypted[j];
+                        errors[indices.get(j)] = batchErrors[j];
+                    }
+                }
+
+                for (int i = 0; i < n; i++)
+                {
+                    write(out, results[i], errors[i]);
+                }
+                out.flush();
+            }
+        }
+        catch (EOFException e)
+        {   // the farm closed the connection
+        }
+        catch (IOException e)
+        {
+            e.printStackTrace();
+        }
+    }
+
+    private static void write(DataOutputStream out, BallotServlet.DecryptedBallot ballot, String error)
+            throws IOException
+    {
+        if (ballot == null)
+        {
+            out.writeByte(INVALID);
+            out.writeUTF(error != null ? error : "Ballot could not be decrypted!");
+            return;
+        }
+        byte[] voter = Base64.getDecoder().decode(ballot.modulus);
+        byte[] candidate = ballot.candidateBytes();
+        out.writeByte(OK);
+        out.writeByte(ballot.version);
+        out.writeShort(voter.length);
+        out.write(voter);
+        out.writeLong(ballot.timestamp);
+        out.writeShort(candidate == null ? 0 : candidate.length);
+        if (candidate != null) out.write(candidate);
+    }
+}
@@ -0,0 +1,553 @@
+import org.bouncycastle.jce.ECNamedCurveTable;
+import org.bouncycastle.jce.interfaces.ECPrivateKey;
+import org.bouncycastle.jce.interfaces.ECPublicKey;
+import org.bouncycastle.jce.spec.ECNamedCurveParameterSpec;
+import org.bouncycastle.math.ec.ECAlgorithms;
+import org.bouncycastle.math.ec.ECPoint;
+
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.KeyPair;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.PublicKey;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Homomorphic tally mode (ballot format 3): exponential ElGamal over P-256.
+ * A ballot holds one ciphertext per candidate, (rG, rH + mG) with m = 1 for the chosen candidate and 0 for all
+ * others, where H is the election's tally key (CryptoUtils.ballotKeyPair). Every ciphertext carries a proof that it
+ * encrypts 0 or 1 and the ballot a proof that its ciphertexts add up to exactly one vote, so ballots are checked
+ * without being decrypted. Closing the election adds up the ciphertexts of each voter's latest ballot (point
+ * additions, spread over all cores) and decrypts only the sums, one per candidate. The terminus block records the
+ * counts with a proof of correct decryption for each, so anyone can check the result against the chain without the
+ * election's private key.
+ *
+ * Ballot:   0x03 || voter P-256 point (65) || timestamp (8, little endian) || number of candidates (1)
+ *           || per candidate: ciphertext a, b (2 x 33) || proof c0, c1, s0, s1 (4 x 32)
+ *           || sum proof c, s (2 x 32) || ECDSA signature (64, as in v2) over everything before it
+ * Terminus: 0x03 || tally key H (33) || number of candidates (1)
+ *           || per candidate: votes (8, big endian) || xa (33) || proof c, s (2 x 32)
+ * Points are compressed (33 bytes, all zero for the point at infinity), scalars are 32 bytes big endian. The proofs
+ * are Chaum-Pedersen proofs made non-interactive with SHA-256 over a label, H and the points involved.
+ */
+public class ElGamalTally
+{
+    static final byte V3 = 0x03;
+    static final int POINT = 33, SCALAR = 32, VOTER = 65, SIGNATURE = 64;
+    static final int HEADER = 1 + VOTER + 8 + 1;
+    static final int PER_CANDIDATE = 2 * POINT + 4 * SCALAR;
+    static final int PER_RESULT = 8 + POINT + 2 * SCALAR;
+    static final int MAX_CANDIDATES = 12;   // a ballot must fit in a block (4096 base64 characters)
+
+    private static final String BIT_PROOF = "vote-elgamal-bit", SUM_PROOF = "vote-elgamal-sum",
+                                DECRYPTION_PROOF = "vote-elgamal-dec";
+    private static final int BATCH = 1024;  // ballots parsed together (in parallel) while adding up
+
+    private static final ECNamedCurveParameterSpec P256 = ECNamedCurveTable.getParameterSpec("secp256r1");
+    private static final ECPoint G = P256.getG();
+    private static final ECPoint INFINITY = P256.getCurve().getInfinity();
+    private static final BigInteger N = P256.getN();
+    private static final SecureRandom random = new SecureRandom();
+
+    /**
+     * an exponential ElGamal ciphertext (a, b) = (rG, rH + mG)
+     */
+    public static class Ciphertext
+    {
+        final ECPoint a, b;
+
+        Ciphertext(ECPoint a, ECPoint b)
+        {
+            this.a = a;
+            this.b = b;
+        }
+
+        Ciphertext add(Ciphertext other)
+        {
+            return new Ciphertext(a.add(other.a), b.add(other.b));
+        }
+    }
+
+    /**
+     * a parsed format 3 ballot (proofs and signature are checked separately, see verify)
+     */
+    public static class Ballot
+    {
+        public final byte[] voter;       // voter's P-256 point, uncompressed
+        public final long timestamp;     // unix epoch time (seconds)
+        public final Ciphertext[] votes; // one ciphertext per candidate
+        private final byte[] bytes;      // the whole ballot
+
+        private Ballot(byte[] bytes, byte[] voter, long timestamp, Ciphertext[] votes)
+        {
+            this.bytes = bytes;
+            this.voter = voter;
+            this.timestamp = timestamp;
+            this.votes = votes;
+        }
+
+        private int proofs(int candidate)
+        {
+            return HEADER + candidate * PER_CANDIDATE + 2 * POINT;
+        }
+
+        private int signed()
+        {
+            return bytes.length - SIGNATURE;
+        }
+    }
+
+    /**
+     * the ciphertexts of every counted ballot added up per candidate
+     */
+    public static class Totals
+    {
+        final Ciphertext[] sums;
+        long ballots = 0;    // ballots counted (one per voter)
+
+        Totals(int candidates)
+        {
+            sums = new Ciphertext[candidates];
+            Arrays.fill(sums, new Ciphertext(INFINITY, INFINITY));
+        }
+
+        void add(Ciphertext[] votes)
+        {
+            for (int i = 0; i < sums.length; i++)
+            {
+                sums[i] = sums[i].add(votes[i]);
+            }
+        }
+    }
+
+    /**
+     * @param ballotKey the election's ballot key pair (see CryptoUtils.ballotKeyPair)
+     * @return the tally key H
+     */
+    public static ECPoint tallyKey(KeyPair ballotKey)
+    {
+        return ((ECPublicKey) ballotKey.getPublic()).getQ();
+    }
+
+    /**
+     * Splits a format 3 ballot into its parts.
+     * @param bytes the decoded ballot
+     * @throws IllegalArgumentException if the ballot is malformed
+     */
+    public static Ballot parse(byte[] bytes) throws IllegalArgumentException
+    {
+        int candidates = bytes.length < HEADER ? 0 : bytes[HEADER - 1] & 0xff;
+        if (bytes.length < HEADER || bytes[0] != V3 || candidates < 1 || candidates > MAX_CANDIDATES
+                || bytes.length != HEADER + candidates * PER_CANDIDATE + 2 * SCALAR + SIGNATURE)
+        {
+            throw new IllegalArgumentException("Ballot is not correct length!");
+        }
+        long timestamp = 0;
+        for (int i = 7; i >= 0; i--)
+        {
+            timestamp = (timestamp * 256) + (bytes[1 + VOTER + i] & 0xff);
+        }
+        Ciphertext[] votes = new Ciphertext[candidates];
+        for (int i = 0; i < candidates; i++)
+        {
+            int at = HEADER + i * PER_CANDIDATE;
+            votes[i] = new Ciphertext(point(bytes, at), point(bytes, at + POINT));
+        }
+        return new Ballot(bytes, Arrays.copyOfRange(bytes, 1, 1 + VOTER), timestamp, votes);
+    }
+
+    /**
+     * Checks a ballot's signature and that it holds exactly one vote, without decrypting it.
+     * @param h the election's tally key
+     * @return the voter's key if the ballot is valid
+     * @throws IllegalArgumentException if a check fails
+     */
+    public static PublicKey verify(Ballot ballot, ECPoint h) throws IllegalArgumentException
+    {
+        PublicKey voter = CryptoUtils.createEcPublicKey(ballot.voter);
+        if (voter == null || !CryptoUtils.verifyEcSignature(Arrays.copyOf(ballot.bytes, ballot.signed()),
+                Arrays.copyOfRange(ballot.bytes, ballot.signed(), ballot.bytes.length), voter))
+        {
+            throw new IllegalArgumentException("Ballot has an invalid signature!");
+        }
+
+        // every ciphertext encrypts 0 or 1
+        byte[] hb = encode(h);
+        ECPoint sumA = INFINITY, sumB = INFINITY;
+        for (int i = 0; i < ballot.votes.length; i++)
+        {
+            Ciphertext v = ballot.votes[i];
+            int at = ballot.proofs(i);
+            BigInteger c0 = scalar(ballot.bytes, at), c1 = scalar(ballot.bytes, at + SCALAR);
+            BigInteger s0 = scalar(ballot.bytes, at + 2 * SCALAR), s1 = scalar(ballot.bytes, at + 3 * SCALAR);
+            ECPoint a0 = combine(G, s0, v.a, c0), b0 = combine(h, s0, v.b, c0);
+            ECPoint a1 = combine(G, s1, v.a, c1), b1 = combine(h, s1, v.b.subtract(G), c1);
+            BigInteger c = challenge(BIT_PROOF, hb, ballot.voter, encode(v.a), encode(v.b),
+                    encode(a0), encode(b0), encode(a1), encode(b1));
+            if (!c0.add(c1).mod(N).equals(c))
+            {
+                throw new IllegalArgumentException("Ballot holds an invalid vote!");
+            }
+            sumA = sumA.add(v.a);
+            sumB = sumB.add(v.b);
+        }
+
+        // and together they encrypt exactly 1
+        int at = HEADER + ballot.votes.length * PER_CANDIDATE;
+        BigInteger c = scalar(ballot.bytes, at), s = scalar(ballot.bytes, at + SCALAR);
+        ECPoint a = combine(G, s, sumA, c), b = combine(h, s, sumB.subtract(G), c);
+        if (!c.equals(challenge(SUM_PROOF, hb, ballot.voter, encode(sumA), encode(sumB), encode(a), encode(b))))
+        {
+            throw new IllegalArgumentException("Ballot does not hold exactly one vote!");
+        }
+        return voter;
+    }
+
+    /**
+     * Creates the signed part of a format 3 ballot (as _scriptBallot.jsp does), used for warm-up and benchmarks.
+     * @param choice index of the chosen candidate
+     * @param candidates number of candidates
+     * @param voter the voter's P-256 point, uncompressed
+     * @param timestamp unix epoch time (seconds)
+     * @param h the election's tally key
+     * @return the ballot up to its signature
+     */
+    public static byte[] encrypt(int choice, int candidates, byte[] voter, long timestamp, ECPoint h)
+    {
+        ByteBuffer out = ByteBuffer.allocate(HEADER + candidates * PER_CANDIDATE + 2 * SCALAR);
+        out.put(V3).put(voter);
+        for (int i = 0; i < 8; i++)
+        {
+            out.put((byte) (timestamp >>> (8 * i)));
+        }
+        out.put((byte) candidates);
+
+        byte[] hb = encode(h);
+        BigInteger sumR = BigInteger.ZERO;
+        ECPoint sumA = INFINITY, sumB = INFINITY;
+        for (int i = 0; i < candidates; i++)
+        {
+            int m = i == choice ? 1 : 0;
+            BigInteger r = randomScalar();
+            ECPoint a = G.multiply(r), b = h.multiply(r).add(m == 1 ? G : INFINITY);
+
+            // prove the real branch (m), simulate the other
+            BigInteger w = randomScalar();
+            BigInteger[] c = new BigInteger[2], s = new BigInteger[2];
+            ECPoint[] ca = new ECPoint[2], cb = new ECPoint[2];
+            int k = 1 - m;
+            c[k] = randomScalar();
+            s[k] = randomScalar();
+            ca[k] = combine(G, s[k], a, c[k]);
+            cb[k] = combine(h, s[k], k == 1 ? b.subtract(G) : b, c[k]);
+            ca[m] = G.multiply(w);
+            cb[m] = h.multiply(w);
+            BigInteger e = challenge(BIT_PROOF, hb, voter, encode(a), encode(b),
+                    encode(ca[0]), encode(cb[0]), encode(ca[1]), encode(cb[1]));
+            c[m] = e.subtract(c[k]).mod(N);
+            s[m] = w.add(c[m].multiply(r)).mod(N);
+
+            out.put(encode(a)).put(encode(b));
+            out.put(bytes(c[0])).put(bytes(c[1])).put(bytes(s[0])).put(bytes(s[1]));
+            sumR = sumR.add(r);
+            sumA = sumA.add(a);
+            sumB = sumB.add(b);
+        }
+
+        BigInteger w = randomScalar();
+        ECPoint a = G.multiply(w), b = h.multiply(w);
+        BigInteger c = challenge(SUM_PROOF, hb, voter, encode(sumA), encode(sumB), encode(a), encode(b));
+        out.put(bytes(c)).put(bytes(w.add(c.multiply(sumR)).mod(N)));
+        return out.array();
+    }
+
+    /**
+     * Adds up the ballots of an election. Only the first ballot seen for each voter is counted, so the ballots must
+     * be ordered newest first for a re-vote to replace an older one. Ballots are parsed in parallel batches and the
+     * counted ones added up in parallel.
+     * @param ballots base64 encoded ballots, newest first
+     * @param candidates the election's number of candidates
+     * @param voters the election's registered voters
+     * @param h the election's tally key
+     * @param verify check every ballot's signature and proofs (ballots in a chain were checked when they were cast)
+     * @return the totals of the counted ballots
+     */
+    public static Totals aggregate(Iterable<String> ballots, int candidates, VoterRegistry voters, ECPoint h,
+                                   boolean verify)
+    {
+        Totals totals = new Totals(candidates);
+        VoterBitmap voted = new VoterBitmap(voters.size());
+
+        List<String> batch = new ArrayList<String>(BATCH);
+        for (String block : ballots)
+        {
+            batch.add(block);
+            if (batch.size() == BATCH)
+            {
+                aggregateBatch(batch, candidates, voters, h, verify, voted, totals);
+                batch.clear();
+            }
+        }
+        aggregateBatch(batch, candidates, voters, h, verify, voted, totals);
+        return totals;
+    }
+
+    private static void aggregateBatch(List<String> batch, int candidates, VoterRegistry voters, ECPoint h,
+                                       boolean verify, VoterBitmap voted, Totals totals)
+    {
+        if (batch.isEmpty()) return;
+
+        // decompressing the points (and checking the proofs) is nearly all of the work, spread it over all cores
+        Ballot[] parsed = batch.parallelStream()
+                .map(block -> {
+                    try
+                    {
+                        Ballot ballot = parse(Base64.getDecoder().decode(block));
+                        if (ballot.votes.length != candidates)
+                            throw new IllegalArgumentException("Ballot does not match the election's candidates!");
+                        if (verify) verify(ballot, h);
+                        return ballot;
+                    }
+                    catch (IllegalArgumentException e)
+                    {
+                        System.err.println("Ignoring ballot: " + e.getMessage());
+                        return null;
+                    }
+                })
+                .toArray(Ballot[]::new);
+
+        String[] keys = new String[parsed.length];
+        for (int i = 0; i < parsed.length; i++)
+        {
+            keys[i] = parsed[i] == null ? null : Base64.getEncoder().encodeToString(parsed[i].voter);
+        }
+        int[] indices = new int[parsed.length];
+        voters.indexOf(keys, indices);
+
+        // the voter's latest ballot counts, older ones are replaced
+        List<Ciphertext[]> counted = new ArrayList<Ciphertext[]>();
+        for (int i = 0; i < parsed.length; i++)
+        {
+            if (parsed[i] == null) continue;
+            if (indices[i] < 0)
+            {
+                System.err.println("Ignoring ballot from an unregistered voter: " + keys[i]);
+                continue;
+            }
+            if (voted.testAndSet(indices[i])) counted.add(parsed[i].votes);
+        }
+
+        Totals sum = counted.parallelStream().collect(() -> new Totals(candidates), Totals::add,
+                (x, y) -> x.add(y.sums));
+        totals.add(sum.sums);
+        totals.ballots += counted.size();
+    }
+
+    /**
+     * Decrypts the totals of a closed election, one decryption per candidate, with a proof for each.
+     * @param ballotKey the election's ballot key pair (see CryptoUtils.ballotKeyPair)
+     * @return the terminus record
+     */
+    public static byte[] decrypt(Totals totals, KeyPair ballotKey)
+    {
+        BigInteger x = ((ECPrivateKey) ballotKey.getPrivate()).getD();
+        ECPoint h = tallyKey(ballotKey);
+        byte[] hb = encode(h);
+        DiscreteLog log = new DiscreteLog(totals.ballots);
+
+        ByteBuffer out = ByteBuffer.allocate(1 + POINT + 1 + totals.sums.length * PER_RESULT);
+        out.put(V3).put(hb).put((byte) totals.sums.length);
+        for (Ciphertext sum : totals.sums)
+        {
+            ECPoint d = sum.a.multiply(x);
+            long votes = log.find(sum.b.subtract(d));
+            if (votes < 0) throw new IllegalStateException("Tally does not decrypt to a vote count!");
+
+            BigInteger w = randomScalar();
+            ECPoint a = G.multiply(w), b = sum.a.multiply(w);
+            BigInteger c = challenge(DECRYPTION_PROOF, hb, encode(sum.a), encode(d), encode(a), encode(b));
+            out.putLong(votes).put(encode(d)).put(bytes(c)).put(bytes(w.add(c.multiply(x)).mod(N)));
+        }
+        return out.array();
+    }
+
+    /**
+     * Checks a terminus record against the totals recomputed from the chain.
+     * @param record the terminus record (see decrypt)
+     * @param totals the chain's totals, aggregated with the record's tally key
+     * @return the vote count of each candidate, or null if the record does not match the totals
+     */
+    public static long[] verify(byte[] record, Totals totals)
+    {
+        int candidates = totals.sums.length;
+        if (record.length != 1 + POINT + 1 + candidates * PER_RESULT || record[0] != V3
+                || (record[1 + POINT] & 0xff) != candidates)
+        {
+            return null;
+        }
+        try
+        {
+            ECPoint h = point(record, 1);
+            byte[] hb = encode(h);
+            long[] votes = new long[candidates];
+            ByteBuffer in = ByteBuffer.wrap(record, 2 + POINT, candidates * PER_RESULT);
+            for (int i = 0; i < candidates; i++)
+            {
+                Ciphertext sum = totals.sums[i];
+                int at = in.position();
+                votes[i] = in.getLong();
+                ECPoint d = point(record, at + 8);
+                BigInteger c = scalar(record, at + 8 + POINT), s = scalar(record, at + 8 + POINT + SCALAR);
+                in.position(at + PER_RESULT);
+
+                // d = x * a for the x behind h, and the rest of b is the claimed count
+                ECPoint a = combine(G, s, h, c), b = combine(sum.a, s, d, c);
+                if (votes[i] < 0 || !c.equals(challenge(DECRYPTION_PROOF, hb, encode(sum.a), encode(d),
+                                                        encode(a), encode(b)))
+                        || !G.multiply(BigInteger.valueOf(votes[i])).equals(sum.b.subtract(d)))
+                {
+                    return null;
+                }
+            }
+            return votes;
+        }
+        catch (IllegalArgumentException e)
+        {
+            return null;
+        }
+    }
+
+    /**
+     * @param record a terminus record
+     * @return the tally key the record was made with
+     * @throws IllegalArgumentException if the record is malformed
+     */
+    public static ECPoint tallyKey(byte[] record) throws IllegalArgumentException
+    {
+        if (record.length < 1 + POINT || record[0] != V3)
+            throw new IllegalArgumentException("Terminus does not hold a tally!");
+        return point(record, 1);
+    }
+
+    /**
+     * @param record a terminus record
+     * @return the vote counts it records, in candidate id order (not checked, see verify)
+     */
+    public static long[] votes(byte[] record)
+    {
+        int candidates = record[1 + POINT] & 0xff;
+        long[] votes = new long[candidates];
+        ByteBuffer in = ByteBuffer.wrap(record);
+        for (int i = 0; i < candidates; i++)
+        {
+            votes[i] = in.getLong(2 + POINT + i * PER_RESULT);
+        }
+        return votes;
+    }
+
+    /**
+     * baby-step giant-step search for small discrete logarithms (vote counts up to the number of ballots)
+     */
+    private static class DiscreteLog
+    {
+        private final Map<ByteBuffer, Integer> baby = new HashMap<ByteBuffer, Integer>();
+        private final int m;
+        private final ECPoint giant;
+
+        DiscreteLog(long max)
+        {
+            m = (int) Math.ceil(Math.sqrt(max + 1));
+            ECPoint p = INFINITY;
+            for (int j = 0; j < m; j++)
+            {
+                baby.put(ByteBuffer.wrap(encode(p)), j);
+                p = p.add(G);
+            }
+            giant = p.negate(); // -mG
+        }
+
+        /**
+         * @return t with tG = p, or -1 if t is out of range
+         */
+        long find(ECPoint p)
+        {
+            for (long i = 0; i <= m; i++)
+            {
+                Integer j = baby.get(ByteBuffer.wrap(encode(p)));
+                if (j != null) return i * m + j;
+                p = p.add(giant);
+            }
+            return -1;
+        }
+    }
+
+    /**
+     * @return sP - cQ
+     */
+    private static ECPoint combine(ECPoint p, BigInteger s, ECPoint q, BigInteger c)
+    {
+        if (q.isInfinity()) return p.multiply(s);
+        return ECAlgorithms.sumOfTwoMultiplies(p, s, q, N.subtract(c)).normalize();
+    }
+
+    private static BigInteger challenge(String label, byte[]... parts)
+    {
+        try
+        {
+            MessageDigest md = MessageDigest.getInstance("SHA-256");
+            md.update(label.getBytes(StandardCharsets.US_ASCII));
+            for (byte[] part : parts)
+            {
+                md.update(part);
+            }
+            return new BigInteger(1, md.digest()).mod(N);
+        }
+        catch (NoSuchAlgorithmException e)
+        {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static byte[] encode(ECPoint p)
+    {
+        return p.isInfinity() ? new byte[POINT] : p.getEncoded(true);
+    }
+
+    private static ECPoint point(byte[] bytes, int offset) throws IllegalArgumentException
+    {
+        byte[] encoded = Arrays.copyOfRange(bytes, offset, offset + POINT);
+        if (Arrays.equals(encoded, new byte[POINT])) return INFINITY;
+        return P256.getCurve().decodePoint(encoded); // rejects points that are not on the curve
+    }
+
+    private static BigInteger scalar(byte[] bytes, int offset) throws IllegalArgumentException
+    {
+        BigInteger s = new BigInteger(1, Arrays.copyOfRange(bytes, offset, offset + SCALAR));
+        if (s.compareTo(N) >= 0) throw new IllegalArgumentException("Ballot holds an invalid proof!");
+        return s;
+    }
+
+    private static byte[] bytes(BigInteger s)
+    {
+        byte[] b = s.toByteArray();
+        byte[] out = new byte[SCALAR];
+        int len = Math.min(b.length, SCALAR);
+        System.arraycopy(b, b.length - len, out, SCALAR - len, len);
+        return out;
+    }
+
+    private static BigInteger randomScalar()
+    {
+        byte[] b = new byte[48]; // reduced mod n with negligible bias
+        random.nextBytes(b);
+        return new BigInteger(1, b).mod(N);
+    }
+}
@@ -0,0 +1,200 @@
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Archival tier for closed elections.
+ * A closed election never changes, so its blockchain table can be compacted into an immutable segment file
+ * (an audit bundle, see AuditBundle) with a block-offset index and the final results, and then dropped from
+ * the database. Archived elections are served from the memory-mapped segment instead.
+ *
+ * Segments are kept in the directory named by the environment variable archiveDir. Every app instance sharing the
+ * database serves archived elections from it, so it must be storage all of them mount (such as an NFS share); without
+ * archiveDir only the in-memory store, which no other instance sees, archives (to election-archive under the Tomcat
+ * base directory).
+ */
+public class ElectionArchive
+{
+    private static final String shared = System.getenv("archiveDir");
+    private static final File directory = new File(shared != null ? shared
+            : System.getProperty("catalina.base", ".") + File.separator + "election-archive");
+
+    private static final int PAGE = 10000; // blocks compared at a time when verifying a new segment
+
+    // segments are immutable, so readers stay open (and mapped) once used
+    private static final Map<String, AuditBundle.Reader> readers = new ConcurrentHashMap<String, AuditBundle.Reader>();
+
+    /**
+     * Moves a closed election out of the database: writes the segment, its index and the results, checks the
+     * segment against the chain in the database, and only then drops the election's blockchain table.
+     * @param electionName the election to archive
+     * @return true if the election is archived
+     */
+    public static synchronized boolean archive(String electionName)
+    {
+        String electionKey = DatabaseUtils.retrievePublicKey(electionName);
+        if (electionKey == null || !"N".equalsIgnoreCase(DatabaseUtils.getElectionStatus(electionName))) return false;
+        if (DatabaseUtils.isArchived(electionKey)) return true;
+        if (shared == null && !(ElectionStore.instance() instanceof MemoryStore))
+        {   // the other instances could no longer read the election once its table is dropped
+            System.err.println("Not archiving " + electionName
+                    + ": archiveDir must name storage shared by every instance");
+            return false;
+        }
+
+        String relName = DatabaseUtils.deriveBlockchainName(electionKey);
+        File segment = file(relName, ".seg"), index = file(relName, ".idx"), results = file(relName, ".results");
+        File tmp = file(relName, ".seg.tmp");
+        try
+        {
+            if (!directory.isDirectory() && !directory.mkdirs()) throw new IOException("Cannot create " + directory);
+
+            // write the segment under a temporary name and make it durable before it becomes visible
+            try (FileOutputStream out = new FileOutputStream(tmp))
+            {
+                if (!AuditBundle.export(electionName, out)) return false;
+                out.getFD().sync();
+            }
+            try (AuditBundle.Reader reader = new AuditBundle.Reader(tmp.toPath()))
+            {
+                if (!matchesChain(electionKey, reader))
+                {
+                    System.err.println("Archived segment of " + electionName + " does not match its blockchain!");
+                    return false;
+                }
+                reader.writeIndex(index.toPath());
+            }
+            Map<String, Long> tally = DatabaseUtils.evaluateBlockchain(electionKey);
+            if (tally == null) throw new IOException("The results of " + electionName + " could not be evaluated");
+            writeResults(results, tally);
+            Files.move(tmp.toPath(), segment.toPath(), StandardCopyOption.ATOMIC_MOVE);
+
+            // from here on the election is served from the segment
+            return DatabaseUtils.archiveBlockchain(electionKey);
+        }
+        catch (IOException e)
+        {
+            e.printStackTrace();
+            return false;
+        }
+        finally
+        {
+            tmp.delete();
+        }
+    }
+
+    /**
+     * compares every block of the segment with the blockchain table it was written from
+     * @return true if both hold exactly the same blocks
+     */
+    static boolean matchesChain(String electionKey, AuditBundle.Reader reader)
+    {
+        int i = 0;
+        long last = -1;
+        while (true)
+        {
+            List<DatabaseUtils.ElectionBlock> blocks = DatabaseUtils.scanBlockchain(electionKey, last, PAGE);
+            if (blocks == null) return false;
+            if (blocks.isEmpty()) return i == reader.blockCount();
+            for (DatabaseUtils.ElectionBlock block : blocks)
+            {
+                if (i >= reader.blockCount()
+                        || reader.blockNo(i) != block.no
+                        || reader.timestamp(i) != block.epoch
+                        || !reader.content(i).equals(block.content)
+                        || !reader.hash(i).equals(block.hash))
+                    return false;
+                last = block.no;
+                i++;
+            }
+        }
+    }
+
+    /**
+     * @return the election's segment file (whether or not it exists)
+     */
+    public static File segment(String electionKey)
+    {
+        return file(DatabaseUtils.deriveBlockchainName(electionKey), ".seg");
+    }
+
+    /**
+     * @return the memory-mapped segment of an archived election
+     */
+    public static AuditBundle.Reader reader(String electionKey) throws IOException
+    {
+        String relName = DatabaseUtils.deriveBlockchainName(electionKey);
+        AuditBundle.Reader reader = readers.get(relName);
+        if (reader == null)
+        {
+            synchronized (readers)
+            {
+                reader = readers.get(relName);
+                if (reader == null)
+                {
+                    reader = new AuditBundle.Reader(file(relName, ".seg").toPath(), file(relName, ".idx").toPath());
+                    readers.put(relName, reader);
+                }
+            }
+        }
+        return reader;
+    }
+
+    /**
+     * the archived counterpart of DatabaseUtils.viewBlockchain
+     * @return List of blocks, ballots decrypted
+     */
+    public static List<DatabaseUtils.ElectionBlock> viewBlockchain(String electionKey) throws IOException
+    {
+        AuditBundle.Reader reader = reader(electionKey);
+        int n = reader.blockCount();
+        List<DatabaseUtils.ElectionBlock> list = new ArrayList<DatabaseUtils.ElectionBlock>(n);
+        for (int i = 0; i < n; i++)
+        {
+            list.add(new DatabaseUtils.ElectionBlock(
+                    reader.blockNo(i), reader.timestamp(i), reader.content(i), reader.hash(i)));
+        }
+        if (n > 2)
+        {   // everything between the genesis and terminus is a ballot
+            DatabaseUtils.decryptBallots(electionKey, list.subList(1, n - 1));
+        }
+        return list;
+    }
+
+    /**
+     * @return the results recorded when the election was archived
+     */
+    public static Map<String, Long> results(String electionKey) throws IOException
+    {
+        Map<String, Long> results = new LinkedHashMap<String, Long>();
+        File file = file(DatabaseUtils.deriveBlockchainName(electionKey), ".results");
+        for (String line : Files.readAllLines(file.toPath(), StandardCharsets.UTF_8))
+        {
+            int tab = line.indexOf('\t');
+            if (tab > 0) results.put(line.substring(tab + 1), Long.parseLong(line.substring(0, tab)));
+        }
+        return results;
+    }
+
+    private static void writeResults(File file, Map<String, Long> results) throws IOException
+    {
+        try (FileOutputStream out = new FileOutputStream(file))
+        {
+            Writer writer = new OutputStreamWriter(out, StandardCharsets.UTF_8);
+            for (Map.Entry<String, Long> result : results.entrySet())
+            {
+                writer.write(result.getValue() + "\t" + result.getKey() + "\n");
+            }
+            writer.flush();
+            out.getFD().sync();
+        }
+    }
+
+    private static File file(String relName, String suffix)
+    {
+        return new File(directory, relName + suffix);
+    }
+}
@@ -0,0 +1,258 @@
+import java.security.KeyPair;
+import java.security.PrivateKey;
+import java.util.Base64;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+
+/**
+ * Long lived caches of the election state every ballot and page asks for: an election's public key, its status,
+ * whether it is active or archived, whether a voter is registered and the size of its roll. Entries live for
+ * cacheTtlSeconds, but are dropped as soon as this or any other app instance changes what they hold (ElectionEvents),
+ * so the TTL only bounds how long a missed event can leave an entry stale.
+ *
+ * What is cached and what drops it:
+ *   public keys              -> never change, no event
+ *   parsed private keys      -> lifecycle events, so a key leaves memory once its election is archived
+ *   derived ballot keys      -> lifecycle events, like the private keys they are derived from
+ *   status, active flag      -> lifecycle events (election started, closed or archived)
+ *   archived flag            -> only true is cached, archiving is final
+ *   registered voters        -> only true is cached, a registration cannot be undone
+ *   voter counts             -> registration events of the election
+ * Nothing that is reported as unavailable (null, or false/0 where the store cannot tell an error apart) is cached, and
+ * nothing is loaded from a read replica: an entry read before the replica replayed a change would be kept after the
+ * event dropping it.
+ *
+ * Configured with the environment variables
+ *   cacheTtlSeconds -> lifetime of an entry (default 3600, 0 turns the caches off)
+ *   cacheMaxEntries -> entries per cache before it is emptied (default 100000)
+ */
+public class ElectionCache
+{
+    private static final long ttl = TimeUnit.SECONDS.toNanos(Env.intValue("cacheTtlSeconds", 3600));
+    private static final int maxEntries = Env.intValue("cacheMaxEntries", 100000);
+
+    private static final LongAdder hits = Metrics.counter("election_cache_hits_total",
+            "Election state lookups answered from the cache");
+    private static final LongAdder misses = Metrics.counter("election_cache_misses_total",
+            "Election state lookups that went to the store");
+    private static final LongAdder invalidations = Metrics.counter("election_cache_invalidations_total",
+            "Cache entries dropped because an election changed");
+
+    private static final Table<String> keys = new Table<String>();        // election name -> public key
+    private static final Table<PrivateKey> decryptionKeys = new Table<PrivateKey>(); // public key -> parsed private key
+    private static final Table<KeyPair> ballotKeys = new Table<KeyPair>(); // public key -> derived ballot key pair
+    private static final Table<String> statuses = new Table<String>();    // election name -> 'U', 'Y' or 'N'
+    private static final Table<Boolean> active = new Table<Boolean>();    // public key -> active
+    private static final Table<Boolean> archived = new Table<Boolean>();  // public key -> true
+    private static final Table<Boolean> registered = new Table<Boolean>(); // name \0 voter key digest -> true
+    private static final Table<Long> voterCounts = new Table<Long>();     // election name -> registered voters
+
+    // public key -> election name, so a lifecycle event (which only carries the key) finds the status entry
+    private static final Map<String, String> names = new ConcurrentHashMap<String, String>();
+
+    /**
+     * @return the election's public key (or null)
+     */
+    static String publicKey(String electionName)
+    {
+        if (electionName == null) return null;
+        return keys.get(electionName, name -> {
+            String key = store().retrievePublicKey(name);
+            if (key != null) names.put(key, name);
+            return key;
+        });
+    }
+
+    /**
+     * @return the name of the election with this public key, if this instance looked it up (or null)
+     */
+    static String name(String electionKey)
+    {
+        return names.get(electionKey);
+    }
+
+    /**
+     * @return the election's private key, parsed once rather than for every ballot (or null)
+     */
+    static PrivateKey decryptionKey(String electionKey)
+    {
+        if (electionKey == null) return null;
+        return decryptionKeys.get(electionKey, key -> {
+            String privateKey = store().retrievePrivateKey(key);
+            return privateKey == null ? null : CryptoUtils.importPrivateKey(privateKey);
+        });
+    }
+
+    /**
+     * @return the election's ballot key pair, derived once rather than for every v2 or v3 ballot (or null)
+     */
+    static KeyPair ballotKeyPair(String electionKey)
+    {
+        if (electionKey == null) return null;
+        return ballotKeys.get(electionKey, key -> CryptoUtils.ballotKeyPair(decryptionKey(key)));
+    }
+
+    /**
+     * @return the election's status flag (or null if there is no such election)
+     */
+    static String status(String electionName)
+    {
+        if (electionName == null) return null;
+        publicKey(electionName); // for the lifecycle events of the election
+        return statuses.get(electionName, store()::getElectionStatus);
+    }
+
+    /**
+     * @return true if the election is active, false if not, null if the store is unavailable
+     */
+    static Boolean isActive(String electionKey)
+    {
+        if (electionKey == null) return null;
+        return active.get(electionKey, store()::isActive);
+    }
+
+    /**
+     * @return true if the election's blockchain was moved to the archival tier
+     */
+    static boolean isArchived(String electionKey)
+    {
+        if (electionKey == null) return false;
+        return archived.get(electionKey, key -> store().isArchived(key) ? Boolean.TRUE : null) != null;
+    }
+
+    /**
+     * @return true if the voter key is registered for the election
+     */
+    static boolean isRegistered(String electionName, String voterKey)
+    {
+        if (electionName == null || voterKey == null) return false;
+        String entry;
+        try
+        {
+            entry = electionName + '\0' + Base64.getEncoder().encodeToString(CryptoUtils.keyDigest(voterKey));
+        }
+        catch (IllegalArgumentException e)
+        {   // not a key, the store rejects it too
+            return store().isRegistered(electionName, voterKey);
+        }
+        return registered.get(entry, k -> store().isRegistered(electionName, voterKey) ? Boolean.TRUE : null) != null;
+    }
+
+    /**
+     * @return number of registered voters
+     */
+    static long voterCount(String electionName)
+    {
+        if (electionName == null) return 0;
+        Long count = voterCounts.get(electionName, name -> {
+            long n = store().getVoterCount(name);
+            return n > 0 ? n : null;
+        });
+        return count != null ? count : 0;
+    }
+
+    /**
+     * drops the entries an election's start, close or archival changes
+     * @param electionKey public key of the election
+     */
+    static void lifecycle(String electionKey)
+    {
+        decryptionKeys.invalidate(electionKey);
+        ballotKeys.invalidate(electionKey);
+        active.invalidate(electionKey);
+        archived.invalidate(electionKey);
+        String name = names.get(electionKey);
+        if (name != null) statuses.invalidate(name);
+        else statuses.clear(); // the status was never cached by name here, or the key is unknown
+    }
+
+    /**
+     * drops the entries a voter's registration changes
+     * @param electionName election the voter registered for
+     */
+    static void registered(String electionName)
+    {
+        voterCounts.invalidate(electionName);
+    }
+
+    /**
+     * drops every entry a change event could have dropped (when events may have been missed)
+     */
+    static void clear()
+    {
+        decryptionKeys.clear();
+        ballotKeys.clear();
+        statuses.clear();
+        active.clear();
+        archived.clear();
+        voterCounts.clear();
+    }
+
+    /**
+     * @return the store behind the caches, looked up on use: FlightEvents.label only reads the names, and must not
+     *         open a database in the DecryptionWorker processes
+     */
+    private static ElectionStore store()
+    {
+        return ElectionStore.instance();
+    }
+
+    /**
+     * A cache with a TTL per entry. A lookup that raced with an invalidation of its key does not store what it read,
+     * which may predate the change.
+     */
+    private static class Table<V>
+    {
+        private final Map<String, Entry<V>> entries = new ConcurrentHashMap<String, Entry<V>>();
+        private final AtomicLong generation = new AtomicLong(); // advanced by every invalidation
+
+        V get(String key, Function<String, V> loader)
+        {
+            long now = System.nanoTime();
+            Entry<V> cached = entries.get(key);
+            if (cached != null && cached.expires - now > 0)
+            {
+                hits.increment();
+                return cached.value;
+            }
+            misses.increment();
+            long seen = generation.get();
+            V value = loader.apply(key);
+            if (value == null || ttl <= 0) return value;
+            if (entries.size() >= maxEntries) entries.clear();
+            Entry<V> entry = new Entry<V>(value, now + ttl);
+            entries.put(key, entry);
+            if (generation.get() != seen) entries.remove(key, entry);
+            return value;
+        }
+
+        void invalidate(String key)
+        {
+            generation.incrementAndGet();
+            if (entries.remove(key) != null) invalidations.increment();
+        }
+
+        void clear()
+        {
+            generation.incrementAndGet();
+            invalidations.add(entries.size());
+            entries.clear();
+        }
+    }
+
+    private static class Entry<V>
+    {
+        final V value;
+        final long expires; // System.nanoTime()
+
+        Entry(V value, long expires)
+        {
+            this.value = value;
+            this.expires = expires;
+        }
+    }
+}
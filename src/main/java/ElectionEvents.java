@@ -0,0 +1,245 @@
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.postgresql.PGConnection;
+import org.postgresql.PGNotification;
+
+/**
+ * Tells every app instance sharing the database which elections changed, so each can drop exactly the ElectionCache
+ * entries that changed instead of polling. Lifecycle changes (start, close, archive) and registrations are published
+ * with NOTIFY on the channel election_events of the primary database, and every instance LISTENs on it:
+ *   L {public key}     -> the election was started, closed or archived
+ *   R {election name}  -> a voter registered for the election
+ * The instance making the change drops its own entries right away and queues the notification for a single publisher
+ * thread, so a change never waits for the round trip and the events go out in order. While the listener is
+ * disconnected notifications are lost, so it empties the caches whenever it (re)connects.
+ */
+public class ElectionEvents
+{
+    private static final String CHANNEL = "election_events";
+    private static final int WAIT_MILLIS = 5000;                              // wait for notifications per round
+    private static final long CHECK_INTERVAL = TimeUnit.MINUTES.toNanos(1);   // idle time before checking the link
+    private static final long MAX_BACKOFF = 30000;
+    private static final int QUEUE = 1024;                                   // events waiting to be published
+
+    private static Connection publisher = null;                // used by the publisher thread only
+    private static volatile ThreadPoolExecutor publishing = null;
+    private static Thread listener = null;
+    private static volatile boolean listening = false;
+    private static volatile boolean stopping = false;
+
+    private static final LongAdder published = Metrics.counter("election_events_published_total",
+            "Election change events sent to the other app instances");
+    private static final LongAdder received = Metrics.counter("election_events_received_total",
+            "Election change events received from the app instances");
+    private static final LongAdder failed = Metrics.counter("election_events_failures_total",
+            "Failed attempts to send or listen for election change events");
+
+    static
+    {
+        Metrics.gauge("election_events_listening", "1 while the election change listener is connected",
+                () -> listening ? 1 : 0);
+    }
+
+    /**
+     * starts the listener thread (not for the in-memory store, which no other instance can share)
+     */
+    public static synchronized void start()
+    {
+        if (listener != null || ElectionStore.instance() instanceof MemoryStore) return;
+        if (System.getenv("dbURI") == null) return;
+        stopping = false;
+        publishing = new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<Runnable>(QUEUE),
+                r -> {
+                    Thread t = new Thread(r, "election-events-publisher");
+                    t.setDaemon(true);
+                    return t;
+                }, (task, pool) -> {
+                    if (pool.isShutdown()) return;
+                    failed.increment(); // the other instances keep their entries until the TTL runs out
+                    System.err.println("Election events: too many events queued, dropping a change event");
+                });
+        listener = new Thread(ElectionEvents::listen, "election-events-listener");
+        listener.setDaemon(true);
+        listener.start();
+    }
+
+    /**
+     * stops the listener thread, and the publisher thread once it sent the events already queued
+     */
+    public static synchronized void shutdown()
+    {
+        if (listener == null) return;
+        stopping = true;
+        listener.interrupt();
+        ThreadPoolExecutor pool = publishing;
+        publishing = null;
+        pool.shutdown();
+        try
+        {
+            listener.join(WAIT_MILLIS + 1000);
+            if (pool.awaitTermination(WAIT_MILLIS, TimeUnit.MILLISECONDS)) close(publisher);
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+        listener = null;
+    }
+
+    /**
+     * an election was started, closed or archived
+     * @param electionKey public key of the election
+     */
+    static void lifecycle(String electionKey)
+    {
+        if (electionKey == null) return;
+        ElectionCache.lifecycle(electionKey);
+        publish("L " + electionKey);
+    }
+
+    /**
+     * a voter registered for an election
+     * @param electionName the election
+     */
+    static void registered(String electionName)
+    {
+        if (electionName == null) return;
+        ElectionCache.registered(electionName);
+        publish("R " + electionName);
+    }
+
+    private static void apply(String payload)
+    {
+        if (payload == null || payload.length() < 2) return;
+        received.increment();
+        if (payload.startsWith("L ")) ElectionCache.lifecycle(payload.substring(2));
+        else if (payload.startsWith("R ")) ElectionCache.registered(payload.substring(2));
+    }
+
+    /**
+     * queues the event for the publisher thread
+     */
+    private static void publish(String payload)
+    {
+        ThreadPoolExecutor pool = publishing;
+        if (pool == null) return; // no other instance can be listening for a store only this one sees
+        pool.execute(() -> send(payload));
+    }
+
+    /**
+     * sends the event to every listening instance (including this one), retrying once on a new connection
+     */
+    private static void send(String payload)
+    {
+        for (int attempt = 0; attempt < 2; attempt++)
+        {
+            try
+            {
+                if (publisher == null || publisher.isClosed())
+                {
+                    publisher = QueryMetrics.connect(System.getenv("dbURI"), System.getenv("dbUser"),
+                            System.getenv("dbPassword"), "events");
+                }
+                PreparedStatement pst = publisher.prepareStatement("SELECT pg_notify(?, ?);");
+                pst.setString(1, CHANNEL);
+                pst.setString(2, payload);
+                pst.executeQuery();
+                published.increment();
+                return;
+            }
+            catch (SQLException e)
+            {
+                failed.increment();
+                close(publisher);
+                publisher = null;
+                if (attempt == 1)
+                {   // the other instances keep their entries until the TTL runs out
+                    System.err.println("Election events: could not publish a change event");
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    private static void listen()
+    {
+        Connection connection = null;
+        long backoff = 1000;
+        long lastHeard = System.nanoTime();
+        while (!stopping)
+        {
+            try
+            {
+                if (connection == null)
+                {
+                    connection = QueryMetrics.connect(System.getenv("dbURI"), System.getenv("dbUser"),
+                            System.getenv("dbPassword"), "events-listen");
+                    Statement st = connection.createStatement();
+                    st.execute("LISTEN " + CHANNEL + ";");
+                    st.close();
+                    // anything may have changed while no one was listening
+                    ElectionCache.clear();
+                    listening = true;
+                    backoff = 1000;
+                    lastHeard = System.nanoTime();
+                }
+                PGNotification[] notifications = connection.unwrap(PGConnection.class).getNotifications(WAIT_MILLIS);
+                if (notifications != null && notifications.length > 0)
+                {
+                    for (PGNotification notification : notifications)
+                    {
+                        apply(notification.getParameter());
+                    }
+                    lastHeard = System.nanoTime();
+                }
+                else if (System.nanoTime() - lastHeard > CHECK_INTERVAL)
+                {   // a silently dropped connection would never deliver anything again
+                    if (!connection.isValid(WAIT_MILLIS / 1000)) throw new SQLException("listener connection lost");
+                    lastHeard = System.nanoTime();
+                }
+            }
+            catch (SQLException e)
+            {
+                if (stopping) break;
+                failed.increment();
+                listening = false;
+                System.err.println("Election events: listener disconnected, reconnecting in " + backoff + " ms");
+                e.printStackTrace();
+                close(connection);
+                connection = null;
+                ElectionCache.clear();
+                try
+                {
+                    Thread.sleep(backoff);
+                }
+                catch (InterruptedException ie)
+                {
+                    break;
+                }
+                backoff = Math.min(backoff * 2, MAX_BACKOFF);
+            }
+        }
+        listening = false;
+        close(connection);
+    }
+
+    private static void close(Connection connection)
+    {
+        if (connection == null) return;
+        try
+        {
+            connection.close();
+        }
+        catch (SQLException e)
+        {
+            // already broken
+        }
+    }
+}
@@ -0,0 +1,143 @@
+import java.security.KeyPair;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Pool of pre-generated RSA(4096) election key pairs.
+ * Generating a 4096 bit key pair takes seconds, so rather than doing it on the request thread that creates
+ * an election, low priority background threads keep the pool filled up to a low-water mark and
+ * election creation just takes the next key pair.
+ *
+ * Configured with the environment variables
+ *   keyPoolLowWater -> number of key pairs to keep ready (default 8)
+ *   keyPoolThreads  -> number of generator threads (default half of the available cores)
+ */
+public class ElectionKeyPool
+{
+    private static final int lowWater = Env.intValue("keyPoolLowWater", 8);
+    private static final int threads  = Env.intValue("keyPoolThreads",
+                                               Math.max(1, Runtime.getRuntime().availableProcessors() / 2));
+
+    private static final ConcurrentLinkedQueue<KeyPair> pool = new ConcurrentLinkedQueue<KeyPair>();
+    private static final AtomicInteger depth = new AtomicInteger();     // key pairs in the pool
+    private static final AtomicInteger pending = new AtomicInteger();   // key pairs being generated
+    private static ExecutorService generators = null;
+
+    private static final LongAdder generated = Metrics.counter("election_key_pool_generated_total",
+            "Election key pairs generated in the background");
+    private static final LongAdder generationNanos = Metrics.counter("election_key_pool_generation_nanos_total",
+            "Time spent generating election key pairs in the background (nanoseconds)");
+    private static final LongAdder misses = Metrics.counter("election_key_pool_misses_total",
+            "Elections created while the pool was empty (key pair generated on the request thread)");
+
+    // completion times of the most recent generations, used to report the current generation rate
+    private static final long[] recent = new long[16];
+    private static int recentCount = 0;
+
+    static
+    {
+        Metrics.gauge("election_key_pool_depth", "Election key pairs ready to be used", depth::get);
+        Metrics.gauge("election_key_pool_low_water", "Configured number of key pairs to keep ready", () -> lowWater);
+        Metrics.gauge("election_key_pool_generation_rate", "Key pairs generated per second (recent)",
+                ElectionKeyPool::generationRate);
+    }
+
+    /**
+     * starts the background generator threads and begins filling the pool
+     */
+    public static synchronized void start()
+    {
+        if (generators != null) return;
+        generators = Executors.newFixedThreadPool(threads, r -> {
+            Thread t = new Thread(r, "election-key-generator");
+            t.setDaemon(true);
+            t.setPriority(Thread.MIN_PRIORITY); // only use spare cycles
+            return t;
+        });
+        refill();
+    }
+
+    /**
+     * stops the background generator threads, key pairs already in the pool are kept
+     */
+    public static synchronized void shutdown()
+    {
+        if (generators == null) return;
+        generators.shutdownNow();
+        generators = null;
+        pending.set(0);
+    }
+
+    /**
+     * Takes a key pair out of the pool. If the pool is empty (or not started) a key pair is generated
+     * on the calling thread instead.
+     * @return a fresh, never used RSA(4096) key pair (or null if generation failed)
+     */
+    public static KeyPair take()
+    {
+        KeyPair keys = pool.poll();
+        if (keys != null)
+        {
+            depth.decrementAndGet();
+        }
+        else
+        {
+            misses.increment();
+            keys = CryptoUtils.generateKeys();
+        }
+        refill();
+        return keys;
+    }
+
+    /**
+     * @return number of key pairs ready to be used
+     */
+    public static int depth()
+    {
+        return depth.get();
+    }
+
+    /**
+     * schedules generation tasks until the pool (plus in flight generations) reaches the low-water mark
+     */
+    private static synchronized void refill()
+    {
+        if (generators == null) return;
+        while (depth.get() + pending.get() < lowWater)
+        {
+            pending.incrementAndGet();
+            generators.execute(ElectionKeyPool::generate);
+        }
+    }
+
+    private static void generate()
+    {
+        long start = System.nanoTime();
+        KeyPair keys = CryptoUtils.generateKeys();
+        long end = System.nanoTime();
+        pending.updateAndGet(n -> Math.max(0, n - 1)); // shutdown() already reset the count of in flight generations
+        if (keys == null || Thread.currentThread().isInterrupted()) return;
+
+        pool.add(keys);
+        depth.incrementAndGet();
+        generated.increment();
+        generationNanos.add(end - start);
+        synchronized (recent)
+        {
+            recent[recentCount++ % recent.length] = end;
+        }
+    }
+
+    private static double generationRate()
+    {
+        synchronized (recent)
+        {
+            int n = Math.min(recentCount, recent.length);
+            if (n < 2) return 0;
+            long newest = recent[(recentCount - 1) % recent.length];
+            long oldest = recent[(recentCount - n) % recent.length];
+            return newest == oldest ? 0 : (n - 1) * 1e9 / (newest - oldest);
+        }
+    }
+}
@@ -0,0 +1,69 @@
+import javax.servlet.ServletException;
+import javax.servlet.annotation.WebServlet;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Serves the key voters import for an election.
+ *   /election-key/{fingerprint}    -> the key, cacheable forever: a fingerprint always names the same key
+ *   /election-key?election={name}  -> redirect to the key's fingerprint URL
+ * The dashboards only list fingerprints, so the heavy key material is fetched once per election and then served by
+ * browser and CDN caches.
+ */
+@WebServlet(urlPatterns = { "/election-key", "/election-key/*" })
+public class ElectionKeyServlet extends HttpServlet
+{
+    private static final String IMMUTABLE = "public, max-age=31536000, immutable";
+    private static final String SHORT = "public, max-age=300"; // an election's name may be taken later
+
+    public ElectionKeyServlet()
+    {
+        super();
+    }
+
+    @Override
+    protected void doGet(HttpServletRequest request, HttpServletResponse response)
+            throws ServletException, IOException
+    {
+        String path = request.getPathInfo();
+        if (path == null || path.length() <= 1)
+        {
+            String election = request.getParameter("election");
+            String fingerprint = DatabaseUtils.getKeyFingerprint(election);
+            if (fingerprint == null)
+            {
+                response.sendError(HttpServletResponse.SC_NOT_FOUND, "There is no election named " + election + "!");
+                return;
+            }
+            response.setHeader("Cache-Control", SHORT);
+            response.sendRedirect(request.getContextPath() + "/election-key/"
+                    + URLEncoder.encode(fingerprint, "UTF-8"));
+            return;
+        }
+
+        String fingerprint = path.substring(1);
+        String key = DatabaseUtils.getElectionKey(fingerprint);
+        if (key == null)
+        {
+            response.sendError(HttpServletResponse.SC_NOT_FOUND, "There is no election key " + fingerprint + "!");
+            return;
+        }
+
+        String etag = "\"" + fingerprint + "\"";
+        response.setHeader("Cache-Control", IMMUTABLE);
+        response.setHeader("ETag", etag);
+        if (etag.equals(request.getHeader("If-None-Match")))
+        {
+            response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+            return;
+        }
+        byte[] body = key.getBytes(StandardCharsets.US_ASCII);
+        response.setContentType("text/plain;charset=US-ASCII");
+        response.setContentLength(body.length);
+        response.getOutputStream().write(body);
+    }
+}
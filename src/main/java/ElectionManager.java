@@ -6,9 +6,12 @@ import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import java.io.IOException;
 import java.util.List;
+import java.util.Objects;
 
 @WebServlet(urlPatterns={"/electionmanager"})
 public class ElectionManager extends HttpServlet {
+
+	private static final int ROSTER_PAGE = 50; // voters listed per roster page
 	
 	public ElectionManager()
 	{
@@ -22,20 +25,14 @@ public class ElectionManager extends HttpServlet {
 		req.setAttribute("electionManagerActive", "true");
 
 		// list of upcoming elections
-		List<String> upcomingElections = DatabaseUtils.getUpcomingElections();
-		List<String> upcomingNames = DatabaseUtils.getUpcomingNames();
+		List<DatabaseUtils.ElectionSummary> upcomingElections = DatabaseUtils.getElectionSummaries('U');
 		req.setAttribute("upcomingElections", upcomingElections);
-		req.setAttribute("upcomingNames", upcomingNames);
 		// list of active elections
-		List<String> activeElections = DatabaseUtils.getElections();
-		List<String> activeNames = DatabaseUtils.getActiveNames();
+		List<DatabaseUtils.ElectionSummary> activeElections = DatabaseUtils.getElectionSummaries('Y');
 		req.setAttribute("activeElections", activeElections);
-		req.setAttribute("activeNames", activeNames);
 		// list of closed elections
-		List<String> closedElections = DatabaseUtils.getClosedElections();
-		List<String> closedNames = DatabaseUtils.getClosedNames();
+		List<DatabaseUtils.ElectionSummary> closedElections = DatabaseUtils.getElectionSummaries('N');
 		req.setAttribute("closedElections", closedElections);
-		req.setAttribute("closedNames", closedNames);
 		
 		// management utilities: view blockchain, close election
 		
@@ -51,7 +48,16 @@ public class ElectionManager extends HttpServlet {
         List<String> activeElections = DatabaseUtils.getActiveNames();
 
         String button = request.getParameter("buttonPressed");
-        if(button.charAt(0) == 'A') {
+        if(button.startsWith("Archive ")) {
+            // move a closed election's blockchain out of the database into an archive segment
+            String election = button.substring(8);
+            if (ElectionArchive.archive(election)) {
+                System.out.println("Election Archived");
+            } else {
+                System.out.println("Election could not be archived");
+            }
+        }
+        else if(button.charAt(0) == 'A') {
             String election = button.substring(9);
             String publicKey = DatabaseUtils.retrievePublicKey(election);
             if (upcomingElections.contains(election)) {
@@ -66,7 +72,8 @@ public class ElectionManager extends HttpServlet {
         else if(button.charAt(0) == 'T') {
             String election = button.substring(10);
             String publicKey = DatabaseUtils.retrievePublicKey(election);
-            if (activeElections.contains(election)) {
+            // ballots journaled by any instance have been acknowledged, they must be in the chain before it is terminated
+            if (activeElections.contains(election) && BallotJournal.awaitDrained(publicKey, 30000)) {
                 Boolean closeElection = DatabaseUtils.terminateElectionBlockchain(publicKey);
                 if (closeElection) {
                     System.out.println("Election Closed");
@@ -77,12 +84,42 @@ public class ElectionManager extends HttpServlet {
         }
         else if(button.charAt(0) == 'V') {
             String election = button.substring(12);
-            System.out.println(election);
-            List<String> voters = DatabaseUtils.getVoters(election);
-            request.setAttribute("voters", voters);
+            showRoster(request, election, null, null, null);
+        }
+        else if(button.equals("Search Voters") || button.equals("Next Page")) {
+            // search and paging within the roster of the selected election
+            String lastPrefix = request.getParameter("lastPrefix");
+            String firstPrefix = request.getParameter("firstPrefix");
+            // the cursor only continues the search it came from: edited prefixes start again at the first page
+            boolean sameSearch = Objects.equals(Objects.toString(lastPrefix, ""), request.getParameter("afterLastPrefix"))
+                    && Objects.equals(Objects.toString(firstPrefix, ""), request.getParameter("afterFirstPrefix"));
+            String after = button.equals("Next Page") && sameSearch ? request.getParameter("after") : null;
+            showRoster(request, request.getParameter("rosterElection"), lastPrefix, firstPrefix, after);
         }
 
         /* refresh the page */
 		doGet(request, response);
 	}
+
+	/**
+	 * sets the request attributes for one page of an election's voter roster
+	 * @param after cursor of the last voter on the previous page (null for the first page)
+	 */
+	private void showRoster(HttpServletRequest request, String election, String lastPrefix, String firstPrefix,
+							String after)
+	{
+		// fetch one extra voter to learn whether there is a next page
+		List<DatabaseUtils.RosterEntry> voters =
+				DatabaseUtils.getVoterPage(election, lastPrefix, firstPrefix, after, ROSTER_PAGE + 1);
+		if (voters.size() > ROSTER_PAGE)
+		{
+			voters = voters.subList(0, ROSTER_PAGE);
+			request.setAttribute("nextCursor", voters.get(ROSTER_PAGE - 1).getCursor());
+		}
+		request.setAttribute("voters", voters);
+		request.setAttribute("rosterElection", election);
+		request.setAttribute("voterCount", DatabaseUtils.getVoterCount(election));
+		request.setAttribute("lastPrefix", lastPrefix == null ? "" : lastPrefix);
+		request.setAttribute("firstPrefix", firstPrefix == null ? "" : firstPrefix);
+	}
 }
@@ -0,0 +1,219 @@
+import java.security.KeyPair;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Storage engine behind DatabaseUtils: the election catalog, the voter rolls, the election keys and the blockchains.
+ * DatabaseUtils keeps the app's static API and the store-independent parts (key pool, parsed key cache, tally) and
+ * hands everything it persists to one of two implementations:
+ *   PostgresStore -> the production store, elections and voters in tables and one table per blockchain
+ *   ShardedStore  -> several PostgresStores, each election kept whole in one of them (see dbShardURIs)
+ *   MemoryStore   -> everything in this JVM's heap, lost on restart; for benchmarks and load tests of the app's own
+ *                    ingest and tally paths without database round trips
+ *
+ * Configured with the environment variable (or system property)
+ *   electionStore -> "memory" for the MemoryStore (default: PostgreSQL, see dbURI, sharded if dbShardURIs is set)
+ */
+public interface ElectionStore
+{
+    // catalog
+
+    /**
+     * Creates an upcoming election with its key pair and candidates.
+     * @param ballotFormat 1 for RSA ballots, 2 for ECDH/AES-GCM ballots, 3 for homomorphically tallied ballots
+     * @return true if the election was created (false if the name or key is taken)
+     */
+    Boolean createElection(String electionName, KeyPair electionKeys, List<String> candidates, int ballotFormat);
+
+    /**
+     * @param status 'U' upcoming, 'Y' active or 'N' closed
+     * @return the elections with that status, sorted by name
+     */
+    List<DatabaseUtils.ElectionSummary> getElectionSummaries(char status);
+
+    /**
+     * @param status 'U' upcoming, 'Y' active or 'N' closed
+     * @return the names of the elections with that status, sorted
+     */
+    List<String> getElectionNames(char status);
+
+    /**
+     * @return the election's status flag 'U', 'Y' or 'N' (or null if there is no such election)
+     */
+    String getElectionStatus(String electionName);
+
+    /**
+     * @return the election's base64 encoded RSA public key, which identifies it everywhere else (or null)
+     */
+    String retrievePublicKey(String electionName);
+
+    /**
+     * @return the base64 encoded key voters import, found by its fingerprint (or null)
+     */
+    String getElectionKey(String fingerprint);
+
+    /**
+     * @return the fingerprint of the key voters import (or null if there is no such election)
+     */
+    String getKeyFingerprint(String electionName);
+
+    /**
+     * @return the election's candidates (empty for a write-in election or if the election does not exist), null if
+     *         the store is unavailable
+     */
+    CandidateDictionary getCandidates(String electionName);
+
+    /**
+     * @return the ballot format the election takes: 1, 2 or 3 (1 if there is no such election)
+     */
+    int getBallotFormat(String electionName);
+
+    /**
+     * @return the P-256 ballot key of a v2 or v3 election, null for v1 elections
+     */
+    String getBallotKey(String electionName);
+
+    /**
+     * @return true if the election is active, false if not (or if it does not exist), null if the store is unavailable
+     */
+    Boolean isActive(String electionKey);
+
+    /**
+     * reads whether the election is active from the primary, after any termination of it in progress has finished
+     * @return true if the election is active, false if not (or if it does not exist), null if the store is unavailable
+     */
+    Boolean confirmActive(String electionKey);
+
+    /**
+     * @return true if the election's blockchain was moved to the archival tier
+     */
+    boolean isArchived(String electionKey);
+
+    /**
+     * @return the election's turnout counters (or null if there is no such election)
+     */
+    DatabaseUtils.Turnout getTurnout(String electionName);
+
+    // voters
+
+    /**
+     * registers a voter key once per election, handing out the election's next voter index
+     * @return true if the voter was registered
+     */
+    Boolean registerVoter(String pubKey, String fname, String lname, String election);
+
+    /**
+     * @return true if the voter key is registered for the election
+     */
+    boolean isRegistered(String electionName, String voterKey);
+
+    /**
+     * @return number of registered voters, read from the primary (the count is cached, see ElectionCache)
+     */
+    long getVoterCount(String electionName);
+
+    /**
+     * @return one page of the voters sorted by last then first name (see DatabaseUtils.getVoterPage)
+     */
+    List<DatabaseUtils.RosterEntry> getVoterPage(String electionName, String lastPrefix, String firstPrefix,
+                                                 String after, int limit);
+
+    /**
+     * @return registry resolving voter keys to voter indices
+     */
+    VoterRegistry voterRegistry(String electionName);
+
+    /**
+     * @return voter index mapped to voter key for the voters after afterIndex, in index order (or null on error)
+     */
+    Map<Integer, String> scanVoterKeys(String electionName, int afterIndex, int limit);
+
+    // keys
+
+    /**
+     * @return the election's base64 encoded private key (or null)
+     */
+    String retrievePrivateKey(String publicKey);
+
+    // chain
+
+    /**
+     * creates the election's blockchain with its signed genesis block and activates the election
+     * @return true if the blockchain was created
+     */
+    Boolean initializeElectionBlockchain(String publicKey);
+
+    /**
+     * Appends ballots to an active election's blockchain as consecutive blocks, all or none of them, and marks their
+     * voters as having voted (counting each in the election's turnout the first time) along with them.
+     * Appends to one election are serialized, appends to different elections are independent.
+     * @param voters the voter key of each ballot (entries may be null where it is not known)
+     * @return the block number of the first ballot if all blocks were added, -1 if none were
+     */
+    long addToBlockchain(List<String> ballots, List<String> voters, String electionKey);
+
+    /**
+     * adds the signed terminus block to an active election's blockchain and closes the election, unless a ballot
+     * journal still holds ballots of the election (see journalBacklog)
+     * @return the terminus block number if the blockchain was terminated, -1 if it was not
+     */
+    long terminateElectionBlockchain(String publicKey);
+
+    /**
+     * @return true if the ballot is among the blocks added since the given epoch millis, null if the store is
+     *         unavailable
+     */
+    Boolean chainContainsSince(String electionKey, String ballot, long since);
+
+    /**
+     * records how many ballots of each election a ballot journal has not yet added to their blockchain
+     * @param node the journal (see BallotJournal)
+     * @param pending election key mapped to the journal's ballots of the election, for every election it holds
+     *                ballots of (it holds none of any other)
+     * @return true if recorded
+     */
+    boolean reportJournal(String node, Map<String, Integer> pending);
+
+    /**
+     * @return ballots of the election the ballot journals of all app instances have yet to add to its blockchain,
+     *         null if the store is unavailable
+     */
+    Long journalBacklog(String electionKey);
+
+    /**
+     * @return the blocks after afterBlockNo in block order, at most limit of them (or null on error)
+     */
+    List<DatabaseUtils.ElectionBlock> scanBlockchain(String electionKey, long afterBlockNo, int limit);
+
+    /**
+     * @return the whole blockchain, with the ballots of a closed election decrypted (or null on error)
+     */
+    List<DatabaseUtils.ElectionBlock> viewBlockchain(String electionKey);
+
+    /**
+     * @return the results of a closed election, each candidate mapped to their vote count (empty while the election
+     *         is not closed, null if they could not be evaluated)
+     */
+    Map<String, Long> evaluateBlockchain(String electionKey);
+
+    /**
+     * marks a closed election as archived and drops its blockchain (see ElectionArchive)
+     * @return true if the election is now served from its archive segment
+     */
+    boolean archiveBlockchain(String electionKey);
+
+    /**
+     * @return the configured store (created on first use)
+     */
+    static ElectionStore instance()
+    {
+        return Configured.STORE;
+    }
+
+    class Configured
+    {
+        private static final ElectionStore STORE =
+                "memory".equalsIgnoreCase(System.getProperty("electionStore", System.getenv("electionStore")))
+                        ? new MemoryStore() : ShardedStore.URIS != null ? new ShardedStore() : new PostgresStore();
+    }
+}
@@ -0,0 +1,27 @@
+/**
+ * Reads the app's numeric settings from environment variables.
+ */
+public class Env
+{
+    private Env() {}
+
+    /**
+     * @param name environment variable
+     * @param def value used when the variable is not set or is not a number
+     * @return the variable's value as an int
+     */
+    public static int intValue(String name, int def)
+    {
+        String value = System.getenv(name);
+        if (value == null) return def;
+        try
+        {
+            return Integer.parseInt(value.trim());
+        }
+        catch (NumberFormatException e)
+        {
+            System.err.println("Ignoring invalid value for " + name);
+            return def;
+        }
+    }
+}
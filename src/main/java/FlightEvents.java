@@ -0,0 +1,203 @@
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Enabled;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * Java Flight Recorder events of the ballot and tally pipelines, so the CPU and allocation samples of a recording can
+ * be tied to the election, block and stage they were taken in:
+ *   vote.BallotStage       -> one stage of accepting a ballot: decode, decrypt, verify, registry, journal or append
+ *   vote.ChainScan         -> one page of blocks read from a blockchain
+ *   vote.TallyBatch        -> one batch of ballots decrypted and counted by a tally
+ *   vote.ElectionLifecycle -> an election created, started, closed or archived
+ * Every event is disabled by default, which leaves a check of a constant on the hot paths: while ballot stages are not
+ * recorded, stage() hands out one shared event that is never begun and working() leaves the thread alone. Recordings
+ * switch them on with the settings in WEB-INF/election-day.jfc (see the README).
+ */
+public class FlightEvents
+{
+    // public key of the election whose ballot the current thread is working on (for the decryption stages)
+    private static final ThreadLocal<String> current = new ThreadLocal<String>();
+
+    @Name("vote.BallotStage")
+    @Label("Ballot Stage")
+    @Category({ "Vote", "Ballots" })
+    @Description("One stage of accepting a ballot")
+    @Enabled(false)
+    @StackTrace(false)
+    static class BallotStage extends Event
+    {
+        @Label("Election")
+        String election;
+
+        @Label("Stage")
+        String stage;
+
+        @Label("Block Number")
+        @Description("First block appended (append only, -1 otherwise)")
+        long blockNumber = -1;
+
+        @Label("Ballots")
+        int ballots = 1;
+
+        @Label("Outcome")
+        String outcome;
+    }
+
+    // handed out by stage() while ballot stages are not recorded, never begun nor committed
+    private static final BallotStage DISABLED = new BallotStage();
+
+    @Name("vote.ChainScan")
+    @Label("Chain Scan")
+    @Category({ "Vote", "Blockchain" })
+    @Description("One page of blocks read from an election blockchain")
+    @Enabled(false)
+    @StackTrace(false)
+    static class ChainScan extends Event
+    {
+        @Label("Election")
+        String election;
+
+        @Label("Block Number")
+        @Description("Blocks after this one were read")
+        long blockNumber;
+
+        @Label("Blocks")
+        int blocks;
+
+        @Label("Outcome")
+        String outcome;
+    }
+
+    @Name("vote.TallyBatch")
+    @Label("Tally Batch")
+    @Category({ "Vote", "Tally" })
+    @Description("One batch of ballots decrypted and counted by a tally")
+    @Enabled(false)
+    @StackTrace(false)
+    static class TallyBatch extends Event
+    {
+        @Label("Election")
+        String election;
+
+        @Label("Ballots")
+        int ballots;
+
+        @Label("Counted")
+        @Description("Ballots that counted as their voter's latest vote")
+        int counted;
+
+        @Label("Outcome")
+        String outcome;
+    }
+
+    @Name("vote.ElectionLifecycle")
+    @Label("Election Lifecycle")
+    @Category({ "Vote", "Elections" })
+    @Description("An election created, started, closed or archived")
+    @Enabled(false)
+    static class ElectionLifecycle extends Event
+    {
+        @Label("Election")
+        String election;
+
+        @Label("Operation")
+        String operation;
+
+        @Label("Block Number")
+        @Description("Block the operation added (0 for the genesis block, -1 if none)")
+        long blockNumber = -1;
+
+        @Label("Outcome")
+        String outcome;
+    }
+
+    /**
+     * marks the election whose ballot the current thread is working on, until cleared
+     * @param electionKey public key of the election (null clears the mark)
+     */
+    static void working(String electionKey)
+    {
+        if (!DISABLED.isEnabled()) return; // a mark left when a recording stops is only read by a later recording
+        if (electionKey == null) current.remove();
+        else current.set(electionKey);
+    }
+
+    /**
+     * @return the public key of the election the current thread is working on (or null)
+     */
+    static String working()
+    {
+        return current.get();
+    }
+
+    /**
+     * @param stage name of the stage
+     * @return a started ballot stage event, pass it to end()
+     */
+    static BallotStage stage(String stage)
+    {
+        if (!DISABLED.isEnabled()) return DISABLED;
+        BallotStage event = new BallotStage();
+        event.stage = stage;
+        event.begin();
+        return event;
+    }
+
+    /**
+     * ends a stage of the ballot of the election the current thread is working on
+     * @param outcome "ok", or what went wrong
+     */
+    static void end(BallotStage event, String outcome)
+    {
+        if (event == DISABLED) return;
+        end(event, current.get(), outcome);
+    }
+
+    /**
+     * ends a stage of a ballot of the given election
+     * @param electionKey public key of the election
+     * @param outcome "ok", or what went wrong
+     */
+    static void end(BallotStage event, String electionKey, String outcome)
+    {
+        end(event, electionKey, -1, 1, outcome);
+    }
+
+    /**
+     * ends a stage that appended blocks to the blockchain of the given election
+     * @param blockNumber first block appended (-1 if none)
+     * @param ballots ballots the stage handled
+     */
+    static void end(BallotStage event, String electionKey, long blockNumber, int ballots, String outcome)
+    {
+        if (event == DISABLED || !event.shouldCommit()) return;
+        event.blockNumber = blockNumber;
+        event.ballots = ballots;
+        event.election = label(electionKey);
+        event.outcome = outcome;
+        event.commit();
+    }
+
+    /**
+     * @param electionKey public key of an election
+     * @return the name of the election if this instance knows it, otherwise its blockchain name
+     */
+    static String label(String electionKey)
+    {
+        if (electionKey == null) return null;
+        String name = ElectionCache.name(electionKey);
+        if (name != null) return name;
+        try
+        {
+            return DatabaseUtils.deriveBlockchainName(electionKey);
+        }
+        catch (RuntimeException e)
+        {
+            return null;
+        }
+    }
+}
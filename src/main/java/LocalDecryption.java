@@ -0,0 +1,78 @@
+import java.security.KeyPair;
+import java.security.PrivateKey;
+import java.util.List;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.stream.IntStream;
+
+/**
+ * Decrypts ballots in this JVM: single ballots on the DecryptionPool, batches on all cores.
+ * Used by the web app when no worker processes are configured, by the workers themselves (DecryptionWorker) and,
+ * with a fixed key, wherever a chain is tallied outside the app (AuditVerifier, benchmarks).
+ */
+public class LocalDecryption implements DecryptionService
+{
+    private final PrivateKey decryptionKey; // used for every election if set, otherwise read from the database
+    private final KeyPair ballotKey;        // derived from decryptionKey if set
+
+    public LocalDecryption()
+    {
+        this(null);
+    }
+
+    /**
+     * @param decryptionKey key to decrypt every ballot with, whatever election it is passed for
+     */
+    public LocalDecryption(PrivateKey decryptionKey)
+    {
+        this.decryptionKey = decryptionKey;
+        this.ballotKey = CryptoUtils.ballotKeyPair(decryptionKey);
+    }
+
+    private PrivateKey key(String electionKey)
+    {
+        return decryptionKey != null ? decryptionKey : DatabaseUtils.getDecryptionKey(electionKey);
+    }
+
+    private KeyPair ballotKey(String electionKey)
+    {
+        return decryptionKey != null ? ballotKey : DatabaseUtils.getBallotKeyPair(electionKey);
+    }
+
+    @Override
+    public BallotServlet.DecryptedBallot decrypt(String electionKey, String ballot)
+            throws RejectedExecutionException, IllegalArgumentException
+    {
+        return DecryptionPool.decrypt(ballot, key(electionKey), ballotKey(electionKey), electionKey);
+    }
+
+    @Override
+    public BallotServlet.DecryptedBallot[] decrypt(String electionKey, List<String> ballots, String[] errors)
+    {
+        final PrivateKey key = key(electionKey);
+        final KeyPair ballotKey = ballotKey(electionKey);
+        return IntStream.range(0, ballots.size()).parallel()
+                .mapToObj(i -> {
+                    FlightEvents.working(electionKey);
+                    try
+                    {
+                        return new BallotServlet.DecryptedBallot(ballots.get(i), key, ballotKey);
+                    }
+                    catch (IllegalArgumentException e)
+                    {
+                        if (errors != null) errors[i] = e.getMessage();
+                        return null;
+                    }
+                    finally
+                    {
+                        FlightEvents.working(null);
+                    }
+                })
+                .toArray(BallotServlet.DecryptedBallot[]::new);
+    }
+
+    @Override
+    public int retryAfter()
+    {
+        return DecryptionPool.retryAfter();
+    }
+}
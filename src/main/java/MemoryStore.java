@@ -0,0 +1,685 @@
+import java.nio.ByteBuffer;
+import java.security.KeyPair;
+import java.security.PrivateKey;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * An ElectionStore held entirely in this JVM's heap, for benchmarks and load tests of the app's own hot paths
+ * (ballot ingest, chain appends, tallies) without database round trips. Nothing survives a restart, and the store is
+ * private to its process: it cannot back several app instances or DecryptionWorker processes (decryptWorkers).
+ *
+ * The blockchains have the same shape as PostgresStore's: a signed genesis block, hash linked ballot blocks and a
+ * signed terminus block. Elections are looked up in concurrent maps; appends take only their election's lock, so
+ * appends to different elections never wait for each other.
+ */
+public class MemoryStore implements ElectionStore
+{
+    private final Map<String, Election> byName = new ConcurrentHashMap<String, Election>();
+    private final Map<String, Election> byKey = new ConcurrentHashMap<String, Election>();          // public key
+    private final Map<String, Election> byFingerprint = new ConcurrentHashMap<String, Election>();
+
+    /**
+     * one election, its roll and its blockchain
+     */
+    private static class Election
+    {
+        final String name;
+        final String publicKey;
+        final String privateKey;
+        final String ballotKey;            // v2/v3 ballot encryption key (null: v1 ballots)
+        final boolean homomorphic;         // v3 ballots, tallied without decrypting them
+        final String fingerprint;          // fingerprint of the key voters import
+        final CandidateDictionary candidates;
+
+        volatile char status = 'U';        // 'U' upcoming, 'Y' active, 'N' closed
+        volatile boolean archived = false;
+
+        // guarded by the election: blocks in block order and the next block number (see PostgresStore)
+        final List<DatabaseUtils.ElectionBlock> chain = new ArrayList<DatabaseUtils.ElectionBlock>();
+        long blockCount = 0;
+
+        // voters by key digest; voter indices and the roster order are handed out under the roll's lock
+        final Map<ByteBuffer, Voter> voters = new ConcurrentHashMap<ByteBuffer, Voter>();
+        final List<Voter> roll = new ArrayList<Voter>();                                   // by voter index
+        final NavigableMap<String, Voter> roster = new ConcurrentSkipListMap<String, Voter>(); // by rosterKey
+
+        // turnout counters, the minute ring is guarded by the election
+        final AtomicLong ballots = new AtomicLong();
+        final AtomicLong voted = new AtomicLong();
+        final long[] slotMinute = new long[DatabaseUtils.TURNOUT_MINUTES];
+        final int[] slotBallots = new int[DatabaseUtils.TURNOUT_MINUTES];
+
+        Election(String name, String publicKey, String privateKey, String ballotKey, boolean homomorphic,
+                 String fingerprint, CandidateDictionary candidates)
+        {
+            this.name = name;
+            this.publicKey = publicKey;
+            this.privateKey = privateKey;
+            this.ballotKey = ballotKey;
+            this.homomorphic = homomorphic;
+            this.fingerprint = fingerprint;
+            this.candidates = candidates;
+        }
+
+        int registered()
+        {
+            synchronized (roll)
+            {
+                return roll.size();
+            }
+        }
+    }
+
+    private static class Voter
+    {
+        final String fname;
+        final String lname;
+        final String key;
+        final int index;
+        volatile boolean voted = false;
+
+        Voter(String fname, String lname, String key, int index)
+        {
+            this.fname = fname;
+            this.lname = lname;
+            this.key = key;
+            this.index = index;
+        }
+
+        /**
+         * @return the voter's place in the roster: lower cased last and first name, then index (as PostgresStore
+         *         orders them)
+         */
+        String rosterKey()
+        {
+            return rosterKey(lname.toLowerCase(), fname.toLowerCase(), index);
+        }
+
+        static String rosterKey(String lname, String fname, int index)
+        {
+            return lname + "\0" + fname + "\0" + String.format("%010d", index);
+        }
+    }
+
+    // catalog
+
+    @Override
+    public Boolean createElection(String electionName, KeyPair electionKeys, List<String> candidates,
+                                  int ballotFormat)
+    {
+        if (electionName == null) return false;
+        KeyPair keys = electionKeys != null ? electionKeys : ElectionKeyPool.take();
+        String pk = CryptoUtils.exportKey(keys.getPublic());
+        String ballotKey = ballotFormat >= 2 ?
+                CryptoUtils.exportKey(CryptoUtils.ballotKeyPair(keys.getPrivate()).getPublic()) : null;
+        Election election = new Election(electionName, pk, CryptoUtils.exportKey(keys.getPrivate()), ballotKey,
+                ballotFormat == 3, CryptoUtils.fingerprint(ballotKey != null ? ballotKey : pk),
+                CandidateDictionary.of(candidates));
+
+        // the name, the key and the fingerprint are unique, as in the elections table
+        if (byName.putIfAbsent(electionName, election) != null) return false;
+        if (byKey.putIfAbsent(pk, election) != null)
+        {
+            byName.remove(electionName);
+            return false;
+        }
+        if (byFingerprint.putIfAbsent(election.fingerprint, election) != null)
+        {
+            byKey.remove(pk);
+            byName.remove(electionName);
+            return false;
+        }
+        return true;
+    }
+
+    @Override
+    public List<DatabaseUtils.ElectionSummary> getElectionSummaries(char status)
+    {
+        List<DatabaseUtils.ElectionSummary> list = new ArrayList<DatabaseUtils.ElectionSummary>();
+        for (Election e : sorted(status))
+        {
+            long blockCount;
+            synchronized (e)
+            {
+                blockCount = e.blockCount;
+            }
+            DatabaseUtils.ElectionSummary summary = new DatabaseUtils.ElectionSummary(e.name, status, blockCount,
+                    e.fingerprint);
+            summary.registered = e.registered();
+            summary.ballots = e.ballots.get();
+            summary.voted = e.voted.get();
+            summary.archived = e.archived;
+            list.add(summary);
+        }
+        return list;
+    }
+
+    @Override
+    public List<String> getElectionNames(char status)
+    {
+        List<String> list = new LinkedList<String>();
+        for (Election e : sorted(status))
+        {
+            list.add(e.name);
+        }
+        return list;
+    }
+
+    /**
+     * @return the elections with the status, sorted by name
+     */
+    private List<Election> sorted(char status)
+    {
+        List<Election> list = new ArrayList<Election>();
+        for (Election e : byName.values())
+        {
+            if (e.status == status) list.add(e);
+        }
+        list.sort(Comparator.comparing((Election e) -> e.name));
+        return list;
+    }
+
+    @Override
+    public String getElectionStatus(String electionName)
+    {
+        Election e = named(electionName);
+        return e == null ? null : String.valueOf(e.status);
+    }
+
+    @Override
+    public String retrievePublicKey(String electionName)
+    {
+        Election e = named(electionName);
+        return e == null ? null : e.publicKey;
+    }
+
+    @Override
+    public String getElectionKey(String fingerprint)
+    {
+        Election e = fingerprint == null ? null : byFingerprint.get(fingerprint);
+        return e == null ? null : e.ballotKey != null ? e.ballotKey : e.publicKey;
+    }
+
+    @Override
+    public String getKeyFingerprint(String electionName)
+    {
+        Election e = named(electionName);
+        return e == null ? null : e.fingerprint;
+    }
+
+    @Override
+    public CandidateDictionary getCandidates(String electionName)
+    {
+        Election e = named(electionName);
+        return e == null ? new CandidateDictionary() : e.candidates;
+    }
+
+    @Override
+    public int getBallotFormat(String electionName)
+    {
+        Election e = named(electionName);
+        return e == null ? 1 : e.homomorphic ? 3 : e.ballotKey != null ? 2 : 1;
+    }
+
+    @Override
+    public String getBallotKey(String electionName)
+    {
+        Election e = named(electionName);
+        return e == null ? null : e.ballotKey;
+    }
+
+    @Override
+    public Boolean isActive(String electionKey)
+    {
+        Election e = keyed(electionKey);
+        return e != null && e.status == 'Y';
+    }
+
+    @Override
+    public Boolean confirmActive(String electionKey)
+    {
+        return isActive(electionKey);
+    }
+
+    @Override
+    public boolean isArchived(String electionKey)
+    {
+        Election e = keyed(electionKey);
+        return e != null && e.archived;
+    }
+
+    @Override
+    public DatabaseUtils.Turnout getTurnout(String electionName)
+    {
+        Election e = named(electionName);
+        if (e == null) return null;
+        DatabaseUtils.Turnout turnout = new DatabaseUtils.Turnout(e.registered(), e.ballots.get(), e.voted.get(),
+                System.currentTimeMillis() / 60000);
+        synchronized (e)
+        {   // slots of the last TURNOUT_MINUTES minutes, the others count minutes gone by
+            for (int slot = 0; slot < DatabaseUtils.TURNOUT_MINUTES; slot++)
+            {
+                long age = turnout.minute - e.slotMinute[slot];
+                if (e.slotBallots[slot] > 0 && age >= 0 && age < DatabaseUtils.TURNOUT_MINUTES)
+                {
+                    turnout.perMinute[(int) (DatabaseUtils.TURNOUT_MINUTES - 1 - age)] = e.slotBallots[slot];
+                }
+            }
+        }
+        return turnout;
+    }
+
+    // voters
+
+    @Override
+    public Boolean registerVoter(String pubKey, String fname, String lname, String election)
+    {
+        Election e = named(election);
+        if (e == null || pubKey == null || fname == null || lname == null) return false;
+        ByteBuffer digest = ByteBuffer.wrap(CryptoUtils.keyDigest(pubKey));
+        synchronized (e.roll)
+        {   // a key registers once per election, a refused registration does not use up an index
+            if (e.voters.containsKey(digest)) return false;
+            Voter voter = new Voter(fname, lname, pubKey, e.roll.size());
+            e.roll.add(voter);
+            e.roster.put(voter.rosterKey(), voter);
+            e.voters.put(digest, voter);
+            return true;
+        }
+    }
+
+    @Override
+    public boolean isRegistered(String electionName, String voterKey)
+    {
+        return voter(named(electionName), voterKey) != null;
+    }
+
+    /**
+     * @return the voter registered with the key, or null
+     */
+    private static Voter voter(Election e, String voterKey)
+    {
+        if (e == null || voterKey == null) return null;
+        try
+        {
+            return e.voters.get(ByteBuffer.wrap(CryptoUtils.keyDigest(voterKey)));
+        }
+        catch (IllegalArgumentException ex)
+        {   // not base64
+            return null;
+        }
+    }
+
+    @Override
+    public long getVoterCount(String electionName)
+    {
+        Election e = named(electionName);
+        return e == null ? 0 : e.registered();
+    }
+
+    @Override
+    public List<DatabaseUtils.RosterEntry> getVoterPage(String electionName, String lastPrefix, String firstPrefix,
+                                                        String after, int limit)
+    {
+        List<DatabaseUtils.RosterEntry> list = new ArrayList<DatabaseUtils.RosterEntry>();
+        Election e = named(electionName);
+        if (e == null) return list;
+        String last = lastPrefix == null ? "" : lastPrefix.trim().toLowerCase();
+        String first = firstPrefix == null ? "" : firstPrefix.trim().toLowerCase();
+
+        // start at the cursor, or at the first name that can match the last name prefix
+        String[] cursor = DatabaseUtils.RosterEntry.decodeCursor(after);
+        NavigableMap<String, Voter> page;
+        try
+        {
+            page = cursor != null
+                    ? e.roster.tailMap(Voter.rosterKey(cursor[0], cursor[1], Integer.parseInt(cursor[2])), false)
+                    : e.roster.tailMap(last, true);
+        }
+        catch (NumberFormatException ex)
+        {
+            return list;
+        }
+        for (Voter voter : page.values())
+        {
+            String lname = voter.lname.toLowerCase();
+            if (!lname.startsWith(last))
+            {
+                if (lname.compareTo(last) > 0) break; // past the names with the prefix
+                continue;
+            }
+            String fname = voter.fname.toLowerCase();
+            if (!fname.startsWith(first)) continue;
+            DatabaseUtils.RosterEntry entry = new DatabaseUtils.RosterEntry(voter.fname, voter.lname, voter.index);
+            entry.sortKey = lname + "\0" + fname;
+            list.add(entry);
+            if (list.size() == limit) break;
+        }
+        return list;
+    }
+
+    @Override
+    public VoterRegistry voterRegistry(String electionName)
+    {
+        final Election e = named(electionName);
+        final int count = e == null ? 0 : e.registered();
+        return new VoterRegistry()
+        {
+            @Override
+            public int size()
+            {
+                return count;
+            }
+
+            @Override
+            public void indexOf(String[] moduli, int[] indices)
+            {
+                for (int i = 0; i < moduli.length; i++)
+                {
+                    Voter voter = voter(e, moduli[i]);
+                    indices[i] = voter == null || voter.index >= count ? -1 : voter.index;
+                }
+            }
+        };
+    }
+
+    @Override
+    public Map<Integer, String> scanVoterKeys(String electionName, int afterIndex, int limit)
+    {
+        Map<Integer, String> voters = new LinkedHashMap<Integer, String>();
+        Election e = named(electionName);
+        if (e == null) return voters;
+        synchronized (e.roll)
+        {
+            for (int i = Math.max(afterIndex + 1, 0); i < e.roll.size() && voters.size() < limit; i++)
+            {
+                voters.put(i, e.roll.get(i).key);
+            }
+        }
+        return voters;
+    }
+
+    // keys
+
+    @Override
+    public String retrievePrivateKey(String publicKey)
+    {
+        Election e = keyed(publicKey);
+        return e == null ? null : e.privateKey;
+    }
+
+    // chain
+
+    @Override
+    public Boolean initializeElectionBlockchain(String publicKey)
+    {
+        Election e = keyed(publicKey);
+        if (e == null) return false;
+        synchronized (e)
+        {
+            if (e.blockCount != 0) return false; // the chain exists already
+            e.chain.add(signedBlock(0, e, publicKey));
+            e.blockCount = 1;
+            e.status = 'Y';
+            return true;
+        }
+    }
+
+    @Override
+    public long addToBlockchain(List<String> ballots, List<String> voters, String electionKey)
+    {
+        Election e = keyed(electionKey);
+        if (e == null || ballots.isEmpty()) return -1;
+        synchronized (e)
+        {
+            if (e.status != 'Y') return -1;
+            long first = e.blockCount;
+            String prevHash = e.chain.get(e.chain.size() - 1).hash;
+            for (String ballot : ballots)
+            {
+                long time = System.currentTimeMillis();
+                prevHash = CryptoUtils.calculateBlockHash(ballot, prevHash, time);
+                e.chain.add(new DatabaseUtils.ElectionBlock(e.blockCount++, time, ballot, prevHash));
+            }
+            e.ballots.addAndGet(ballots.size());
+            countMinute(e, ballots.size());
+            for (String voterKey : voters)
+            {   // counted with the blocks, under the election's lock
+                Voter voter = voter(e, voterKey);
+                if (voter == null || voter.voted) continue;
+                voter.voted = true;
+                e.voted.incrementAndGet();
+            }
+            return first;
+        }
+    }
+
+    /**
+     * adds appended ballots to the current minute's slot of the election's turnout ring (holding the election's lock)
+     */
+    private static void countMinute(Election e, int ballots)
+    {
+        long minute = System.currentTimeMillis() / 60000;
+        int slot = (int) (minute % DatabaseUtils.TURNOUT_MINUTES);
+        if (e.slotMinute[slot] != minute)
+        {   // the slot still counts an older minute, start over
+            e.slotMinute[slot] = minute;
+            e.slotBallots[slot] = 0;
+        }
+        e.slotBallots[slot] += ballots;
+    }
+
+    @Override
+    public long terminateElectionBlockchain(String publicKey)
+    {
+        Election e = keyed(publicKey);
+        if (e == null) return -1;
+        synchronized (e)
+        {   // no ballot is appended while the chain is terminated
+            if (e.status != 'Y') return -1;
+            try
+            {
+                // the terminus reveals the private key, a homomorphic election's terminus holds the proven tally
+                String terminus = e.homomorphic ? homomorphicTally(e) : e.privateKey;
+                e.chain.add(signedBlock(e.blockCount + 1, e, terminus));
+                e.status = 'N';
+                return ++e.blockCount;
+            }
+            catch (Exception ex)
+            {
+                ex.printStackTrace();
+                return -1;
+            }
+        }
+    }
+
+    /**
+     * @return a block holding content, signed with the election's key like the genesis and terminus blocks
+     */
+    private static DatabaseUtils.ElectionBlock signedBlock(long blockNo, Election e, String content)
+    {
+        long time = System.currentTimeMillis();
+        String timestamp = Base64.getEncoder().encodeToString(Long.toString(time).getBytes());
+        String signature = CryptoUtils.signData(CryptoUtils.base64Concat(e.publicKey, timestamp),
+                CryptoUtils.importPrivateKey(e.privateKey));
+        return new DatabaseUtils.ElectionBlock(blockNo, time, content, signature);
+    }
+
+    /**
+     * adds up the ciphertexts of every voter's latest ballot and decrypts the sums (see ElGamalTally)
+     * @return the base64 encoded terminus record
+     */
+    private String homomorphicTally(Election e)
+    {
+        KeyPair ballotKey = CryptoUtils.ballotKeyPair(CryptoUtils.importPrivateKey(e.privateKey));
+        ElGamalTally.Totals totals = ElGamalTally.aggregate(ballots(e), e.candidates.size(),
+                voterRegistry(e.name), ElGamalTally.tallyKey(ballotKey), false);
+        return Base64.getEncoder().encodeToString(ElGamalTally.decrypt(totals, ballotKey));
+    }
+
+    /**
+     * @return the contents of the ballot blocks (not the genesis or terminus block), newest first
+     */
+    private static List<String> ballots(Election e)
+    {
+        synchronized (e)
+        {
+            List<String> ballots = new ArrayList<String>();
+            for (int i = e.chain.size() - 1; i > 0; i--)
+            {
+                DatabaseUtils.ElectionBlock block = e.chain.get(i);
+                if (block.no < e.blockCount - (e.status == 'N' ? 1 : 0)) ballots.add(block.content);
+            }
+            return ballots;
+        }
+    }
+
+    @Override
+    public Boolean chainContainsSince(String electionKey, String ballot, long since)
+    {
+        Election e = keyed(electionKey);
+        if (e == null) return false;
+        synchronized (e)
+        {   // read backwards from the head, only the blocks added since then
+            for (int i = e.chain.size() - 1; i >= 0; i--)
+            {
+                DatabaseUtils.ElectionBlock block = e.chain.get(i);
+                if (block.content.equals(ballot)) return true;
+                if (block.epoch < since) return false;
+            }
+            return false;
+        }
+    }
+
+    @Override
+    public boolean reportJournal(String node, Map<String, Integer> pending)
+    {
+        return true; // only this instance's journal can hold ballots of its elections
+    }
+
+    @Override
+    public Long journalBacklog(String electionKey)
+    {
+        return 0L;
+    }
+
+    @Override
+    public List<DatabaseUtils.ElectionBlock> scanBlockchain(String electionKey, long afterBlockNo, int limit)
+    {
+        List<DatabaseUtils.ElectionBlock> list = new ArrayList<DatabaseUtils.ElectionBlock>();
+        Election e = keyed(electionKey);
+        if (e == null) return list;
+        synchronized (e)
+        {
+            // block i has block number i, only the terminus skips one
+            int from = (int) Math.min(Math.max(afterBlockNo + 1, 0), e.chain.size());
+            while (from > 0 && e.chain.get(from - 1).no > afterBlockNo) from--;
+            for (int i = from; i < e.chain.size() && list.size() < limit; i++)
+            {
+                list.add(copy(e.chain.get(i)));
+            }
+        }
+        return list;
+    }
+
+    @Override
+    public List<DatabaseUtils.ElectionBlock> viewBlockchain(String electionKey)
+    {
+        List<DatabaseUtils.ElectionBlock> list = new ArrayList<DatabaseUtils.ElectionBlock>();
+        Election e = keyed(electionKey);
+        if (e == null) return list;
+        try
+        {
+            if (e.archived) return ElectionArchive.viewBlockchain(electionKey);
+        }
+        catch (Exception ex)
+        {
+            ex.printStackTrace();
+            return null;
+        }
+        List<DatabaseUtils.ElectionBlock> ballots = new ArrayList<DatabaseUtils.ElectionBlock>();
+        synchronized (e)
+        {
+            for (DatabaseUtils.ElectionBlock block : e.chain)
+            {   // copies, the displayed blocks carry their decrypted ballots
+                DatabaseUtils.ElectionBlock view = copy(block);
+                if (e.status == 'N' && view.no > 0 && view.no < e.blockCount)
+                {   // decrypt the ballot if election is not active and is valid block number
+                    ballots.add(view);
+                }
+                list.add(view);
+            }
+        }
+        DatabaseUtils.decryptBallots(electionKey, ballots);
+        return list;
+    }
+
+    private static DatabaseUtils.ElectionBlock copy(DatabaseUtils.ElectionBlock block)
+    {
+        return new DatabaseUtils.ElectionBlock(block.no, block.epoch, block.content, block.hash);
+    }
+
+    @Override
+    public Map<String, Long> evaluateBlockchain(String electionKey)
+    {
+        Map<String, Long> results = new HashMap<String, Long>();
+        Election e = keyed(electionKey);
+        if (e == null || e.status != 'N') return results;
+        try
+        {
+            if (e.archived)
+            {   // results were recorded when the election was archived
+                return ElectionArchive.results(electionKey);
+            }
+            if (e.homomorphic)
+            {   // the tally was decrypted when the election closed and recorded in the terminus
+                String terminus;
+                synchronized (e)
+                {
+                    terminus = e.chain.get(e.chain.size() - 1).content;
+                }
+                results = new LinkedHashMap<String, Long>(); // in candidate id order
+                long[] votes = ElGamalTally.votes(Base64.getDecoder().decode(terminus));
+                for (int id = 0; id < e.candidates.size() && id < votes.length; id++)
+                {
+                    results.put(e.candidates.name(id), votes[id]);
+                }
+                return results;
+            }
+            return DatabaseUtils.tallyBallots(ballots(e), electionKey, DecryptionService.instance(), e.candidates,
+                    voterRegistry(e.name));
+        }
+        catch (Exception ex)
+        {
+            ex.printStackTrace();
+            return null;
+        }
+    }
+
+    @Override
+    public boolean archiveBlockchain(String electionKey)
+    {
+        Election e = keyed(electionKey);
+        if (e == null) return false;
+        synchronized (e)
+        {
+            if (e.status != 'N') return false;
+            e.archived = true;
+            e.chain.clear();
+            return true;
+        }
+    }
+
+    private Election named(String electionName)
+    {
+        return electionName == null ? null : byName.get(electionName);
+    }
+
+    private Election keyed(String publicKey)
+    {
+        return publicKey == null ? null : byKey.get(publicKey);
+    }
+}
@@ -0,0 +1,177 @@
+import java.io.PrintWriter;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.DoubleAdder;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.DoubleSupplier;
+
+/**
+ * Minimal application metrics registry.
+ * Metrics are registered once (usually from a static initializer) and rendered by MetricsServlet
+ * in the Prometheus text exposition format.
+ */
+public class Metrics
+{
+    // sorted by name so the /metrics output is stable
+    private static final Map<String, Metric> registry = new ConcurrentSkipListMap<String, Metric>();
+
+    /**
+     * @param name metric name (snake case, counters should end in _total)
+     * @param help one line description
+     * @return a counter that is safe to increment from any thread
+     */
+    public static LongAdder counter(String name, String help)
+    {
+        Metric m = registry.computeIfAbsent(name, k -> new Metric(help, "counter", new LongAdder(), null));
+        return m.counter;
+    }
+
+    /**
+     * @param name metric name
+     * @param help one line description
+     * @param value sampled every time the metrics are rendered
+     */
+    public static void gauge(String name, String help, DoubleSupplier value)
+    {
+        registry.put(name, new Metric(help, "gauge", null, value));
+    }
+
+    /**
+     * @param name metric name (with its unit, e.g. _seconds)
+     * @param help one line description
+     * @param label name of the label that tells the series apart
+     * @param buckets upper bounds of the buckets, ascending
+     * @return a histogram with one series per label value
+     */
+    public static Histogram histogram(String name, String help, String label, double... buckets)
+    {
+        Metric m = registry.computeIfAbsent(name, k -> new Metric(help, "histogram", null, null,
+                new Histogram(label, buckets)));
+        return m.histogram;
+    }
+
+    /**
+     * writes all registered metrics in the Prometheus text format
+     * @param out destination writer
+     */
+    public static void write(PrintWriter out)
+    {
+        for (Map.Entry<String, Metric> e : registry.entrySet())
+        {
+            Metric m = e.getValue();
+            out.println("# HELP " + e.getKey() + " " + m.help);
+            out.println("# TYPE " + e.getKey() + " " + m.type);
+            if (m.histogram != null)
+            {
+                m.histogram.write(e.getKey(), out);
+                continue;
+            }
+            out.println(e.getKey() + " " + format(m.counter != null ? m.counter.sum() : m.gauge.getAsDouble()));
+        }
+    }
+
+    private static String format(double value)
+    {
+        return value == Math.rint(value) && !Double.isInfinite(value) ? Long.toString((long) value)
+                                                                       : Double.toString(value);
+    }
+
+    /**
+     * Bucketed observations (latencies, sizes), one series per label value.
+     * The number of label values is capped, later values are counted under "other".
+     */
+    public static class Histogram
+    {
+        private static final int MAX_SERIES = 500;
+
+        private final String label;
+        private final double[] buckets;
+        private final Map<String, Series> series = new ConcurrentHashMap<String, Series>();
+
+        Histogram(String label, double[] buckets)
+        {
+            this.label = label;
+            this.buckets = buckets;
+        }
+
+        /**
+         * @param labelValue the series to record into
+         * @param value the observed value
+         */
+        public void observe(String labelValue, double value)
+        {
+            Series s = series.get(labelValue);
+            if (s == null)
+            {
+                s = series.computeIfAbsent(series.size() < MAX_SERIES ? labelValue : "other",
+                        k -> new Series(buckets.length));
+            }
+            int i = 0;
+            while (i < buckets.length && value > buckets[i]) i++;
+            s.counts[i].increment();
+            s.sum.add(value);
+        }
+
+        private void write(String name, PrintWriter out)
+        {
+            for (Map.Entry<String, Series> e : new TreeMap<String, Series>(series).entrySet())
+            {
+                String labels = label + "=\"" + escape(e.getKey()) + "\"";
+                long cumulative = 0;
+                for (int i = 0; i <= buckets.length; i++)
+                {
+                    cumulative += e.getValue().counts[i].sum();
+                    out.println(name + "_bucket{" + labels + ",le=\""
+                            + (i < buckets.length ? format(buckets[i]) : "+Inf") + "\"} " + cumulative);
+                }
+                out.println(name + "_sum{" + labels + "} " + format(e.getValue().sum.sum()));
+                out.println(name + "_count{" + labels + "} " + cumulative);
+            }
+        }
+
+        private static String escape(String value)
+        {
+            return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+        }
+
+        private static class Series
+        {
+            final LongAdder[] counts; // per bucket, the last one is +Inf
+            final DoubleAdder sum = new DoubleAdder();
+
+            Series(int buckets)
+            {
+                counts = new LongAdder[buckets + 1];
+                for (int i = 0; i < counts.length; i++)
+                {
+                    counts[i] = new LongAdder();
+                }
+            }
+        }
+    }
+
+    private static class Metric
+    {
+        final String help;
+        final String type;
+        final LongAdder counter;
+        final DoubleSupplier gauge;
+        final Histogram histogram;
+
+        Metric(String help, String type, LongAdder counter, DoubleSupplier gauge)
+        {
+            this(help, type, counter, gauge, null);
+        }
+
+        Metric(String help, String type, LongAdder counter, DoubleSupplier gauge, Histogram histogram)
+        {
+            this.help = help;
+            this.type = type;
+            this.counter = counter;
+            this.gauge = gauge;
+            this.histogram = histogram;
+        }
+    }
+}
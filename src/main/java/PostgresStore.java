@@ -0,0 +1,1782 @@
+import java.security.KeyPair;
+import java.nio.charset.StandardCharsets;
+import java.security.PrivateKey;
+import java.sql.*;
+import java.util.*;
+
+/**
+ * The production ElectionStore. Elections, private keys, candidates, voters and turnout are rows of shared tables,
+ * every election blockchain is a table of its own (see DatabaseUtils.deriveBlockchainName).
+ * Reads that may be slightly stale go to ReadReplicas, blockchain writes hold the election's advisory lock.
+ *
+ * Configured with the environment variables dbURI, dbUser and dbPassword (see README), and
+ *   chainConnections -> connections blockchain writes are spread over, by election (default 4)
+ */
+public class PostgresStore implements ElectionStore
+{
+    // form a database connection every time a function in this class is called
+    // terribly inefficient, however I don't know a technique to establish a persistent connection
+    private Connection connection = null;
+
+    // blockchain writes run as transactions on connections of their own, holding the election's advisory lock
+    // (see lockChain) so that any number of app instances can append to the same chain; an election always writes
+    // through the same connection (see chain), so writes to different elections rarely wait for each other
+    private final ChainConnection[] chainConnections;
+    private static final int CHAIN_LOCK = 0x766f7465; // advisory lock namespace ("vote")
+    private static final int TALLY_ATTEMPTS = 3;   // closes of a homomorphic election, the last tallies under the lock
+    private static final int TALLY_PAGE = 10000;   // ballots read at a time by a tally
+
+    // candidate lists never change once an election is created, so they are cached per election name
+    private final Map<String, CandidateDictionary> candidateCache =
+            new java.util.concurrent.ConcurrentHashMap<String, CandidateDictionary>();
+    // election keys by fingerprint, they never change (see ElectionKeyServlet)
+    private final Map<String, String> electionKeyCache =
+            new java.util.concurrent.ConcurrentHashMap<String, String>();
+    // ballot formats never change either (keyed by election name)
+    private final Map<String, Integer> ballotFormatCache =
+            new java.util.concurrent.ConcurrentHashMap<String, Integer>();
+
+    // roster order is (last name, first name) case-insensitively, voter index breaks ties;
+    // "C" collation so the same index serves both the ordering and LIKE 'prefix%' searches
+    private static final String ROSTER_INDEX = "CREATE INDEX IF NOT EXISTS voters_roster ON voters " +
+            "(election_name, (lower(lname) COLLATE \"C\"), (lower(fname) COLLATE \"C\"), voter_index)";
+
+    // ballots appended per minute, a ring of TURNOUT_MINUTES slots per election (slot = minute % TURNOUT_MINUTES)
+    private static final String TURNOUT_TABLE = "CREATE TABLE IF NOT EXISTS turnout_minutes (" +
+            "election_name VARCHAR(128) NOT NULL, " +
+            "slot SMALLINT NOT NULL, " +
+            "minute BIGINT NOT NULL, " +       // minutes since the epoch the slot currently counts
+            "ballots INT NOT NULL, " +
+            "PRIMARY KEY (election_name, slot))";
+
+    // ballots each ballot journal (node) has yet to add to the blockchain of an election, see BallotJournal;
+    // terminateElectionBlockchain refuses to close an election while any are left
+    private static final String JOURNAL_TABLE = "CREATE TABLE IF NOT EXISTS journal_backlog (" +
+            "node VARCHAR(256) NOT NULL, " +
+            "public_key VARCHAR(4096) NOT NULL, " +
+            "pending INT NOT NULL, " +
+            "PRIMARY KEY (node, public_key))";
+
+    // connection names for the metrics, and whether the read replicas (of the primary) may serve reads
+    private final String chainName;
+    private final boolean replicas;
+
+    /**
+     * connects to the primary database named by the environment and brings its schema up to date
+     */
+    public PostgresStore()
+    {
+        this(System.getenv("dbURI"), System.getenv("dbUser"), System.getenv("dbPassword"), 0);
+    }
+
+    /**
+     * connects to a database and brings its schema up to date
+     * @param shard 0 for the primary database, otherwise the shard number (see ShardedStore); only the primary's
+     *              reads are spread over ReadReplicas
+     */
+    public PostgresStore(String uri, String user, String pass, int shard)
+    {
+        String name = shard == 0 ? "primary" : "shard" + shard;
+        chainName = shard == 0 ? "chain" : name + "-chain";
+        replicas = shard == 0;
+        try
+        {
+            Class.forName("org.postgresql.Driver");
+        }
+        catch (ClassNotFoundException e)
+        {
+            System.out.println("Unable to load PostgreSQL JDBC Driver! "
+                    + "The driver needs to be included in your library path!");
+            e.printStackTrace();
+        }
+
+        boolean configured = uri!=null && user!=null && pass!=null;
+        chainConnections = new ChainConnection[configured ? Math.max(1, Env.intValue("chainConnections", 4)) : 0];
+        for (int i = 0; i < chainConnections.length; i++)
+        {   // connected on first use
+            chainConnections[i] = new ChainConnection(uri, user, pass, chainName);
+        }
+        try
+        {
+            if (configured)
+            {
+                connection = QueryMetrics.connect(uri, user, pass, name);
+            }
+        }
+        catch (SQLException e)
+        {
+            System.out.println("Connection Failed!");
+            e.printStackTrace();
+        }
+        upgradeSchema();
+    }
+
+    /**
+     * @return the connection for a read-only query that may be slightly stale
+     */
+    private Connection reader()
+    {
+        return replicas ? ReadReplicas.connection(connection) : connection;
+    }
+
+    /**
+     * Brings tables created by older versions of the app up to date. Safe to run on every start.
+     */
+    private void upgradeSchema()
+    {
+        if (connection == null) return;
+        String[] statements = {
+            // every registered voter gets a dense per election index, handed out from elections.voter_count
+            "ALTER TABLE elections ADD COLUMN IF NOT EXISTS voter_count BIGINT NOT NULL DEFAULT 0",
+            "ALTER TABLE voters ADD COLUMN IF NOT EXISTS voter_index INT",
+            // number voters registered before indices existed, continuing from the election's count
+            "UPDATE voters v SET voter_index = e.voter_count + n.i " +
+                "FROM (SELECT key, ROW_NUMBER() OVER (PARTITION BY election_name ORDER BY key) - 1 AS i " +
+                      "FROM voters WHERE voter_index IS NULL) n, elections e " +
+                "WHERE v.key = n.key AND e.election_name = v.election_name",
+            // never lowers the count: another instance may register voters (taking indices) while this runs
+            "UPDATE elections e SET voter_count = GREATEST(voter_count, " +
+                "(SELECT COUNT(*) FROM voters v WHERE v.election_name = e.election_name AND v.voter_index IS NOT NULL))",
+            "CREATE UNIQUE INDEX IF NOT EXISTS voters_election_index ON voters (election_name, voter_index)",
+            ROSTER_INDEX,
+            // closed elections moved to the archival tier (see ElectionArchive)
+            "ALTER TABLE elections ADD COLUMN IF NOT EXISTS archived BOOLEAN NOT NULL DEFAULT FALSE",
+            // P-256 key of elections taking v2 ballots (see CryptoUtils.ballotKeyPair)
+            "ALTER TABLE elections ADD COLUMN IF NOT EXISTS ballot_key VARCHAR(256)",
+            // elections tallied homomorphically from v3 ballots (see ElGamalTally)
+            "ALTER TABLE elections ADD COLUMN IF NOT EXISTS homomorphic BOOLEAN NOT NULL DEFAULT FALSE",
+            // fingerprint of the key voters import, the election key endpoint serves keys by fingerprint
+            "ALTER TABLE elections ADD COLUMN IF NOT EXISTS key_fingerprint VARCHAR(64)",
+            "CREATE UNIQUE INDEX IF NOT EXISTS elections_fingerprint ON elections (key_fingerprint)",
+            // turnout counters kept up to date by ballot appends and acceptance (see getTurnout)
+            "ALTER TABLE elections ADD COLUMN IF NOT EXISTS ballot_count BIGINT NOT NULL DEFAULT 0",
+            "ALTER TABLE elections ADD COLUMN IF NOT EXISTS voted_count BIGINT NOT NULL DEFAULT 0",
+            "ALTER TABLE voters ADD COLUMN IF NOT EXISTS voted BOOLEAN NOT NULL DEFAULT FALSE",
+            // ballots counted so far: block_count less the genesis block (and the terminus once closed)
+            "UPDATE elections SET ballot_count = GREATEST(block_count - CASE WHEN active='N' THEN 2 ELSE 1 END, 0) " +
+                "WHERE ballot_count = 0",
+            TURNOUT_TABLE,
+            JOURNAL_TABLE,
+        };
+        for (String st : statements)
+        {
+            try
+            {
+                connection.prepareStatement(st).executeUpdate();
+            }
+            catch (SQLException e)
+            {   // tables that do not exist yet are created up to date
+            }
+        }
+
+        // voters are keyed by (election, SHA-256 of their key) rather than the 344 character key alone, so one key
+        // may register in several elections and the index holds 32 byte digests (see CryptoUtils.keyDigest).
+        // One transaction: a failing step (sha256() needs PostgreSQL 11) must not leave the old keys dropped.
+        String[] fingerprints = {
+            "ALTER TABLE voters ADD COLUMN IF NOT EXISTS fingerprint BYTEA",
+            "UPDATE voters SET fingerprint = sha256(decode(key, 'base64')) WHERE fingerprint IS NULL",
+            "ALTER TABLE voters ALTER COLUMN fingerprint SET NOT NULL",
+            "ALTER TABLE voters DROP CONSTRAINT IF EXISTS voters_pkey",
+            "ALTER TABLE voters DROP CONSTRAINT IF EXISTS voters_key_election_name_key",
+            "ALTER TABLE voters ADD CONSTRAINT voters_fingerprint PRIMARY KEY (election_name, fingerprint)",
+        };
+        try
+        {
+            ResultSet res = connection.prepareStatement("SELECT to_regclass('voters') IS NOT NULL AND NOT EXISTS " +
+                    "(SELECT 1 FROM pg_constraint WHERE conname = 'voters_fingerprint');").executeQuery();
+            if (res.next() && res.getBoolean(1))
+            {
+                connection.setAutoCommit(false);
+                try
+                {
+                    for (String st : fingerprints)
+                    {
+                        connection.prepareStatement(st).executeUpdate();
+                    }
+                    connection.commit();
+                }
+                catch (SQLException e)
+                {
+                    connection.rollback();
+                    System.err.println("Voters could not be keyed by fingerprint, the voters table is left as it was " +
+                            "(PostgreSQL 11 or later is required): " + e.getMessage());
+                }
+                finally
+                {
+                    connection.setAutoCommit(true);
+                }
+            }
+        }
+        catch (SQLException e)
+        {
+            e.printStackTrace();
+        }
+
+        // fingerprint the keys of elections created before fingerprints were stored
+        try
+        {
+            ResultSet res = connection.prepareStatement("SELECT election_name, COALESCE(ballot_key, public_key) " +
+                    "FROM elections WHERE key_fingerprint IS NULL;").executeQuery();
+            PreparedStatement pst = connection.prepareStatement(
+                    "UPDATE elections SET key_fingerprint=? WHERE election_name=?;");
+            while (res.next())
+            {
+                pst.setString(1, CryptoUtils.fingerprint(res.getString(2)));
+                pst.setString(2, res.getString(1));
+                pst.executeUpdate();
+            }
+        }
+        catch (SQLException e)
+        {   // no elections table yet
+        }
+    }
+
+    /**
+     * creates a new voter
+     * @param fname  registrant's first name
+     * @param lname  registrant's last name
+     * @param pubKey unique public key to associate with the registration name
+     * @return true if registration was successful
+     */
+    public Boolean registerVoter(String pubKey, String fname, String lname, String election)
+    {
+        if (connection == null) return false;
+        String rst; PreparedStatement pst;
+        try
+        {   // create voter table if not exists
+            rst = "CREATE TABLE IF NOT EXISTS voters (" +
+                    "fname varchar (40) NOT NULL, " +
+                    "lname varchar (40) NOT NULL, " +
+                    "key varchar (344) NOT NULL, " +        // voter public key
+                    "election_name varchar (128) NOT NULL, " +    // public election key
+                    "voter_index INT, " +                   // dense index of the voter within the election
+                    "voted BOOLEAN NOT NULL DEFAULT FALSE, " + // a ballot of the voter is in the blockchain
+                    "fingerprint BYTEA NOT NULL, " +        // SHA-256 of the voter key (see CryptoUtils.keyDigest)
+                    // a voter key registers once per election, looked up by its digest
+                    "CONSTRAINT voters_fingerprint PRIMARY KEY (election_name, fingerprint)," +
+                    "UNIQUE (election_name,voter_index)" +
+                  ");";
+            connection.prepareStatement(rst).executeUpdate();
+            connection.prepareStatement(ROSTER_INDEX).executeUpdate();
+
+            // insert new voter record into the table, taking the next voter index from the election
+            // (a single statement, so a failed insert does not use up an index)
+            rst = "WITH idx AS (UPDATE elections SET voter_count = voter_count + 1 WHERE election_name=? " +
+                    "RETURNING voter_count - 1 AS i) " +
+                  "INSERT INTO voters (fname, lname, key, election_name, voter_index, fingerprint) " +
+                    "SELECT ?, ?, ?, ?, i, ? FROM idx;";
+            pst = connection.prepareStatement(rst);
+            pst.setString(1, election);
+            pst.setString(2, fname);
+            pst.setString(3, lname);
+            pst.setString(4, pubKey);
+            pst.setString(5, election);
+            pst.setBytes(6, CryptoUtils.keyDigest(pubKey));
+            return 1 == pst.executeUpdate(); // return true if one entry was update
+        }
+        catch (SQLException e)
+        {
+            e.printStackTrace();
+            return false;
+        }
+    }
+
+    /**
+     * @param electionName the election for which to count registered users
+     * @return number of registered voters, read from the election's maintained counter on the primary: the count is
+     *         cached until the election's next registration, so a replica's stale count would outlive its lag
+     */
+    public long getVoterCount(String electionName)
+    {
+        if (connection == null || electionName == null) return 0;
+        try
+        {
+            PreparedStatement pst = connection.prepareStatement(
+                    "SELECT voter_count FROM elections WHERE election_name=?;");
+            pst.setString(1, electionName);
+            ResultSet res = pst.executeQuery();
+            return res.next() ? res.getLong(1) : 0;
+        }
+        catch (SQLException e)
+        {
+            e.printStackTrace();
+            return 0;
+        }
+    }
+
+    /**
+     * Reads an election's turnout from its maintained counters: two indexed lookups, whatever the size of the
+     * roll or the chain.
+     * @param electionName the (unique) name of an election
+     * @return the election's turnout, or null if there is no such election
+     */
+    public DatabaseUtils.Turnout getTurnout(String electionName)
+    {
+        if (connection == null || electionName == null) return null;
+        Connection db = reader();
+        try
+        {
+            PreparedStatement pst = db.prepareStatement(
+                    "SELECT voter_count, ballot_count, voted_count FROM elections WHERE election_name=?;");
+            pst.setString(1, electionName);
+            ResultSet res = pst.executeQuery();
+            if (!res.next()) return null;
+            DatabaseUtils.Turnout turnout = new DatabaseUtils.Turnout(res.getLong(1), res.getLong(2), res.getLong(3),
+                    System.currentTimeMillis() / 60000);
+
+            // slots of the last TURNOUT_MINUTES minutes, the others count minutes gone by
+            pst = db.prepareStatement("SELECT minute, ballots FROM turnout_minutes " +
+                    "WHERE election_name=? AND minute > ?;");
+            pst.setString(1, electionName);
+            pst.setLong(2, turnout.minute - DatabaseUtils.TURNOUT_MINUTES);
+            res = pst.executeQuery();
+            while (res.next())
+            {
+                long age = turnout.minute - res.getLong(1);
+                if (age >= 0) turnout.perMinute[(int) (DatabaseUtils.TURNOUT_MINUTES - 1 - age)] = res.getInt(2);
+            }
+            return turnout;
+        }
+        catch (SQLException e)
+        {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    /**
+     * retrieves one page of the registered voters, sorted by last then first name (case-insensitive)
+     * @param electionName the election for which to retrieve registered users
+     * @param lastPrefix only voters whose last name starts with this (case-insensitive, may be null)
+     * @param firstPrefix only voters whose first name starts with this (case-insensitive, may be null)
+     * @param after cursor of the last entry of the previous page (null for the first page)
+     * @param limit maximum number of voters to return
+     * @return the page of voters, each entry carries the cursor to continue after it
+     */
+    public List<DatabaseUtils.RosterEntry> getVoterPage(String electionName, String lastPrefix, String firstPrefix,
+                                                        String after, int limit)
+    {
+        List<DatabaseUtils.RosterEntry> list = new ArrayList<DatabaseUtils.RosterEntry>();
+        if (connection == null || electionName == null) return list;
+        Connection db = reader();
+        String[] cursor = DatabaseUtils.RosterEntry.decodeCursor(after);
+        try
+        {
+            String st = "SELECT fname, lname, voter_index, lower(lname), lower(fname) FROM voters WHERE election_name=? " +
+                    "AND lower(lname) COLLATE \"C\" LIKE ? AND lower(fname) COLLATE \"C\" LIKE ? " +
+                    (cursor == null ? "" :
+                    "AND (lower(lname) COLLATE \"C\", lower(fname) COLLATE \"C\", voter_index) > (?, ?, ?) ") +
+                    "ORDER BY lower(lname) COLLATE \"C\", lower(fname) COLLATE \"C\", voter_index LIMIT ?;";
+            PreparedStatement pst = db.prepareStatement(st);
+            int p = 1;
+            pst.setString(p++, electionName);
+            pst.setString(p++, likePrefix(lastPrefix));
+            pst.setString(p++, likePrefix(firstPrefix));
+            if (cursor != null)
+            {
+                pst.setString(p++, cursor[0]);
+                pst.setString(p++, cursor[1]);
+                pst.setInt(p++, Integer.parseInt(cursor[2]));
+            }
+            pst.setInt(p, limit);
+            ResultSet res = pst.executeQuery();
+            while (res.next())
+            {
+                DatabaseUtils.RosterEntry entry =
+                        new DatabaseUtils.RosterEntry(res.getString(1), res.getString(2), res.getInt(3));
+                entry.sortKey = res.getString(4) + "\0" + res.getString(5); // lower cased by the database
+                list.add(entry);
+            }
+            return list;
+        }
+        catch (SQLException | NumberFormatException e)
+        {
+            e.printStackTrace();
+            return list;
+        }
+    }
+
+    /**
+     * @return LIKE pattern matching names starting with the (lower cased, escaped) prefix
+     */
+    private String likePrefix(String prefix)
+    {
+        if (prefix == null) return "%";
+        return prefix.trim().toLowerCase().replace("\\", "\\\\").replace("%", "\\%").replace("_", "\\_") + "%";
+    }
+
+    /**
+     * Lists elections for the dashboards without their keys (about 740 characters each), which voters fetch
+     * from the election key endpoint by fingerprint when they need one.
+     * @param status 'U' upcoming, 'Y' active or 'N' closed
+     * @return the elections with that status, sorted by name
+     */
+    public List<DatabaseUtils.ElectionSummary> getElectionSummaries(char status)
+    {
+        List<DatabaseUtils.ElectionSummary> list = new ArrayList<DatabaseUtils.ElectionSummary>();
+        if (connection == null) return list;
+        Connection db = reader();
+        try
+        {
+            PreparedStatement pst = db.prepareStatement("SELECT election_name, block_count, key_fingerprint, " +
+                    "voter_count, ballot_count, voted_count, archived FROM elections WHERE active=? " +
+                    "ORDER BY election_name;");
+            pst.setString(1, String.valueOf(status));
+            ResultSet res = pst.executeQuery();
+            while (res.next())
+            {
+                DatabaseUtils.ElectionSummary summary =
+                        new DatabaseUtils.ElectionSummary(res.getString(1), status, res.getLong(2), res.getString(3));
+                summary.registered = res.getLong(4);
+                summary.ballots = res.getLong(5);
+                summary.voted = res.getLong(6);
+                summary.archived = res.getBoolean(7);
+                list.add(summary);
+            }
+            return list;
+        }
+        catch (SQLException e)
+        {
+            e.printStackTrace();
+            return list;
+        }
+    }
+
+    /**
+     * @param fingerprint an election key's fingerprint (see CryptoUtils.fingerprint)
+     * @return the base64 encoded key voters import (the ballot key of v2 and v3 elections), or null
+     */
+    public String getElectionKey(String fingerprint)
+    {
+        if (fingerprint == null) return null;
+        String cached = electionKeyCache.get(fingerprint);
+        if (cached != null) return cached;
+        if (connection == null) return null;
+        try
+        {
+            PreparedStatement pst = reader().prepareStatement(
+                    "SELECT COALESCE(ballot_key, public_key) FROM elections WHERE key_fingerprint=?;");
+            pst.setString(1, fingerprint);
+            ResultSet res = pst.executeQuery();
+            if (!res.next()) return null;
+            electionKeyCache.put(fingerprint, res.getString(1));
+            return res.getString(1);
+        }
+        catch (SQLException e)
+        {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    /**
+     * @param electionName the (unique) name of an election
+     * @return the fingerprint of the key voters import, or null if there is no such election
+     */
+    public String getKeyFingerprint(String electionName)
+    {
+        if (connection == null || electionName == null) return null;
+        try
+        {
+            PreparedStatement pst = reader().prepareStatement(
+                    "SELECT key_fingerprint FROM elections WHERE election_name=?;");
+            pst.setString(1, electionName);
+            ResultSet res = pst.executeQuery();
+            return res.next() ? res.getString(1) : null;
+        }
+        catch (SQLException e)
+        {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    public List<String> getElectionNames(char status)
+    {
+        String st; PreparedStatement pst; ResultSet res;
+        List<String> list = new LinkedList<String>();
+        if (connection == null) return list;
+        Connection db = reader();
+        try{
+            st	= "SELECT election_name FROM elections WHERE active=?";
+            pst = db.prepareStatement(st);
+            pst.setString(1, String.valueOf(status));
+            res = pst.executeQuery();
+            while(res.next()){
+                String election = res.getString("election_name");
+                list.add(election);
+            }
+            Collections.sort(list);
+            return list;
+        }
+        catch(SQLException e)
+        {
+            e.printStackTrace();
+            return list;
+        }
+    }
+
+    /**
+     * @param electionName the (unique) name of an election
+     * @param voterKey the voter's public key (modulus or P-256 point, base64)
+     * @return true if the key is registered for the election, one primary key lookup by the key's digest
+     */
+    public boolean isRegistered(String electionName, String voterKey)
+    {
+        if (connection == null || voterKey == null) return false;
+        try
+        {
+            PreparedStatement pst = connection.prepareStatement(
+                    "SELECT 1 FROM voters WHERE election_name=? AND fingerprint=?;");
+            pst.setString(1, electionName);
+            pst.setBytes(2, CryptoUtils.keyDigest(voterKey));
+            return pst.executeQuery().next();
+        }
+        catch (SQLException | IllegalArgumentException e)
+        {
+            e.printStackTrace();
+            return false;
+        }
+    }
+
+    private String hex(byte[] bytes)
+    {
+        StringBuilder hex = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes)
+        {
+            hex.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+        }
+        return hex.toString();
+    }
+
+    /**
+     * @param electionName the election whose voters to look up
+     * @return registry resolving voter moduli to voter indices with one query per batch
+     */
+    public VoterRegistry voterRegistry(final String electionName)
+    {
+        return voterRegistry(electionName, connection);
+    }
+
+    /**
+     * @param db connection to look the voters up with (the primary or a replica)
+     */
+    private VoterRegistry voterRegistry(final String electionName, final Connection db)
+    {
+        int size = 0;
+        if (db != null)
+        {
+            try
+            {
+                PreparedStatement pst = db.prepareStatement(
+                        "SELECT voter_count FROM elections WHERE election_name=?;");
+                pst.setString(1, electionName);
+                ResultSet res = pst.executeQuery();
+                if (res.next()) size = (int) res.getLong(1);
+            }
+            catch (SQLException e)
+            {
+                e.printStackTrace();
+            }
+        }
+        final int count = size;
+        return new VoterRegistry()
+        {
+            @Override
+            public int size()
+            {
+                return count;
+            }
+
+            @Override
+            public void indexOf(String[] moduli, int[] indices)
+            {
+                Arrays.fill(indices, -1);
+                if (db == null) return;
+                try
+                {
+                    // look the voters up by key digest (hex encoded for the driver, decoded in the query)
+                    String[] digests = new String[moduli.length];
+                    for (int i = 0; i < moduli.length; i++)
+                    {
+                        digests[i] = moduli[i] == null ? null : hex(CryptoUtils.keyDigest(moduli[i]));
+                    }
+                    PreparedStatement pst = db.prepareStatement(
+                            "SELECT encode(fingerprint, 'hex'), voter_index FROM voters WHERE election_name=? " +
+                            "AND fingerprint = ANY(ARRAY(SELECT decode(unnest(?::varchar[]), 'hex')));");
+                    pst.setString(1, electionName);
+                    pst.setArray(2, db.createArrayOf("varchar", digests));
+                    ResultSet res = pst.executeQuery();
+                    Map<String, Integer> found = new HashMap<String, Integer>();
+                    while (res.next())
+                    {
+                        found.put(res.getString(1), res.getInt(2));
+                    }
+                    for (int i = 0; i < digests.length; i++)
+                    {
+                        Integer idx = digests[i] == null ? null : found.get(digests[i]);
+                        if (idx != null) indices[i] = idx;
+                    }
+                }
+                catch (SQLException e)
+                {
+                    e.printStackTrace();
+                }
+            }
+        };
+    }
+
+
+    /**
+     * Add the terminating block on the blockchain and close the election.
+     * A homomorphic election's ballots are added up before the chain is locked, and the lock is only held to write
+     * the terminus; if ballots keep arriving meanwhile, the last attempt adds them up under the lock.
+     *
+     * @param publicKey
+     * @return the terminus block number if the blockchain has been terminated, -1 if not
+     */
+    public long terminateElectionBlockchain(String publicKey) {
+        if (chainConnections.length == 0 || publicKey == null) return -1;
+        for (int attempt = 1; ; attempt++) {
+            Long terminus = terminate(publicKey, attempt < TALLY_ATTEMPTS);
+            if (terminus != null) return terminus;
+        }
+    }
+
+    /**
+     * @param tallyFirst add up a homomorphic election's ballots before taking the lock
+     * @return the terminus block number, -1 if the blockchain was not terminated, null if ballots were added after
+     *         they were added up
+     */
+    private Long terminate(String publicKey, boolean tallyFirst) {
+        String rst; PreparedStatement pst; ResultSet res;
+        String relName; long time; long blockCount;
+        String privateKey, terminus = null;
+        long tallied = -1; // blocks before this one are in the terminus
+        try {
+            // derive blockchain relation name from public key's modulus
+            relName = DatabaseUtils.deriveBlockchainName(publicKey);
+
+            // retrieve private key
+            privateKey = retrievePrivateKey(publicKey);
+            if (privateKey == null) return -1L;
+
+            if (tallyFirst) {
+                // add up the ballots appended so far without holding the chain (read on the primary, the chain is live)
+                pst = connection.prepareStatement("SELECT block_count, election_name FROM elections " +
+                        "WHERE public_key=? AND active='Y' AND homomorphic");
+                pst.setString(1, publicKey);
+                res = pst.executeQuery();
+                if (res.next()) {
+                    tallied = res.getLong(1);
+                    terminus = homomorphicTally(connection, relName, tallied, res.getString(2), privateKey);
+                }
+            }
+        }
+        catch (Exception e)
+        {
+            e.printStackTrace();
+            return -1L;
+        }
+
+        ChainConnection chain = chain(publicKey);
+        long waiting = System.nanoTime();
+        synchronized (chain) {
+        QueryMetrics.waited(chainName, waiting);
+        Connection db = null;
+        try {
+            db = chain.open();
+            lockChain(db, relName); // no other instance appends while the chain is terminated
+            
+            // read block number and status from elections
+            rst = "SELECT block_count, active, election_name, homomorphic FROM elections WHERE public_key=?";
+            pst = db.prepareStatement(rst);
+            pst.setString(1, publicKey);
+            res = pst.executeQuery();
+            if(res.next() && res.getString("active").equals("Y"))
+                blockCount = res.getLong("block_count");
+            else
+                return abort(db);
+            String electionName = res.getString("election_name");
+            boolean homomorphic = res.getBoolean("homomorphic");
+
+            // ballots journaled by any instance were acknowledged, they must be in the chain before it is terminated
+            pst = db.prepareStatement(
+                    "SELECT COALESCE(SUM(pending), 0) FROM journal_backlog WHERE public_key=?");
+            pst.setString(1, publicKey);
+            res = pst.executeQuery();
+            if (res.next() && res.getLong(1) > 0)
+            {
+                System.err.println("Not closing " + electionName + ": " + res.getLong(1) + " journaled ballot(s) left");
+                return abort(db);
+            }
+
+            // verify that the last block of the election blockchain precedes the next block number
+            rst = "SELECT block_no FROM "+relName+" ORDER BY block_no DESC LIMIT 1";
+            pst = db.prepareStatement(rst);
+            res = pst.executeQuery();
+            if(!res.next() || res.getLong("block_no") != blockCount - 1)
+                return abort(db);
+
+            // the terminus reveals the private key, a homomorphic election's terminus holds the proven tally instead
+            if (!homomorphic)
+                terminus = privateKey;
+            else if (tallied != blockCount && tallyFirst)
+            {   // ballots were appended after they were added up
+                rollback(db);
+                return null;
+            }
+            else if (tallied != blockCount)
+                terminus = homomorphicTally(db, relName, blockCount, electionName, privateKey);
+            
+            // insert the terminus block into the table (_id is assigned by the table's sequence)
+            rst = "INSERT INTO "+relName+" (block_no, block_content, timestamp, current_hash) VALUES(?, ?, ?, ?);";
+            pst = db.prepareStatement(rst);
+            pst.setLong(1, blockCount+1);
+            pst.setString(2, terminus);
+            time = System.currentTimeMillis();
+            pst.setLong(3, time);
+            String timestamp = Base64.getEncoder().encodeToString(Long.toString(time).getBytes());
+            pst.setString(4, CryptoUtils.signData(CryptoUtils.base64Concat(publicKey,timestamp), 
+            		CryptoUtils.importPrivateKey(privateKey)));
+            pst.executeUpdate();
+
+            // update block number in the elections table
+            rst = "UPDATE elections SET block_count=?, active='N' WHERE public_key=?;";
+            pst = db.prepareStatement(rst);
+            pst.setLong(1, blockCount+1);
+            pst.setString(2, publicKey);
+
+            if(pst.executeUpdate() == 1) {
+                db.commit();
+                return blockCount+1;
+            }
+            return abort(db);
+        }
+        catch (Exception e)
+        {
+            e.printStackTrace();
+            rollback(db);
+            chain.failed(e);
+            return -1L;
+        }
+        }
+    }
+    
+    /**
+     * Adds up the ciphertexts of every voter's latest ballot and decrypts the sums (see ElGamalTally).
+     * The ballots are read a page at a time, newest first.
+     * @param blockCount the chain's next block number (ballots are blocks 1 to blockCount-1)
+     * @return the base64 encoded terminus record
+     */
+    private String homomorphicTally(Connection db, String relName, long blockCount, String electionName,
+                                    String privateKey) throws SQLException
+    {
+        // the ballots were checked when they were cast, adding them up only needs their ciphertexts
+        KeyPair ballotKey = CryptoUtils.ballotKeyPair(CryptoUtils.importPrivateKey(privateKey));
+        CandidateDictionary candidates = getCandidates(electionName);
+        if (candidates == null) throw new SQLException("The candidates of " + electionName + " could not be read");
+        ElGamalTally.Totals totals = ElGamalTally.aggregate(ballotsNewestFirst(db, relName, blockCount),
+                candidates.size(), voterRegistry(electionName, db), ElGamalTally.tallyKey(ballotKey), false);
+        return Base64.getEncoder().encodeToString(ElGamalTally.decrypt(totals, ballotKey));
+    }
+
+    /**
+     * @param blockCount ballots before this block number are read (the genesis block is not)
+     * @return the ballots of a blockchain newest first, read TALLY_PAGE blocks at a time as they are iterated
+     *         (an IllegalStateException reports a failed read)
+     */
+    private static Iterable<String> ballotsNewestFirst(Connection db, String relName, long blockCount)
+    {
+        return () -> new Iterator<String>()
+        {
+            private long before = blockCount; // blocks before this one are still to be read
+            private Iterator<String> page = Collections.emptyIterator();
+
+            @Override
+            public boolean hasNext()
+            {
+                if (page.hasNext()) return true;
+                if (before <= 1) return false;
+                List<String> ballots = new ArrayList<String>(TALLY_PAGE);
+                try
+                {
+                    PreparedStatement pst = db.prepareStatement("SELECT block_no, block_content FROM " + relName +
+                            " WHERE block_no > 0 AND block_no < ? ORDER BY block_no DESC LIMIT ?;");
+                    pst.setLong(1, before);
+                    pst.setInt(2, TALLY_PAGE);
+                    ResultSet res = pst.executeQuery();
+                    before = 1;
+                    while (res.next())
+                    {
+                        before = res.getLong(1);
+                        ballots.add(res.getString(2));
+                    }
+                }
+                catch (SQLException e)
+                {
+                    throw new IllegalStateException("The ballots of " + relName + " could not be read", e);
+                }
+                page = ballots.iterator();
+                return page.hasNext();
+            }
+
+            @Override
+            public String next()
+            {
+                if (!hasNext()) throw new NoSuchElementException();
+                return page.next();
+            }
+        };
+    }
+
+    /**
+     * creates a new table to hold an elections blockchain
+     * adds an entry for that election blockchain to the elections table (for easier referencing)
+     * inserts the genesis block (contains blockchain encryption key)
+     * @param publicKey the encryption key (RSA-4096) for ballots urlbase64 encoded
+     * @return true is election creation was successful
+     */
+    public Boolean initializeElectionBlockchain(String publicKey)
+    {
+        if (connection == null) return false;
+        String rst; PreparedStatement pst;
+        long time;
+        try
+        {
+        	// derive blockchain relation name from public key's modulus
+        	String relName = DatabaseUtils.deriveBlockchainName(publicKey);
+
+            // create the new election block chain
+            rst = "CREATE TABLE "+relName+" (" +
+                    "_id BIGSERIAL PRIMARY KEY, " +            	// arbitrary, unique ID (from the table's sequence)
+                    "block_no BIGINT NOT NULL UNIQUE, " +      	// block number (indexed, chain head lookups)
+                    "block_content VARCHAR(4096) NOT NULL, " +  // contents of the block OR election key -> urlbase64 encoded
+                    "timestamp BIGINT NOT NULL," +              // epoch time in millis
+                    "current_hash VARCHAR(4096) NOT NULL" +     // hash(content||prev_hash||time) OR election key signature -> urlbase64 encoded
+                    ");";
+            connection.prepareStatement(rst).executeUpdate();
+
+            // retrieve private key for signing
+            // TODO sign using administrative key rather than election?
+            PrivateKey privateKey = CryptoUtils.importPrivateKey(retrievePrivateKey(publicKey));
+            
+            // insert the genesis block into the table (_id is assigned by the table's sequence)
+            rst = "INSERT INTO "+relName+" (block_no, block_content, timestamp, current_hash) VALUES(0, ?, ?, ?);";
+            pst = connection.prepareStatement(rst);
+            pst.setString(1, publicKey);
+            time = System.currentTimeMillis();
+            pst.setLong(2, time);
+            String timestamp = Base64.getEncoder().encodeToString(Long.toString(time).getBytes());
+            pst.setString(3, CryptoUtils.signData(CryptoUtils.base64Concat(publicKey,timestamp), privateKey));
+            pst.executeUpdate();
+
+            // update block number in the elections table
+            rst = "UPDATE elections SET block_count=1, active='Y' WHERE public_key=?;";
+            pst = connection.prepareStatement(rst);
+            pst.setString(1, publicKey);
+
+            return 1 == pst.executeUpdate(); // return true if the entry was created
+        }
+        catch (SQLException e)
+        {
+            e.printStackTrace();
+            return false;
+        }
+    }
+
+    /**
+     * Adds records to the Elections, PrivateKeys and Candidates tables to create a new election.
+     * Handles creating the key pair for the election.
+     * @param electionName Identifier for the election
+     * @param electionKeys (optional) RSA-4096 key pair to utilize for the election
+     * @param candidates names of the candidates on the ballot (empty for a write-in election)
+     * @param ballotFormat 1 for RSA ballots, 2 for ECDH/AES-GCM ballots signed with P-256 voter keys,
+     *                     3 for homomorphically tallied ElGamal ballots signed with P-256 voter keys
+     * @return True if the election is successfully created
+     */
+    public Boolean createElection(String electionName, KeyPair electionKeys, List<String> candidates,
+                                  int ballotFormat)
+    {
+    	if(connection == null) return false;
+    	String rst; PreparedStatement pst;
+    	KeyPair keys; String pk, sk;
+    	try{
+    		// create an elections table to hold meta-information
+            // on existing election block chains
+            rst = "CREATE TABLE IF NOT EXISTS elections (" +
+                    "public_key VARCHAR(4096) PRIMARY KEY," + // public key -> urlbase64 encoded
+                    "block_count BIGINT NOT NULL," +     	  // next block number
+                    "election_name VARCHAR(128) UNIQUE," +	  // readable (unique) identifier
+                    "active CHAR(1)," +                       // Active Flag to identify if election is active.
+                    "voter_count BIGINT NOT NULL DEFAULT 0," + // registered voters, next voter index
+                    "archived BOOLEAN NOT NULL DEFAULT FALSE," + // blockchain moved to an archive segment
+                    "ballot_key VARCHAR(256)," +              // v2/v3 ballot encryption key (null: v1 ballots)
+                    "homomorphic BOOLEAN NOT NULL DEFAULT FALSE," + // v3 ballots, tallied without decrypting them
+                    "key_fingerprint VARCHAR(64) UNIQUE," +   // fingerprint of the key voters import
+                    "ballot_count BIGINT NOT NULL DEFAULT 0," + // ballots in the blockchain, re-votes included
+                    "voted_count BIGINT NOT NULL DEFAULT 0" +  // distinct voters with an accepted ballot
+                                                            // other useful information to keep handy?
+                    ");";
+            connection.prepareStatement(rst).executeUpdate();
+            
+            // create a separate table to store private keys
+            rst = "CREATE TABLE IF NOT EXISTS private_keys (" +
+            		"public_key VARCHAR(4096) PRIMARY KEY," +	// public key -> urlbase64 encoded
+            		"private_key VARCHAR(4096)" +				// private key -> urlbase64 encoded
+            		");";										// TODO base64 encoding of keys < 4096 bytes, can optimize
+            connection.prepareStatement(rst).executeUpdate();
+
+            // create a table to hold each election's candidate dictionary
+            rst = "CREATE TABLE IF NOT EXISTS candidates (" +
+                    "election_name VARCHAR(128) NOT NULL," +   // election the candidate is running in
+                    "candidate_id INT NOT NULL," +             // dense id, used to index tallies
+                    "name VARCHAR(128) NOT NULL," +            // candidate name as written on the ballot
+                    "PRIMARY KEY (election_name, candidate_id)," +
+                    "UNIQUE (election_name, name)" +
+                    ");";
+            connection.prepareStatement(rst).executeUpdate();
+            
+            // take a pre-generated key pair from the pool or read the given key pair for the election
+            if (electionKeys == null)
+            	keys = ElectionKeyPool.take();
+            else
+            	keys = electionKeys;
+            pk = CryptoUtils.exportKey(keys.getPublic());
+            sk = CryptoUtils.exportKey(keys.getPrivate());
+            
+            // store record for the Elections table
+            String ballotKey = ballotFormat >= 2 ?
+                    CryptoUtils.exportKey(CryptoUtils.ballotKeyPair(keys.getPrivate()).getPublic()) : null;
+            rst = "INSERT INTO elections (public_key, block_count, election_name, active, ballot_key, homomorphic, " +
+                    "key_fingerprint) VALUES (?, 0, ?, 'U', ?, ?, ?)";
+            pst = connection.prepareStatement(rst);
+            pst.setString(1, pk);
+            pst.setString(2, electionName);
+            pst.setString(3, ballotKey);
+            pst.setBoolean(4, ballotFormat == 3);
+            pst.setString(5, CryptoUtils.fingerprint(ballotKey != null ? ballotKey : pk));
+            pst.executeUpdate();
+            
+            // store record for the PrivateKeys table
+            rst = "INSERT INTO private_keys VALUES (?, ?)";
+            pst = connection.prepareStatement(rst);
+            pst.setString(1, pk);
+            pst.setString(2, sk);
+            pst.executeUpdate();
+
+            // store the candidate dictionary, ids are assigned in the order given
+            CandidateDictionary dict = CandidateDictionary.of(candidates);
+            rst = "INSERT INTO candidates VALUES (?, ?, ?)";
+            pst = connection.prepareStatement(rst);
+            for (int id = 0; id < dict.size(); id++)
+            {
+                pst.setString(1, electionName);
+                pst.setInt(2, id);
+                pst.setString(3, dict.name(id));
+                pst.addBatch();
+            }
+            pst.executeBatch();
+            candidateCache.put(electionName, dict);
+            
+            return true;
+    	}
+    	catch(SQLException e)
+    	{
+    		e.printStackTrace();
+    		return false;
+    	}
+    }
+
+    /**
+     * @param electionName the (unique) name of an election
+     * @return the election's candidates (empty for a write-in election or if the election does not exist)
+     */
+    public CandidateDictionary getCandidates(String electionName)
+    {
+        if (electionName == null) return new CandidateDictionary();
+        CandidateDictionary cached = candidateCache.get(electionName);
+        if (cached != null) return cached;
+        if (connection == null) return null;
+
+        String rst; PreparedStatement pst; ResultSet res;
+        try
+        {
+            rst = "SELECT name FROM candidates WHERE election_name=? ORDER BY candidate_id;";
+            pst = connection.prepareStatement(rst);
+            pst.setString(1, electionName);
+            res = pst.executeQuery();
+            CandidateDictionary dict = new CandidateDictionary();
+            while (res.next())
+            {
+                dict.add(res.getString(1));
+            }
+            if (retrievePublicKey(electionName) != null)
+                candidateCache.put(electionName, dict); // only cache elections that exist
+            return dict;
+        }
+        catch (SQLException e)
+        {   // an empty dictionary would take write-ins, so an unreadable one must not pass for it
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    /**
+     * @param electionName the (unique) name of an election
+     * @return the ballot format the election takes: 1, 2 or 3 (1 if there is no such election)
+     */
+    public int getBallotFormat(String electionName)
+    {
+        if (electionName == null) return 1;
+        Integer cached = ballotFormatCache.get(electionName);
+        if (cached != null) return cached;
+        if (connection == null) return 1;
+        try
+        {
+            PreparedStatement pst = connection.prepareStatement(
+                    "SELECT ballot_key IS NOT NULL, homomorphic FROM elections WHERE election_name=?;");
+            pst.setString(1, electionName);
+            ResultSet res = pst.executeQuery();
+            if (!res.next()) return 1;
+            int format = res.getBoolean(2) ? 3 : res.getBoolean(1) ? 2 : 1;
+            ballotFormatCache.put(electionName, format);
+            return format;
+        }
+        catch (SQLException e)
+        {
+            e.printStackTrace();
+            return 1;
+        }
+    }
+
+    /**
+     * @param electionName the (unique) name of an election
+     * @return the base64 encoded (spki) P-256 key of an election taking v2 or v3 ballots, null for v1 elections
+     */
+    public String getBallotKey(String electionName)
+    {
+        if (connection == null) return null;
+        try
+        {
+            PreparedStatement pst = connection.prepareStatement(
+                    "SELECT ballot_key FROM elections WHERE election_name=?;");
+            pst.setString(1, electionName);
+            ResultSet res = pst.executeQuery();
+            return res.next() ? res.getString(1) : null;
+        }
+        catch (SQLException e)
+        {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    /**
+     *
+     * @param electionName the (unique) name of an election
+     * @return an importable, base64 encoded public key (or null)
+     */
+    public String retrievePublicKey(String electionName)
+    {
+        if (connection == null) return null;
+
+        String rst;
+        PreparedStatement pst;
+        ResultSet res;
+        try
+        {
+            rst = "SELECT public_Key FROM elections WHERE election_name=?;";
+            pst = connection.prepareStatement(rst);
+            pst.setString(1, electionName);
+            res = pst.executeQuery();
+
+            if(res.next())
+                return res.getString(1);
+            else
+                return null;
+        }
+        catch (Exception e)
+        {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    /**
+     * Retrieves an election's private key from the private_keys table.
+     * TODO This method is a security concern. Monitor closely. 
+     * @param publicKey The public key corresponding to the election
+     * @return The private key for the election, base 64 encoded
+     */
+    public String retrievePrivateKey(String publicKey)
+    {
+    	if (connection == null) return null;
+    	String rst; 
+    	PreparedStatement pst;
+    	ResultSet res;
+    	try{
+    		rst = "SELECT private_key FROM private_keys WHERE public_key=?";
+    		pst = connection.prepareStatement(rst);
+    		pst.setString(1, publicKey);
+    		res = pst.executeQuery();
+    		
+    		if(res.next())
+    		{
+    			return res.getString("private_key");
+    		}
+    		else
+    		{
+    			return null;
+    		}
+    	}
+    	catch(SQLException e){
+    		System.err.println("Unable to retrieve private key.");
+    		return null;
+    	}
+    }
+
+    /**
+     * Adds valid ballots to an election's blockchain as consecutive blocks, all or none of them.
+     * The append is one transaction holding the election's advisory lock, so appends from several app instances
+     * are serialized per election and the chain stays linear; a batch pays for the lock and commit only once.
+     * The ballots' voters are marked as having voted by the statement that counts the blocks, so the turnout only
+     * counts ballots that made it into the chain and costs no round trip of its own.
+     * @param ballots Base 64 encoded encrypted ballots, in block order
+     * @param voters the voter key of each ballot (entries may be null where it is not known)
+     * @param electionKey	Primary key to identify the election
+     * @return the block number of the first ballot if all blocks were added, -1 if none were
+     */
+    public long addToBlockchain(List<String> ballots, List<String> voters, String electionKey)
+    {
+    	if (chainConnections.length == 0 || ballots.isEmpty() || electionKey == null) return -1;
+    	String rst; PreparedStatement pst; ResultSet res;
+    	long blockCount; String prevHash; long time;
+    	ChainConnection chain = chain(electionKey);
+    	long waiting = System.nanoTime();
+    	synchronized (chain)
+    	{
+    	QueryMetrics.waited(chainName, waiting);
+    	Connection db = null;
+    	try
+    	{
+    		db = chain.open();
+    		// derive blockchain relation name from public modulus
+    		String relName = DatabaseUtils.deriveBlockchainName(electionKey);
+    		lockChain(db, relName);
+
+    		// read block number and status from elections (stable while the lock is held)
+    		rst = "SELECT block_count, active FROM elections WHERE public_key=?";
+    		pst = db.prepareStatement(rst);
+    		pst.setString(1, electionKey);
+    		res = pst.executeQuery();
+    		if(res.next() && res.getString("active").equals("Y"))
+    			blockCount = res.getLong("block_count");
+    		else
+    			return abort(db);
+    		
+    		// query the last block of the election blockchain (an index lookup on block_no rather than
+    		// counting every row) and verify that it precedes the next block number
+    		rst = "SELECT block_no, current_hash FROM "+relName+" ORDER BY block_no DESC LIMIT 1";
+    		pst = db.prepareStatement(rst);
+    		res = pst.executeQuery();
+    		if(res.next() && res.getLong("block_no") == blockCount - 1)
+    			prevHash = res.getString("current_hash");
+    		else
+    			return abort(db);
+    		
+    		long first = blockCount;
+    		// insert the new blocks, each hash linking to the one before (_id is assigned by the table's sequence)
+    		rst = "INSERT INTO "+relName+" (block_no, block_content, timestamp, current_hash) VALUES (?,?,?,?)";
+    		pst = db.prepareStatement(rst);
+    		for (String ballot : ballots)
+    		{
+    			time = System.currentTimeMillis();
+    			prevHash = CryptoUtils.calculateBlockHash(ballot, prevHash, time);
+    			pst.setLong(1, blockCount++);
+    			pst.setString(2, ballot);
+    			pst.setLong(3, time);
+    			pst.setString(4, prevHash);
+    			pst.addBatch();
+    		}
+    		pst.executeBatch();
+    		
+    		// update block and ballot counts for election, and the voted count by the voters voting for the first time
+    		// (looked up by key digest, hex encoded for the driver and decoded in the query)
+    		List<String> digests = new ArrayList<String>(voters.size());
+    		for (String voterKey : voters)
+    		{
+    			try
+    			{
+    				if (voterKey != null) digests.add(hex(CryptoUtils.keyDigest(voterKey)));
+    			}
+    			catch (IllegalArgumentException e)
+    			{   // not a key, no voter to mark
+    			}
+    		}
+    		rst = "WITH v AS (UPDATE voters SET voted = TRUE WHERE election_name = " +
+    				"(SELECT election_name FROM elections WHERE public_key = ?) " +
+    				"AND fingerprint = ANY(ARRAY(SELECT decode(unnest(?::varchar[]), 'hex'))) AND NOT voted RETURNING 1) " +
+    				"UPDATE elections SET block_count = ?, ballot_count = ballot_count + ?, " +
+    				"voted_count = voted_count + (SELECT count(*) FROM v) WHERE public_key = ? RETURNING election_name";
+    		pst = db.prepareStatement(rst);
+    		pst.setString(1, electionKey);
+    		pst.setArray(2, db.createArrayOf("varchar", digests.toArray()));
+    		pst.setLong(3, blockCount);
+    		pst.setInt(4, ballots.size());
+    		pst.setString(5, electionKey);
+    		res = pst.executeQuery();
+    		if (!res.next())
+    			return abort(db);
+    		countMinute(db, res.getString(1), ballots.size());
+    		
+    		db.commit();
+    		return first;
+    	}
+    	catch(Exception e){
+    		e.printStackTrace();
+    		rollback(db);
+    		chain.failed(e);
+    		return -1;
+    	}
+    	}
+    }
+
+    /**
+     * adds appended ballots to the current minute's slot of the election's turnout ring, in the chain transaction
+     */
+    private void countMinute(Connection db, String electionName, int ballots) throws SQLException
+    {
+        long minute = System.currentTimeMillis() / 60000;
+        // a slot still counting an older minute starts over
+        PreparedStatement pst = db.prepareStatement("INSERT INTO turnout_minutes AS t (election_name, slot, minute, ballots) " +
+                "VALUES (?, ?, ?, ?) ON CONFLICT (election_name, slot) DO UPDATE SET " +
+                "ballots = CASE WHEN t.minute = EXCLUDED.minute THEN t.ballots + EXCLUDED.ballots " +
+                "ELSE EXCLUDED.ballots END, minute = EXCLUDED.minute;");
+        pst.setString(1, electionName);
+        pst.setInt(2, (int) (minute % DatabaseUtils.TURNOUT_MINUTES));
+        pst.setLong(3, minute);
+        pst.setInt(4, ballots);
+        pst.executeUpdate();
+    }
+
+    /**
+     * Takes the advisory lock of an election blockchain for the current transaction on a chain connection.
+     * Every instance of the app writing to the chain takes this lock first, and it is released on commit or rollback.
+     * @param relName the blockchain relation name
+     */
+    private void lockChain(Connection db, String relName) throws SQLException
+    {
+        PreparedStatement pst = db.prepareStatement("SELECT pg_advisory_xact_lock(?, hashtext(?));");
+        pst.setInt(1, CHAIN_LOCK);
+        pst.setString(2, relName);
+        pst.executeQuery();
+    }
+
+    /**
+     * rolls back a failed append or termination on the chain connection
+     * @return -1, the block number addToBlockchain and terminateElectionBlockchain return when nothing was added
+     */
+    private long abort(Connection db)
+    {
+        rollback(db);
+        return -1;
+    }
+
+    /**
+     * ends the current chain transaction without changes
+     */
+    private void rollback(Connection db)
+    {
+        if (db == null) return; // never connected
+        try
+        {
+            db.rollback();
+        }
+        catch (SQLException e)
+        {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * @return the chain connection the election's blockchain writes go through
+     */
+    private ChainConnection chain(String electionKey)
+    {
+        return chainConnections[Math.floorMod(electionKey.hashCode(), chainConnections.length)];
+    }
+
+    /**
+     * A connection for blockchain write transactions, (re)connected on use. Callers synchronize on it for the whole
+     * transaction.
+     */
+    private static class ChainConnection
+    {
+        private final String uri, user, pass, name;
+        private Connection connection = null;
+
+        ChainConnection(String uri, String user, String pass, String name)
+        {
+            this.uri = uri;
+            this.user = user;
+            this.pass = pass;
+            this.name = name;
+        }
+
+        /**
+         * @return the open connection, connecting if it was never opened or found broken
+         */
+        Connection open() throws SQLException
+        {
+            if (connection == null || connection.isClosed())
+            {
+                connection = QueryMetrics.connect(uri, user, pass, name);
+                connection.setAutoCommit(false);
+            }
+            return connection;
+        }
+
+        /**
+         * drops the connection if the error broke it, so the next transaction reconnects
+         * @return false, for use as a failed method's return value
+         */
+        boolean failed(Exception e)
+        {
+            if (connection == null) return false;
+            try
+            {
+                boolean lost = e instanceof SQLException && ((SQLException) e).getSQLState() != null
+                        && ((SQLException) e).getSQLState().startsWith("08");
+                if (lost || connection.isClosed() || !connection.isValid(5))
+                {
+                    connection.close();
+                    connection = null;
+                }
+            }
+            catch (SQLException ignored)
+            {
+                connection = null;
+            }
+            return false;
+        }
+    }
+
+    /**
+     * @param electionKey Public key to identify an election
+     * @return true if the election is active, false if it is not (or does not exist), null if the database is unavailable
+     */
+    public Boolean isActive(String electionKey)
+    {
+        if (connection == null) return null;
+        try
+        {
+            PreparedStatement pst = connection.prepareStatement("SELECT active FROM elections WHERE public_key=?;");
+            pst.setString(1, electionKey);
+            ResultSet res = pst.executeQuery();
+            return res.next() && res.getString(1).equals("Y");
+        }
+        catch (SQLException e)
+        {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    /**
+     * Reads whether an election is active under its chain lock, so a termination that has already taken the lock
+     * (and may have found no journaled ballots left) is waited for.
+     * @param electionKey Public key to identify an election
+     * @return true if the election is active, false if it is not (or does not exist), null if the database is unavailable
+     */
+    public Boolean confirmActive(String electionKey)
+    {
+        if (chainConnections.length == 0 || electionKey == null) return null;
+        ChainConnection chain = chain(electionKey);
+        long waiting = System.nanoTime();
+        synchronized (chain)
+        {
+        QueryMetrics.waited(chainName, waiting);
+        Connection db = null;
+        try
+        {
+            db = chain.open();
+            lockChain(db, DatabaseUtils.deriveBlockchainName(electionKey));
+            PreparedStatement pst = db.prepareStatement("SELECT active FROM elections WHERE public_key=?;");
+            pst.setString(1, electionKey);
+            ResultSet res = pst.executeQuery();
+            boolean active = res.next() && res.getString(1).equals("Y");
+            rollback(db); // releases the lock
+            return active;
+        }
+        catch (SQLException e)
+        {
+            e.printStackTrace();
+            rollback(db);
+            chain.failed(e);
+            return null;
+        }
+        }
+    }
+
+    /**
+     * @param node identifies the ballot journal
+     * @param pending election key mapped to the journal's ballots of the election, for every election it holds
+     *                ballots of (the journal's rows of other elections are dropped)
+     * @return true if recorded, false if the database is unavailable
+     */
+    public boolean reportJournal(String node, Map<String, Integer> pending)
+    {
+        if (connection == null) return false;
+        try
+        {
+            PreparedStatement pst = connection.prepareStatement(
+                    "DELETE FROM journal_backlog WHERE node=? AND public_key <> ALL(?);");
+            pst.setString(1, node);
+            pst.setArray(2, connection.createArrayOf("varchar", pending.keySet().toArray()));
+            pst.executeUpdate();
+            pst = connection.prepareStatement("INSERT INTO journal_backlog (node, public_key, pending) " +
+                    "VALUES (?, ?, ?) ON CONFLICT (node, public_key) DO UPDATE SET pending=EXCLUDED.pending;");
+            for (Map.Entry<String, Integer> entry : pending.entrySet())
+            {
+                pst.setString(1, node);
+                pst.setString(2, entry.getKey());
+                pst.setInt(3, entry.getValue());
+                pst.executeUpdate();
+            }
+            return true;
+        }
+        catch (SQLException e)
+        {
+            e.printStackTrace();
+            return false;
+        }
+    }
+
+    /**
+     * @param electionKey Public key to identify an election
+     * @return ballots of the election the ballot journals have yet to add to its blockchain, null if the database is
+     *         unavailable
+     */
+    public Long journalBacklog(String electionKey)
+    {
+        if (connection == null) return null;
+        try
+        {   // the primary: a replica could still show a backlog as drained
+            PreparedStatement pst = connection.prepareStatement(
+                    "SELECT COALESCE(SUM(pending), 0) FROM journal_backlog WHERE public_key=?;");
+            pst.setString(1, electionKey);
+            ResultSet res = pst.executeQuery();
+            return res.next() ? res.getLong(1) : 0L;
+        }
+        catch (SQLException e)
+        {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    /**
+     * Looks for a ballot among the blocks added to an election blockchain since a point in time (used to replay the
+     * ballot journal idempotently). The chain is read backwards from its head on the block_no index, so only the
+     * blocks added since then are read.
+     * @param electionKey Public key to identify an election
+     * @param ballot Base 64 encoded encrypted ballot
+     * @param since epoch millis, older blocks are not searched
+     * @return true if the ballot is one of those blocks, null if the database is unavailable
+     */
+    public Boolean chainContainsSince(String electionKey, String ballot, long since)
+    {
+        if (connection == null) return null;
+        try
+        {
+            PreparedStatement pst = connection.prepareStatement(
+                    "SELECT block_no, block_content, timestamp FROM " +
+                    DatabaseUtils.deriveBlockchainName(electionKey) +
+                    " WHERE block_no < ? ORDER BY block_no DESC LIMIT 1000;");
+            long before = Long.MAX_VALUE;
+            while (true)
+            {
+                pst.setLong(1, before);
+                ResultSet res = pst.executeQuery();
+                boolean older = true;
+                while (res.next())
+                {
+                    if (res.getString(2).equals(ballot)) return true;
+                    before = res.getLong(1);
+                    older = res.getLong(3) < since;
+                }
+                if (older || before == 0) return false;
+            }
+        }
+        catch (SQLException e)
+        {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    /**
+     * Reads through an election blockchain and returns a formatted list of blocks.
+     * @param electionKey Public key to identify an election
+     * @return List of blocks, each represented as cells in an HTML table row
+     */
+    public List<DatabaseUtils.ElectionBlock> viewBlockchain(String electionKey)
+    {
+    	String rst, relName; ResultSet res; PreparedStatement pst;
+    	List<DatabaseUtils.ElectionBlock> list = new LinkedList<DatabaseUtils.ElectionBlock>();
+        if (connection == null) return list;
+        Connection db = reader();
+    	try
+    	{
+            // query the elections table to learn the election's last block number and active status
+            rst = "SELECT block_count, active, archived FROM elections WHERE public_key=?;";
+            pst = db.prepareStatement(rst);
+            pst.setString(1, electionKey);
+            res = pst.executeQuery();
+
+            if (res.next())
+            {
+                long lastBlock = res.getLong(1); // terminating block no
+                boolean active = !res.getString(2).equalsIgnoreCase("n");
+                if (res.getBoolean(3))
+                {   // the blockchain table is gone, read the archived segment
+                    return ElectionArchive.viewBlockchain(electionKey);
+                }
+
+                // query for list of all blocks
+                relName = DatabaseUtils.deriveBlockchainName(electionKey);
+                rst = "SELECT _id,block_no,block_content,timestamp,current_hash FROM "+relName+" ORDER BY block_no ASC;";
+                res = db.prepareStatement(rst).executeQuery();
+                List<DatabaseUtils.ElectionBlock> ballots = new ArrayList<DatabaseUtils.ElectionBlock>();
+                while(res.next())
+                {   // create election block object for JSTL usage in viewBlockchain.jsp
+                    DatabaseUtils.ElectionBlock block = new DatabaseUtils.ElectionBlock(
+                                                res.getLong(2),
+                                                res.getLong(4),
+                                                res.getString(3),
+                                                res.getString(5));
+                    if (!active && block.no > 0 && block.no < lastBlock)
+                    {   // decrypt the ballot if election is not active and is valid block number
+                        ballots.add(block);
+                    }
+                    list.add(block);
+                }
+                DatabaseUtils.decryptBallots(electionKey, ballots);
+            }
+    		return list;
+    	}
+    	catch(Exception e)
+        {
+    		e.printStackTrace();
+    		return null;
+    	}
+    }
+
+    /**
+     * @param electionName the (unique) name of an election
+     * @return the election's status flag: 'U' upcoming, 'Y' active, 'N' closed (or null if there is no such election)
+     */
+    public String getElectionStatus(String electionName)
+    {
+        if (connection == null || electionName == null) return null;
+        try
+        {
+            PreparedStatement pst = connection.prepareStatement(
+                    "SELECT active FROM elections WHERE election_name=?;");
+            pst.setString(1, electionName);
+            ResultSet res = pst.executeQuery();
+            return res.next() ? res.getString(1) : null;
+        }
+        catch (SQLException e)
+        {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    /**
+     * @param electionKey Public key to identify an election
+     * @return true if the election's blockchain was moved to the archival tier
+     */
+    public boolean isArchived(String electionKey)
+    {
+        if (connection == null) return false;
+        try
+        {
+            PreparedStatement pst = connection.prepareStatement("SELECT archived FROM elections WHERE public_key=?;");
+            pst.setString(1, electionKey);
+            ResultSet res = pst.executeQuery();
+            return res.next() && res.getBoolean(1);
+        }
+        catch (SQLException e)
+        {
+            e.printStackTrace();
+            return false;
+        }
+    }
+
+    /**
+     * Marks a closed election as archived and drops its blockchain table.
+     * Only to be called by ElectionArchive once the archived segment has been verified.
+     * @param electionKey Public key to identify an election
+     * @return true if the election is now served from its archive segment
+     */
+    public boolean archiveBlockchain(String electionKey)
+    {
+        if (connection == null) return false;
+        try
+        {
+            PreparedStatement pst = connection.prepareStatement(
+                    "UPDATE elections SET archived=TRUE WHERE public_key=? AND active='N';");
+            pst.setString(1, electionKey);
+            if (pst.executeUpdate() != 1) return false;
+            connection.prepareStatement("DROP TABLE IF EXISTS " + DatabaseUtils.deriveBlockchainName(electionKey) + ";")
+                    .executeUpdate();
+            return true;
+        }
+        catch (SQLException e)
+        {
+            e.printStackTrace();
+            return false;
+        }
+    }
+
+    /**
+     * Reads a range of an election blockchain in block order, without decrypting anything.
+     * Large chains are read page by page: pass the last block number of one page as the start of the next.
+     * @param electionKey Public key to identify an election
+     * @param afterBlockNo only blocks with a larger block number are returned (-1 to start at the genesis block)
+     * @param limit maximum number of blocks to return
+     * @return the blocks, an empty list once the end of the chain is reached (or null on error)
+     */
+    public List<DatabaseUtils.ElectionBlock> scanBlockchain(String electionKey, long afterBlockNo, int limit)
+    {
+        List<DatabaseUtils.ElectionBlock> list = new ArrayList<DatabaseUtils.ElectionBlock>();
+        if (connection == null) return list;
+        try
+        {
+            String rst = "SELECT block_no, timestamp, block_content, current_hash FROM " +
+                    DatabaseUtils.deriveBlockchainName(electionKey) + " WHERE block_no > ? ORDER BY block_no ASC LIMIT ?;";
+            PreparedStatement pst = connection.prepareStatement(rst);
+            pst.setLong(1, afterBlockNo);
+            pst.setInt(2, limit);
+            ResultSet res = pst.executeQuery();
+            while (res.next())
+            {
+                list.add(new DatabaseUtils.ElectionBlock(res.getLong(1), res.getLong(2), res.getString(3),
+                        res.getString(4)));
+            }
+            return list;
+        }
+        catch (SQLException e)
+        {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    /**
+     * Reads a range of an election's registered voter keys in voter index order (page by page like scanBlockchain).
+     * @param electionName the election whose voters to read
+     * @param afterIndex only voters with a larger index are returned (-1 to start at the first voter)
+     * @param limit maximum number of voters to return
+     * @return voter index mapped to the voter's base64 encoded modulus, in index order (or null on error)
+     */
+    public Map<Integer, String> scanVoterKeys(String electionName, int afterIndex, int limit)
+    {
+        Map<Integer, String> voters = new LinkedHashMap<Integer, String>();
+        if (connection == null) return voters;
+        try
+        {
+            PreparedStatement pst = connection.prepareStatement("SELECT voter_index, key FROM voters " +
+                    "WHERE election_name=? AND voter_index > ? ORDER BY voter_index ASC LIMIT ?;");
+            pst.setString(1, electionName);
+            pst.setInt(2, afterIndex);
+            pst.setInt(3, limit);
+            ResultSet res = pst.executeQuery();
+            while (res.next())
+            {
+                voters.put(res.getInt(1), res.getString(2));
+            }
+            return voters;
+        }
+        catch (SQLException e)
+        {
+            e.printStackTrace();
+            return null;
+        }
+    }
+    
+    /**
+     * Reads through a terminated election to determine its results.
+     * @param electionKey Public key to identify an election
+     * @return Map of each candidate to their tallied vote count.
+     */
+    public Map<String, Long> evaluateBlockchain(String electionKey)
+    {
+        Map<String, Long> results = new HashMap<String, Long>();  // dict of candidate to vote count
+    	if (connection == null) return null;
+
+        String rst, relName; PreparedStatement pst; ResultSet res;
+    	try
+    	{
+    	    // query the elections table to learn the election's last block number and active status
+    	    rst = "SELECT block_count, active, election_name, archived, homomorphic FROM elections WHERE public_key=?;";
+    	    // a closed chain never changes, so a replica that has seen the close holds all of it
+    	    // (the terminus and the close are one transaction); a lagging replica leaves the tally to the primary
+    	    Connection db = reader();
+    	    pst = db.prepareStatement(rst);
+    	    pst.setString(1, electionKey);
+    	    res = pst.executeQuery();
+    	    boolean closed = res.next() && res.getString(2).equalsIgnoreCase("n");
+    	    if (!closed && db != connection)
+    	    {   // the replica may not have seen the close yet
+    	        db = connection;
+    	        pst = db.prepareStatement(rst);
+    	        pst.setString(1, electionKey);
+    	        res = pst.executeQuery();
+    	        closed = res.next() && res.getString(2).equalsIgnoreCase("n");
+    	    }
+
+    	    // if the query was successful and the election is no longer active, generate the election results
+    	    if (closed)
+            {
+                if (res.getBoolean(4))
+                {   // results were recorded when the election was archived
+                    return ElectionArchive.results(electionKey);
+                }
+
+                long lastBlockNo = res.getLong(1) - 1; // last block number (terminus block)
+                CandidateDictionary candidates = getCandidates(res.getString(3));
+                if (candidates == null) throw new SQLException("The candidates could not be read");
+                relName = DatabaseUtils.deriveBlockchainName(electionKey);
+                if (res.getBoolean(5))
+                {   // the tally was decrypted when the election closed and recorded in the terminus
+                    pst = db.prepareStatement("SELECT block_content FROM " + relName + " WHERE block_no = ?;");
+                    pst.setLong(1, res.getLong(1));
+                    res = pst.executeQuery();
+                    results = new LinkedHashMap<String, Long>(); // in candidate id order
+                    if (!res.next()) throw new SQLException("The terminus block of " + relName + " is missing");
+                    long[] votes = ElGamalTally.votes(Base64.getDecoder().decode(res.getString(1)));
+                    for (int id = 0; id < candidates.size() && id < votes.length; id++)
+                    {
+                        results.put(candidates.name(id), votes[id]);
+                    }
+                    return results;
+                }
+                VoterRegistry voters = voterRegistry(res.getString(3), db);
+
+    	        // all ballot blocks in the block chain (ignore the genesis and terminus block), newest first
+                results = DatabaseUtils.tallyBallots(ballotsNewestFirst(db, relName, lastBlockNo), electionKey,
+                        DecryptionService.instance(), candidates, voters);
+            }
+            return results;
+    	}
+    	catch(Exception e)
+        {
+    		e.printStackTrace();
+    		return null; // not the partial results
+    	}
+    }
+}
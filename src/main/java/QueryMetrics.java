@@ -0,0 +1,319 @@
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.*;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.regex.Pattern;
+
+/**
+ * Instruments the JDBC connections of DatabaseUtils and ReadReplicas. Every statement execution, failed or not, is
+ * timed into a histogram per normalized statement: blockchain table names, literals and whitespace are templated, so
+ * all the SQL strings built for one kind of query share a series ("SELECT block_no FROM {chain} ORDER BY block_no DESC
+ * LIMIT ?"). Failed executions are also counted per statement, the rows each statement returns (as read by the app)
+ * or updates are recorded per statement as well, and the time spent waiting for a connection per connection.
+ * Statements slower than a threshold are logged, with their plan if asked for.
+ *
+ * Configured with the environment variables
+ *   slowQueryMillis  -> log statements that take longer (default 500, 0: no log)
+ *   slowQueryExplain -> true to log the EXPLAIN plan of slow statements (at most once a minute per statement)
+ */
+public class QueryMetrics
+{
+    private static final double[] SECONDS = { 0.0005, 0.001, 0.0025, 0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1,
+                                              2.5, 5, 10 };
+    private static final double[] ROWS = { 0, 1, 10, 100, 1000, 10000, 100000 };
+
+    private static final Metrics.Histogram latency = Metrics.histogram("db_statement_seconds",
+            "Statement execution time by normalized statement", "statement", SECONDS);
+    private static final Metrics.Histogram rows = Metrics.histogram("db_statement_rows",
+            "Rows read from or updated by a statement, by normalized statement", "statement", ROWS);
+    private static final Metrics.Histogram failures = Metrics.histogram("db_statement_failed_seconds",
+            "Time until a statement execution failed, by normalized statement", "statement", SECONDS);
+    private static final Metrics.Histogram waits = Metrics.histogram("db_connection_wait_seconds",
+            "Time spent connecting or waiting for a shared connection", "connection", SECONDS);
+    private static final LongAdder slow = Metrics.counter("db_slow_statements_total",
+            "Statements slower than slowQueryMillis");
+
+    private static final long slowNanos = TimeUnit.MILLISECONDS.toNanos(Env.intValue("slowQueryMillis", 500));
+    private static final boolean explain = "true".equalsIgnoreCase(System.getenv("slowQueryExplain"));
+    private static final long EXPLAIN_INTERVAL = TimeUnit.MINUTES.toNanos(1);
+    private static final Map<String, Long> explained = new ConcurrentHashMap<String, Long>(); // statement -> nanoTime
+
+    // SQL text -> normalized statement, the app only builds a few hundred distinct strings
+    private static final Map<String, String> normalized = new ConcurrentHashMap<String, String>();
+    private static final int MAX_NORMALIZED = 1000;
+    private static final Pattern STRING = Pattern.compile("'(?:[^']|'')*'");
+    private static final Pattern CHAIN = Pattern.compile("\\b[A-Za-z0-9_]{63}\\b"); // see deriveBlockchainName
+    private static final Pattern NUMBER = Pattern.compile("\\b\\d+(\\.\\d+)?\\b");
+    private static final Pattern SPACE = Pattern.compile("\\s+");
+
+    /**
+     * opens an instrumented connection, the time it takes is recorded as a connection wait
+     * @param name connection name for the metrics and the slow statement log (primary, chain, replica)
+     */
+    public static Connection connect(String uri, String user, String pass, String name) throws SQLException
+    {
+        long start = System.nanoTime();
+        Connection connection = DriverManager.getConnection(uri, user, pass);
+        waited(name, start);
+        return wrap(connection, name);
+    }
+
+    /**
+     * records the time since start as spent waiting for a connection
+     * @param name connection name
+     * @param start System.nanoTime() when the wait began
+     */
+    public static void waited(String name, long start)
+    {
+        waits.observe(name, (System.nanoTime() - start) / 1e9);
+    }
+
+    /**
+     * @return the SQL with table names of blockchains, literals and whitespace templated
+     */
+    static String normalize(String sql)
+    {
+        if (sql == null) return "(batch)";
+        String statement = normalized.get(sql);
+        if (statement == null)
+        {
+            statement = STRING.matcher(sql).replaceAll("?");
+            statement = CHAIN.matcher(statement).replaceAll("{chain}");
+            statement = NUMBER.matcher(statement).replaceAll("?");
+            statement = SPACE.matcher(statement).replaceAll(" ").trim();
+            if (statement.endsWith(";")) statement = statement.substring(0, statement.length() - 1);
+            if (normalized.size() < MAX_NORMALIZED) normalized.put(sql, statement);
+        }
+        return statement;
+    }
+
+    private static Connection wrap(Connection connection, String name)
+    {
+        return (Connection) Proxy.newProxyInstance(QueryMetrics.class.getClassLoader(),
+                new Class<?>[] { Connection.class }, (proxy, method, args) -> {
+                    Object result = invoke(connection, method, args);
+                    if (method.getName().equals("prepareStatement"))
+                    {
+                        return new Instrumented(connection, name, (String) args[0])
+                                .proxy((Statement) result, PreparedStatement.class);
+                    }
+                    if (method.getName().equals("createStatement"))
+                    {
+                        return new Instrumented(connection, name, null).proxy((Statement) result, Statement.class);
+                    }
+                    return result;
+                });
+    }
+
+    /**
+     * times the executions of one statement, remembering its parameters for EXPLAIN
+     */
+    private static class Instrumented
+    {
+        final Connection connection;
+        final String name;
+        final String sql;                                   // null for plain statements (SQL passed to execute)
+        final Map<Integer, Object> parameters = new TreeMap<Integer, Object>();
+        RowCounter open;                                    // the last result set, until it is recorded
+
+        Instrumented(Connection connection, String name, String sql)
+        {
+            this.connection = connection;
+            this.name = name;
+            this.sql = sql;
+        }
+
+        Object proxy(Statement statement, Class<?> type)
+        {
+            return Proxy.newProxyInstance(QueryMetrics.class.getClassLoader(), new Class<?>[] { type },
+                    (proxy, method, args) -> {
+                        String m = method.getName();
+                        if (m.startsWith("execute")) return execute(statement, method, args);
+                        if (m.equals("close") && open != null) open.record();
+                        if (m.equals("clearParameters")) parameters.clear();
+                        else if (m.startsWith("set") && args != null && args.length >= 2 && args[0] instanceof Integer)
+                        {
+                            parameters.put((Integer) args[0], m.equals("setNull") ? null : args[1]);
+                        }
+                        return invoke(statement, method, args);
+                    });
+        }
+
+        private Object execute(Statement statement, Method method, Object[] args) throws Throwable
+        {
+            if (open != null) open.record();
+            String text = sql != null ? sql : args != null && args.length > 0 && args[0] instanceof String
+                    ? (String) args[0] : null;
+            long start = System.nanoTime();
+            Object result;
+            try
+            {
+                result = invoke(statement, method, args);
+            }
+            catch (Throwable e)
+            {   // a statement that times out or is cancelled is as slow as one that succeeds
+                long nanos = System.nanoTime() - start;
+                String normal = normalize(text);
+                latency.observe(normal, nanos / 1e9);
+                failures.observe(normal, nanos / 1e9);
+                if (slowNanos > 0 && nanos > slowNanos) slow(normal, text, nanos);
+                throw e;
+            }
+            long nanos = System.nanoTime() - start;
+
+            String normal = normalize(text);
+            latency.observe(normal, nanos / 1e9);
+            if (result instanceof ResultSet)
+            {
+                open = new RowCounter((ResultSet) result, normal);
+                result = open.proxy;
+            }
+            else if (result instanceof Number && method.getName().contains("Update"))
+            {
+                rows.observe(normal, ((Number) result).doubleValue());
+            }
+            else if (result instanceof int[])
+            {
+                long updated = 0;
+                for (int count : (int[]) result) updated += Math.max(0, count);
+                rows.observe(normal, updated);
+            }
+            if (slowNanos > 0 && nanos > slowNanos) slow(normal, text, nanos);
+            return result;
+        }
+
+        private void slow(String normal, String text, long nanos)
+        {
+            slow.increment();
+            StringBuilder log = new StringBuilder("Slow statement on ").append(name).append(" (")
+                    .append(TimeUnit.NANOSECONDS.toMillis(nanos)).append(" ms): ").append(normal);
+            if (explain && text != null && explainable(text) && due(normal))
+            {
+                log.append('\n').append(plan(text));
+            }
+            System.err.println(log);
+        }
+
+        /**
+         * @return the statement's plan, run on the raw connection with the same parameters
+         */
+        private String plan(String text)
+        {
+            try
+            {
+                if (!connection.getAutoCommit())
+                {   // a failing EXPLAIN would abort the transaction the statement ran in
+                    return "  (no plan: the statement ran inside a transaction)";
+                }
+                StringBuilder plan = new StringBuilder();
+                try (PreparedStatement pst = connection.prepareStatement("EXPLAIN " + text))
+                {
+                    for (Map.Entry<Integer, Object> parameter : parameters.entrySet())
+                    {
+                        pst.setObject(parameter.getKey(), parameter.getValue());
+                    }
+                    ResultSet res = pst.executeQuery();
+                    while (res.next())
+                    {
+                        if (plan.length() > 0) plan.append('\n');
+                        plan.append("  ").append(res.getString(1));
+                    }
+                }
+                return plan.toString();
+            }
+            catch (SQLException e)
+            {
+                return "  (no plan: " + e.getMessage() + ")";
+            }
+        }
+    }
+
+    /**
+     * Counts the rows the app reads from a result set, recorded when it is exhausted or closed (or when its statement
+     * runs again or is closed, so result sets the app leaves open are recorded too). Reading a row costs the proxy
+     * call and one increment.
+     */
+    private static class RowCounter
+    {
+        private static final Method NEXT, CLOSE;
+        static
+        {
+            try
+            {
+                NEXT = ResultSet.class.getMethod("next");
+                CLOSE = ResultSet.class.getMethod("close");
+            }
+            catch (NoSuchMethodException e)
+            {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        final String statement;
+        final ResultSet proxy;
+        long count = 0;
+        boolean recorded = false;
+
+        RowCounter(ResultSet results, String statement)
+        {
+            this.statement = statement;
+            this.proxy = (ResultSet) Proxy.newProxyInstance(QueryMetrics.class.getClassLoader(),
+                    new Class<?>[] { ResultSet.class }, (p, method, args) -> {
+                        Object result = invoke(results, method, args);
+                        if (NEXT.equals(method))
+                        {
+                            if ((Boolean) result) count++;
+                            else record();
+                        }
+                        else if (CLOSE.equals(method))
+                        {
+                            record();
+                        }
+                        return result;
+                    });
+        }
+
+        void record()
+        {
+            if (recorded) return;
+            recorded = true;
+            rows.observe(statement, count);
+        }
+    }
+
+    private static boolean explainable(String sql)
+    {
+        String verb = sql.trim().split("\\s+", 2)[0].toUpperCase();
+        return verb.equals("SELECT") || verb.equals("INSERT") || verb.equals("UPDATE") || verb.equals("DELETE")
+                || verb.equals("WITH");
+    }
+
+    /**
+     * @return true if the statement's plan was not logged within the interval (and marks it logged)
+     */
+    private static boolean due(String statement)
+    {
+        long now = System.nanoTime();
+        Long last = explained.get(statement);
+        if (last != null && now - last < EXPLAIN_INTERVAL) return false;
+        explained.put(statement, now);
+        return true;
+    }
+
+    private static Object invoke(Object target, Method method, Object[] args) throws Throwable
+    {
+        try
+        {
+            return method.invoke(target, args);
+        }
+        catch (InvocationTargetException e)
+        {
+            throw e.getCause();
+        }
+    }
+}
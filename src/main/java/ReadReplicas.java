@@ -0,0 +1,171 @@
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Read-only PostGreSQL replicas for the queries that can tolerate slightly stale data (election lists, the voter
+ * roster, viewing and tallying blockchains). Reads are spread over the replicas round robin; a replica whose
+ * replication lag exceeds the bound (or that cannot be reached) is skipped, and the primary serves the read when no
+ * replica qualifies. Everything that must see the latest state (the chain head, the ballot and registration checks,
+ * all writes) stays on the primary connection in DatabaseUtils.
+ *
+ * Configured with the environment variables
+ *   dbReplicaURIs     -> comma separated JDBC URIs of the replicas (none: every read goes to the primary)
+ *   dbReplicaUser     -> replica user (default dbUser)
+ *   dbReplicaPassword -> replica password (default dbPassword)
+ *   dbReplicaMaxLag   -> largest acceptable replication lag in seconds (default 5)
+ */
+public class ReadReplicas
+{
+    private static final long CHECK_INTERVAL = 1000; // milliseconds between lag checks of a replica
+
+    // lag in seconds: null (unusable) unless the server is a standby whose WAL receiver is streaming from the primary,
+    // 0 if it has replayed everything it received, otherwise the age of the last transaction it replayed (the receiver's
+    // status is only visible to roles with pg_read_all_stats, for others a running receiver counts as streaming)
+    private static final String LAG = "SELECT CASE WHEN NOT pg_is_in_recovery() " +
+            "OR NOT EXISTS (SELECT 1 FROM pg_stat_wal_receiver WHERE COALESCE(status, 'streaming') = 'streaming') " +
+            "THEN NULL " +
+            "WHEN pg_last_wal_receive_lsn() = pg_last_wal_replay_lsn() THEN 0 " +
+            "ELSE EXTRACT(EPOCH FROM now() - pg_last_xact_replay_timestamp()) END;";
+
+    private static final List<Replica> replicas = new ArrayList<Replica>();
+    private static final double maxLag;
+    private static final AtomicInteger next = new AtomicInteger();
+
+    private static final LongAdder replicaReads = Metrics.counter("db_replica_reads_total",
+            "Read-only queries served by a replica");
+    private static final LongAdder primaryReads = Metrics.counter("db_replica_fallback_reads_total",
+            "Read-only queries served by the primary because no replica was within the lag bound");
+
+    static
+    {
+        String uris = System.getenv("dbReplicaURIs");
+        String user = System.getenv("dbReplicaUser") != null ? System.getenv("dbReplicaUser") : System.getenv("dbUser");
+        String pass = System.getenv("dbReplicaPassword") != null ? System.getenv("dbReplicaPassword")
+                                                                  : System.getenv("dbPassword");
+        if (uris != null && user != null && pass != null)
+        {
+            for (String uri : uris.split(","))
+            {
+                if (!uri.trim().isEmpty()) replicas.add(new Replica(uri.trim(), user, pass));
+            }
+        }
+        double lag = 5;
+        try
+        {
+            lag = Double.parseDouble(System.getenv("dbReplicaMaxLag"));
+        }
+        catch (NullPointerException | NumberFormatException e)
+        {
+            // keep the default
+        }
+        maxLag = lag;
+        Metrics.gauge("db_replicas_available", "Replicas currently within the replication lag bound",
+                ReadReplicas::available);
+    }
+
+    /**
+     * @param primary the primary connection, used when no replica qualifies
+     * @return a connection for a read-only query
+     */
+    public static Connection connection(Connection primary)
+    {
+        int n = replicas.size();
+        if (n == 0) return primary;
+        long waiting = System.nanoTime();
+        int start = Math.abs(next.getAndIncrement() % n);
+        for (int i = 0; i < n; i++)
+        {
+            Connection c = replicas.get((start + i) % n).connection();
+            if (c != null)
+            {
+                replicaReads.increment();
+                QueryMetrics.waited("replica", waiting);
+                return c;
+            }
+        }
+        primaryReads.increment();
+        QueryMetrics.waited("replica", waiting);
+        return primary;
+    }
+
+    private static int available()
+    {
+        int count = 0;
+        for (Replica replica : replicas)
+        {
+            if (replica.usable()) count++;
+        }
+        return count;
+    }
+
+    private static class Replica
+    {
+        final String uri, user, pass;
+        volatile Connection connection = null; // replaced by check() while readers use it
+        volatile long checkedAt = 0;      // time of the last lag check
+        volatile boolean usable = false;  // reachable and within the lag bound at the last check
+
+        Replica(String uri, String user, String pass)
+        {
+            this.uri = uri;
+            this.user = user;
+            this.pass = pass;
+        }
+
+        /**
+         * @return the replica's connection, or null if it is lagging or unreachable
+         */
+        Connection connection()
+        {
+            if (System.currentTimeMillis() - checkedAt > CHECK_INTERVAL) check();
+            return usable ? connection : null;
+        }
+
+        boolean usable()
+        {
+            return usable;
+        }
+
+        /**
+         * measures the lag (at most once per interval, other readers keep using the last result meanwhile)
+         */
+        private synchronized void check()
+        {
+            if (System.currentTimeMillis() - checkedAt <= CHECK_INTERVAL) return;
+            checkedAt = System.currentTimeMillis();
+            try
+            {
+                if (connection == null || connection.isClosed())
+                {
+                    connection = QueryMetrics.connect(uri, user, pass, "replica");
+                    connection.setReadOnly(true);
+                }
+                ResultSet res = connection.prepareStatement(LAG).executeQuery();
+                if (!res.next()) usable = false;
+                else
+                {
+                    double lag = res.getDouble(1);
+                    usable = !res.wasNull() && lag <= maxLag;
+                }
+            }
+            catch (SQLException e)
+            {   // unreachable: drop the connection and reconnect at the next check
+                System.err.println("Replica " + uri + " is unavailable: " + e.getMessage());
+                usable = false;
+                try
+                {
+                    if (connection != null) connection.close();
+                }
+                catch (SQLException ignored)
+                {
+                }
+                connection = null;
+            }
+        }
+    }
+}
@@ -0,0 +1,36 @@
+import javax.servlet.ServletException;
+import javax.servlet.annotation.WebServlet;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+
+@WebServlet(urlPatterns = { "/ready"})
+public class ReadinessServlet extends HttpServlet
+{
+    public ReadinessServlet()
+    {
+        super();
+    }
+
+    /**
+     * readiness probe for the load balancer: 503 until the startup warm-up has finished, 200 afterwards
+     */
+    @Override
+    protected void doGet(HttpServletRequest request, HttpServletResponse response)
+            throws ServletException, IOException
+    {
+        response.setContentType("text/plain; charset=UTF-8");
+        response.setHeader("Cache-Control", "no-store");
+        if (Warmup.isReady())
+        {
+            response.getWriter().println("ready");
+        }
+        else
+        {
+            response.setStatus(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+            response.setHeader("Retry-After", "5");
+            response.getWriter().println("warming up");
+        }
+    }
+}
@@ -1,6 +1,7 @@
 import java.io.IOException;
 import java.security.PrivateKey;
 import java.security.PublicKey;
+import java.util.Base64;
 
 import javax.servlet.RequestDispatcher;
 import javax.servlet.ServletException;
@@ -59,12 +60,34 @@ public class RegisterServlet extends HttpServlet
             err = true;
         }
 
-        // verify public key signature
-        PublicKey pubKey = CryptoUtils.createPublicKey(pub);
-        if (!err && !CryptoUtils.verifySignature(pub, sig, pubKey))
+        // verify public key signature: v2 elections register P-256 voter keys, others RSA moduli
+        if (!err && DatabaseUtils.getBallotKey(election) != null)
         {
-            request.setAttribute("error", "Your public key signature was invalid.");
-            err = true;
+            PublicKey pubKey = CryptoUtils.createEcPublicKey(pub);
+            boolean valid;
+            try
+            {
+                valid = pubKey != null && CryptoUtils.verifyEcSignature(Base64.getDecoder().decode(pub),
+                                                                        Base64.getDecoder().decode(sig), pubKey);
+            }
+            catch (IllegalArgumentException e)
+            {   // the key or signature is not base 64
+                valid = false;
+            }
+            if (!valid)
+            {
+                request.setAttribute("error", "Your public key signature was invalid (this election takes EC keys).");
+                err = true;
+            }
+        }
+        else if (!err)
+        {
+            PublicKey pubKey = CryptoUtils.createPublicKey(pub);
+            if (!CryptoUtils.verifySignature(pub, sig, pubKey))
+            {
+                request.setAttribute("error", "Your public key signature was invalid.");
+                err = true;
+            }
         }
 
         if (!err)
@@ -0,0 +1,585 @@
+import java.security.KeyPair;
+import java.sql.*;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+/**
+ * Spreads elections over several PostGreSQL databases (shards), each a PostgresStore holding the whole of its
+ * elections: catalog rows, private keys, candidates, voters, turnout and blockchains. A directory table in the primary
+ * database (election_shards) maps every election to its shard, so every operation on one election (registration,
+ * ballot checks, appends, viewing, tallying, archiving) runs on that election's database alone. Listings ask every
+ * shard and keep the elections the directory places there, merged in name order.
+ *
+ * The primary (dbURI) is shard 0 and keeps the elections created before sharding was configured. New elections go to
+ * the shard holding the fewest elections, picked and claimed in one transaction holding the directory's lock so
+ * concurrent creations (on any instance) see each other; they never move, so the assignments are cached. The
+ * directory connection reconnects after a failure, and an election whose key fingerprint never made it into the
+ * directory has it filled in when a download by fingerprint misses.
+ *
+ * Configured with the environment variables
+ *   dbShardURIs     -> comma separated JDBC URIs of shards 1, 2, ... (none: the primary holds every election)
+ *   dbShardUser     -> shard user (default dbUser)
+ *   dbShardPassword -> shard password (default dbPassword)
+ */
+public class ShardedStore implements ElectionStore
+{
+    static final String URIS = System.getenv("dbShardURIs");
+
+    private static final String DIRECTORY = "CREATE TABLE IF NOT EXISTS election_shards (" +
+            "election_name VARCHAR(128) PRIMARY KEY, " +
+            "public_key VARCHAR(4096) NOT NULL UNIQUE, " +   // routes the operations that name the election by key
+            "key_fingerprint VARCHAR(64) UNIQUE, " +         // routes election key downloads
+            "shard INT NOT NULL)";
+
+    private final List<PostgresStore> shards = new ArrayList<PostgresStore>();
+    private final String uri = System.getenv("dbURI");
+    private Connection catalog = null; // the directory, in the primary database (guarded by catalogLock)
+    private final Object catalogLock = new Object();
+
+    // shard numbers by election name, public key and key fingerprint (only elections that exist)
+    private final Map<String, Integer> byName = new ConcurrentHashMap<String, Integer>();
+    private final Map<String, Integer> byKey = new ConcurrentHashMap<String, Integer>();
+    private final Map<String, Integer> byFingerprint = new ConcurrentHashMap<String, Integer>();
+
+    /**
+     * connects to the primary and every shard, and creates (or backfills) the directory
+     */
+    public ShardedStore()
+    {
+        shards.add(new PostgresStore());
+        String user = System.getenv("dbShardUser") != null ? System.getenv("dbShardUser") : System.getenv("dbUser");
+        String pass = System.getenv("dbShardPassword") != null ? System.getenv("dbShardPassword")
+                                                                : System.getenv("dbPassword");
+        if (URIS != null)
+        {
+            for (String uri : URIS.split(","))
+            {
+                if (!uri.trim().isEmpty()) shards.add(new PostgresStore(uri.trim(), user, pass, shards.size()));
+            }
+        }
+
+        synchronized (catalogLock)
+        {
+            try
+            {
+                catalog();
+            }
+            catch (SQLException e)
+            {
+                System.out.println("Connection Failed!");
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * @return the directory connection, connecting (and creating or backfilling the directory) if it was never
+     *         opened or found broken; callers hold catalogLock
+     */
+    private Connection catalog() throws SQLException
+    {
+        if (catalog != null && !catalog.isClosed()) return catalog;
+        if (uri == null || System.getenv("dbUser") == null || System.getenv("dbPassword") == null)
+            throw new SQLException("The election directory is not configured");
+        Connection db = QueryMetrics.connect(uri, System.getenv("dbUser"), System.getenv("dbPassword"), "catalog");
+        db.prepareStatement(DIRECTORY).executeUpdate();
+        try
+        {   // the primary's elections from before sharding stay where they are
+            db.prepareStatement("INSERT INTO election_shards (election_name, public_key, key_fingerprint, shard) " +
+                    "SELECT election_name, public_key, key_fingerprint, 0 FROM elections " +
+                    "WHERE election_name IS NOT NULL ON CONFLICT DO NOTHING;").executeUpdate();
+        }
+        catch (SQLException e)
+        {   // no elections table yet
+        }
+        catalog = db;
+        return db;
+    }
+
+    /**
+     * drops the directory connection if the error broke it, so the next use reconnects; callers hold catalogLock
+     */
+    private void failed(SQLException e)
+    {
+        if (catalog == null) return;
+        try
+        {
+            boolean lost = e.getSQLState() != null && e.getSQLState().startsWith("08");
+            if (lost || catalog.isClosed() || !catalog.isValid(5))
+            {
+                catalog.close();
+                catalog = null;
+            }
+        }
+        catch (SQLException ignored)
+        {
+            catalog = null;
+        }
+    }
+
+    /**
+     * @param column election_name, public_key or key_fingerprint
+     * @param cache the assignments already looked up by that column
+     * @return the shard of the election, the primary if there is no such election (which it reports as missing)
+     */
+    private PostgresStore route(String column, Map<String, Integer> cache, String value)
+    {
+        if (value == null) return shards.get(0);
+        Integer shard = cache.get(value);
+        if (shard == null)
+        {
+            synchronized (catalogLock)
+            {
+                try
+                {
+                    PreparedStatement pst = catalog().prepareStatement(
+                            "SELECT shard FROM election_shards WHERE " + column + "=?;");
+                    pst.setString(1, value);
+                    ResultSet res = pst.executeQuery();
+                    if (res.next() && res.getInt(1) < shards.size())
+                    {
+                        shard = res.getInt(1);
+                        cache.put(value, shard);
+                    }
+                }
+                catch (SQLException e)
+                {
+                    e.printStackTrace();
+                    failed(e);
+                }
+            }
+        }
+        return shards.get(shard == null ? 0 : shard);
+    }
+
+    private PostgresStore named(String electionName)
+    {
+        return route("election_name", byName, electionName);
+    }
+
+    private PostgresStore keyed(String publicKey)
+    {
+        return route("public_key", byKey, publicKey);
+    }
+
+    // catalog
+
+    /**
+     * Claims the election's name and key in the directory, then creates the election on the shard holding the
+     * fewest elections.
+     */
+    @Override
+    public Boolean createElection(String electionName, KeyPair electionKeys, List<String> candidates,
+                                  int ballotFormat)
+    {
+        if (electionName == null) return false;
+        KeyPair keys = electionKeys != null ? electionKeys : ElectionKeyPool.take();
+        String publicKey = CryptoUtils.exportKey(keys.getPublic());
+        int shard;
+        synchronized (catalogLock)
+        {
+            Connection db = null;
+            try
+            {
+                db = catalog();
+                db.setAutoCommit(false);
+                // one pick at a time on every instance, so concurrent creations do not all pick the same shard
+                db.prepareStatement("LOCK TABLE election_shards IN SHARE ROW EXCLUSIVE MODE;").executeUpdate();
+                PreparedStatement pst = db.prepareStatement("SELECT s.i FROM generate_series(0, ?) s(i) " +
+                        "LEFT JOIN election_shards d ON d.shard = s.i " +
+                        "GROUP BY s.i ORDER BY COUNT(d.shard), s.i LIMIT 1;");
+                pst.setInt(1, shards.size() - 1);
+                ResultSet res = pst.executeQuery();
+                shard = res.next() ? res.getInt(1) : 0;
+
+                // a name or key that is taken fails here, before anything is written to a shard
+                pst = db.prepareStatement(
+                        "INSERT INTO election_shards (election_name, public_key, shard) VALUES (?, ?, ?);");
+                pst.setString(1, electionName);
+                pst.setString(2, publicKey);
+                pst.setInt(3, shard);
+                pst.executeUpdate();
+                db.commit();
+            }
+            catch (SQLException e)
+            {
+                e.printStackTrace();
+                rollback(db);
+                failed(e);
+                return false;
+            }
+            finally
+            {
+                autoCommit(db);
+            }
+        }
+
+        PostgresStore store = shards.get(shard);
+        if (!store.createElection(electionName, keys, candidates, ballotFormat))
+        {
+            synchronized (catalogLock)
+            {
+                try
+                {
+                    PreparedStatement pst = catalog().prepareStatement(
+                            "DELETE FROM election_shards WHERE election_name=?;");
+                    pst.setString(1, electionName);
+                    pst.executeUpdate();
+                }
+                catch (SQLException e)
+                {   // the name stays claimed, the listings leave the election out as no shard holds it
+                    e.printStackTrace();
+                    failed(e);
+                }
+            }
+            return false;
+        }
+        recordFingerprint(electionName, store.getKeyFingerprint(electionName));
+        byName.put(electionName, shard);
+        byKey.put(publicKey, shard);
+        return true;
+    }
+
+    /**
+     * records an election's key fingerprint in the directory, where it was missing
+     */
+    private void recordFingerprint(String electionName, String fingerprint)
+    {
+        if (fingerprint == null) return;
+        synchronized (catalogLock)
+        {
+            try
+            {
+                PreparedStatement pst = catalog().prepareStatement("UPDATE election_shards SET key_fingerprint=? " +
+                        "WHERE election_name=? AND key_fingerprint IS NULL;");
+                pst.setString(1, fingerprint);
+                pst.setString(2, electionName);
+                pst.executeUpdate();
+            }
+            catch (SQLException e)
+            {   // the election exists, its key is only found by name until the fingerprint is recorded
+                e.printStackTrace();
+                failed(e);
+            }
+        }
+    }
+
+    /**
+     * records the key fingerprints missing from the directory (their update failed when the election was created)
+     * @return true if any was recorded
+     */
+    private boolean repairFingerprints()
+    {
+        Map<String, Integer> missing = new HashMap<String, Integer>();
+        synchronized (catalogLock)
+        {
+            try
+            {
+                ResultSet res = catalog().prepareStatement("SELECT election_name, shard FROM election_shards " +
+                        "WHERE key_fingerprint IS NULL;").executeQuery();
+                while (res.next())
+                {
+                    if (res.getInt(2) < shards.size()) missing.put(res.getString(1), res.getInt(2));
+                }
+            }
+            catch (SQLException e)
+            {
+                e.printStackTrace();
+                failed(e);
+                return false;
+            }
+        }
+        boolean repaired = false;
+        for (Map.Entry<String, Integer> election : missing.entrySet())
+        {
+            String fingerprint = shards.get(election.getValue()).getKeyFingerprint(election.getKey());
+            if (fingerprint == null) continue;
+            recordFingerprint(election.getKey(), fingerprint);
+            repaired = true;
+        }
+        return repaired;
+    }
+
+    private static void rollback(Connection db)
+    {
+        if (db == null) return;
+        try
+        {
+            db.rollback();
+        }
+        catch (SQLException ignored)
+        {   // the connection is dropped by failed()
+        }
+    }
+
+    private static void autoCommit(Connection db)
+    {
+        if (db == null) return;
+        try
+        {
+            db.setAutoCommit(true);
+        }
+        catch (SQLException ignored)
+        {   // the connection is dropped by failed()
+        }
+    }
+
+    /**
+     * @return election name mapped to shard number for every election in the directory (null on error)
+     */
+    private Map<String, Integer> directory()
+    {
+        synchronized (catalogLock)
+        {
+            try
+            {
+                Map<String, Integer> directory = new HashMap<String, Integer>();
+                ResultSet res = catalog().prepareStatement(
+                        "SELECT election_name, shard FROM election_shards;").executeQuery();
+                while (res.next())
+                {
+                    directory.put(res.getString(1), res.getInt(2));
+                }
+                return directory;
+            }
+            catch (SQLException e)
+            {
+                e.printStackTrace();
+                failed(e);
+                return null;
+            }
+        }
+    }
+
+    /**
+     * Lists the elections of every shard (queried in parallel), keeping those the directory places on that shard:
+     * a shard may still hold the rows of an election whose creation was undone.
+     * @param list lists the elections of one shard
+     * @param name the election name of a list entry
+     * @return the merged entries, sorted by name
+     */
+    private <T> List<T> merge(Function<PostgresStore, List<T>> list, Function<T, String> name)
+    {
+        Map<String, Integer> directory = directory();
+        if (directory == null) return new ArrayList<T>();
+        List<List<T>> listed = shards.parallelStream().map(list).collect(Collectors.toList());
+        List<T> merged = new ArrayList<T>();
+        for (int shard = 0; shard < listed.size(); shard++)
+        {
+            for (T entry : listed.get(shard))
+            {
+                if (Integer.valueOf(shard).equals(directory.get(name.apply(entry)))) merged.add(entry);
+            }
+        }
+        merged.sort(Comparator.comparing(name));
+        return merged;
+    }
+
+    @Override
+    public List<DatabaseUtils.ElectionSummary> getElectionSummaries(char status)
+    {
+        return merge(shard -> shard.getElectionSummaries(status), summary -> summary.name);
+    }
+
+    @Override
+    public List<String> getElectionNames(char status)
+    {
+        return new LinkedList<String>(merge(shard -> shard.getElectionNames(status), name -> name));
+    }
+
+    @Override
+    public String getElectionStatus(String electionName)
+    {
+        return named(electionName).getElectionStatus(electionName);
+    }
+
+    @Override
+    public String retrievePublicKey(String electionName)
+    {
+        return named(electionName).retrievePublicKey(electionName);
+    }
+
+    @Override
+    public String getElectionKey(String fingerprint)
+    {
+        String key = route("key_fingerprint", byFingerprint, fingerprint).getElectionKey(fingerprint);
+        if (key == null && fingerprint != null && !byFingerprint.containsKey(fingerprint) && repairFingerprints())
+        {   // the directory did not know the fingerprint, and now knows some more
+            key = route("key_fingerprint", byFingerprint, fingerprint).getElectionKey(fingerprint);
+        }
+        return key;
+    }
+
+    @Override
+    public String getKeyFingerprint(String electionName)
+    {
+        return named(electionName).getKeyFingerprint(electionName);
+    }
+
+    @Override
+    public CandidateDictionary getCandidates(String electionName)
+    {
+        return named(electionName).getCandidates(electionName);
+    }
+
+    @Override
+    public int getBallotFormat(String electionName)
+    {
+        return named(electionName).getBallotFormat(electionName);
+    }
+
+    @Override
+    public String getBallotKey(String electionName)
+    {
+        return named(electionName).getBallotKey(electionName);
+    }
+
+    @Override
+    public Boolean isActive(String electionKey)
+    {
+        return keyed(electionKey).isActive(electionKey);
+    }
+
+    @Override
+    public Boolean confirmActive(String electionKey)
+    {
+        return keyed(electionKey).confirmActive(electionKey);
+    }
+
+    @Override
+    public boolean isArchived(String electionKey)
+    {
+        return keyed(electionKey).isArchived(electionKey);
+    }
+
+    @Override
+    public DatabaseUtils.Turnout getTurnout(String electionName)
+    {
+        return named(electionName).getTurnout(electionName);
+    }
+
+    // voters
+
+    @Override
+    public Boolean registerVoter(String pubKey, String fname, String lname, String election)
+    {
+        return named(election).registerVoter(pubKey, fname, lname, election);
+    }
+
+    @Override
+    public boolean isRegistered(String electionName, String voterKey)
+    {
+        return named(electionName).isRegistered(electionName, voterKey);
+    }
+
+    @Override
+    public long getVoterCount(String electionName)
+    {
+        return named(electionName).getVoterCount(electionName);
+    }
+
+    @Override
+    public List<DatabaseUtils.RosterEntry> getVoterPage(String electionName, String lastPrefix, String firstPrefix,
+                                                        String after, int limit)
+    {
+        return named(electionName).getVoterPage(electionName, lastPrefix, firstPrefix, after, limit);
+    }
+
+    @Override
+    public VoterRegistry voterRegistry(String electionName)
+    {
+        return named(electionName).voterRegistry(electionName);
+    }
+
+    @Override
+    public Map<Integer, String> scanVoterKeys(String electionName, int afterIndex, int limit)
+    {
+        return named(electionName).scanVoterKeys(electionName, afterIndex, limit);
+    }
+
+    // keys
+
+    @Override
+    public String retrievePrivateKey(String publicKey)
+    {
+        return keyed(publicKey).retrievePrivateKey(publicKey);
+    }
+
+    // chain
+
+    @Override
+    public Boolean initializeElectionBlockchain(String publicKey)
+    {
+        return keyed(publicKey).initializeElectionBlockchain(publicKey);
+    }
+
+    @Override
+    public long addToBlockchain(List<String> ballots, List<String> voters, String electionKey)
+    {
+        return keyed(electionKey).addToBlockchain(ballots, voters, electionKey);
+    }
+
+    @Override
+    public long terminateElectionBlockchain(String publicKey)
+    {
+        return keyed(publicKey).terminateElectionBlockchain(publicKey);
+    }
+
+    @Override
+    public Boolean chainContainsSince(String electionKey, String ballot, long since)
+    {
+        return keyed(electionKey).chainContainsSince(electionKey, ballot, since);
+    }
+
+    @Override
+    public boolean reportJournal(String node, Map<String, Integer> pending)
+    {   // each election's backlog is kept in its shard, next to the blockchain it holds up
+        Map<PostgresStore, Map<String, Integer>> byShard = new HashMap<PostgresStore, Map<String, Integer>>();
+        for (PostgresStore shard : shards)
+        {   // every shard, to drop the rows of the elections it no longer holds ballots of
+            byShard.put(shard, new HashMap<String, Integer>());
+        }
+        for (Map.Entry<String, Integer> entry : pending.entrySet())
+        {
+            byShard.get(keyed(entry.getKey())).put(entry.getKey(), entry.getValue());
+        }
+        boolean reported = true;
+        for (Map.Entry<PostgresStore, Map<String, Integer>> shard : byShard.entrySet())
+        {
+            reported &= shard.getKey().reportJournal(node, shard.getValue());
+        }
+        return reported;
+    }
+
+    @Override
+    public Long journalBacklog(String electionKey)
+    {
+        return keyed(electionKey).journalBacklog(electionKey);
+    }
+
+    @Override
+    public List<DatabaseUtils.ElectionBlock> scanBlockchain(String electionKey, long afterBlockNo, int limit)
+    {
+        return keyed(electionKey).scanBlockchain(electionKey, afterBlockNo, limit);
+    }
+
+    @Override
+    public List<DatabaseUtils.ElectionBlock> viewBlockchain(String electionKey)
+    {
+        return keyed(electionKey).viewBlockchain(electionKey);
+    }
+
+    @Override
+    public Map<String, Long> evaluateBlockchain(String electionKey)
+    {
+        return keyed(electionKey).evaluateBlockchain(electionKey);
+    }
+
+    @Override
+    public boolean archiveBlockchain(String electionKey)
+    {
+        return keyed(electionKey).archiveBlockchain(electionKey);
+    }
+}
@@ -0,0 +1,52 @@
+import javax.servlet.ServletException;
+import javax.servlet.annotation.WebServlet;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.io.PrintWriter;
+
+/**
+ * Serves an election's turnout from its maintained counters, without reading the roll or the blockchain.
+ *   /turnout?election={name} -> text/plain, one "name value" pair per line:
+ *     registered      registered voters
+ *     ballots         ballots in the blockchain, re-votes included
+ *     voted           distinct voters with an accepted ballot
+ *     minute          the current minute (since the epoch)
+ *     ballots_minute  ballots appended in each of the last 60 minutes, oldest first, the current minute last
+ */
+@WebServlet(urlPatterns = { "/turnout" })
+public class TurnoutServlet extends HttpServlet
+{
+    public TurnoutServlet()
+    {
+        super();
+    }
+
+    @Override
+    protected void doGet(HttpServletRequest request, HttpServletResponse response)
+            throws ServletException, IOException
+    {
+        String election = request.getParameter("election");
+        DatabaseUtils.Turnout turnout = DatabaseUtils.getTurnout(election);
+        if (turnout == null)
+        {
+            response.sendError(HttpServletResponse.SC_NOT_FOUND, "There is no election named " + election + "!");
+            return;
+        }
+
+        response.setContentType("text/plain;charset=UTF-8");
+        response.setHeader("Cache-Control", "no-cache");
+        PrintWriter out = response.getWriter();
+        out.println("registered " + turnout.registered);
+        out.println("ballots " + turnout.ballots);
+        out.println("voted " + turnout.voted);
+        out.println("minute " + turnout.minute);
+        StringBuilder minutes = new StringBuilder("ballots_minute");
+        for (long ballots : turnout.perMinute)
+        {
+            minutes.append(' ').append(ballots);
+        }
+        out.println(minutes);
+    }
+}
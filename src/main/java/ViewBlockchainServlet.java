@@ -42,8 +42,16 @@ public class ViewBlockchainServlet extends HttpServlet
         else
         {
             request.setAttribute("blocks", DatabaseUtils.viewBlockchain(encodedKey));
-            request.setAttribute("results", DatabaseUtils.evaluateBlockchain(encodedKey)); // an empty list if election is active
-            request.setAttribute("error", ""); // no error
+            Map<String, Long> results = DatabaseUtils.evaluateBlockchain(encodedKey); // empty if election is active
+            if (results == null)
+            {
+                request.setAttribute("error", "The election results could not be evaluated, please try again shortly!");
+            }
+            else
+            {
+                request.setAttribute("results", results);
+                request.setAttribute("error", ""); // no error
+            }
         }
 
         /* refresh the page */
@@ -0,0 +1,67 @@
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * One bit per registered voter, set once the voter's (latest) ballot has been counted.
+ * Bits are set atomically, so a single bitmap can be shared by parallel tally threads.
+ */
+public class VoterBitmap
+{
+    private final AtomicLongArray words;
+    private final int size;
+
+    /**
+     * @param size number of voters (valid indices are 0 to size-1)
+     */
+    public VoterBitmap(int size)
+    {
+        this.size = size;
+        this.words = new AtomicLongArray((size + 63) >>> 6);
+    }
+
+    /**
+     * marks a voter as counted
+     * @param index the voter's index
+     * @return true if the voter was not marked before (this call set the bit)
+     */
+    public boolean testAndSet(int index)
+    {
+        if (index < 0 || index >= size) throw new IndexOutOfBoundsException("voter index " + index);
+        int w = index >>> 6;
+        long bit = 1L << index;     // shift distance is taken mod 64
+        while (true)
+        {
+            long old = words.get(w);
+            if ((old & bit) != 0) return false;
+            if (words.compareAndSet(w, old, old | bit)) return true;
+        }
+    }
+
+    /**
+     * @return true if the voter has been marked as counted
+     */
+    public boolean get(int index)
+    {
+        return index >= 0 && index < size && (words.get(index >>> 6) & (1L << index)) != 0;
+    }
+
+    /**
+     * @return number of voters marked as counted
+     */
+    public int cardinality()
+    {
+        int count = 0;
+        for (int i = 0; i < words.length(); i++)
+        {
+            count += Long.bitCount(words.get(i));
+        }
+        return count;
+    }
+
+    /**
+     * @return number of voters the bitmap can hold
+     */
+    public int size()
+    {
+        return size;
+    }
+}
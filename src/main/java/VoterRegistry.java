@@ -0,0 +1,54 @@
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Maps registered voters (by public modulus) to the dense index they were given at registration.
+ * Indices run from 0 to size()-1 within an election, so a tally can track who has voted in a bitmap.
+ */
+public interface VoterRegistry
+{
+    /**
+     * @return number of registered voters (one more than the largest index)
+     */
+    int size();
+
+    /**
+     * resolves a batch of voters at once
+     * @param moduli base64 encoded voter moduli
+     * @param indices filled with each voter's index, or -1 if the voter is not registered
+     */
+    void indexOf(String[] moduli, int[] indices);
+
+    /**
+     * @param moduli registered voter moduli, each is given its position in the list as index
+     * @return a registry held entirely in memory (used to tally synthetic chains)
+     */
+    static VoterRegistry of(List<String> moduli)
+    {
+        final Map<String, Integer> index = new HashMap<String, Integer>();
+        for (int i = 0; i < moduli.size(); i++)
+        {
+            index.put(moduli.get(i), i);
+        }
+        final int size = moduli.size();
+        return new VoterRegistry()
+        {
+            @Override
+            public int size()
+            {
+                return size;
+            }
+
+            @Override
+            public void indexOf(String[] moduli, int[] indices)
+            {
+                for (int i = 0; i < moduli.length; i++)
+                {
+                    Integer idx = moduli[i] == null ? null : index.get(moduli[i]);
+                    indices[i] = idx == null ? -1 : idx;
+                }
+            }
+        };
+    }
+}
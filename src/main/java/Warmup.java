@@ -0,0 +1,154 @@
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.PrivateKey;
+import java.security.PublicKey;
+import java.security.interfaces.RSAPublicKey;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.List;
+
+/**
+ * Startup warm-up, run in the background before the node reports ready (see ReadinessServlet).
+ * Without it the first ballots after a deploy pay for loading the JDBC driver and connecting, registering the
+ * Bouncy Castle provider, parsing election keys, filling the caches and running the OAEP and signature code
+ * interpreted. The JSPs are compiled by the container at startup (load-on-startup entries in web.xml).
+ *
+ * Configured with the environment variables
+ *   warmupBallots -> number of synthetic ballots to decrypt and verify (default 200, 0 skips the crypto warm-up);
+ *                    with decryptWorkers they go through the worker processes, under an active election's key
+ *   warmupSeconds -> upper bound on the time spent on synthetic ballots (default 30)
+ */
+public class Warmup
+{
+    private static final int ballots = Env.intValue("warmupBallots", 200);
+    private static final int seconds = Env.intValue("warmupSeconds", 30);
+
+    private static volatile boolean ready = false;
+    private static volatile long duration = 0; // milliseconds the warm-up took
+
+    static
+    {
+        Metrics.gauge("app_ready", "1 once the startup warm-up has finished", () -> ready ? 1 : 0);
+        Metrics.gauge("app_warmup_millis", "Time the startup warm-up took (milliseconds)", () -> duration);
+    }
+
+    /**
+     * starts the warm-up on a background thread, the node is ready once it finishes
+     */
+    public static void start()
+    {
+        Thread t = new Thread(Warmup::run, "warmup");
+        t.setDaemon(true);
+        t.start();
+    }
+
+    /**
+     * @return true once the warm-up has finished and the node should receive traffic
+     */
+    public static boolean isReady()
+    {
+        return ready;
+    }
+
+    private static void run()
+    {
+        long start = System.currentTimeMillis();
+        try
+        {
+            // connects to the database (driver loading, schema upgrade) and caches what the first ballot of each
+            // active election looks up: its keys, candidates, ballot format and active flag
+            // with a decryption farm the workers load the private keys, this JVM never needs them
+            boolean farm = DecryptionFarm.WORKERS > 0;
+            List<String> active = DatabaseUtils.getActiveNames();
+            String borrowed = null; // public key of the election whose key the synthetic ballots use
+            PrivateKey decryptionKey = null;
+            for (String election : active)
+            {
+                String publicKey = DatabaseUtils.retrievePublicKey(election);
+                PrivateKey key = farm ? null : DatabaseUtils.getDecryptionKey(publicKey);
+                DatabaseUtils.getCandidates(election);
+                DatabaseUtils.getBallotFormat(election);
+                DatabaseUtils.isActive(publicKey);
+                if (publicKey != null && borrowed == null && (farm || key != null))
+                {
+                    borrowed = publicKey;
+                    decryptionKey = key;
+                }
+            }
+
+            if (ballots > 0 && borrowed != null)
+            {
+                exerciseCrypto(CryptoUtils.importPublicKey(borrowed), borrowed, decryptionKey,
+                        start + seconds * 1000L);
+            }
+            else if (ballots > 0 && !farm)
+            {   // no active election to borrow a key from
+                KeyPair keys = CryptoUtils.generateKeys();
+                exerciseCrypto(keys.getPublic(), null, keys.getPrivate(), start + seconds * 1000L);
+            }
+            // a farm without an active election has no key to decrypt with, its workers warm up on the first ballots
+        }
+        catch (Exception e)
+        {   // a failed warm-up must not keep the node out of service
+            e.printStackTrace();
+        }
+        duration = System.currentTimeMillis() - start;
+        ready = true;
+        System.out.println("Warm-up finished in " + duration + " ms");
+    }
+
+    /**
+     * decrypts and verifies synthetic ballots through the same code as BallotServlet, so the OAEP and signature
+     * paths are compiled before the first real ballot arrives
+     * @param encodedKey the election's public key, to decrypt through the DecryptionService (null for a generated key)
+     * @param decryptionKey the private key, to decrypt in this JVM (null to decrypt through the DecryptionService)
+     * @param deadline stop early at this time (epoch millis)
+     */
+    private static void exerciseCrypto(PublicKey electionKey, String encodedKey, PrivateKey decryptionKey,
+                                       long deadline) throws Exception
+    {
+        KeyPairGenerator gen = KeyPairGenerator.getInstance("RSA");
+        gen.initialize(2048);
+        KeyPair voter = gen.generateKeyPair();
+        byte[] modulus = modulus(voter);
+
+        CandidateDictionary candidates = CandidateDictionary.of(Arrays.asList("warm-up"));
+        String prevHash = Base64.getEncoder().encodeToString(new byte[32]);
+        for (int i = 0; i < ballots && System.currentTimeMillis() < deadline; i++)
+        {
+            // modulus || little-endian epoch seconds || candidate, as built by _scriptBallot.jsp
+            byte[] plain = Arrays.copyOf(modulus, 256 + 8 + 7);
+            long now = System.currentTimeMillis() / 1000;
+            for (int b = 0; b < 8; b++)
+            {
+                plain[256 + b] = (byte) (now >>> (8 * b));
+            }
+            System.arraycopy("warm-up".getBytes("ISO-8859-1"), 0, plain, 264, 7);
+
+            String encrypted = CryptoUtils.encryptData(Base64.getEncoder().encodeToString(plain), electionKey);
+            String signature = CryptoUtils.signData(encrypted, voter.getPrivate());
+            byte[] enc = Base64.getDecoder().decode(encrypted), sig = Base64.getDecoder().decode(signature);
+            byte[] ballot = Arrays.copyOf(enc, enc.length + sig.length);
+            System.arraycopy(sig, 0, ballot, enc.length, sig.length);
+            String encoded = Base64.getEncoder().encodeToString(ballot);
+
+            BallotServlet.DecryptedBallot decrypted = decryptionKey != null
+                    ? DecryptionPool.decrypt(encoded, decryptionKey, null, null)
+                    : DecryptionService.instance().decrypt(encodedKey, encoded); // through the worker processes
+            decrypted.candidateId(candidates);
+            prevHash = CryptoUtils.calculateBlockHash(encoded, prevHash, System.currentTimeMillis());
+        }
+    }
+
+    /**
+     * @return the voter's public modulus as 256 unsigned big-endian bytes
+     */
+    private static byte[] modulus(KeyPair voter)
+    {
+        byte[] n = ((RSAPublicKey) voter.getPublic()).getModulus().toByteArray();
+        byte[] out = new byte[256];
+        int len = Math.min(n.length, 256);
+        System.arraycopy(n, n.length - len, out, 256 - len, len);
+        return out;
+    }
+}
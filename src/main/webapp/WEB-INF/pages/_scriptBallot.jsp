@@ -29,7 +29,7 @@
             hash: {name: "SHA-256"}
         };
 
-        /* import key and set global variable if successful */
+        /* import key (an RSA key, or an EC key for v2 elections) and set global variable if successful */
         window.crypto.subtle.importKey(
             "pkcs8",        // key format
             keyData,        // key information
@@ -37,6 +37,10 @@
             true,           // is exportable
             ["sign"]        // for signing
         )
+            .catch(function(){
+                return window.crypto.subtle.importKey("pkcs8", keyData, {name: "ECDSA", namedCurve: "P-256"},
+                    true, ["sign"]);
+            })
             .then(function(key){
                 signingKey = key;   // set global
                 document.getElementById('signingKey').value = "";   // clear input
@@ -67,6 +71,23 @@
     {
         /* key information */
         var b64 = document.getElementById('electionKey').value;
+        var name = document.getElementById('electionName').value;
+        if (b64 === "" && name !== "")
+        {   // fetch the key of the election named in the Submit Ballot form (served cacheable by fingerprint)
+            fetch("${pageContext.request.contextPath}/election-key?election=" + encodeURIComponent(name))
+                .then(function(response){
+                    if (!response.ok) throw "there is no election named "+name;
+                    return response.text();
+                })
+                .then(function(key){
+                    document.getElementById('electionKey').value = key.trim();
+                    importElectionKey();
+                })
+                .catch(function(err){
+                    document.getElementById('electionKey_display').innerHTML = "<p>Failed to fetch key! Error: "+err+"</p>";
+                });
+            return;
+        }
         var keyData = Uint8Array.from(window.atob(b64), function(c) {return c.charCodeAt(0)});
 
         /* algorithm is RSA-OAEP using SHA-256 */
@@ -75,7 +96,7 @@
             hash: {name: "SHA-256"}
         };
 
-        /* import key and set global variable if successful */
+        /* import key (an RSA key, or the EC ballot key of a v2 election) and set global variable if successful */
         window.crypto.subtle.importKey(
             "spki",        // key format
             keyData,       // key information
@@ -83,6 +104,10 @@
             true,          // is exportable
             ["encrypt"]    // for encryption
         )
+            .catch(function(){
+                return window.crypto.subtle.importKey("spki", keyData, {name: "ECDH", namedCurve: "P-256"},
+                    true, []);
+            })
             .then(function(key){
                 electionKey = key;  // set global
                 document.getElementById('electionKey').value = "";  // clear input
@@ -111,6 +136,26 @@
      */
     function createBallot()
     {
+        if (electionKey.algorithm.name === "ECDH")
+        {   // v2 or v3 election: ask the server for the election's ballot format and candidates
+            var name = document.getElementById('electionName').value;
+            fetch("${pageContext.request.contextPath}/ballot?election=" + encodeURIComponent(name))
+                .then(function(response){
+                    if (!response.ok) throw "enter the election's name in the Submit Ballot form first";
+                    return response.text();
+                })
+                .then(function(text){
+                    var lines = text.split(/\r?\n/).filter(function(line) {return line.length > 0});
+                    if (lines[0] === "3")
+                        createBallotV3(lines.slice(1));
+                    else
+                        createBallotV2();
+                })
+                .catch(function(err){
+                    document.getElementById('ballot_display').innerHTML = "<p>Error creating ballot: "+err+"</p>";
+                });
+            return;
+        }
         /*
          * export the signing key as JWK so as to be able to access the key's public modulus
          * (to be used when constructing the ballot contents)
@@ -211,6 +256,318 @@
                 document.getElementById('ballot_display').innerHTML = "<p>Error exporting to JWK: "+err+"</p>";
             });
     }
+
+    /**
+     * create a v2 ballot: 0x02||ephemeral point||iv||AES-GCM({voter point||time||candidate})||ECDSA signature
+     * the AES key is HKDF-SHA256(ECDH(ephemeral, election ballot key), salt: ephemeral point, info: "vote-ballot-v2")
+     */
+    function createBallotV2()
+    {
+        var subtle = window.crypto.subtle;
+        var fromB64Url = function(s){
+            var b64 = s.replace(/-/g,"+").replace(/_/g,"/");
+            b64 = b64.padRight(b64.length + (4 - b64.length % 4) % 4, '=');
+            return Uint8Array.from(window.atob(b64), function(c) {return c.charCodeAt(0)});
+        };
+        var fail = function(err){
+            document.getElementById('ballot_display').innerHTML = "<p>Error creating ballot: "+err+"</p>";
+        };
+
+        // ballot contents: voter public point, 64bit little-endian timestamp, candidate
+        var candidate = Uint8Array.from(document.getElementById('candidate').value, function(c) {return c.charCodeAt(0)});
+        document.getElementById('candidate').value = ""; // clear input
+        var time = Math.floor(Date.now() / 1000);
+        var timestamp = new Uint8Array(8);
+        for (var index = 0; index < 8; index++){
+            var byte = time&(0xff);
+            timestamp[index] = byte;
+            time = (time-byte)/256;
+        }
+
+        subtle.exportKey("jwk", signingKey).then(function(jwk){
+            var data = new Uint8Array(65 + 8 + candidate.length);
+            data[0] = 0x04; // uncompressed point
+            data.set(fromB64Url(jwk.x), 1);
+            data.set(fromB64Url(jwk.y), 33);
+            data.set(timestamp, 65);
+            data.set(candidate, 73);
+
+            return subtle.generateKey({name: "ECDH", namedCurve: "P-256"}, true, ["deriveBits"])
+                .then(function(ephemeral){
+                    return Promise.all([
+                        subtle.exportKey("raw", ephemeral.publicKey),
+                        subtle.deriveBits({name: "ECDH", public: electionKey}, ephemeral.privateKey, 256)
+                    ]);
+                })
+                .then(function(results){
+                    var point = new Uint8Array(results[0]);
+                    return subtle.importKey("raw", results[1], "HKDF", false, ["deriveKey"])
+                        .then(function(secret){
+                            return subtle.deriveKey(
+                                {name: "HKDF", hash: "SHA-256", salt: point, info: new TextEncoder().encode("vote-ballot-v2")},
+                                secret, {name: "AES-GCM", length: 256}, false, ["encrypt"]);
+                        })
+                        .then(function(aesKey){
+                            var iv = window.crypto.getRandomValues(new Uint8Array(12));
+                            return subtle.encrypt({name: "AES-GCM", iv: iv}, aesKey, data)
+                                .then(function(ciphertext){
+                                    ciphertext = new Uint8Array(ciphertext);
+                                    var signed = new Uint8Array(1 + 65 + 12 + ciphertext.length);
+                                    signed[0] = 0x02; // ballot format version
+                                    signed.set(point, 1);
+                                    signed.set(iv, 66);
+                                    signed.set(ciphertext, 78);
+                                    return subtle.sign({name: "ECDSA", hash: {name: "SHA-256"}}, signingKey, signed)
+                                        .then(function(signature){
+                                            signature = new Uint8Array(signature);
+                                            var ballot = new Uint8Array(signed.length + signature.length);
+                                            ballot.set(signed);
+                                            ballot.set(signature, signed.length);
+                                            var str = btoa(String.fromCharCode.apply(null, ballot));
+                                            document.getElementById('ballot_display').innerHTML =
+                                                "<p style=\"overflow-wrap:break-word;\"><code>"+str+"</code></p>";
+                                            document.getElementById('ballot').value = str; // fill form
+                                        });
+                                });
+                        });
+                });
+        }).catch(fail);
+    }
+
+    /*
+     * P-256 arithmetic for homomorphic (v3) ballots, the WebCrypto API has no point operations.
+     * Points are kept in Jacobian coordinates {x, y, z}, z = 0 is the point at infinity.
+     */
+    var P256 = {
+        p: BigInt("0xffffffff00000001000000000000000000000000ffffffffffffffffffffffff"),
+        n: BigInt("0xffffffff00000000ffffffffffffffffbce6faada7179e84f3b9cac2fc632551"),
+        G: {x: BigInt("0x6b17d1f2e12c4247f8bce6e563a440f277037d812deb33a0f4a13945d898c296"),
+            y: BigInt("0x4fe342e2fe1a7f9b8ee7eb4a7c0f9e162bce33576b315ececbb6406837bf51f5"),
+            z: BigInt(1)}
+    };
+    var ZERO = BigInt(0), ONE = BigInt(1), TWO = BigInt(2), THREE = BigInt(3), EIGHT = BigInt(8);
+
+    function modP(a)
+    {
+        a = a % P256.p;
+        return a < ZERO ? a + P256.p : a;
+    }
+
+    function modPow(b, e, m)
+    {
+        var r = ONE;
+        b = b % m;
+        while (e > ZERO)
+        {
+            if (e & ONE) r = r * b % m;
+            b = b * b % m;
+            e = e >> ONE;
+        }
+        return r;
+    }
+
+    function ecDouble(P)
+    {
+        if (P.z === ZERO || P.y === ZERO) return {x: ONE, y: ONE, z: ZERO};
+        var delta = modP(P.z * P.z), gamma = modP(P.y * P.y), beta = modP(P.x * gamma);
+        var alpha = modP(THREE * (P.x - delta) * (P.x + delta));
+        var x = modP(alpha * alpha - EIGHT * beta);
+        var z = modP((P.y + P.z) * (P.y + P.z) - gamma - delta);
+        var y = modP(alpha * (BigInt(4) * beta - x) - EIGHT * gamma * gamma);
+        return {x: x, y: y, z: z};
+    }
+
+    function ecAdd(P, Q)
+    {
+        if (P.z === ZERO) return Q;
+        if (Q.z === ZERO) return P;
+        var z1z1 = modP(P.z * P.z), z2z2 = modP(Q.z * Q.z);
+        var u1 = modP(P.x * z2z2), u2 = modP(Q.x * z1z1);
+        var s1 = modP(P.y * Q.z * z2z2), s2 = modP(Q.y * P.z * z1z1);
+        if (u1 === u2) return s1 === s2 ? ecDouble(P) : {x: ONE, y: ONE, z: ZERO};
+        var h = modP(u2 - u1), r = modP(s2 - s1);
+        var h2 = modP(h * h), h3 = modP(h * h2), u1h2 = modP(u1 * h2);
+        var x = modP(r * r - h3 - TWO * u1h2);
+        return {x: x, y: modP(r * (u1h2 - x) - s1 * h3), z: modP(P.z * Q.z * h)};
+    }
+
+    function ecNeg(P)
+    {
+        return {x: P.x, y: modP(-P.y), z: P.z};
+    }
+
+    function ecMul(P, k)
+    {
+        var R = {x: ONE, y: ONE, z: ZERO};
+        for (var i = k.toString(2), j = 0; j < i.length; j++)
+        {
+            R = ecDouble(R);
+            if (i[j] === "1") R = ecAdd(R, P);
+        }
+        return R;
+    }
+
+    /* sP - cQ */
+    function ecCombine(P, s, Q, c)
+    {
+        return ecAdd(ecMul(P, s), ecNeg(ecMul(Q, c)));
+    }
+
+    /* compressed encoding (33 bytes, all zero for the point at infinity) */
+    function ecEncode(P)
+    {
+        var out = new Uint8Array(33);
+        if (P.z === ZERO) return out;
+        var zi = modPow(P.z, P256.p - TWO, P256.p), zi2 = modP(zi * zi);
+        var x = modP(P.x * zi2), y = modP(P.y * zi2 * zi);
+        out[0] = (y & ONE) ? 3 : 2;
+        out.set(bigToBytes(x), 1);
+        return out;
+    }
+
+    function bigToBytes(v)
+    {
+        var hex = v.toString(16).padStart(64, "0");
+        var out = new Uint8Array(32);
+        for (var i = 0; i < 32; i++) out[i] = parseInt(hex.substr(2 * i, 2), 16);
+        return out;
+    }
+
+    function bytesToBig(bytes)
+    {
+        var hex = "0x";
+        for (var i = 0; i < bytes.length; i++) hex += (bytes[i] < 16 ? "0" : "") + bytes[i].toString(16);
+        return BigInt(hex);
+    }
+
+    function randomScalar()
+    {
+        return bytesToBig(window.crypto.getRandomValues(new Uint8Array(48))) % P256.n;
+    }
+
+    /* SHA-256 over a label and the given byte arrays, reduced mod n (resolves to a BigInt) */
+    function challenge(label, parts)
+    {
+        var length = label.length;
+        parts.forEach(function(part) {length += part.length});
+        var data = new Uint8Array(length), offset = label.length;
+        data.set(Uint8Array.from(label, function(c) {return c.charCodeAt(0)}));
+        parts.forEach(function(part) {data.set(part, offset); offset += part.length});
+        return window.crypto.subtle.digest("SHA-256", data).then(function(hash){
+            return bytesToBig(new Uint8Array(hash)) % P256.n;
+        });
+    }
+
+    /*
+     * encrypts one vote m (0 or 1) to the tally key H with a proof that it is 0 or 1
+     * resolves to {a, b, r, bytes: a||b||c0||c1||s0||s1}
+     */
+    function encryptVote(m, H, hb, voter)
+    {
+        var G = P256.G, r = randomScalar();
+        var a = ecMul(G, r), b = ecAdd(ecMul(H, r), m ? G : {x: ONE, y: ONE, z: ZERO});
+
+        // prove the real branch (m), simulate the other (k)
+        var k = 1 - m, w = randomScalar(), c = [], s = [], ca = [], cb = [];
+        c[k] = randomScalar();
+        s[k] = randomScalar();
+        ca[k] = ecCombine(G, s[k], a, c[k]);
+        cb[k] = ecCombine(H, s[k], k ? ecAdd(b, ecNeg(G)) : b, c[k]);
+        ca[m] = ecMul(G, w);
+        cb[m] = ecMul(H, w);
+        var ab = ecEncode(a), bb = ecEncode(b);
+        return challenge("vote-elgamal-bit", [hb, voter, ab, bb, ecEncode(ca[0]), ecEncode(cb[0]),
+                                              ecEncode(ca[1]), ecEncode(cb[1])])
+            .then(function(e){
+                c[m] = ((e - c[k]) % P256.n + P256.n) % P256.n;
+                s[m] = (w + c[m] * r) % P256.n;
+                var bytes = new Uint8Array(2 * 33 + 4 * 32);
+                [ab, bb].forEach(function(p, i) {bytes.set(p, 33 * i)});
+                [c[0], c[1], s[0], s[1]].forEach(function(v, i) {bytes.set(bigToBytes(v), 66 + 32 * i)});
+                return {a: a, b: b, r: r, bytes: bytes};
+            });
+    }
+
+    /**
+     * create a v3 (homomorphic) ballot: 0x03||voter point||time||number of candidates
+     *   ||per candidate: ElGamal ciphertext of 0 or 1 with proof||proof the votes add up to 1||ECDSA signature
+     * see ElGamalTally for the format
+     */
+    function createBallotV3(candidates)
+    {
+        var subtle = window.crypto.subtle;
+        var fail = function(err){
+            document.getElementById('ballot_display').innerHTML = "<p>Error creating ballot: "+err+"</p>";
+        };
+        var fromB64Url = function(s){
+            var b64 = s.replace(/-/g,"+").replace(/_/g,"/");
+            b64 = b64.padRight(b64.length + (4 - b64.length % 4) % 4, '=');
+            return Uint8Array.from(window.atob(b64), function(c) {return c.charCodeAt(0)});
+        };
+
+        var choice = candidates.indexOf(document.getElementById('candidate').value);
+        if (choice < 0)
+        {
+            fail("the candidate is not on this election's ballot ("+candidates.join(", ")+")");
+            return;
+        }
+        document.getElementById('candidate').value = ""; // clear input
+        var time = Math.floor(Date.now() / 1000);
+        var timestamp = new Uint8Array(8);
+        for (var index = 0; index < 8; index++){
+            var byte = time&(0xff);
+            timestamp[index] = byte;
+            time = (time-byte)/256;
+        }
+
+        Promise.all([subtle.exportKey("jwk", signingKey), subtle.exportKey("raw", electionKey)])
+            .then(function(keys){
+                var voter = new Uint8Array(65);
+                voter[0] = 0x04; // uncompressed point
+                voter.set(fromB64Url(keys[0].x), 1);
+                voter.set(fromB64Url(keys[0].y), 33);
+                var raw = new Uint8Array(keys[1]);
+                var H = {x: bytesToBig(raw.slice(1, 33)), y: bytesToBig(raw.slice(33, 65)), z: ONE};
+                var hb = ecEncode(H);
+
+                var votes = candidates.map(function(name, i) {return encryptVote(i === choice ? 1 : 0, H, hb, voter)});
+                return Promise.all(votes).then(function(votes){
+                    // prove that the votes add up to exactly one
+                    var sumA = votes[0].a, sumB = votes[0].b, sumR = votes[0].r;
+                    for (var i = 1; i < votes.length; i++)
+                    {
+                        sumA = ecAdd(sumA, votes[i].a);
+                        sumB = ecAdd(sumB, votes[i].b);
+                        sumR = sumR + votes[i].r;
+                    }
+                    var w = randomScalar();
+                    return challenge("vote-elgamal-sum", [hb, voter, ecEncode(sumA), ecEncode(sumB),
+                                                          ecEncode(ecMul(P256.G, w)), ecEncode(ecMul(H, w))])
+                        .then(function(c){
+                            var signed = new Uint8Array(1 + 65 + 8 + 1 + votes.length * 194 + 64);
+                            signed[0] = 0x03; // ballot format version
+                            signed.set(voter, 1);
+                            signed.set(timestamp, 66);
+                            signed[74] = votes.length;
+                            votes.forEach(function(vote, i) {signed.set(vote.bytes, 75 + 194 * i)});
+                            signed.set(bigToBytes(c), signed.length - 64);
+                            signed.set(bigToBytes((w + c * sumR) % P256.n), signed.length - 32);
+                            return subtle.sign({name: "ECDSA", hash: {name: "SHA-256"}}, signingKey, signed)
+                                .then(function(signature){
+                                    signature = new Uint8Array(signature);
+                                    var ballot = new Uint8Array(signed.length + signature.length);
+                                    ballot.set(signed);
+                                    ballot.set(signature, signed.length);
+                                    var str = btoa(String.fromCharCode.apply(null, ballot));
+                                    document.getElementById('ballot_display').innerHTML =
+                                        "<p style=\"overflow-wrap:break-word;\"><code>"+str+"</code></p>";
+                                    document.getElementById('ballot').value = str; // fill form
+                                });
+                        });
+                });
+            })
+            .catch(fail);
+    }
     //-->
 </script>
 
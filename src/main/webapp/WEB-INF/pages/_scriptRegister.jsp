@@ -102,6 +102,65 @@
                 document.getElementById('privateKeyExport').innerHTML = "Error generating RSA keys: "+err;
             });
     }
+
+    /**
+     * generate EC (P-256) keys for elections taking v2 ballots, sign the public point, set values in form
+     */
+    function generateEcKeys()
+    {
+        /* WebCryptoAPI key generation parameters */
+        var algorithmKeyGen = {
+            name: "ECDSA",
+            namedCurve: "P-256"
+        };
+
+        window.crypto.subtle.generateKey(algorithmKeyGen, true, ["sign", "verify"])
+            .then(function(keys){
+                /* export the public key as spki (for display) */
+                window.crypto.subtle.exportKey("spki", keys.publicKey)
+                    .then(function(data){
+                        var str = String.fromCharCode.apply(null, new Uint8Array(data));
+                        document.getElementById('publicKeyExport').innerHTML = btoa(str);
+                    })
+                    .catch(function(err) {
+                        document.getElementById('publicKeyExport').innerHTML = "Error exporting public key to X.509 SPKI format: "+err;
+                    });
+
+                /* export the private key as pkcs8 (imported on the ballot page) */
+                window.crypto.subtle.exportKey("pkcs8", keys.privateKey)
+                    .then(function(data){
+                        var str = String.fromCharCode.apply(null, new Uint8Array(data));
+                        document.getElementById('privateKeyExport').innerHTML = btoa(str);
+                    })
+                    .catch(function(err){
+                        document.getElementById('privateKeyExport').innerHTML = "Error exporting private key to PKCS#8 format: "+err;
+                    });
+
+                /* the registered voter key is the uncompressed public point (65 bytes) */
+                window.crypto.subtle.exportKey("raw", keys.publicKey)
+                    .then(function(point){
+                        document.getElementById('modulusRegister').value =
+                            btoa(String.fromCharCode.apply(null, new Uint8Array(point)));
+
+                        /* sign the public point using the private key (ECDSA with SHA-256) */
+                        window.crypto.subtle.sign({name: "ECDSA", hash: {name: "SHA-256"}}, keys.privateKey, point)
+                            .then(function(signature){
+                                document.getElementById('signature').value =
+                                    btoa(String.fromCharCode.apply(null, new Uint8Array(signature)));
+                            })
+                            .catch(function(err){
+                                document.getElementById('signature').value = "Error signing public key: "+err;
+                            });
+                    })
+                    .catch(function(err){
+                        document.getElementById('signature').value = "Error exporting public key: "+err;
+                    });
+            })
+            .catch(function(err){
+                document.getElementById('publicKeyExport').innerHTML = "Error generating EC keys: "+err;
+                document.getElementById('privateKeyExport').innerHTML = "Error generating EC keys: "+err;
+            });
+    }
     //-->
 </script>
 
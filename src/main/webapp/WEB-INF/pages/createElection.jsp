@@ -32,6 +32,20 @@
                 <td>Election Name</td>
                 <td><input type="text" name="electionName" title="Election Name"/> </td>
             </tr>
+            <tr>
+                <td>Candidates</td>
+                <td><textarea name="candidates" rows="5" title="One candidate name per line. Leave empty to allow write-in candidates."></textarea></td>
+            </tr>
+            <tr>
+                <td>Ballot Format</td>
+                <td>
+                    <select name="ballotFormat" title="Fast v2 ballots: voters register EC (P-256) keys and ballots are encrypted with ECDH and AES-GCM. Homomorphic v3 ballots are counted without decrypting them (1 to 12 candidates, no write-ins).">
+                        <option value="1">v1 (RSA keys)</option>
+                        <option value="2">v2 (EC keys)</option>
+                        <option value="3">v3 (EC keys, homomorphic tally)</option>
+                    </select>
+                </td>
+            </tr>
             <tr>
                 <td colspan ="2">
                     <input type="submit" value= "Submit" />
@@ -20,10 +20,27 @@
     <br />
 
     <h3>Voters For Selected Election</h3>
+    <c:if test="${rosterElection != null}">
+        <p><c:out value="${rosterElection}" />: <c:out value="${voterCount}" /> registered voters</p>
+        <form method="POST" action="${pageContext.request.contextPath}/electionmanager">
+            <input type="hidden" name="rosterElection" value="<c:out value="${rosterElection}" />" />
+            <input type="hidden" name="after" value="<c:out value="${nextCursor}" />" />
+            <input type="hidden" name="afterLastPrefix" value="<c:out value="${lastPrefix}" />" />
+            <input type="hidden" name="afterFirstPrefix" value="<c:out value="${firstPrefix}" />" />
+            Last name starts with
+            <input type="text" name="lastPrefix" value="<c:out value="${lastPrefix}" />" title="Last name prefix" />
+            First name starts with
+            <input type="text" name="firstPrefix" value="<c:out value="${firstPrefix}" />" title="First name prefix" />
+            <input type="submit" name="buttonPressed" value="Search Voters" />
+            <c:if test="${nextCursor != null}">
+                <input type="submit" name="buttonPressed" value="Next Page" />
+            </c:if>
+        </form>
+    </c:if>
     <ul>
         <c:forEach var="voter" items="${voters}">
             <li>
-                <c:out value="${voter}" />
+                <c:out value="${voter.name}" />
             </li>
         </c:forEach>
     </ul>
@@ -31,15 +48,14 @@
 	<h3>Upcoming Elections</h3>
 	<form method="POST" action="${pageContext.request.contextPath}/electionmanager">
 		<ul>
-			<c:forEach var="upcomingElection" items="${upcomingElections}" varStatus="loop">
-				<c:set var="index" value="${loop.index}"/>
+			<c:forEach var="upcomingElection" items="${upcomingElections}">
 				<li>
                     <div style="max-width:600px; overflow-wrap:break-word;">
-                        <h4><c:out value="${upcomingElection}" /></h4>
+                        <h4><c:out value="${upcomingElection.name} | ${upcomingElection.blockCount}" /></h4>
                     </div>
 				</li>
-				<input type="submit" name="buttonPressed" value="Activate ${upcomingNames[index]}" />
-                <input type="submit" name="buttonPressed" value="View Voters ${upcomingNames[index]}" />
+				<input type="submit" name="buttonPressed" value="Activate ${upcomingElection.name}" />
+                <input type="submit" name="buttonPressed" value="View Voters ${upcomingElection.name}" />
 			</c:forEach>
 		</ul>
 	</form>
@@ -47,15 +63,14 @@
     <h3>Active Elections</h3>
     <form method="POST" action="${pageContext.request.contextPath}/electionmanager">
         <ul>
-            <c:forEach var="activeElection" items="${activeElections}" varStatus="loop">
-                <c:set var="index" value="${loop.index}"/>
+            <c:forEach var="activeElection" items="${activeElections}">
                 <li>
                     <div style="max-width:600px; overflow-wrap:break-word;">
-                        <h4><c:out value="${activeElection}" /></h4>
+                        <h4><c:out value="${activeElection.name} | ${activeElection.blockCount}" /></h4>
                     </div>
                 </li>
-                <input type="submit" name="buttonPressed" value="Terminate ${activeNames[index]}"/>
-                <input type="submit" name="buttonPressed" value="View Voters ${activeNames[index]}"/>
+                <input type="submit" name="buttonPressed" value="Terminate ${activeElection.name}"/>
+                <input type="submit" name="buttonPressed" value="View Voters ${activeElection.name}"/>
             </c:forEach>
         </ul>
     </form>
@@ -65,14 +80,18 @@
     <h3>Closed Elections</h3>
     <form method="POST" action="${pageContext.request.contextPath}/electionmanager">
         <ul>
-            <c:forEach var="closedElection" items="${closedElections}" varStatus="loop">
-                <c:set var="index" value="${loop.index}"/>
+            <c:forEach var="closedElection" items="${closedElections}">
                 <li>
                     <div style="max-width:600px; overflow-wrap:break-word;">
-                        <h4><c:out value="${closedElection}" /></h4>
+                        <h4><c:out value="${closedElection.name} | ${closedElection.blockCount}" /></h4>
                     </div>
                 </li>
-                <input type="submit" name="buttonPressed" value="View Voters ${closedNames[index]}" />
+                <input type="submit" name="buttonPressed" value="View Voters ${closedElection.name}" />
+                <c:url var="bundleUrl" value="/audit-bundle"><c:param name="election" value="${closedElection.name}" /></c:url>
+                <c:if test="${!closedElection.archived}">
+                    <input type="submit" name="buttonPressed" value="Archive ${closedElection.name}" />
+                </c:if>
+                <a href="${bundleUrl}">Download Audit Bundle</a>
             </c:forEach>
         </ul>
     </form>
@@ -60,8 +60,9 @@
     <br />
     <br />
 
-    <%-- generates and displays new RSA key pair on the client --%>
+    <%-- generates and displays a new RSA key pair (or an EC key pair for elections taking v2 ballots) on the client --%>
     <input onclick="generateKeys()" type="button" value= "Generate New RSA Keys" />
+    <input onclick="generateEcKeys()" type="button" value= "Generate New EC Keys (v2 elections)" />
     <table border="0" style="table-layout:fixed;width:100%">
         <tr>
             <td><h4>Public Key</h4></td>
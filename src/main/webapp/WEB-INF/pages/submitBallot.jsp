@@ -75,7 +75,8 @@
 
     <h3>Import Public Election Key</h3>
     <p>The election's public key is used to encrypt your ballot and confidentiality while the election is ongoing.
-        The election key can be found on the Voter Dashboard page.</p>
+        The election key can be found on the Voter Dashboard page; leave the field empty to fetch the key of the election
+        named in the Submit Ballot form.</p>
     <table border="0" style="table-layout:fixed;width:100%">
         <tr>
             <!-- imported election key goes here -->
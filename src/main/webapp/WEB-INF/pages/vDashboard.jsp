@@ -12,7 +12,7 @@
 <div class="container">
     <h3>Voter Dashboard</h3>
     <p>This is where all of your election needs can be met. You can find election names, public keys, and see how many
-        votes have been cast here.</p>
+        voters have registered and voted here. Each election key is listed by its fingerprint (SHA-256), follow the link to fetch it.</p>
 
     <br />
 
@@ -21,7 +21,10 @@
         <c:forEach var="upcomingElection" items="${upcomingElections}">
             <li>
                 <div style="max-width:600px; overflow-wrap:break-word;">
-                    <h4><c:out value="${upcomingElection}" /></h4>
+                    <h4><c:out value="${upcomingElection.name} | ${upcomingElection.blockCount}" /></h4>
+                    <a href="${pageContext.request.contextPath}/election-key/${upcomingElection.fingerprint}">Election Key</a>
+                    <code><c:out value="${upcomingElection.fingerprint}" /></code>
+                    <p>Registered: <c:out value="${upcomingElection.registered}" /></p>
                 </div>
                 <ul>
                     <c:forEach var="voter" items="${voters}">
@@ -39,7 +42,13 @@
         <c:forEach var="activeElection" items="${activeElections}">
             <li>
                 <div style="max-width:600px; overflow-wrap:break-word;">
-                    <h4><c:out value="${activeElection}" /></h4>
+                    <h4><c:out value="${activeElection.name} | ${activeElection.blockCount}" /></h4>
+                    <a href="${pageContext.request.contextPath}/election-key/${activeElection.fingerprint}">Election Key</a>
+                    <code><c:out value="${activeElection.fingerprint}" /></code>
+                    <p>Registered: <c:out value="${activeElection.registered}" /> | Ballots: <c:out value="${activeElection.ballots}" />
+                        | Voted: <c:out value="${activeElection.voted}" />
+                        <c:url var="turnoutUrl" value="/turnout"><c:param name="election" value="${activeElection.name}" /></c:url>
+                        <a href="${turnoutUrl}">Turnout</a></p>
                 </div>
                 <ul>
                     <c:forEach var="voter" items="${voters}">
@@ -58,7 +67,13 @@
         <c:forEach var="closedElection" items="${closedElections}">
             <li>
                 <div style="max-width:600px; overflow-wrap:break-word;">
-                    <h4><c:out value="${closedElection}" /></h4>
+                    <h4><c:out value="${closedElection.name} | ${closedElection.blockCount}" /></h4>
+                    <a href="${pageContext.request.contextPath}/election-key/${closedElection.fingerprint}">Election Key</a>
+                    <code><c:out value="${closedElection.fingerprint}" /></code>
+                    <p>Registered: <c:out value="${closedElection.registered}" /> | Ballots: <c:out value="${closedElection.ballots}" />
+                        | Voted: <c:out value="${closedElection.voted}" />
+                        <c:url var="turnoutUrl" value="/turnout"><c:param name="election" value="${closedElection.name}" /></c:url>
+                        <a href="${turnoutUrl}">Turnout</a></p>
                 </div>
                 <ul>
                     <c:forEach var="voter" items="${voters}">